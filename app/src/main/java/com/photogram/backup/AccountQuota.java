@@ -0,0 +1,152 @@
+package com.photogram.backup;
+
+import androidx.annotation.NonNull;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Account approval and daily upload quota, shared by all sync workers in the process.
+ *
+ * The sync coordinator refreshes it from Firebase once per run; shard workers reserve one
+ * unit per photo, packed or not, so that parallel shards never exceed the limit together.
+ */
+public final class AccountQuota {
+    private static final AccountQuota INSTANCE = new AccountQuota();
+
+    private boolean loaded = false;
+    private boolean limited = false;
+    private int dailyLimit = 0;
+    private int usage = 0;
+    private int reserved = 0;
+
+    private AccountQuota() {
+    }
+
+    @NonNull
+    public static AccountQuota getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Fetch the account state from Firebase and reset the daily usage on a new day. Reservations
+     * are kept, as shards may be uploading against them while another worker refreshes.
+     * @return true if the account is approved or limited
+     */
+    public boolean refresh(@NonNull String uid, @NonNull DatabaseHelper dbHelper) {
+        try {
+            DatabaseReference userRef = FirebaseDatabase.getInstance(AppConstants.FIREBASE_DB_URL)
+                .getReference("users")
+                .child(uid);
+            DataSnapshot snap = Tasks.await(userRef.get(), AppConstants.FIREBASE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            
+            if (!snap.exists()) {
+                dbHelper.addLog("ERROR", "User record not found in Firebase");
+                return false;
+            }
+
+            String status = snap.child("status").getValue(String.class);
+            if (status == null) {
+                dbHelper.addLog("ERROR", "User status not set in Firebase");
+                return false;
+            }
+
+            synchronized (this) {
+                limited = "limited".equals(status);
+                dailyLimit = 0;
+                usage = 0;
+                
+                if (limited) {
+                    Integer limitValue = snap.child("daily_limit").getValue(Integer.class);
+                    Integer usageValue = snap.child("usage_count").getValue(Integer.class);
+                    
+                    dailyLimit = (limitValue != null) ? limitValue : 0;
+                    usage = (usageValue != null) ? usageValue : 0;
+                    
+                    String today = new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(new Date());
+                    String lastSyncDate = snap.child("last_sync_date").getValue(String.class);
+                    
+                    // Reset usage if it's a new day
+                    if (!today.equals(lastSyncDate)) {
+                        usage = 0;
+                        userRef.child("usage_count").setValue(0);
+                        userRef.child("last_sync_date").setValue(today);
+                    }
+                    
+                    dbHelper.addLog("INFO", "Account limited: " + usage + "/" + dailyLimit + " daily uploads");
+                }
+                loaded = true;
+            }
+            
+            return "approved".equals(status) || "limited".equals(status);
+            
+        } catch (Exception e) {
+            dbHelper.addLog("ERROR", "Failed to fetch cloud state: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    public synchronized boolean isLimited() {
+        return limited;
+    }
+
+    public synchronized int getDailyLimit() {
+        return dailyLimit;
+    }
+
+    public synchronized int getUsage() {
+        return usage;
+    }
+
+    public synchronized boolean isExhausted() {
+        return limited && usage + reserved >= dailyLimit;
+    }
+
+    /**
+     * Reserve photos before they are uploaded
+     * @return false if the daily limit would be exceeded
+     */
+    public synchronized boolean tryReserve(int count) {
+        if (limited && usage + reserved + count > dailyLimit) {
+            return false;
+        }
+        reserved += count;
+        return true;
+    }
+
+    /**
+     * Turn reservations into usage after a successful upload and push it to Firebase
+     */
+    public void commit(@NonNull String uid, int count) {
+        int current;
+        synchronized (this) {
+            reserved = Math.max(0, reserved - count);
+            if (!limited) {
+                return;
+            }
+            usage += count;
+            current = usage;
+        }
+        FirebaseDatabase.getInstance(AppConstants.FIREBASE_DB_URL)
+            .getReference("users")
+            .child(uid)
+            .child("usage_count")
+            .setValue(current);
+    }
+
+    /**
+     * Give back reservations after a failed upload
+     */
+    public synchronized void release(int count) {
+        reserved = Math.max(0, reserved - count);
+    }
+}
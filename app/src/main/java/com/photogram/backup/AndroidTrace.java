@@ -0,0 +1,40 @@
+package com.photogram.backup;
+
+import androidx.tracing.Trace;
+
+/**
+ * {@link PerfTrace} backend over androidx.tracing, which falls back to the platform API of
+ * older releases; async sections and counters need API 29 there and are dropped below it.
+ */
+final class AndroidTrace implements PerfTrace.Backend {
+
+    @Override
+    public boolean isEnabled() {
+        return Trace.isEnabled();
+    }
+
+    @Override
+    public void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    @Override
+    public void endSection() {
+        Trace.endSection();
+    }
+
+    @Override
+    public void beginAsyncSection(String name, int cookie) {
+        Trace.beginAsyncSection(name, cookie);
+    }
+
+    @Override
+    public void endAsyncSection(String name, int cookie) {
+        Trace.endAsyncSection(name, cookie);
+    }
+
+    @Override
+    public void setCounter(String name, long value) {
+        Trace.setCounter(name, (int) Math.min(Integer.MAX_VALUE, value));
+    }
+}
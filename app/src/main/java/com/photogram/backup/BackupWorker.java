@@ -1,79 +1,102 @@
 package com.photogram.backup;
 
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.Network;
 import android.net.NetworkCapabilities;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.provider.MediaStore;
+import android.util.Log;
 import androidx.annotation.NonNull;
-import androidx.core.app.NotificationCompat;
-import androidx.work.ForegroundInfo;
+import androidx.annotation.Nullable;
+import androidx.work.ArrayCreatingInputMerger;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
-import androidx.work.Data;
 import com.google.firebase.auth.FirebaseAuth;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.FirebaseDatabase;
-import com.google.android.gms.tasks.Tasks;
 import java.io.File;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.Locale;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Sync coordinator.
+ *
+ * Checks the account, loads the topic registry, plans which selected folders have new photos and
+ * makes sure each of them has a topic. The uploads themselves run in {@link FolderSyncWorker}
+ * shards that are enqueued as one unique chain together with a {@link SyncFinalizeWorker}, so
+ * folders upload in parallel and no worker thread ever waits for another sync to finish.
+ *
+ * Shards stop after a time slice and the finalizer then enqueues this worker again as a
+ * continuation. While the device is charging on an unmetered network the run is in bulk mode:
+ * more shards, and continuations that wait for the same conditions, so a large initial
+ * backlog is worked off overnight.
+ */
 public class BackupWorker extends Worker {
-    private static final Object SYNC_LOCK = new Object();
-    private static final String CHANNEL_ID = "sync_channel";
     private static final int NOTIF_ID = 1;
     private static final String TAG = "BackupWorker";
-    
+
     // Configurable constants from AppConstants
     private static final int MAX_RETRY_ATTEMPTS = AppConstants.MAX_RETRY_ATTEMPTS;
-    private static final long UPLOAD_DELAY_MS = AppConstants.UPLOAD_DELAY_MS;
-    private static final int FIREBASE_TIMEOUT_SECONDS = AppConstants.FIREBASE_TIMEOUT_SECONDS;
+    /** Simulated network of debug builds, shared by every client of the process like one link */
+    private static NetworkShaper networkShaper;
+
+    // Input data shared with the shard and finalize workers
+    static final String KEY_IS_MANUAL = "is_manual";
+    static final String KEY_SINCE = "since";
+    static final String KEY_SYNC_STARTED_AT = "sync_started_at";
+    static final String KEY_CONTINUATION = "continuation";
+    static final String KEY_BULK = "bulk";
+    static final String KEY_SYNC_MODE = "sync_mode";
 
     private final SharedPreferences prefs;
     private final DatabaseHelper dbHelper;
-    private final NotificationManager nm;
+    private final SyncNotifier notifier;
     private final Context ctx;
-
-    private boolean isLimited = false;
-    private int dailyLimit = 0;
-    private int currentUsage = 0;
+    private final SyncMetrics metrics = new SyncMetrics();
+    /** Plan time of the run, once known; metrics are only recorded for a planned run */
+    private long runStartedAt;
+    private SyncMode runMode;
 
     public BackupWorker(@NonNull Context context, @NonNull WorkerParameters params) {
         super(context, params);
         this.ctx = context;
         this.prefs = context.getSharedPreferences(AppConstants.PREFS_NAME, Context.MODE_PRIVATE);
-        this.dbHelper = new DatabaseHelper(context);
-        this.nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        this.dbHelper = DatabaseHelper.getInstance(context);
+        this.notifier = new SyncNotifier(context, NOTIF_ID).withPauseAction();
     }
 
     @NonNull
     @Override
     public Result doWork() {
-        synchronized (SYNC_LOCK) {
-            try {
-                return performSync();
-            } catch (Exception e) {
-                dbHelper.addLog("ERROR", "Unexpected error in doWork: " + e.getMessage());
-                return Result.failure();
-            } finally {
-                // Ensure notification is cancelled even if work fails
-                if (nm != null) {
-                    nm.cancel(NOTIF_ID);
-                }
+        try {
+            return performSync();
+        } catch (Exception e) {
+            dbHelper.addLog("ERROR", "Unexpected error in doWork: " + e.getMessage());
+            return Result.failure();
+        } finally {
+            // Ensure notification is cancelled even if work fails
+            notifier.cancel();
+            if (runStartedAt > 0) {
+                dbHelper.addSyncRunMetrics(runStartedAt, runMode.name(), metrics);
             }
         }
     }
@@ -85,8 +108,22 @@ public class BackupWorker extends Worker {
             return Result.failure();
         }
 
-        boolean isManual = getInputData().getBoolean("is_manual", false);
-        dbHelper.addLog("INFO", "Sync Started (Manual: " + isManual + ", Attempt: " + getRunAttemptCount() + ")");
+        boolean isManual = getInputData().getBoolean(KEY_IS_MANUAL, false);
+        SyncMode mode = SyncMode.fromName(getInputData().getString(KEY_SYNC_MODE), isManual ? SyncMode.MANUAL : SyncMode.PERIODIC);
+        boolean isContinuation = getInputData().getBoolean(KEY_CONTINUATION, false);
+        boolean bulk = isBulkEligible();
+        dbHelper.addLog("INFO", "Sync Started (Mode: " + mode + ", Continuation: " + isContinuation +
+            ", Bulk: " + bulk + ", Attempt: " + getRunAttemptCount() + ")");
+
+        // A content trigger fires once, arm it again for the next photo
+        if (mode == SyncMode.REALTIME && !isContinuation) {
+            scheduleRealtimeSync(ctx, ExistingWorkPolicy.APPEND_OR_REPLACE);
+        }
+
+        if (SyncControl.isPaused(prefs)) {
+            dbHelper.addLog("INFO", "Sync Skipped: paused by user");
+            return Result.success();
+        }
 
         // Check WiFi requirement for non-manual syncs
         if (!isManual && prefs.getBoolean("only_wifi", false) && !isWifiConnected()) {
@@ -94,99 +131,108 @@ public class BackupWorker extends Worker {
             return Result.retry();
         }
 
+        if (getRunAttemptCount() > 0) {
+            metrics.retries++;
+        }
+
         // Fetch cloud state and verify access
-        if (!fetchCloudState(uid)) {
+        AccountQuota quota = AccountQuota.getInstance();
+        long phaseStart = System.nanoTime();
+        boolean approved = quota.refresh(uid, dbHelper);
+        metrics.addPhase(SyncMetrics.Phase.FIREBASE, phaseStart);
+        if (!approved) {
             dbHelper.addLog("ERROR", "Access Denied: Account not approved in Firebase");
             return Result.failure();
         }
 
         // Check if daily limit is already reached for limited accounts
-        if (isLimited && currentUsage >= dailyLimit) {
-            dbHelper.addLog("INFO", "Sync Skipped: Daily limit reached (" + currentUsage + "/" + dailyLimit + ")");
+        if (quota.isExhausted()) {
+            dbHelper.addLog("INFO", "Sync Skipped: Daily limit reached (" + quota.getUsage() + "/" + quota.getDailyLimit() + ")");
             return Result.success(); // Not a failure, just limit reached
         }
 
         // Set up foreground notification
-        createChannel();
         try {
-            setForegroundAsync(createForegroundInfo("Starting sync..."));
+            setForegroundAsync(notifier.foregroundInfo("Preparing sync..."));
         } catch (Exception e) {
             dbHelper.addLog("WARN", "Failed to set foreground: " + e.getMessage());
         }
 
-        // Get Telegram credentials
-        String token = prefs.getString("custom_bot_token", "");
-        if (token.isEmpty()) {
-            token = BuildConfig.BOT_TOKEN;
-        }
-        
-        String chatId = prefs.getString("chat_id", "");
-        if (chatId.isEmpty()) {
+        TelegramHelper helper = createTelegramHelper(prefs);
+        if (helper == null) {
             dbHelper.addLog("ERROR", "Sync Failed: Chat ID not configured");
             return Result.failure();
         }
 
-        TelegramHelper helper = new TelegramHelper(token, chatId);
-        
         try {
-            // Load topic registry
-            Map<String, String> reg = helper.getTopicRegistry();
-            
+            // Local topic registry; the Telegram mirror is only read when it is stale
+            TopicRegistry registry = TopicRegistry.getInstance(ctx);
+            phaseStart = System.nanoTime();
+            boolean refreshed = registry.refreshIfStale(helper);
+            metrics.addPhase(SyncMetrics.Phase.REGISTRY, phaseStart);
+            if (refreshed) {
+                dbHelper.addLog("DEBUG", "Topic registry refreshed from Telegram (" + registry.size() + " topics)");
+            }
+
             // Import history on first run
-            if (dbHelper.getTotalBackupCount() == 0 && reg.containsKey("CLOUD_HISTORY_ID")) {
+            String cloudHistoryId = registry.getCloudHistoryId();
+            if (dbHelper.getTotalBackupCount() == 0 && cloudHistoryId != null) {
                 dbHelper.addLog("INFO", "Importing history from cloud...");
                 updateForegroundNotification("Importing history...");
-                String historyJson = helper.downloadHistoryFile(reg.get("CLOUD_HISTORY_ID"));
+                String historyJson = helper.downloadHistoryFile(cloudHistoryId);
                 if (historyJson != null && !historyJson.isEmpty()) {
                     dbHelper.importHistoryFromJson(historyJson);
                 }
             }
 
-            // Perform delta sync
+            // Plan the delta sync; anything modified after this point is left for the next run.
+            // A continuation keeps the window of the run it continues.
+            long startedAt = System.currentTimeMillis();
             long since = isManual ? 0 : (prefs.getLong("last_sync_timestamp", 0) / 1000);
-            int count = performDeltaSync(since, helper, reg, uid);
-            
-            // Update cloud history if needed
-            if (count > 0 || !reg.containsKey("CLOUD_HISTORY_ID")) {
-                dbHelper.addLog("DEBUG", "Updating cloud history registry...");
-                updateForegroundNotification("Updating cloud history...");
-                String exportedJson = dbHelper.exportHistoryToJson();
-                if (exportedJson != null && !exportedJson.isEmpty()) {
-                    String fid = helper.uploadHistoryFile(exportedJson);
-                    if (fid != null && !fid.isEmpty()) {
-                        reg.put("CLOUD_HISTORY_ID", fid);
-                        helper.saveTopicRegistry(reg);
-                    }
-                }
+            if (isContinuation) {
+                startedAt = getInputData().getLong(KEY_SYNC_STARTED_AT, startedAt);
+                since = getInputData().getLong(KEY_SINCE, since);
             }
+            SyncControl.recordRun(prefs, startedAt, since, mode);
+            runStartedAt = startedAt;
+            runMode = mode;
 
-            // Update last sync timestamp
-            prefs.edit().putLong("last_sync_timestamp", System.currentTimeMillis()).apply();
-            
-            String resultMsg = "Sync Finished: " + count + " photos uploaded";
-            if (isLimited) {
-                resultMsg += " (" + currentUsage + "/" + dailyLimit + " daily limit)";
+            phaseStart = System.nanoTime();
+            List<FolderPlan> plan = planFolders(since);
+            metrics.addPhase(SyncMetrics.Phase.SCAN, phaseStart);
+
+            phaseStart = System.nanoTime();
+            boolean resolved = resolveTopics(plan, helper, registry);
+            metrics.addPhase(SyncMetrics.Phase.REGISTRY, phaseStart);
+            if (!resolved) {
+                return handleRetry("topic creation failure");
+            }
+
+            List<OneTimeWorkRequest> shards = buildShards(plan, startedAt, since, mode, bulk);
+            enqueueShards(shards, startedAt, since, mode, bulk);
+
+            int plannedFiles = 0;
+            for (FolderPlan folder : plan) {
+                plannedFiles += folder.files;
             }
-            dbHelper.addLog("INFO", resultMsg);
-            
+            dbHelper.addLog("INFO", "Sync planned: " + plannedFiles + " candidate photos in " + plan.size() + " folder(s), " + shards.size() + " shard(s)");
+
             return Result.success(new Data.Builder()
-                .putInt("uploaded_count", count)
-                .putInt("usage_count", currentUsage)
+                .putInt("planned_files", plannedFiles)
+                .putInt("shard_count", shards.size())
                 .build());
-                
+
         } catch (SocketTimeoutException | UnknownHostException e) {
             dbHelper.addLog("ERROR", "Network error: " + e.getMessage());
             return handleRetry("Network error");
         } catch (IOException e) {
             dbHelper.addLog("ERROR", "IO error: " + e.getMessage());
             return handleRetry("IO error");
-        } catch (InterruptedException e) {
-            dbHelper.addLog("WARN", "Sync interrupted");
-            Thread.currentThread().interrupt();
-            return Result.retry();
         } catch (Exception e) {
             dbHelper.addLog("ERROR", "Sync Failed: " + e.getClass().getSimpleName() + " - " + e.getMessage());
             return Result.failure();
+        } finally {
+            metrics.network.merge(helper.getNetworkMetrics());
         }
     }
 
@@ -200,223 +246,282 @@ public class BackupWorker extends Worker {
         }
     }
 
-    private boolean fetchCloudState(String uid) {
-        try {
-            DataSnapshot snap = Tasks.await(
-                FirebaseDatabase.getInstance(AppConstants.FIREBASE_DB_URL)
-                    .getReference("users")
-                    .child(uid)
-                    .get(),
-                FIREBASE_TIMEOUT_SECONDS,
-                TimeUnit.SECONDS
-            );
-            
-            if (!snap.exists()) {
-                dbHelper.addLog("ERROR", "User record not found in Firebase");
-                return false;
-            }
-
-            String status = snap.child("status").getValue(String.class);
-            if (status == null) {
-                dbHelper.addLog("ERROR", "User status not set in Firebase");
-                return false;
-            }
-
-            isLimited = "limited".equals(status);
-            
-            if (isLimited) {
-                Integer limitValue = snap.child("daily_limit").getValue(Integer.class);
-                Integer usageValue = snap.child("usage_count").getValue(Integer.class);
-                
-                dailyLimit = (limitValue != null) ? limitValue : 0;
-                currentUsage = (usageValue != null) ? usageValue : 0;
-                
-                String today = new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(new Date());
-                String lastSyncDate = snap.child("last_sync_date").getValue(String.class);
-                
-                // Reset usage if it's a new day
-                if (!today.equals(lastSyncDate)) {
-                    currentUsage = 0;
-                    FirebaseDatabase.getInstance(AppConstants.FIREBASE_DB_URL)
-                        .getReference("users")
-                        .child(uid)
-                        .child("usage_count")
-                        .setValue(0);
-                    FirebaseDatabase.getInstance(AppConstants.FIREBASE_DB_URL)
-                        .getReference("users")
-                        .child(uid)
-                        .child("last_sync_date")
-                        .setValue(today);
-                }
-                
-                dbHelper.addLog("INFO", "Account limited: " + currentUsage + "/" + dailyLimit + " daily uploads");
-            }
-            
-            return "approved".equals(status) || "limited".equals(status);
-            
-        } catch (Exception e) {
-            dbHelper.addLog("ERROR", "Failed to fetch cloud state: " + e.getMessage());
-            return false;
-        }
-    }
-
-    private int performDeltaSync(long since, TelegramHelper helper, Map<String, String> reg, String uid) throws Exception {
-        int count = 0;
-        HashSet<String> processedThisScan = new HashSet<>();
+    /**
+     * Group the MediaStore rows modified since the last sync, plus the upload queue, by selected
+     * folder, leaving out rows below a folder's checkpoint. No per-file history lookups happen
+     * here; the shards do those.
+     */
+    private List<FolderPlan> planFolders(long since) {
+        Map<String, FolderPlan> byFolder = new HashMap<>();
         ContentResolver resolver = ctx.getContentResolver();
-        int initialRegistrySize = reg.size(); // Track for batch save optimization
-        
+        FolderSelection folderSelection = FolderSelection.getInstance(ctx);
+        Map<String, Long> checkpoints = dbHelper.getSyncCheckpoints();
+
         dbHelper.addLog("DEBUG", "Scanning MediaStore since: " + since + " (" + new Date(since * 1000) + ")");
-        
+
         String[] projection = {
             MediaStore.Images.Media.DATA,
-            MediaStore.Images.Media.DATE_MODIFIED,
-            MediaStore.Images.Media.SIZE
+            MediaStore.Images.Media.SIZE,
+            MediaStore.Images.Media.DATE_MODIFIED
         };
-        
         String selection = MediaStore.Images.Media.DATE_MODIFIED + " > ?";
         String[] selectionArgs = {String.valueOf(since)};
-        String sortOrder = MediaStore.Images.Media.DATE_MODIFIED + " ASC";
-        
-        try (Cursor cursor = resolver.query(
+
+        try (PerfTrace.Section trace = PerfTrace.section(PerfTrace.MEDIA_SCAN);
+             Cursor cursor = resolver.query(
                 MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
                 projection,
                 selection,
                 selectionArgs,
-                sortOrder)) {
-                
+                null)) {
+
             if (cursor == null) {
                 dbHelper.addLog("ERROR", "MediaStore query returned null cursor");
-                return 0;
-            }
-            
-            int total = cursor.getCount();
-            if (total == 0) {
-                dbHelper.addLog("INFO", "No new photos found since last sync");
-                return 0;
+                return new ArrayList<>();
             }
-            
-            dbHelper.addLog("DEBUG", "Found " + total + " potential new photos");
-            int idx = 0;
-            int matchedFolders = 0;
-            
-            while (cursor.moveToNext()) {
-                if (isStopped()) {
-                    dbHelper.addLog("WARN", "Sync stopped by system");
-                    break;
-                }
-                
-                // Check daily limit for limited accounts
-                if (isLimited && currentUsage >= dailyLimit) {
-                    dbHelper.addLog("INFO", "Daily limit reached: " + currentUsage + "/" + dailyLimit);
-                    break;
-                }
 
-                String path = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA));
-                long mod = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_MODIFIED));
-                long size = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Images.Media.SIZE));
-                
-                // Skip duplicates in this scan
-                if (processedThisScan.contains(path)) {
-                    idx++;
-                    continue;
-                }
-                processedThisScan.add(path);
-                
-                File f = new File(path);
-                
-                // Validate file exists and has size
-                if (!f.exists() || size <= 0) {
-                    dbHelper.addLog("DEBUG", "Skipping invalid/deleted file: " + path);
-                    idx++;
+            while (cursor.moveToNext()) {
+                String path = cursor.getString(0);
+                String folderPath = path != null ? new File(path).getParent() : null;
+                if (folderPath == null || !folderSelection.isSelected(folderPath)) {
                     continue;
                 }
-                
-                File parentDir = f.getParentFile();
-                if (parentDir == null) {
-                    idx++;
+                Long checkpoint = checkpoints.get(folderPath);
+                if (checkpoint != null && cursor.getLong(2) < checkpoint) {
                     continue;
                 }
-                
-                String folderPath = parentDir.getAbsolutePath();
-                
-                // Check if folder is selected for backup
-                if (prefs.getBoolean(folderPath, false)) {
-                    matchedFolders++;
-                    
-                    // Check if already uploaded
-                    if (!dbHelper.isFileUploaded(path, mod)) {
-                        int progressPercent = total > 0 ? (int)((idx / (float)total) * 100) : 0;
-                        
-                        updateProgress(f.getName(), progressPercent);
-                        updateForegroundNotification("Uploading " + f.getName() + " (" + (idx + 1) + "/" + total + ")");
-                        
-                        String tid = getTid(parentDir, helper, reg);
-                        
-                        if (tid != null && !tid.isEmpty()) {
-                            String error = helper.uploadPhoto(f, tid);
-                            if (error == null) {
-                                dbHelper.markAsUploaded(path, mod);
-                                count++;
-                                
-                                // Update usage for limited accounts
-                                if (isLimited) {
-                                    currentUsage++;
-                                    FirebaseDatabase.getInstance(AppConstants.FIREBASE_DB_URL)
-                                        .getReference("users")
-                                        .child(uid)
-                                        .child("usage_count")
-                                        .setValue(currentUsage);
-                                }
-                                
-                                dbHelper.addLog("DEBUG", "Uploaded: " + f.getName() + " (" + formatFileSize(size) + ")");
-                                
-                                // Delay between uploads to avoid rate limiting
-                                Thread.sleep(UPLOAD_DELAY_MS);
-                            } else {
-                                dbHelper.addLog("ERROR", "Failed to upload: " + f.getName() + " - " + error);
-                            }
-                        } else {
-                            dbHelper.addLog("ERROR", "Failed to get topic ID for folder: " + parentDir.getName());
-                        }
-                    }
+
+                FolderPlan folder = byFolder.get(folderPath);
+                if (folder == null) {
+                    folder = new FolderPlan(folderPath);
+                    byFolder.put(folderPath, folder);
                 }
-                
-                idx++;
+                folder.files++;
+                folder.bytes += Math.max(0, cursor.getLong(1));
+            }
+        }
+
+        // Gaps found by reconciliation are older than the delta window
+        for (HistoryStore.QueuedUpload upload : dbHelper.getQueuedUploads(null)) {
+            if (!folderSelection.isSelected(upload.folderPath)) {
+                continue;
+            }
+            FolderPlan folder = byFolder.get(upload.folderPath);
+            if (folder == null) {
+                folder = new FolderPlan(upload.folderPath);
+                byFolder.put(upload.folderPath, folder);
+            }
+            folder.files++;
+            folder.bytes += upload.size;
+        }
+
+        return new ArrayList<>(byFolder.values());
+    }
+
+    /**
+     * Look up or create the topic of every planned folder. Runs before any shard starts so
+     * topics are created once, sequentially, and the Telegram mirror is updated a single time.
+     * @return false if a topic could not be resolved
+     */
+    private boolean resolveTopics(List<FolderPlan> plan, TelegramHelper helper, TopicRegistry registry) throws Exception {
+        int initialRegistrySize = registry.size();
+        boolean complete = true;
+
+        for (FolderPlan folder : plan) {
+            String folderName = new File(folder.path).getName();
+            String topicId = registry.getOrCreateTopic(folderName, helper);
+            if (topicId == null || topicId.isEmpty()) {
+                dbHelper.addLog("ERROR", "Failed to get/create topic for folder: " + folderName);
+                complete = false;
+                break;
             }
-            
-            dbHelper.addLog("DEBUG", "Scan result: " + matchedFolders + " photos in selected folders, " + count + " new uploaded.");
+            folder.topicId = topicId;
+        }
+
+        // New topics are already saved locally, a failed mirror is retried on the next change
+        if (registry.size() > initialRegistrySize) {
+            dbHelper.addLog("INFO", "Mirroring registry with " + (registry.size() - initialRegistrySize) + " new topic(s)");
         }
-        
-        // Batch save registry if new topics were created during sync
-        if (reg.size() > initialRegistrySize) {
-            dbHelper.addLog("INFO", "Saving registry with " + (reg.size() - initialRegistrySize) + " new topic(s)");
-            helper.saveTopicRegistry(reg);
+        try {
+            registry.mirror(helper);
+        } catch (Exception e) {
+            dbHelper.addLog("WARN", "Failed to mirror topic registry: " + e.getMessage());
         }
-        
-        return count;
+
+        return complete;
     }
 
-    private String getTid(File directory, TelegramHelper helper, Map<String, String> registry) throws Exception {
-        String folderName = directory.getName();
-        
-        // Check registry size before checking for topic
-        int sizeBefore = registry.size();
-        
-        // Use synchronized getOrCreateTopic to prevent duplicates
-        // This method checks registry with normalized name matching before creating
-        String topicId = helper.getOrCreateTopic(folderName, registry);
-        
-        if (topicId != null && !topicId.isEmpty()) {
-            // Log only if a new topic was created (registry size increased)
-            if (registry.size() > sizeBefore) {
-                dbHelper.addLog("INFO", "Created new topic for folder: " + folderName + " -> " + topicId);
+    /**
+     * Spread the planned folders over a bounded number of shards, largest folders first onto the
+     * least loaded shard, so shards finish at roughly the same time.
+     */
+    private List<OneTimeWorkRequest> buildShards(List<FolderPlan> plan, long startedAt, long since, SyncMode mode, boolean bulk) {
+        List<OneTimeWorkRequest> requests = new ArrayList<>();
+        if (plan.isEmpty()) {
+            return requests;
+        }
+
+        // Input Data is capped at 10 KB, so very large plans get extra shards
+        int payload = 0;
+        for (FolderPlan folder : plan) {
+            payload += folder.path.length() + folder.topicId.length() + 16;
+        }
+        int shardCount = Math.min(plan.size(), bulk ? AppConstants.BULK_SYNC_SHARDS : AppConstants.MAX_SYNC_SHARDS);
+        shardCount = Math.max(shardCount, (payload + AppConstants.SHARD_PAYLOAD_BUDGET - 1) / AppConstants.SHARD_PAYLOAD_BUDGET);
+
+        Collections.sort(plan, (a, b) -> Long.compare(b.bytes, a.bytes));
+        List<List<FolderPlan>> shards = new ArrayList<>();
+        long[] load = new long[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new ArrayList<>());
+        }
+        for (FolderPlan folder : plan) {
+            int target = 0;
+            for (int i = 1; i < shardCount; i++) {
+                if (load[i] < load[target]) target = i;
+            }
+            shards.get(target).add(folder);
+            load[target] += Math.max(1, folder.bytes);
+        }
+
+        for (int i = 0; i < shardCount; i++) {
+            List<FolderPlan> shard = shards.get(i);
+            if (shard.isEmpty()) continue;
+
+            String[] paths = new String[shard.size()];
+            String[] topics = new String[shard.size()];
+            for (int j = 0; j < shard.size(); j++) {
+                paths[j] = shard.get(j).path;
+                topics[j] = shard.get(j).topicId;
             }
-            return topicId;
+
+            requests.add(new OneTimeWorkRequest.Builder(FolderSyncWorker.class)
+                .addTag(AppConstants.WORK_TAG_SHARD)
+                .setInputData(new Data.Builder()
+                    .putInt(FolderSyncWorker.KEY_SHARD_INDEX, i)
+                    .putStringArray(FolderSyncWorker.KEY_FOLDER_PATHS, paths)
+                    .putStringArray(FolderSyncWorker.KEY_TOPIC_IDS, topics)
+                    .putLong(KEY_SYNC_STARTED_AT, startedAt)
+                    .putLong(KEY_SINCE, since)
+                    .putString(KEY_SYNC_MODE, mode.name())
+                    .putBoolean(KEY_BULK, bulk)
+                    .build())
+                .build());
+        }
+
+        return requests;
+    }
+
+    /**
+     * Enqueue shards and the finalizer as one unique chain. A periodic run is dropped while an
+     * earlier chain is still pending; a manual run is appended behind it.
+     */
+    private void enqueueShards(List<OneTimeWorkRequest> shards, long startedAt, long since, SyncMode mode, boolean bulk) {
+        OneTimeWorkRequest finalize = new OneTimeWorkRequest.Builder(SyncFinalizeWorker.class)
+            .setInputMerger(ArrayCreatingInputMerger.class)
+            .setInputData(new Data.Builder()
+                .putLong(KEY_SYNC_STARTED_AT, startedAt)
+                .putLong(KEY_SINCE, since)
+                .putString(KEY_SYNC_MODE, mode.name())
+                .putBoolean(KEY_BULK, bulk)
+                .build())
+            .build();
+
+        ExistingWorkPolicy policy = mode == SyncMode.MANUAL ? ExistingWorkPolicy.APPEND_OR_REPLACE : ExistingWorkPolicy.KEEP;
+        WorkManager wm = WorkManager.getInstance(ctx);
+        if (shards.isEmpty()) {
+            wm.enqueueUniqueWork(AppConstants.WORK_SHARDS, policy, finalize);
+        } else {
+            wm.beginUniqueWork(AppConstants.WORK_SHARDS, policy, shards)
+                .then(finalize)
+                .enqueue();
+        }
+    }
+
+    /**
+     * Enqueue the next slice of a run whose shards ran out of time. Bulk continuations wait
+     * for charging and an unmetered network again.
+     */
+    static void enqueueContinuation(@NonNull Context context, long startedAt, long since, @NonNull SyncMode mode, boolean bulk) {
+        SharedPreferences prefs = context.getSharedPreferences(AppConstants.PREFS_NAME, Context.MODE_PRIVATE);
+        boolean unmetered = bulk || prefs.getBoolean("only_wifi", false);
+        Constraints constraints = new Constraints.Builder()
+            .setRequiredNetworkType(unmetered ? NetworkType.UNMETERED : NetworkType.CONNECTED)
+            .setRequiresCharging(bulk)
+            .build();
+
+        OneTimeWorkRequest req = new OneTimeWorkRequest.Builder(BackupWorker.class)
+            .setConstraints(constraints)
+            .setInputData(new Data.Builder()
+                .putBoolean(KEY_IS_MANUAL, mode == SyncMode.MANUAL)
+                .putString(KEY_SYNC_MODE, mode.name())
+                .putBoolean(KEY_CONTINUATION, true)
+                .putLong(KEY_SYNC_STARTED_AT, startedAt)
+                .putLong(KEY_SINCE, since)
+                .build())
+            .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(AppConstants.WORK_CONTINUATION, ExistingWorkPolicy.REPLACE, req);
+    }
+
+    /**
+     * Run a sync shortly after MediaStore images change, so new photos go up without waiting
+     * for the periodic run. Content triggers need API 24.
+     */
+    static void scheduleRealtimeSync(@NonNull Context context, @NonNull ExistingWorkPolicy policy) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return;
+        }
+        SharedPreferences prefs = context.getSharedPreferences(AppConstants.PREFS_NAME, Context.MODE_PRIVATE);
+        boolean onlyWifi = prefs.getBoolean("only_wifi", false);
+        Constraints constraints = new Constraints.Builder()
+            .setRequiredNetworkType(onlyWifi ? NetworkType.UNMETERED : NetworkType.CONNECTED)
+            .addContentUriTrigger(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true)
+            .setTriggerContentUpdateDelay(AppConstants.REALTIME_TRIGGER_DELAY_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+        OneTimeWorkRequest req = new OneTimeWorkRequest.Builder(BackupWorker.class)
+            .setConstraints(constraints)
+            .setInputData(new Data.Builder()
+                .putString(KEY_SYNC_MODE, SyncMode.REALTIME.name())
+                .build())
+            .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(AppConstants.WORK_REALTIME, policy, req);
+    }
+
+    /**
+     * Create a Telegram client from the saved bot token and chat id
+     * @return null if no chat id is configured
+     */
+    @Nullable
+    static TelegramHelper createTelegramHelper(@NonNull SharedPreferences prefs) {
+        String token = prefs.getString("custom_bot_token", "");
+        if (token.isEmpty()) {
+            token = BuildConfig.BOT_TOKEN;
+        }
+
+        String chatId = prefs.getString("chat_id", "");
+        if (chatId.isEmpty()) {
+            return null;
+        }
+        TelegramHelper helper = new TelegramHelper(token, chatId, TelegramHelper.API_SERVER, getNetworkShaper());
+
+        ChunkedCipher cipher = EncryptionKeys.cipher(prefs);
+        if (cipher != null) {
+            helper.setEncryption(cipher, prefs.getBoolean(AppConstants.PREF_ENCRYPT_UPLOADS, false));
         }
-        
-        dbHelper.addLog("ERROR", "Failed to get/create topic for folder: " + folderName);
-        return null;
+        return helper;
+    }
+
+    /**
+     * @return The network profile of a debug build, see NetworkShaper; null in release builds
+     */
+    @Nullable
+    private static synchronized NetworkShaper getNetworkShaper() {
+        if (networkShaper == null && !BuildConfig.NETWORK_PROFILE.isEmpty()) {
+            networkShaper = new NetworkShaper(NetworkShaper.Profile.parse(BuildConfig.NETWORK_PROFILE));
+            Log.w(TAG, "Telegram calls go through the simulated network " + BuildConfig.NETWORK_PROFILE);
+        }
+        return networkShaper;
     }
 
     private boolean isWifiConnected() {
@@ -425,21 +530,21 @@ public class BackupWorker extends Worker {
             if (cm == null) {
                 return false;
             }
-            
+
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
                 Network network = cm.getActiveNetwork();
                 if (network == null) {
                     return false;
                 }
-                
+
                 NetworkCapabilities capabilities = cm.getNetworkCapabilities(network);
-                return capabilities != null && 
+                return capabilities != null &&
                        capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI);
             } else {
                 // Fallback for older Android versions
                 android.net.NetworkInfo networkInfo = cm.getActiveNetworkInfo();
-                return networkInfo != null && 
-                       networkInfo.isConnected() && 
+                return networkInfo != null &&
+                       networkInfo.isConnected() &&
                        networkInfo.getType() == ConnectivityManager.TYPE_WIFI;
             }
         } catch (Exception e) {
@@ -448,55 +553,43 @@ public class BackupWorker extends Worker {
         }
     }
 
-    private void createChannel() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            NotificationChannel channel = new NotificationChannel(
-                CHANNEL_ID,
-                "Photo Backup Sync",
-                NotificationManager.IMPORTANCE_LOW
-            );
-            channel.setDescription("Background photo backup synchronization");
-            channel.setShowBadge(false);
-            
-            if (nm != null) {
-                nm.createNotificationChannel(channel);
-            }
-        }
-    }
+    /**
+     * Bulk mode: the device is charging and the active network is not metered
+     */
+    private boolean isBulkEligible() {
+        try {
+            Intent battery = ctx.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            boolean charging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
 
-    private ForegroundInfo createForegroundInfo(String message) {
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(ctx, CHANNEL_ID)
-            .setSmallIcon(android.R.drawable.stat_notify_sync)
-            .setContentTitle("Photogram Sync")
-            .setContentText(message)
-            .setOngoing(true)
-            .setPriority(NotificationCompat.PRIORITY_LOW);
-        
-        return new ForegroundInfo(NOTIF_ID, builder.build());
-    }
+            ConnectivityManager cm = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+            boolean unmetered = cm != null && cm.getActiveNetworkInfo() != null && !cm.isActiveNetworkMetered();
 
-    private void updateForegroundNotification(String message) {
-        try {
-            setForegroundAsync(createForegroundInfo(message));
+            return charging && unmetered;
         } catch (Exception e) {
-            // Notification update failed, but don't crash the sync
+            dbHelper.addLog("WARN", "Error checking bulk mode conditions: " + e.getMessage());
+            return false;
         }
     }
 
-    private void updateProgress(String fileName, int percent) {
+    private void updateForegroundNotification(String message) {
         try {
-            setProgressAsync(new Data.Builder()
-                .putString("current_file", fileName)
-                .putInt("progress_percent", percent)
-                .build());
+            setForegroundAsync(notifier.foregroundInfo(message));
         } catch (Exception e) {
-            // Progress update failed, but don't crash the sync
+            // Notification update failed, but don't crash the sync
         }
     }
 
-    private String formatFileSize(long bytes) {
-        if (bytes < 1024) return bytes + " B";
-        if (bytes < 1024 * 1024) return String.format(Locale.US, "%.1f KB", bytes / 1024.0);
-        return String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024.0));
+    /**
+     * New photos of one selected folder found by the planning scan
+     */
+    private static final class FolderPlan {
+        final String path;
+        String topicId;
+        int files;
+        long bytes;
+
+        FolderPlan(String path) {
+            this.path = path;
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,9 +1,11 @@
 package com.photogram.backup;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.os.Bundle;
 import android.widget.Button;
 import android.widget.TextView;
+import android.widget.Toast;
 import androidx.annotation.NonNull;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.database.DataSnapshot;
@@ -12,24 +14,34 @@ import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class DashboardActivity extends Activity {
+    private static final int PLAN_FOLDERS_SHOWN = 5;
+    private static final int TREND_RUNS = 10;
+    private static final List<String> UPLOAD_METHODS = Arrays.asList("sendPhoto", "sendDocument", "copyMessage");
+
     private DatabaseHelper dbHelper;
     private TextView tvTotalPhotos, tvTodayUploads, tvAccountStatus;
     private TextView tvDailyLimit, tvUsageCount, tvLastSync, tvNextSync;
     private TextView tvUserEmail, tvStorageInfo;
+    private TextView tvPlan, tvPlanFolders;
+    private TextView tvThroughput, tvLastRun, tvRunTrend, tvStorageNote;
     private android.content.SharedPreferences prefs;
     private DatabaseReference userRef;
     private ValueEventListener firebaseListener;
+    private final TaskQueue.Scope tasks = PhotogramApp.getTasks().newScope();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_dashboard);
 
-        dbHelper = new DatabaseHelper(this);
+        dbHelper = DatabaseHelper.getInstance(this);
         prefs = getSharedPreferences("BackupPrefs", MODE_PRIVATE);
 
         // Initialize views
@@ -42,24 +54,55 @@ public class DashboardActivity extends Activity {
         tvNextSync = findViewById(R.id.tvDashNextSync);
         tvUserEmail = findViewById(R.id.tvDashUserEmail);
         tvStorageInfo = findViewById(R.id.tvDashStorageInfo);
+        tvPlan = findViewById(R.id.tvDashPlan);
+        tvPlanFolders = findViewById(R.id.tvDashPlanFolders);
+        tvThroughput = findViewById(R.id.tvDashThroughput);
+        tvLastRun = findViewById(R.id.tvDashLastRun);
+        tvRunTrend = findViewById(R.id.tvDashRunTrend);
+        tvStorageNote = findViewById(R.id.tvDashStorageNote);
         
+        Button btnRestore = findViewById(R.id.btnRestore);
+        if (btnRestore != null) {
+            btnRestore.setOnClickListener(v -> confirmRestore());
+        }
+
         Button btnClose = findViewById(R.id.btnCloseDashboard);
         if (btnClose != null) {
             btnClose.setOnClickListener(v -> finish());
         }
 
         loadDashboardData();
+        loadSyncRuns();
         fetchFirebaseData();
+        loadUploadPlan();
     }
 
-    private void loadDashboardData() {
-        // Total photos backed up
-        int totalCount = dbHelper.getTotalBackupCount();
-        tvTotalPhotos.setText(String.valueOf(totalCount));
+    private void loadUploadPlan() {
+        UploadPlanner.planAsync(this, SyncMode.MANUAL, tasks, (plan, bytesPerSecond) -> {
+            if (isFinishing() || isDestroyed()) return;
+            tvPlan.setText(plan.summary(bytesPerSecond, AppConstants.UPLOAD_DELAY_MS));
+
+            StringBuilder lines = new StringBuilder();
+            List<UploadPlan.Folder> folders = plan.getFolders();
+            for (int i = 0; i < Math.min(PLAN_FOLDERS_SHOWN, folders.size()); i++) {
+                UploadPlan.Folder folder = folders.get(i);
+                if (lines.length() > 0) lines.append('\n');
+                lines.append(String.format(Locale.US, "%s: %,d photos · %s",
+                    folder.getName(), folder.files, UploadPlan.formatBytes(folder.bytes)));
+            }
+            if (folders.size() > PLAN_FOLDERS_SHOWN) {
+                lines.append(String.format(Locale.US, "\n+ %d more folders", folders.size() - PLAN_FOLDERS_SHOWN));
+            }
+            tvPlanFolders.setText(lines);
+            tvPlanFolders.setVisibility(lines.length() > 0 ? android.view.View.VISIBLE : android.view.View.GONE);
+        });
+    }
 
-        // Today's uploads (last 24 hours)
-        int todayCount = getTodayUploadCount();
-        tvTodayUploads.setText(String.valueOf(todayCount));
+    private void loadDashboardData() {
+        // Photos backed up, in total and today, and the storage they take
+        tasks.run(TaskQueue.Priority.VISIBLE, dbHelper::getBackupStats, this::showBackupStats);
+        tasks.run(TaskQueue.Priority.VISIBLE, dbHelper::getTodayUploadCount,
+            todayCount -> tvTodayUploads.setText(String.valueOf(todayCount)));
 
         // Last sync time
         long lastSync = prefs.getLong("last_sync_timestamp", 0);
@@ -85,32 +128,107 @@ public class DashboardActivity extends Activity {
             ? FirebaseAuth.getInstance().getCurrentUser().getEmail() 
             : "Unknown";
         tvUserEmail.setText(email);
+    }
+
+    private void showBackupStats(@NonNull DatabaseHelper.BackupStats stats) {
+        tvTotalPhotos.setText(String.valueOf(stats.totalFiles));
+
+        // Storage from the recorded sizes; uploads from before sizes were kept count at the average
+        int unsized = stats.totalFiles - stats.sizedFiles;
+        if (stats.sizedFiles == 0) {
+            tvStorageInfo.setText(stats.totalFiles == 0 ? formatFileSize(0) : "Unknown");
+        } else if (unsized <= 0) {
+            tvStorageInfo.setText(formatFileSize(stats.totalBytes));
+        } else {
+            long average = stats.totalBytes / stats.sizedFiles;
+            tvStorageInfo.setText("~" + formatFileSize(stats.totalBytes + average * unsized));
+        }
+        if (unsized > 0) {
+            tvStorageNote.setText(String.format(Locale.US, "%,d photos were uploaded before sizes were recorded", unsized));
+            tvStorageNote.setVisibility(android.view.View.VISIBLE);
+        }
+    }
 
-        // Storage info (estimated)
-        long estimatedSize = totalCount * 2; // Rough estimate: 2MB per photo
-        tvStorageInfo.setText(formatFileSize(estimatedSize * 1024 * 1024));
+    /**
+     * Throughput and latency over the recent runs, what the last run spent its time on, and the
+     * throughput trend, from the sync runs table
+     */
+    private void loadSyncRuns() {
+        tasks.run(TaskQueue.Priority.VISIBLE, () -> dbHelper.getRecentSyncRuns(TREND_RUNS), this::showSyncRuns);
     }
 
-    private int getTodayUploadCount() {
-        long oneDayAgo = System.currentTimeMillis() - (24 * 60 * 60 * 1000);
-        android.database.Cursor cursor = null;
-        try {
-            cursor = dbHelper.getReadableDatabase().query(
-                "history",
-                new String[]{"COUNT(*)"},
-                "upload_date > ?",
-                new String[]{String.valueOf(oneDayAgo)},
-                null, null, null
-            );
-            if (cursor != null && cursor.moveToFirst()) {
-                return cursor.getInt(0);
+    private void showSyncRuns(@NonNull List<DatabaseHelper.SyncRun> runs) {
+        if (runs.isEmpty()) return;
+
+        SyncMetrics recent = new SyncMetrics();
+        for (DatabaseHelper.SyncRun run : runs) {
+            recent.bytesSent += run.metrics.bytesSent;
+            recent.phaseMs[SyncMetrics.Phase.UPLOAD.ordinal()] += run.metrics.phase(SyncMetrics.Phase.UPLOAD);
+            recent.latency.merge(run.metrics.latency);
+        }
+        if (recent.latency.count() > 0) {
+            tvThroughput.setText(String.format(Locale.US, "%s/s upload · %s median, %s p95 per upload",
+                UploadPlan.formatBytes(recent.bytesPerSecond()),
+                formatMillis(recent.latency.percentile(50)), formatMillis(recent.latency.percentile(95))));
+        } else {
+            tvThroughput.setText("Nothing uploaded in the last " + runs.size() + " syncs");
+        }
+
+        DatabaseHelper.SyncRun last = runs.get(0);
+        SyncMetrics m = last.metrics;
+        StringBuilder details = new StringBuilder();
+        details.append(String.format(Locale.US, "Last sync (%s, %s): %,d uploaded, %,d skipped, %,d failed of %,d scanned, %s sent",
+            last.mode != null ? last.mode.toLowerCase(Locale.US) : "unknown",
+            last.isFinished() ? UploadPlan.formatDuration((last.finishedAt - last.startedAt) / 1000) : "in progress",
+            m.uploaded, m.skipped, m.failed, m.scanned, UploadPlan.formatBytes(m.bytesSent)));
+        details.append('\n');
+        SyncMetrics.Phase[] phases = SyncMetrics.Phase.values();
+        for (int i = 0; i < phases.length; i++) {
+            if (i > 0) details.append(" · ");
+            String name = phases[i].name();
+            details.append(name.charAt(0)).append(name.substring(1).toLowerCase(Locale.US))
+                .append(' ').append(formatMillis(m.phase(phases[i])));
+        }
+        // Upload calls only, where churn, uplink and Telegram processing can be told apart
+        NetworkMetrics.Method uploads = new NetworkMetrics.Method();
+        for (Map.Entry<String, NetworkMetrics.Method> entry : m.network.snapshot().entrySet()) {
+            if (UPLOAD_METHODS.contains(entry.getKey())) {
+                uploads.merge(entry.getValue());
+            }
+        }
+        if (uploads.calls > 0) {
+            details.append(String.format(Locale.US, "\nUpload calls: %,d on %,d new connections · write p50 %s · response p50 %s",
+                uploads.calls, uploads.connections, formatMillis(uploads.write.percentile(50)),
+                formatMillis(uploads.firstByte.percentile(50))));
+        }
+        if (m.retries > 0 || m.rateLimited > 0 || m.throttleMs > 0) {
+            details.append(String.format(Locale.US, "\n%d retries · %d rate limited · %s waiting between uploads",
+                m.retries, m.rateLimited, formatMillis(m.throttleMs)));
+        }
+        tvLastRun.setText(details);
+        tvLastRun.setVisibility(android.view.View.VISIBLE);
+
+        if (runs.size() > 1) {
+            // Oldest first, so the trend reads left to right
+            long[] throughput = new long[runs.size()];
+            for (int i = 0; i < runs.size(); i++) {
+                throughput[runs.size() - 1 - i] = runs.get(i).metrics.bytesPerSecond();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (cursor != null) cursor.close();
+            tvRunTrend.setText("Throughput, last " + runs.size() + " syncs: " + SyncMetrics.sparkline(throughput));
+            tvRunTrend.setVisibility(android.view.View.VISIBLE);
         }
-        return 0;
+    }
+
+    private void confirmRestore() {
+        new AlertDialog.Builder(this)
+            .setTitle("Restore Photos")
+            .setMessage("Download every backed up photo that is missing on this device? This runs in the background and can take a long time.")
+            .setPositiveButton("Restore", (d, w) -> {
+                RestoreWorker.start(this, null);
+                Toast.makeText(this, "Restore started", Toast.LENGTH_SHORT).show();
+            })
+            .setNegativeButton("Cancel", null)
+            .show();
     }
 
     private void fetchFirebaseData() {
@@ -170,6 +288,12 @@ public class DashboardActivity extends Activity {
         userRef.addValueEventListener(firebaseListener);
     }
 
+    private static String formatMillis(long millis) {
+        if (millis < 1000) return millis + " ms";
+        if (millis < 60_000) return String.format(Locale.US, "%.1f s", millis / 1000.0);
+        return UploadPlan.formatDuration(millis / 1000);
+    }
+
     private String formatFileSize(long bytes) {
         if (bytes < 1024) return bytes + " B";
         int exp = (int) (Math.log(bytes) / Math.log(1024));
@@ -180,12 +304,10 @@ public class DashboardActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        tasks.cancel();
         // Remove Firebase listener to prevent memory leaks
         if (userRef != null && firebaseListener != null) {
             userRef.removeEventListener(firebaseListener);
         }
-        if (dbHelper != null) {
-            dbHelper.close();
-        }
     }
 }
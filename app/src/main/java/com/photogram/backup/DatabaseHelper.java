@@ -10,30 +10,120 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-public class DatabaseHelper extends SQLiteOpenHelper {
+public class DatabaseHelper extends SQLiteOpenHelper implements HistoryStore {
     private static final String TAG = "DatabaseHelper";
     private static final String DATABASE_NAME = "photogram_v5.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 14;
     
     // Table names
     private static final String TABLE_HISTORY = "history";
     private static final String TABLE_FOLDERS = "folders";
     private static final String TABLE_LOGS = "logs";
+    private static final String TABLE_TOPICS = "topics";
+    private static final String TABLE_REGISTRY_META = "registry_meta";
+    private static final String TABLE_RESTORE_QUEUE = "restore_queue";
+    private static final String TABLE_UPLOAD_QUEUE = "upload_queue";
+    private static final String TABLE_SYNC_RUNS = "sync_runs";
+    /** Uploads by local upload day, kept by triggers; near-duplicates are not counted */
+    private static final String TABLE_HISTORY_DAYS = "history_days";
+    /** Uploads by folder, kept by triggers; near-duplicates are not counted */
+    private static final String TABLE_HISTORY_FOLDERS = "history_folders";
+    /** FTS4 index of the history for search, see HistorySearch; its docid is the history id */
+    private static final String TABLE_HISTORY_FTS = "history_fts";
+    
+    // Rollup table columns, of both the day and the folder table
+    private static final String COL_ROLLUP_DAY = "day";
+    private static final String COL_ROLLUP_FOLDER = "folder";
+    private static final String COL_ROLLUP_FILES = "files";
+    private static final String COL_ROLLUP_BYTES = "bytes";
+    private static final String COL_ROLLUP_SIZED_FILES = "sized_files";
     
     // History table columns
     private static final String COL_HISTORY_ID = "id";
     private static final String COL_HISTORY_FILE_PATH = "file_path";
     private static final String COL_HISTORY_LAST_MODIFIED = "last_modified";
     private static final String COL_HISTORY_UPLOAD_DATE = "upload_date";
+    private static final String COL_HISTORY_FILE_ID = "file_id";
+    private static final String COL_HISTORY_MESSAGE_ID = "message_id";
+    private static final String COL_HISTORY_FILE_SIZE = "file_size";
+    private static final String COL_HISTORY_CONTENT_HASH = "content_hash";
+    private static final String COL_HISTORY_PACK_NAME = "pack_name";
+    private static final String COL_HISTORY_PACK_OFFSET = "pack_offset";
+    private static final String COL_HISTORY_PHASH = "phash";
+    private static final String COL_HISTORY_DUPLICATE_OF = "duplicate_of";
+    private static final String COL_HISTORY_ENCRYPTED = "encrypted";
+    /** Columns of a HistoryEntry, in its constructor's order */
+    private static final String HISTORY_ENTRY_COLUMNS = COL_HISTORY_ID + ", " + COL_HISTORY_FILE_PATH + ", " +
+        COL_HISTORY_UPLOAD_DATE + ", " + COL_HISTORY_PACK_NAME + ", " + COL_HISTORY_DUPLICATE_OF;
     
     // Folders table columns
     private static final String COL_FOLDERS_PATH = "path";
     private static final String COL_FOLDERS_NAME = "name";
+    private static final String COL_FOLDERS_SELECTED = "selected";
+    private static final String COL_FOLDERS_SYNC_CHECKPOINT = "sync_checkpoint";
+    private static final String COL_FOLDERS_PACKED = "packed";
+    private static final String COL_FOLDERS_DEDUPED = "deduped";
+    
+    // Topics table columns
+    private static final String COL_TOPICS_NAME = "name";
+    private static final String COL_TOPICS_NORMALIZED = "normalized_name";
+    private static final String COL_TOPICS_TOPIC_ID = "topic_id";
+    
+    // Registry meta table columns
+    private static final String COL_META_KEY = "key";
+    private static final String COL_META_VALUE = "value";
+    
+    // Restore queue table columns
+    private static final String COL_RESTORE_PATH = "path";
+    private static final String COL_RESTORE_FILE_ID = "file_id";
+    private static final String COL_RESTORE_LAST_MODIFIED = "last_modified";
+    private static final String COL_RESTORE_STATE = "state";
+    private static final String COL_RESTORE_MEDIA_URI = "media_uri";
+    private static final String COL_RESTORE_ATTEMPTS = "attempts";
+    private static final String COL_RESTORE_ERROR = "error";
+    private static final String COL_RESTORE_PACK_OFFSET = "pack_offset";
+    private static final String COL_RESTORE_SIZE = "size";
+    private static final String COL_RESTORE_PACK_NAME = "pack_name";
+    private static final String COL_RESTORE_ENCRYPTED = "encrypted";
+    
+    // Upload queue table columns
+    private static final String COL_QUEUE_PATH = "path";
+    private static final String COL_QUEUE_FOLDER_PATH = "folder_path";
+    private static final String COL_QUEUE_LAST_MODIFIED = "last_modified";
+    private static final String COL_QUEUE_SIZE = "size";
+    private static final String COL_QUEUE_QUEUED_AT = "queued_at";
+    
+    // Sync runs table columns
+    private static final String COL_RUN_STARTED_AT = "started_at";
+    private static final String COL_RUN_MODE = "mode";
+    private static final String COL_RUN_FINISHED_AT = "finished_at";
+    private static final String COL_RUN_FIREBASE_MS = "firebase_ms";
+    private static final String COL_RUN_REGISTRY_MS = "registry_ms";
+    private static final String COL_RUN_SCAN_MS = "scan_ms";
+    private static final String COL_RUN_DEDUP_MS = "dedup_ms";
+    private static final String COL_RUN_UPLOAD_MS = "upload_ms";
+    private static final String COL_RUN_EXPORT_MS = "export_ms";
+    private static final String COL_RUN_SCANNED = "files_scanned";
+    private static final String COL_RUN_SKIPPED = "files_skipped";
+    private static final String COL_RUN_UPLOADED = "files_uploaded";
+    private static final String COL_RUN_FAILED = "files_failed";
+    private static final String COL_RUN_BYTES_SENT = "bytes_sent";
+    private static final String COL_RUN_LATENCY = "latency_histogram";
+    private static final String COL_RUN_LATENCY_P50 = "latency_p50_ms";
+    private static final String COL_RUN_LATENCY_P95 = "latency_p95_ms";
+    private static final String COL_RUN_RETRIES = "retries";
+    private static final String COL_RUN_RATE_LIMITED = "rate_limited";
+    private static final String COL_RUN_THROTTLE_MS = "throttle_ms";
+    private static final String COL_RUN_NETWORK = "network";
     
     // Logs table columns
     private static final String COL_LOGS_ID = "id";
@@ -43,9 +133,36 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     
     // Constants
     private static final int MAX_LOGS = 100;
+    private static final int MAX_SYNC_RUNS = 100;
 
-    public DatabaseHelper(@NonNull Context context) {
+    private static volatile DatabaseHelper instance;
+
+    private DatabaseHelper(@NonNull Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // Parallel sync shards read while others write
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * Get the process-wide helper. All components share one connection pool, so it is never closed.
+     */
+    @NonNull
+    public static DatabaseHelper getInstance(@NonNull Context context) {
+        if (instance == null) {
+            synchronized (DatabaseHelper.class) {
+                if (instance == null) {
+                    instance = new DatabaseHelper(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Without it, rows deleted by INSERT OR REPLACE skip the delete trigger of the search
+        // index. Only the primary connection writes, and it is the one configured here.
+        db.execSQL("PRAGMA recursive_triggers = ON");
     }
 
     @Override
@@ -81,15 +198,306 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         
         db.execSQL("CREATE INDEX idx_log_timestamp ON " + TABLE_LOGS + 
             " (" + COL_LOGS_TIMESTAMP + " DESC)");
+        
+        // Bring the version 1 schema above up to date
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Handle future database upgrades
-        if (oldVersion < newVersion) {
-            Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
-            // Add migration logic here when needed
+        Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+        
+        if (oldVersion < 2) {
+            // Folder selection moved here from one SharedPreferences key per path
+            db.execSQL("ALTER TABLE " + TABLE_FOLDERS + " ADD COLUMN " +
+                COL_FOLDERS_SELECTED + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("CREATE INDEX idx_folders_selected ON " + TABLE_FOLDERS +
+                " (" + COL_FOLDERS_SELECTED + ")");
+        }
+        
+        if (oldVersion < 3) {
+            // DATE_MODIFIED (seconds) below which a time-sliced sync has handled every photo
+            db.execSQL("ALTER TABLE " + TABLE_FOLDERS + " ADD COLUMN " +
+                COL_FOLDERS_SYNC_CHECKPOINT + " INTEGER NOT NULL DEFAULT 0");
+        }
+        
+        if (oldVersion < 4) {
+            // Folder name to forum topic, previously only kept in a pinned Telegram message
+            db.execSQL("CREATE TABLE " + TABLE_TOPICS + " (" +
+                COL_TOPICS_NAME + " TEXT PRIMARY KEY, " +
+                COL_TOPICS_NORMALIZED + " TEXT NOT NULL, " +
+                COL_TOPICS_TOPIC_ID + " TEXT NOT NULL" +
+                ")");
+            db.execSQL("CREATE INDEX idx_topics_normalized ON " + TABLE_TOPICS +
+                " (" + COL_TOPICS_NORMALIZED + ")");
+            
+            db.execSQL("CREATE TABLE " + TABLE_REGISTRY_META + " (" +
+                COL_META_KEY + " TEXT PRIMARY KEY, " +
+                COL_META_VALUE + " TEXT" +
+                ")");
+        }
+        
+        if (oldVersion < 5) {
+            // Telegram file id of each upload, needed to download it again
+            db.execSQL("ALTER TABLE " + TABLE_HISTORY + " ADD COLUMN " + COL_HISTORY_FILE_ID + " TEXT");
+            
+            db.execSQL("CREATE TABLE " + TABLE_RESTORE_QUEUE + " (" +
+                COL_RESTORE_PATH + " TEXT PRIMARY KEY, " +
+                COL_RESTORE_FILE_ID + " TEXT NOT NULL, " +
+                COL_RESTORE_LAST_MODIFIED + " LONG NOT NULL, " +
+                COL_RESTORE_STATE + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RESTORE_MEDIA_URI + " TEXT, " +
+                COL_RESTORE_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RESTORE_ERROR + " TEXT" +
+                ")");
+            db.execSQL("CREATE INDEX idx_restore_state ON " + TABLE_RESTORE_QUEUE +
+                " (" + COL_RESTORE_STATE + ")");
+        }
+        
+        if (oldVersion < 6) {
+            // Reconciliation streams history in DATE_MODIFIED order
+            db.execSQL("CREATE INDEX idx_last_modified ON " + TABLE_HISTORY +
+                " (" + COL_HISTORY_LAST_MODIFIED + ")");
+            
+            // Photos the delta scan cannot see any more, found by reconciliation
+            db.execSQL("CREATE TABLE " + TABLE_UPLOAD_QUEUE + " (" +
+                COL_QUEUE_PATH + " TEXT PRIMARY KEY, " +
+                COL_QUEUE_FOLDER_PATH + " TEXT NOT NULL, " +
+                COL_QUEUE_LAST_MODIFIED + " LONG NOT NULL, " +
+                COL_QUEUE_SIZE + " LONG NOT NULL, " +
+                COL_QUEUE_QUEUED_AT + " LONG NOT NULL" +
+                ")");
+            db.execSQL("CREATE INDEX idx_upload_queue_folder ON " + TABLE_UPLOAD_QUEUE +
+                " (" + COL_QUEUE_FOLDER_PATH + ")");
+        }
+        
+        if (oldVersion < 7) {
+            // Message and content of each upload, so moved or duplicated photos are copied, not uploaded
+            db.execSQL("ALTER TABLE " + TABLE_HISTORY + " ADD COLUMN " + COL_HISTORY_MESSAGE_ID + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_HISTORY + " ADD COLUMN " + COL_HISTORY_FILE_SIZE + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_HISTORY + " ADD COLUMN " + COL_HISTORY_CONTENT_HASH + " TEXT");
+            db.execSQL("CREATE INDEX idx_file_size ON " + TABLE_HISTORY +
+                " (" + COL_HISTORY_FILE_SIZE + ")");
+        }
+        
+        if (oldVersion < 8) {
+            // Small photos of packed folders are uploaded many to a tar document
+            db.execSQL("ALTER TABLE " + TABLE_FOLDERS + " ADD COLUMN " + COL_FOLDERS_PACKED + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_HISTORY + " ADD COLUMN " + COL_HISTORY_PACK_NAME + " TEXT");
+            db.execSQL("ALTER TABLE " + TABLE_HISTORY + " ADD COLUMN " + COL_HISTORY_PACK_OFFSET + " INTEGER NOT NULL DEFAULT -1");
+            db.execSQL("ALTER TABLE " + TABLE_RESTORE_QUEUE + " ADD COLUMN " + COL_RESTORE_PACK_OFFSET + " INTEGER NOT NULL DEFAULT -1");
+            db.execSQL("ALTER TABLE " + TABLE_RESTORE_QUEUE + " ADD COLUMN " + COL_RESTORE_SIZE + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_RESTORE_QUEUE + " ADD COLUMN " + COL_RESTORE_PACK_NAME + " TEXT");
+        }
+        
+        if (oldVersion < 9) {
+            // Near-duplicate detection: perceptual hash of uploads, and the photo a skipped one resembles
+            db.execSQL("ALTER TABLE " + TABLE_FOLDERS + " ADD COLUMN " + COL_FOLDERS_DEDUPED + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_HISTORY + " ADD COLUMN " + COL_HISTORY_PHASH + " INTEGER");
+            db.execSQL("ALTER TABLE " + TABLE_HISTORY + " ADD COLUMN " + COL_HISTORY_DUPLICATE_OF + " TEXT");
+        }
+        if (oldVersion < 10) {
+            // Uploads sent through ChunkedCipher, which a restore has to decrypt
+            db.execSQL("ALTER TABLE " + TABLE_HISTORY + " ADD COLUMN " + COL_HISTORY_ENCRYPTED + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_RESTORE_QUEUE + " ADD COLUMN " + COL_RESTORE_ENCRYPTED + " INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 11) {
+            // One row of SyncMetrics per run, summed over its coordinator, shards and slices
+            db.execSQL("CREATE TABLE " + TABLE_SYNC_RUNS + " (" +
+                COL_RUN_STARTED_AT + " INTEGER PRIMARY KEY, " +
+                COL_RUN_MODE + " TEXT, " +
+                COL_RUN_FINISHED_AT + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_FIREBASE_MS + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_REGISTRY_MS + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_SCAN_MS + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_DEDUP_MS + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_UPLOAD_MS + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_EXPORT_MS + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_SCANNED + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_SKIPPED + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_UPLOADED + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_FAILED + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_BYTES_SENT + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_LATENCY + " TEXT, " +
+                COL_RUN_LATENCY_P50 + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_LATENCY_P95 + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_RETRIES + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_RATE_LIMITED + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_RUN_THROTTLE_MS + " INTEGER NOT NULL DEFAULT 0" +
+                ")");
+        }
+        if (oldVersion < 12) {
+            // NetworkMetrics of the run's Telegram calls, as JSON by Bot API method
+            db.execSQL("ALTER TABLE " + TABLE_SYNC_RUNS + " ADD COLUMN " + COL_RUN_NETWORK + " TEXT");
+        }
+        if (oldVersion < 13) {
+            // Search index of file names, folders and upload dates, kept up to date by triggers
+            db.execSQL("CREATE VIRTUAL TABLE " + TABLE_HISTORY_FTS + " USING fts4(" +
+                HistorySearch.NAME_COLUMN + ", folder, date)");
+            db.execSQL("CREATE TRIGGER history_fts_insert AFTER INSERT ON " + TABLE_HISTORY + " BEGIN " +
+                "INSERT INTO " + TABLE_HISTORY_FTS + " (docid, name, folder, date) " +
+                "VALUES (new." + COL_HISTORY_ID + ", " + historyFtsValues("new.") + "); END");
+            // Also fires for rows an INSERT OR REPLACE replaces, see onConfigure
+            db.execSQL("CREATE TRIGGER history_fts_delete AFTER DELETE ON " + TABLE_HISTORY + " BEGIN " +
+                "DELETE FROM " + TABLE_HISTORY_FTS + " WHERE docid = old." + COL_HISTORY_ID + "; END");
+            db.execSQL("CREATE TRIGGER history_fts_update AFTER UPDATE OF " + COL_HISTORY_FILE_PATH + ", " +
+                COL_HISTORY_UPLOAD_DATE + " ON " + TABLE_HISTORY + " BEGIN " +
+                "DELETE FROM " + TABLE_HISTORY_FTS + " WHERE docid = old." + COL_HISTORY_ID + "; " +
+                "INSERT INTO " + TABLE_HISTORY_FTS + " (docid, name, folder, date) " +
+                "VALUES (new." + COL_HISTORY_ID + ", " + historyFtsValues("new.") + "); END");
+            db.execSQL("INSERT INTO " + TABLE_HISTORY_FTS + " (docid, name, folder, date) " +
+                "SELECT " + COL_HISTORY_ID + ", " + historyFtsValues("") + " FROM " + TABLE_HISTORY);
+        }
+        if (oldVersion < 14) {
+            // Counts and bytes by day and by folder, so the dashboard reads a row instead of the history
+            db.execSQL("CREATE TABLE " + TABLE_HISTORY_DAYS + " (" +
+                COL_ROLLUP_DAY + " TEXT PRIMARY KEY, " +
+                COL_ROLLUP_FILES + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_ROLLUP_BYTES + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_ROLLUP_SIZED_FILES + " INTEGER NOT NULL DEFAULT 0" +
+                ")");
+            db.execSQL("CREATE TABLE " + TABLE_HISTORY_FOLDERS + " (" +
+                COL_ROLLUP_FOLDER + " TEXT PRIMARY KEY, " +
+                COL_ROLLUP_FILES + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_ROLLUP_BYTES + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_ROLLUP_SIZED_FILES + " INTEGER NOT NULL DEFAULT 0" +
+                ")");
+            // Like the search index, rows replaced by INSERT OR REPLACE go through the delete trigger
+            db.execSQL("CREATE TRIGGER history_rollup_insert AFTER INSERT ON " + TABLE_HISTORY +
+                " WHEN new." + COL_HISTORY_DUPLICATE_OF + " IS NULL BEGIN " + rollupStatements("new.", 1) + "END");
+            db.execSQL("CREATE TRIGGER history_rollup_delete AFTER DELETE ON " + TABLE_HISTORY +
+                " WHEN old." + COL_HISTORY_DUPLICATE_OF + " IS NULL BEGIN " + rollupStatements("old.", -1) + "END");
+            String rolledUp = COL_HISTORY_FILE_PATH + ", " + COL_HISTORY_UPLOAD_DATE + ", " +
+                COL_HISTORY_FILE_SIZE + ", " + COL_HISTORY_DUPLICATE_OF;
+            db.execSQL("CREATE TRIGGER history_rollup_update_old AFTER UPDATE OF " + rolledUp + " ON " + TABLE_HISTORY +
+                " WHEN old." + COL_HISTORY_DUPLICATE_OF + " IS NULL BEGIN " + rollupStatements("old.", -1) + "END");
+            db.execSQL("CREATE TRIGGER history_rollup_update_new AFTER UPDATE OF " + rolledUp + " ON " + TABLE_HISTORY +
+                " WHEN new." + COL_HISTORY_DUPLICATE_OF + " IS NULL BEGIN " + rollupStatements("new.", 1) + "END");
+            rebuildRollups(db);
+        }
+    }
+
+    /**
+     * Compare the day and folder rollups with the sums over the history they are kept from, and
+     * rebuild them if any row differs, e.g. after a change of time zone moved the local days
+     * @return false if they differed and were rebuilt
+     */
+    public boolean checkRollups() {
+        SQLiteDatabase db = null;
+        boolean matched = true;
+
+        PerfTrace.Section trace = PerfTrace.section("pg.db.checkRollups");
+        try {
+            db = this.getWritableDatabase();
+            db.beginTransaction();
+
+            matched = rollupDifferences(TABLE_HISTORY_DAYS, historyDay("")) == 0
+                && rollupDifferences(TABLE_HISTORY_FOLDERS, historyFolder("")) == 0;
+            if (!matched) {
+                rebuildRollups(db);
+            }
+
+            db.setTransactionSuccessful();
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error checking history rollups: " + e.getMessage(), e);
+        } finally {
+            if (db != null && db.inTransaction()) {
+                db.endTransaction();
+            }
+            trace.close();
+        }
+        return matched;
+    }
+
+    /**
+     * @return Rows that are in the rollup but not in the sums over the history, or the other way
+     */
+    private int rollupDifferences(String table, String key) {
+        String sums = "SELECT " + key + ", " + rollupSums();
+        String stored = "SELECT * FROM " + table;
+        return count("SELECT COUNT(*) FROM (SELECT * FROM (" + sums + " EXCEPT " + stored +
+            ") UNION ALL SELECT * FROM (" + stored + " EXCEPT " + sums + "))", null);
+    }
+
+    /**
+     * Fill the day and folder rollups from the history, as the triggers would have
+     */
+    private static void rebuildRollups(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + TABLE_HISTORY_DAYS);
+        db.execSQL("DELETE FROM " + TABLE_HISTORY_FOLDERS);
+        db.execSQL("INSERT INTO " + TABLE_HISTORY_DAYS + " SELECT " + historyDay("") + ", " + rollupSums());
+        db.execSQL("INSERT INTO " + TABLE_HISTORY_FOLDERS + " SELECT " + historyFolder("") + ", " + rollupSums());
+    }
+
+    /**
+     * Rollup columns over the history, grouped by the key selected before them
+     */
+    private static String rollupSums() {
+        return "COUNT(*), SUM(" + COL_HISTORY_FILE_SIZE + "), SUM(" + COL_HISTORY_FILE_SIZE + " > 0) FROM " +
+            TABLE_HISTORY + " WHERE " + COL_HISTORY_DUPLICATE_OF + " IS NULL GROUP BY 1";
+    }
+
+    /**
+     * Trigger statements adding a history row to the day and folder rollups, or taking it out
+     * @param row {@code new.} or {@code old.}
+     * @param sign 1 to add the row, -1 to take it out
+     */
+    private static String rollupStatements(String row, int sign) {
+        StringBuilder statements = new StringBuilder();
+        String[][] rollups = {
+            {TABLE_HISTORY_DAYS, COL_ROLLUP_DAY, historyDay(row)},
+            {TABLE_HISTORY_FOLDERS, COL_ROLLUP_FOLDER, historyFolder(row)},
+        };
+        String size = row + COL_HISTORY_FILE_SIZE;
+        for (String[] rollup : rollups) {
+            String key = rollup[1] + " = " + rollup[2];
+            if (sign > 0) {
+                // Not INSERT OR IGNORE: the conflict clause of an INSERT OR REPLACE into the
+                // history would override it, replacing the rollup row with an empty one
+                statements.append("INSERT INTO ").append(rollup[0]).append(" (").append(rollup[1])
+                    .append(") SELECT ").append(rollup[2]).append(" WHERE NOT EXISTS (SELECT 1 FROM ")
+                    .append(rollup[0]).append(" WHERE ").append(key).append("); ");
+            }
+            statements.append("UPDATE ").append(rollup[0]).append(" SET ")
+                .append(COL_ROLLUP_FILES).append(" = ").append(COL_ROLLUP_FILES).append(sign > 0 ? " + 1, " : " - 1, ")
+                .append(COL_ROLLUP_BYTES).append(" = ").append(COL_ROLLUP_BYTES).append(sign > 0 ? " + " : " - ").append(size).append(", ")
+                .append(COL_ROLLUP_SIZED_FILES).append(" = ").append(COL_ROLLUP_SIZED_FILES).append(sign > 0 ? " + " : " - ")
+                .append("(").append(size).append(" > 0) WHERE ").append(key).append("; ");
+            if (sign < 0) {
+                statements.append("DELETE FROM ").append(rollup[0]).append(" WHERE ").append(key)
+                    .append(" AND ").append(COL_ROLLUP_FILES).append(" <= 0; ");
+            }
         }
+        return statements.toString();
+    }
+
+    /**
+     * Local day of a history row's upload, {@code yyyy-mm-dd}, as {@code date('now', 'localtime')} gives today
+     */
+    private static String historyDay(String row) {
+        return "date(" + row + COL_HISTORY_UPLOAD_DATE + " / 1000, 'unixepoch', 'localtime')";
+    }
+
+    /**
+     * Folder of a history row's file, without a trailing slash
+     */
+    private static String historyFolder(String row) {
+        String path = row + COL_HISTORY_FILE_PATH;
+        return "rtrim(rtrim(" + path + ", replace(" + path + ", '/', '')), '/')";
+    }
+
+    /**
+     * Index columns of a history row: the file name, the folder path with its trailing slash
+     * and the local upload date as {@code yyyy mm dd}
+     * @param row {@code new.} in a trigger, empty in a query of the history
+     */
+    private static String historyFtsValues(String row) {
+        String path = row + COL_HISTORY_FILE_PATH;
+        // Trims the characters after the last slash: those of the name
+        String folder = "rtrim(" + path + ", replace(" + path + ", '/', ''))";
+        return "substr(" + path + ", length(" + folder + ") + 1), " + folder + ", " +
+            "strftime('%Y %m %d', " + row + COL_HISTORY_UPLOAD_DATE + " / 1000, 'unixepoch', 'localtime')";
     }
 
     /**
@@ -101,11 +509,14 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         SQLiteDatabase db = null;
         Cursor cursor = null;
         
+        PerfTrace.Section trace = PerfTrace.section("pg.db.exportHistoryToJson");
         try {
             db = this.getReadableDatabase();
             cursor = db.query(
                 TABLE_HISTORY,
-                new String[]{COL_HISTORY_FILE_PATH, COL_HISTORY_LAST_MODIFIED, COL_HISTORY_UPLOAD_DATE},
+                new String[]{COL_HISTORY_FILE_PATH, COL_HISTORY_LAST_MODIFIED, COL_HISTORY_UPLOAD_DATE, COL_HISTORY_FILE_ID,
+                    COL_HISTORY_MESSAGE_ID, COL_HISTORY_FILE_SIZE, COL_HISTORY_CONTENT_HASH, COL_HISTORY_PACK_NAME,
+                    COL_HISTORY_PACK_OFFSET, COL_HISTORY_DUPLICATE_OF, COL_HISTORY_ENCRYPTED},
                 null, null, null, null,
                 COL_HISTORY_UPLOAD_DATE + " DESC"
             );
@@ -114,11 +525,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             
             if (cursor != null && cursor.moveToFirst()) {
                 do {
-                    JSONObject obj = new JSONObject();
-                    obj.put("p", cursor.getString(0)); // path
-                    obj.put("m", cursor.getLong(1));   // last_modified
-                    obj.put("u", cursor.getLong(2));   // upload_date
-                    array.put(obj);
+                    HistoryCodec.Record record = new HistoryCodec.Record(cursor.getString(0), cursor.getLong(1), cursor.getLong(2));
+                    record.fileId = cursor.getString(3);
+                    record.messageId = cursor.getInt(4);
+                    record.size = cursor.getLong(5);
+                    record.contentHash = cursor.getString(6);
+                    record.packName = cursor.getString(7);
+                    record.packOffset = cursor.getLong(8);
+                    record.duplicateOf = cursor.getString(9);
+                    record.encrypted = cursor.getInt(10) != 0;
+                    array.put(HistoryCodec.toJson(record));
                 } while (cursor.moveToNext());
             }
             
@@ -134,6 +550,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             if (cursor != null) {
                 cursor.close();
             }
+            trace.close();
         }
     }
 
@@ -151,24 +568,39 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         SQLiteDatabase db = null;
         int importCount = 0;
         
+        PerfTrace.Section trace = PerfTrace.section("pg.db.importHistoryFromJson");
         try {
             db = this.getWritableDatabase();
-            JSONArray array = new JSONArray(json);
+            List<HistoryCodec.Record> records = HistoryCodec.decode(json, System.currentTimeMillis());
             
             db.beginTransaction();
             
-            for (int i = 0; i < array.length(); i++) {
-                JSONObject obj = array.getJSONObject(i);
-                
+            for (HistoryCodec.Record record : records) {
                 ContentValues values = new ContentValues();
-                values.put(COL_HISTORY_FILE_PATH, obj.getString("p"));
-                values.put(COL_HISTORY_LAST_MODIFIED, obj.getLong("m"));
-                
-                // Use upload_date from JSON if available, otherwise use current time
-                if (obj.has("u")) {
-                    values.put(COL_HISTORY_UPLOAD_DATE, obj.getLong("u"));
-                } else {
-                    values.put(COL_HISTORY_UPLOAD_DATE, System.currentTimeMillis());
+                values.put(COL_HISTORY_FILE_PATH, record.path);
+                values.put(COL_HISTORY_LAST_MODIFIED, record.modified);
+                values.put(COL_HISTORY_UPLOAD_DATE, record.uploadedAt);
+                if (record.fileId != null) {
+                    values.put(COL_HISTORY_FILE_ID, record.fileId);
+                }
+                if (record.messageId > 0) {
+                    values.put(COL_HISTORY_MESSAGE_ID, record.messageId);
+                }
+                if (record.contentHash != null || record.packName != null) {
+                    values.put(COL_HISTORY_FILE_SIZE, record.size);
+                }
+                if (record.contentHash != null) {
+                    values.put(COL_HISTORY_CONTENT_HASH, record.contentHash);
+                }
+                if (record.packName != null) {
+                    values.put(COL_HISTORY_PACK_NAME, record.packName);
+                    values.put(COL_HISTORY_PACK_OFFSET, record.packOffset);
+                }
+                if (record.duplicateOf != null) {
+                    values.put(COL_HISTORY_DUPLICATE_OF, record.duplicateOf);
+                }
+                if (record.encrypted) {
+                    values.put(COL_HISTORY_ENCRYPTED, 1);
                 }
                 
                 long result = db.insertWithOnConflict(
@@ -194,6 +626,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             if (db != null && db.inTransaction()) {
                 db.endTransaction();
             }
+            trace.close();
         }
         
         return importCount;
@@ -204,9 +637,11 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * @param type Log type (ERROR, WARN, INFO, DEBUG)
      * @param message Log message
      */
+    @Override
     public void addLog(@NonNull String type, @NonNull String message) {
         SQLiteDatabase db = null;
         
+        PerfTrace.Section trace = PerfTrace.section("pg.db.addLog");
         try {
             db = this.getWritableDatabase();
             
@@ -230,6 +665,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 
         } catch (Exception e) {
             Log.e(TAG, "Error adding log: " + e.getMessage(), e);
+        } finally {
+            trace.close();
         }
     }
 
@@ -331,7 +768,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         
         try {
             cursor = getReadableDatabase().rawQuery(
-                "SELECT COUNT(*) FROM " + TABLE_HISTORY, 
+                "SELECT SUM(" + COL_ROLLUP_FILES + ") FROM " + TABLE_HISTORY_FOLDERS,
                 null
             );
             
@@ -360,10 +797,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         Cursor cursor = null;
         
         try {
-            // Get total count
+            // Totals from the folder rollup; first and last upload off the upload date index
+            String uploaded = "SELECT " + COL_HISTORY_UPLOAD_DATE + " FROM " + TABLE_HISTORY +
+                " WHERE " + COL_HISTORY_DUPLICATE_OF + " IS NULL ORDER BY " + COL_HISTORY_UPLOAD_DATE;
             cursor = getReadableDatabase().rawQuery(
-                "SELECT COUNT(*), MIN(" + COL_HISTORY_UPLOAD_DATE + "), MAX(" + COL_HISTORY_UPLOAD_DATE + ") " +
-                "FROM " + TABLE_HISTORY,
+                "SELECT SUM(" + COL_ROLLUP_FILES + "), (" + uploaded + " LIMIT 1), (" + uploaded + " DESC LIMIT 1), " +
+                "SUM(" + COL_ROLLUP_BYTES + "), SUM(" + COL_ROLLUP_SIZED_FILES + ") FROM " + TABLE_HISTORY_FOLDERS,
                 null
             );
             
@@ -371,6 +810,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 stats.totalFiles = cursor.getInt(0);
                 stats.firstUploadDate = cursor.getLong(1);
                 stats.lastUploadDate = cursor.getLong(2);
+                stats.totalBytes = cursor.getLong(3);
+                stats.sizedFiles = cursor.getInt(4);
             }
             
         } catch (Exception e) {
@@ -384,6 +825,150 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         return stats;
     }
 
+    /**
+     * Get the number of photos uploaded today, by the device's calendar day, from the day rollup
+     */
+    public int getTodayUploadCount() {
+        Cursor cursor = null;
+        
+        try {
+            cursor = getReadableDatabase().rawQuery(
+                "SELECT " + COL_ROLLUP_FILES + " FROM " + TABLE_HISTORY_DAYS +
+                " WHERE " + COL_ROLLUP_DAY + " = date('now', 'localtime')",
+                null
+            );
+            
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getInt(0);
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting today's upload count: " + e.getMessage(), e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        
+        return 0;
+    }
+
+    /**
+     * Count the history rows the history screen lists
+     * @param query Search as typed, see HistorySearch; empty for every row
+     */
+    public int countHistory(@NonNull String query) {
+        PerfTrace.Section trace = PerfTrace.section("pg.db.countHistory");
+        try {
+            String match = HistorySearch.match(query);
+            if (match == null) {
+                return count("SELECT COUNT(*) FROM " + TABLE_HISTORY, null);
+            }
+            return countMatches(match);
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error counting history: " + e.getMessage(), e);
+        } finally {
+            trace.close();
+        }
+        
+        return 0;
+    }
+
+    /**
+     * A page of the history the history screen lists.
+     *
+     * Without a search, rows come newest upload first. Given the last entry of the page before,
+     * the page is read from where that one ended in the upload date index; otherwise the rows
+     * before it are stepped over, which costs more the deeper the page.
+     *
+     * A search reads the FTS index, files whose name matches first, then those matching by
+     * folder or date, each newest record first. Its pages are always read by offset, which
+     * the index steps over quickly.
+     * @param query Search as typed, see HistorySearch; empty for every row
+     * @param after Last entry of the page before, null to skip {@code offset} rows instead
+     */
+    @NonNull
+    public List<HistoryEntry> getHistoryPage(@NonNull String query, @Nullable HistoryEntry after, int offset, int limit) {
+        PerfTrace.Section trace = PerfTrace.section("pg.db.getHistoryPage");
+        try {
+            String match = HistorySearch.match(query);
+            if (match == null) {
+                return browseHistory(after, offset, limit);
+            }
+            
+            String nameMatch = HistorySearch.nameMatch(query);
+            List<HistoryEntry> entries = searchHistory(nameMatch, null, offset, limit);
+            if (entries.size() < limit) {
+                // Past the name matches: on with the others, from where the page leaves them
+                int names = entries.isEmpty() && offset > 0 ? countMatches(nameMatch) : offset + entries.size();
+                entries.addAll(searchHistory(match, nameMatch, Math.max(0, offset - names), limit - entries.size()));
+            }
+            return entries;
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting history page: " + e.getMessage(), e);
+        } finally {
+            trace.close();
+        }
+        
+        return new ArrayList<>();
+    }
+
+    private List<HistoryEntry> browseHistory(@Nullable HistoryEntry after, int offset, int limit) {
+        String where = "";
+        String[] args = null;
+        if (after != null) {
+            // Row values would say this shorter, but need SQLite 3.15 (API 26)
+            where = " WHERE " + COL_HISTORY_UPLOAD_DATE + " < ? OR (" + COL_HISTORY_UPLOAD_DATE + " = ? AND " + COL_HISTORY_ID + " < ?)";
+            args = new String[]{String.valueOf(after.uploadDate), String.valueOf(after.uploadDate), String.valueOf(after.id)};
+        }
+        return readHistoryEntries(
+            "SELECT " + HISTORY_ENTRY_COLUMNS + " FROM " + TABLE_HISTORY + where +
+            " ORDER BY " + COL_HISTORY_UPLOAD_DATE + " DESC, " + COL_HISTORY_ID + " DESC" +
+            " LIMIT " + limit + (after == null ? " OFFSET " + offset : ""),
+            args
+        );
+    }
+
+    /**
+     * @param match MATCH expression of the rows
+     * @param except MATCH expression of rows to leave out, null for none
+     */
+    private List<HistoryEntry> searchHistory(String match, @Nullable String except, int offset, int limit) {
+        String exclude = except != null
+            ? " AND docid NOT IN (SELECT docid FROM " + TABLE_HISTORY_FTS + " WHERE " + TABLE_HISTORY_FTS + " MATCH ?)" : "";
+        // The index hands out docids, the history ids, in order; only the page is looked up
+        return readHistoryEntries(
+            "SELECT " + HISTORY_ENTRY_COLUMNS + " FROM " + TABLE_HISTORY + " JOIN (" +
+            "SELECT docid FROM " + TABLE_HISTORY_FTS + " WHERE " + TABLE_HISTORY_FTS + " MATCH ?" + exclude +
+            " ORDER BY docid DESC LIMIT " + limit + " OFFSET " + offset +
+            ") ON " + COL_HISTORY_ID + " = docid ORDER BY " + COL_HISTORY_ID + " DESC",
+            except != null ? new String[]{match, except} : new String[]{match}
+        );
+    }
+
+    private int countMatches(String match) {
+        return count("SELECT COUNT(*) FROM " + TABLE_HISTORY_FTS + " WHERE " + TABLE_HISTORY_FTS + " MATCH ?", new String[]{match});
+    }
+
+    private int count(String sql, @Nullable String[] args) {
+        try (Cursor cursor = getReadableDatabase().rawQuery(sql, args)) {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        }
+    }
+
+    private List<HistoryEntry> readHistoryEntries(String sql, @Nullable String[] args) {
+        List<HistoryEntry> entries = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery(sql, args)) {
+            while (cursor.moveToNext()) {
+                entries.add(new HistoryEntry(cursor.getLong(0), cursor.getString(1), cursor.getLong(2),
+                    cursor.getString(3), cursor.getString(4)));
+            }
+        }
+        return entries;
+    }
+
     /**
      * Save selected folders to database
      * @param folderList List of folders to save
@@ -402,11 +987,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 values.put(COL_FOLDERS_PATH, folder.getAbsolutePath());
                 values.put(COL_FOLDERS_NAME, folder.getName());
                 
+                // Ignore existing rows so a rescan never resets the selection flag
                 db.insertWithOnConflict(
                     TABLE_FOLDERS, 
                     null, 
                     values, 
-                    SQLiteDatabase.CONFLICT_REPLACE
+                    SQLiteDatabase.CONFLICT_IGNORE
                 );
             }
             
@@ -483,84 +1069,1242 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Check if a file has already been uploaded
-     * @param path File path
-     * @param modified Last modified timestamp
-     * @return true if file was already uploaded
+     * Get the paths of all folders selected for backup
+     * @return Set of absolute folder paths
      */
-    public boolean isFileUploaded(@NonNull String path, long modified) {
+    @NonNull
+    public Set<String> getSelectedFolderPaths() {
+        Set<String> paths = new HashSet<>();
         Cursor cursor = null;
         
         try {
             cursor = getReadableDatabase().query(
-                TABLE_HISTORY,
-                new String[]{COL_HISTORY_ID},
-                COL_HISTORY_FILE_PATH + " = ? AND " + COL_HISTORY_LAST_MODIFIED + " = ?",
-                new String[]{path, String.valueOf(modified)},
-                null, null, null, "1"
+                TABLE_FOLDERS,
+                new String[]{COL_FOLDERS_PATH},
+                COL_FOLDERS_SELECTED + " = 1",
+                null, null, null, null
             );
             
-            return cursor != null && cursor.getCount() > 0;
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    paths.add(cursor.getString(0));
+                } while (cursor.moveToNext());
+            }
             
         } catch (Exception e) {
-            Log.e(TAG, "Error checking if file uploaded: " + e.getMessage(), e);
-            return false;
+            Log.e(TAG, "Error getting selected folders: " + e.getMessage(), e);
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
         }
+        
+        return paths;
     }
 
     /**
-     * Mark a file as uploaded
-     * @param path File path
-     * @param modified Last modified timestamp
-     * @return true if marked successfully
+     * Set the backup selection of many folders in a single transaction.
+     * Folders not yet known to the table are inserted.
+     * @param folderPaths Absolute folder paths
+     * @param selected New selection state
+     * @return true if the update was committed
      */
-    public boolean markAsUploaded(@NonNull String path, long modified) {
+    public boolean setFoldersSelected(@NonNull Collection<String> folderPaths, boolean selected) {
+        SQLiteDatabase db = null;
+        
         try {
-            ContentValues values = new ContentValues();
-            values.put(COL_HISTORY_FILE_PATH, path);
-            values.put(COL_HISTORY_LAST_MODIFIED, modified);
-            values.put(COL_HISTORY_UPLOAD_DATE, System.currentTimeMillis());
+            db = this.getWritableDatabase();
+            db.beginTransaction();
             
-            long result = getWritableDatabase().insertWithOnConflict(
-                TABLE_HISTORY,
-                null,
-                values,
-                SQLiteDatabase.CONFLICT_REPLACE
-            );
+            ContentValues update = new ContentValues();
+            update.put(COL_FOLDERS_SELECTED, selected ? 1 : 0);
             
-            return result != -1;
+            for (String path : folderPaths) {
+                if (path == null) continue;
+                
+                int updated = db.update(
+                    TABLE_FOLDERS,
+                    update,
+                    COL_FOLDERS_PATH + " = ?",
+                    new String[]{path}
+                );
+                
+                if (updated == 0) {
+                    ContentValues insert = new ContentValues();
+                    insert.put(COL_FOLDERS_PATH, path);
+                    insert.put(COL_FOLDERS_NAME, new File(path).getName());
+                    insert.put(COL_FOLDERS_SELECTED, selected ? 1 : 0);
+                    db.insertWithOnConflict(TABLE_FOLDERS, null, insert, SQLiteDatabase.CONFLICT_IGNORE);
+                }
+            }
+            
+            db.setTransactionSuccessful();
+            return true;
             
         } catch (Exception e) {
-            Log.e(TAG, "Error marking file as uploaded: " + e.getMessage(), e);
+            Log.e(TAG, "Error updating folder selection: " + e.getMessage(), e);
             return false;
+        } finally {
+            if (db != null && db.inTransaction()) {
+                db.endTransaction();
+            }
         }
     }
 
     /**
-     * Clear all upload history
-     * @return number of records deleted
+     * Get the paths of all folders whose small photos are uploaded in packs
+     * @return Set of absolute folder paths
      */
-    public int clearHistory() {
+    @NonNull
+    public Set<String> getPackedFolderPaths() {
+        return getFlaggedFolderPaths(COL_FOLDERS_PACKED);
+    }
+
+    /**
+     * Get the paths of all folders that hold back near-duplicate photos
+     * @return Set of absolute folder paths
+     */
+    @NonNull
+    public Set<String> getDedupedFolderPaths() {
+        return getFlaggedFolderPaths(COL_FOLDERS_DEDUPED);
+    }
+
+    /**
+     * Turn packing of a folder's small photos on or off
+     * @param folderPath Absolute folder path
+     * @param packed New packing state
+     * @return true if the folder is known and was updated
+     */
+    public boolean setFolderPacked(@NonNull String folderPath, boolean packed) {
+        return setFolderFlag(COL_FOLDERS_PACKED, folderPath, packed);
+    }
+
+    /**
+     * Turn near-duplicate detection of a folder on or off
+     * @param folderPath Absolute folder path
+     * @param deduped New detection state
+     * @return true if the folder is known and was updated
+     */
+    public boolean setFolderDeduped(@NonNull String folderPath, boolean deduped) {
+        return setFolderFlag(COL_FOLDERS_DEDUPED, folderPath, deduped);
+    }
+
+    private Set<String> getFlaggedFolderPaths(String flagColumn) {
+        Set<String> paths = new HashSet<>();
+        Cursor cursor = null;
+        
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            int deleted = db.delete(TABLE_HISTORY, null, null);
-            Log.i(TAG, "Cleared " + deleted + " history records");
-            return deleted;
-        } catch (Exception e) {
-            Log.e(TAG, "Error clearing history: " + e.getMessage(), e);
+            cursor = getReadableDatabase().query(
+                TABLE_FOLDERS,
+                new String[]{COL_FOLDERS_PATH},
+                flagColumn + " = 1",
+                null, null, null, null
+            );
+            
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    paths.add(cursor.getString(0));
+                } while (cursor.moveToNext());
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting folders by " + flagColumn + ": " + e.getMessage(), e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        
+        return paths;
+    }
+
+    private boolean setFolderFlag(String flagColumn, String folderPath, boolean on) {
+        try {
+            ContentValues values = new ContentValues();
+            values.put(flagColumn, on ? 1 : 0);
+            return getWritableDatabase().update(TABLE_FOLDERS, values, COL_FOLDERS_PATH + " = ?", new String[]{folderPath}) > 0;
+        } catch (Exception e) {
+            Log.e(TAG, "Error updating folder " + flagColumn + ": " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * One-time import of the legacy per-path boolean keys from SharedPreferences
+     * @param prefEntries All entries of the BackupPrefs file
+     * @return Legacy keys that were imported and can now be removed, or null if the import failed
+     */
+    @Nullable
+    public List<String> migrateFolderSelection(@NonNull Map<String, ?> prefEntries) {
+        List<String> legacyKeys = new ArrayList<>();
+        List<String> selected = new ArrayList<>();
+        
+        for (Map.Entry<String, ?> entry : prefEntries.entrySet()) {
+            // Legacy selection keys are absolute folder paths mapped to booleans
+            if (entry.getKey().startsWith("/") && entry.getValue() instanceof Boolean) {
+                legacyKeys.add(entry.getKey());
+                if ((Boolean) entry.getValue()) {
+                    selected.add(entry.getKey());
+                }
+            }
+        }
+        
+        if (!selected.isEmpty() && !setFoldersSelected(selected, true)) {
+            // Keep the legacy keys so the migration can run again
+            return null;
+        }
+        
+        Log.i(TAG, "Migrated " + selected.size() + " selected folders from preferences");
+        return legacyKeys;
+    }
+
+    /**
+     * Get the sync checkpoints of all folders that have one
+     * @return Map of folder path to DATE_MODIFIED checkpoint in seconds
+     */
+    @NonNull
+    public Map<String, Long> getSyncCheckpoints() {
+        Map<String, Long> checkpoints = new HashMap<>();
+        Cursor cursor = null;
+        
+        PerfTrace.Section trace = PerfTrace.section("pg.db.getSyncCheckpoints");
+        try {
+            cursor = getReadableDatabase().query(
+                TABLE_FOLDERS,
+                new String[]{COL_FOLDERS_PATH, COL_FOLDERS_SYNC_CHECKPOINT},
+                COL_FOLDERS_SYNC_CHECKPOINT + " > 0",
+                null, null, null, null
+            );
+            
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    checkpoints.put(cursor.getString(0), cursor.getLong(1));
+                } while (cursor.moveToNext());
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting sync checkpoints: " + e.getMessage(), e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            trace.close();
+        }
+        
+        return checkpoints;
+    }
+
+    /**
+     * Persist the sync checkpoints of several folders in one transaction
+     * @param checkpoints Map of folder path to DATE_MODIFIED checkpoint in seconds
+     */
+    @Override
+    public void saveSyncCheckpoints(@NonNull Map<String, Long> checkpoints) {
+        SQLiteDatabase db = null;
+        
+        PerfTrace.Section trace = PerfTrace.section("pg.db.saveSyncCheckpoints");
+        try {
+            db = this.getWritableDatabase();
+            db.beginTransaction();
+            
+            for (Map.Entry<String, Long> entry : checkpoints.entrySet()) {
+                ContentValues values = new ContentValues();
+                values.put(COL_FOLDERS_SYNC_CHECKPOINT, entry.getValue());
+                db.update(TABLE_FOLDERS, values, COL_FOLDERS_PATH + " = ?", new String[]{entry.getKey()});
+            }
+            
+            db.setTransactionSuccessful();
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving sync checkpoints: " + e.getMessage(), e);
+        } finally {
+            if (db != null && db.inTransaction()) {
+                db.endTransaction();
+            }
+            trace.close();
+        }
+    }
+
+    /**
+     * Forget all sync checkpoints once a backlog has been fully processed
+     */
+    public void clearSyncCheckpoints() {
+        try {
+            ContentValues values = new ContentValues();
+            values.put(COL_FOLDERS_SYNC_CHECKPOINT, 0);
+            getWritableDatabase().update(TABLE_FOLDERS, values, COL_FOLDERS_SYNC_CHECKPOINT + " > 0", null);
+        } catch (Exception e) {
+            Log.e(TAG, "Error clearing sync checkpoints: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Add what a worker of a sync run measured to the run's row, creating it on the first call.
+     * The latency histograms and network metrics are merged, so the percentiles cover every
+     * upload and call of the run.
+     * @param startedAt Plan time of the run, which all its workers share
+     * @param mode {@link SyncMode} name of the run
+     */
+    public void addSyncRunMetrics(long startedAt, @NonNull String mode, @NonNull SyncMetrics metrics) {
+        SQLiteDatabase db = null;
+        Cursor cursor = null;
+        
+        PerfTrace.Section trace = PerfTrace.section("pg.db.addSyncRunMetrics");
+        try {
+            db = this.getWritableDatabase();
+            db.beginTransaction();
+            
+            ContentValues row = new ContentValues();
+            row.put(COL_RUN_STARTED_AT, startedAt);
+            row.put(COL_RUN_MODE, mode);
+            if (db.insertWithOnConflict(TABLE_SYNC_RUNS, null, row, SQLiteDatabase.CONFLICT_IGNORE) != -1) {
+                db.execSQL("DELETE FROM " + TABLE_SYNC_RUNS +
+                    " WHERE " + COL_RUN_STARTED_AT + " NOT IN (" +
+                    "SELECT " + COL_RUN_STARTED_AT + " FROM " + TABLE_SYNC_RUNS +
+                    " ORDER BY " + COL_RUN_STARTED_AT + " DESC LIMIT " + MAX_SYNC_RUNS +
+                    ")");
+            }
+            
+            cursor = db.query(TABLE_SYNC_RUNS, new String[]{COL_RUN_LATENCY, COL_RUN_NETWORK},
+                COL_RUN_STARTED_AT + " = ?", new String[]{String.valueOf(startedAt)}, null, null, null);
+            boolean found = cursor.moveToFirst();
+            LatencyHistogram latency = LatencyHistogram.decode(found ? cursor.getString(0) : null);
+            latency.merge(metrics.latency);
+            NetworkMetrics network = NetworkMetrics.decode(found ? cursor.getString(1) : null);
+            network.merge(metrics.network);
+            
+            db.execSQL("UPDATE " + TABLE_SYNC_RUNS + " SET " +
+                COL_RUN_FIREBASE_MS + " = " + COL_RUN_FIREBASE_MS + " + ?, " +
+                COL_RUN_REGISTRY_MS + " = " + COL_RUN_REGISTRY_MS + " + ?, " +
+                COL_RUN_SCAN_MS + " = " + COL_RUN_SCAN_MS + " + ?, " +
+                COL_RUN_DEDUP_MS + " = " + COL_RUN_DEDUP_MS + " + ?, " +
+                COL_RUN_UPLOAD_MS + " = " + COL_RUN_UPLOAD_MS + " + ?, " +
+                COL_RUN_EXPORT_MS + " = " + COL_RUN_EXPORT_MS + " + ?, " +
+                COL_RUN_SCANNED + " = " + COL_RUN_SCANNED + " + ?, " +
+                COL_RUN_SKIPPED + " = " + COL_RUN_SKIPPED + " + ?, " +
+                COL_RUN_UPLOADED + " = " + COL_RUN_UPLOADED + " + ?, " +
+                COL_RUN_FAILED + " = " + COL_RUN_FAILED + " + ?, " +
+                COL_RUN_BYTES_SENT + " = " + COL_RUN_BYTES_SENT + " + ?, " +
+                COL_RUN_RETRIES + " = " + COL_RUN_RETRIES + " + ?, " +
+                COL_RUN_RATE_LIMITED + " = " + COL_RUN_RATE_LIMITED + " + ?, " +
+                COL_RUN_THROTTLE_MS + " = " + COL_RUN_THROTTLE_MS + " + ?, " +
+                COL_RUN_LATENCY + " = ?, " +
+                COL_RUN_LATENCY_P50 + " = ?, " +
+                COL_RUN_LATENCY_P95 + " = ?, " +
+                COL_RUN_NETWORK + " = ? " +
+                "WHERE " + COL_RUN_STARTED_AT + " = ?",
+                new Object[]{
+                    metrics.phase(SyncMetrics.Phase.FIREBASE), metrics.phase(SyncMetrics.Phase.REGISTRY),
+                    metrics.phase(SyncMetrics.Phase.SCAN), metrics.phase(SyncMetrics.Phase.DEDUP),
+                    metrics.phase(SyncMetrics.Phase.UPLOAD), metrics.phase(SyncMetrics.Phase.EXPORT),
+                    metrics.scanned, metrics.skipped, metrics.uploaded, metrics.failed, metrics.bytesSent,
+                    metrics.retries, metrics.rateLimited, metrics.throttleMs,
+                    latency.encode(), latency.percentile(50), latency.percentile(95),
+                    network.encode(),
+                    startedAt
+                });
+            
+            db.setTransactionSuccessful();
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving sync run metrics: " + e.getMessage(), e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            if (db != null && db.inTransaction()) {
+                db.endTransaction();
+            }
+            trace.close();
+        }
+    }
+
+    /**
+     * Mark a sync run as done, after its last slice
+     */
+    public void finishSyncRun(long startedAt, long finishedAt) {
+        try {
+            ContentValues values = new ContentValues();
+            values.put(COL_RUN_FINISHED_AT, finishedAt);
+            getWritableDatabase().update(TABLE_SYNC_RUNS, values, COL_RUN_STARTED_AT + " = ?",
+                new String[]{String.valueOf(startedAt)});
+        } catch (Exception e) {
+            Log.e(TAG, "Error finishing sync run: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the most recent sync runs, newest first
+     */
+    @NonNull
+    public List<SyncRun> getRecentSyncRuns(int limit) {
+        List<SyncRun> runs = new ArrayList<>();
+        Cursor cursor = null;
+        
+        try {
+            cursor = getReadableDatabase().query(
+                TABLE_SYNC_RUNS,
+                new String[]{COL_RUN_STARTED_AT, COL_RUN_MODE, COL_RUN_FINISHED_AT,
+                    COL_RUN_FIREBASE_MS, COL_RUN_REGISTRY_MS, COL_RUN_SCAN_MS, COL_RUN_DEDUP_MS,
+                    COL_RUN_UPLOAD_MS, COL_RUN_EXPORT_MS, COL_RUN_SCANNED, COL_RUN_SKIPPED,
+                    COL_RUN_UPLOADED, COL_RUN_FAILED, COL_RUN_BYTES_SENT, COL_RUN_LATENCY,
+                    COL_RUN_RETRIES, COL_RUN_RATE_LIMITED, COL_RUN_THROTTLE_MS, COL_RUN_NETWORK},
+                null, null, null, null,
+                COL_RUN_STARTED_AT + " DESC",
+                String.valueOf(limit)
+            );
+            
+            while (cursor != null && cursor.moveToNext()) {
+                SyncMetrics metrics = new SyncMetrics();
+                // Phase columns are in Phase order
+                for (int i = 0; i < metrics.phaseMs.length; i++) {
+                    metrics.phaseMs[i] = cursor.getLong(3 + i);
+                }
+                metrics.scanned = cursor.getInt(9);
+                metrics.skipped = cursor.getInt(10);
+                metrics.uploaded = cursor.getInt(11);
+                metrics.failed = cursor.getInt(12);
+                metrics.bytesSent = cursor.getLong(13);
+                metrics.latency.merge(LatencyHistogram.decode(cursor.getString(14)));
+                metrics.retries = cursor.getInt(15);
+                metrics.rateLimited = cursor.getInt(16);
+                metrics.throttleMs = cursor.getLong(17);
+                metrics.network.merge(NetworkMetrics.decode(cursor.getString(18)));
+                runs.add(new SyncRun(cursor.getLong(0), cursor.getString(1), cursor.getLong(2), metrics));
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting sync runs: " + e.getMessage(), e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        
+        return runs;
+    }
+
+    /**
+     * Get the local topic registry
+     * @return Map of folder name to topic id
+     */
+    @NonNull
+    public Map<String, String> getTopics() {
+        Map<String, String> topics = new HashMap<>();
+        Cursor cursor = null;
+        
+        try {
+            cursor = getReadableDatabase().query(
+                TABLE_TOPICS,
+                new String[]{COL_TOPICS_NAME, COL_TOPICS_TOPIC_ID},
+                null, null, null, null, null
+            );
+            
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    topics.put(cursor.getString(0), cursor.getString(1));
+                } while (cursor.moveToNext());
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting topics: " + e.getMessage(), e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        
+        return topics;
+    }
+
+    /**
+     * Get the key/value metadata of the topic registry (version, mirror message ids)
+     */
+    @NonNull
+    public Map<String, String> getRegistryMeta() {
+        Map<String, String> meta = new HashMap<>();
+        Cursor cursor = null;
+        
+        try {
+            cursor = getReadableDatabase().query(
+                TABLE_REGISTRY_META,
+                new String[]{COL_META_KEY, COL_META_VALUE},
+                null, null, null, null, null
+            );
+            
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    meta.put(cursor.getString(0), cursor.getString(1));
+                } while (cursor.moveToNext());
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting registry meta: " + e.getMessage(), e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        
+        return meta;
+    }
+
+    /**
+     * Insert or replace registry topics and metadata in one transaction
+     * @param topics Map of folder name to topic id, may be empty
+     * @param meta Metadata entries to write, may be empty
+     * @return true if everything was written
+     */
+    public boolean saveRegistry(@NonNull Map<String, String> topics, @NonNull Map<String, String> meta) {
+        SQLiteDatabase db = null;
+        
+        try {
+            db = this.getWritableDatabase();
+            db.beginTransaction();
+            
+            for (Map.Entry<String, String> entry : topics.entrySet()) {
+                ContentValues values = new ContentValues();
+                values.put(COL_TOPICS_NAME, entry.getKey());
+                values.put(COL_TOPICS_NORMALIZED, TopicRegistry.normalize(entry.getKey()));
+                values.put(COL_TOPICS_TOPIC_ID, entry.getValue());
+                db.insertWithOnConflict(TABLE_TOPICS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            
+            for (Map.Entry<String, String> entry : meta.entrySet()) {
+                ContentValues values = new ContentValues();
+                values.put(COL_META_KEY, entry.getKey());
+                values.put(COL_META_VALUE, entry.getValue());
+                db.insertWithOnConflict(TABLE_REGISTRY_META, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            
+            db.setTransactionSuccessful();
+            return true;
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving topic registry: " + e.getMessage(), e);
+            return false;
+        } finally {
+            if (db != null && db.inTransaction()) {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Check if a file has already been uploaded
+     * @param path File path
+     * @param modified Last modified timestamp
+     * @return true if file was already uploaded
+     */
+    @Override
+    public boolean isFileUploaded(@NonNull String path, long modified) {
+        Cursor cursor = null;
+        
+        PerfTrace.Section trace = PerfTrace.section("pg.db.isFileUploaded");
+        try {
+            cursor = getReadableDatabase().query(
+                TABLE_HISTORY,
+                new String[]{COL_HISTORY_ID},
+                COL_HISTORY_FILE_PATH + " = ? AND " + COL_HISTORY_LAST_MODIFIED + " = ?",
+                new String[]{path, String.valueOf(modified)},
+                null, null, null, "1"
+            );
+            
+            return cursor != null && cursor.getCount() > 0;
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error checking if file uploaded: " + e.getMessage(), e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            trace.close();
+        }
+    }
+
+    /**
+     * Mark a file as uploaded
+     * @param path File path
+     * @param modified Last modified timestamp
+     * @return true if marked successfully
+     */
+    public boolean markAsUploaded(@NonNull String path, long modified) {
+        return markAsUploaded(path, modified, 0, null, 0, null);
+    }
+
+    /**
+     * Mark a file as uploaded
+     * @param path File path
+     * @param modified Last modified timestamp
+     * @param size File size in bytes, 0 if unknown
+     * @param fileId Telegram file id of the upload, if known
+     * @param messageId Telegram message id of the upload, 0 if unknown
+     * @param contentHash Hex SHA-256 of the file, if known
+     * @return true if marked successfully
+     */
+    public boolean markAsUploaded(@NonNull String path, long modified, long size, @Nullable String fileId,
+                                  int messageId, @Nullable String contentHash) {
+        return markAsUploaded(path, modified, size, fileId, messageId, contentHash, false);
+    }
+
+    /**
+     * Mark a file as uploaded
+     * @param encrypted Whether the upload was encrypted with {@link ChunkedCipher}
+     * @return true if marked successfully
+     */
+    @Override
+    public boolean markAsUploaded(@NonNull String path, long modified, long size, @Nullable String fileId,
+                                  int messageId, @Nullable String contentHash, boolean encrypted) {
+        PerfTrace.Section trace = PerfTrace.section("pg.db.markAsUploaded");
+        try {
+            ContentValues values = new ContentValues();
+            values.put(COL_HISTORY_FILE_PATH, path);
+            values.put(COL_HISTORY_LAST_MODIFIED, modified);
+            values.put(COL_HISTORY_UPLOAD_DATE, System.currentTimeMillis());
+            values.put(COL_HISTORY_FILE_ID, fileId);
+            values.put(COL_HISTORY_MESSAGE_ID, messageId);
+            values.put(COL_HISTORY_FILE_SIZE, size);
+            values.put(COL_HISTORY_CONTENT_HASH, contentHash);
+            values.put(COL_HISTORY_ENCRYPTED, encrypted ? 1 : 0);
+            
+            long result = getWritableDatabase().insertWithOnConflict(
+                TABLE_HISTORY,
+                null,
+                values,
+                SQLiteDatabase.CONFLICT_REPLACE
+            );
+            
+            return result != -1;
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error marking file as uploaded: " + e.getMessage(), e);
+            return false;
+        } finally {
+            trace.close();
+        }
+    }
+
+    /**
+     * Mark the members of an uploaded pack as uploaded, in one transaction
+     * @param packName File name of the pack document
+     * @param fileId Telegram file id of the pack
+     * @param messageId Telegram message id of the pack
+     * @param members Path, DATE_MODIFIED, size and data offset of every member
+     * @param encrypted Whether the pack was encrypted with {@link ChunkedCipher}
+     * @return true if all members were recorded
+     */
+    @Override
+    public boolean markAsPacked(@NonNull String packName, @Nullable String fileId, int messageId,
+                                @NonNull Collection<PackedFile> members, boolean encrypted) {
+        SQLiteDatabase db = null;
+        
+        PerfTrace.Section trace = PerfTrace.section("pg.db.markAsPacked");
+        try {
+            db = this.getWritableDatabase();
+            db.beginTransaction();
+            long now = System.currentTimeMillis();
+            
+            for (PackedFile member : members) {
+                ContentValues values = new ContentValues();
+                values.put(COL_HISTORY_FILE_PATH, member.path);
+                values.put(COL_HISTORY_LAST_MODIFIED, member.modified);
+                values.put(COL_HISTORY_UPLOAD_DATE, now);
+                values.put(COL_HISTORY_FILE_ID, fileId);
+                values.put(COL_HISTORY_MESSAGE_ID, messageId);
+                values.put(COL_HISTORY_FILE_SIZE, member.size);
+                values.putNull(COL_HISTORY_CONTENT_HASH);
+                values.put(COL_HISTORY_PACK_NAME, packName);
+                values.put(COL_HISTORY_PACK_OFFSET, member.offset);
+                values.put(COL_HISTORY_ENCRYPTED, encrypted ? 1 : 0);
+                db.insertWithOnConflict(TABLE_HISTORY, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            
+            db.setTransactionSuccessful();
+            return true;
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error marking pack as uploaded: " + e.getMessage(), e);
+            return false;
+        } finally {
+            if (db != null && db.inTransaction()) {
+                db.endTransaction();
+            }
+            trace.close();
+        }
+    }
+
+    /**
+     * Record a photo that was left out as a near-duplicate, so later syncs don't consider it again
+     * @param duplicateOf Path of the uploaded photo it resembles
+     * @return true if recorded
+     */
+    @Override
+    public boolean markAsNearDuplicate(@NonNull String path, long modified, long size, @NonNull String duplicateOf) {
+        try {
+            ContentValues values = new ContentValues();
+            values.put(COL_HISTORY_FILE_PATH, path);
+            values.put(COL_HISTORY_LAST_MODIFIED, modified);
+            values.put(COL_HISTORY_UPLOAD_DATE, System.currentTimeMillis());
+            values.put(COL_HISTORY_FILE_SIZE, size);
+            values.put(COL_HISTORY_DUPLICATE_OF, duplicateOf);
+            
+            return getWritableDatabase().insertWithOnConflict(TABLE_HISTORY, null, values, SQLiteDatabase.CONFLICT_REPLACE) != -1;
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error marking near-duplicate: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Attach the perceptual hash to an uploaded file
+     */
+    @Override
+    public void savePerceptualHash(@NonNull String path, long modified, long hash) {
+        try {
+            ContentValues values = new ContentValues();
+            values.put(COL_HISTORY_PHASH, hash);
+            getWritableDatabase().update(TABLE_HISTORY, values,
+                COL_HISTORY_FILE_PATH + " = ? AND " + COL_HISTORY_LAST_MODIFIED + " = ?",
+                new String[]{path, String.valueOf(modified)});
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving perceptual hash: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the perceptual hashes of uploads modified at or after a time
+     * @param sinceModified DATE_MODIFIED in seconds
+     */
+    @NonNull
+    public List<PerceptualRecord> getPerceptualHashes(long sinceModified) {
+        List<PerceptualRecord> records = new ArrayList<>();
+        Cursor cursor = null;
+        
+        try {
+            cursor = getReadableDatabase().query(
+                TABLE_HISTORY,
+                new String[]{COL_HISTORY_FILE_PATH, COL_HISTORY_LAST_MODIFIED, COL_HISTORY_PHASH},
+                COL_HISTORY_LAST_MODIFIED + " >= ? AND " + COL_HISTORY_PHASH + " IS NOT NULL",
+                new String[]{String.valueOf(sinceModified)},
+                null, null, null
+            );
+            
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    records.add(new PerceptualRecord(cursor.getString(0), cursor.getLong(1), cursor.getLong(2)));
+                } while (cursor.moveToNext());
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting perceptual hashes: " + e.getMessage(), e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        
+        return records;
+    }
+
+    /**
+     * Cheap pre-check before hashing a file: is there any fingerprinted upload of this size?
+     */
+    @Override
+    public boolean hasHashedUploadOfSize(long size) {
+        Cursor cursor = null;
+        
+        PerfTrace.Section trace = PerfTrace.section("pg.db.hasHashedUploadOfSize");
+        try {
+            cursor = getReadableDatabase().query(
+                TABLE_HISTORY,
+                new String[]{COL_HISTORY_ID},
+                COL_HISTORY_FILE_SIZE + " = ? AND " + COL_HISTORY_CONTENT_HASH + " IS NOT NULL",
+                new String[]{String.valueOf(size)},
+                null, null, null, "1"
+            );
+            
+            return cursor != null && cursor.getCount() > 0;
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error checking uploads by size: " + e.getMessage(), e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            trace.close();
+        }
+    }
+
+    /**
+     * Find an earlier upload with the same content, the most recent first
+     * @return The upload, or null if there is none with a message or file id
+     */
+    @Override
+    @Nullable
+    public UploadedCopy findUploadByContent(long size, @NonNull String contentHash) {
+        Cursor cursor = null;
+        
+        PerfTrace.Section trace = PerfTrace.section("pg.db.findUploadByContent");
+        try {
+            cursor = getReadableDatabase().query(
+                TABLE_HISTORY,
+                new String[]{COL_HISTORY_MESSAGE_ID, COL_HISTORY_FILE_ID, COL_HISTORY_ENCRYPTED},
+                COL_HISTORY_FILE_SIZE + " = ? AND " + COL_HISTORY_CONTENT_HASH + " = ? AND (" +
+                    COL_HISTORY_MESSAGE_ID + " > 0 OR " + COL_HISTORY_FILE_ID + " IS NOT NULL)",
+                new String[]{String.valueOf(size), contentHash},
+                null, null,
+                COL_HISTORY_UPLOAD_DATE + " DESC",
+                "1"
+            );
+            
+            if (cursor != null && cursor.moveToFirst()) {
+                return new UploadedCopy(cursor.getInt(0), cursor.getString(1), cursor.getInt(2) != 0);
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error finding upload by content: " + e.getMessage(), e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            trace.close();
+        }
+        
+        return null;
+    }
+
+    /**
+     * Get every uploaded file that can be downloaded again, newest version of each path only
+     * @return Items in pending state, not yet queued
+     */
+    @NonNull
+    public List<RestoreItem> getRestorableHistory() {
+        List<RestoreItem> items = new ArrayList<>();
+        Cursor cursor = null;
+        
+        try {
+            cursor = getReadableDatabase().rawQuery(
+                "SELECT " + COL_HISTORY_FILE_PATH + ", " + COL_HISTORY_FILE_ID + ", MAX(" + COL_HISTORY_LAST_MODIFIED + "), " +
+                COL_HISTORY_FILE_SIZE + ", " + COL_HISTORY_PACK_NAME + ", " + COL_HISTORY_PACK_OFFSET + ", " + COL_HISTORY_ENCRYPTED + " " +
+                "FROM " + TABLE_HISTORY + " WHERE " + COL_HISTORY_FILE_ID + " IS NOT NULL " +
+                "GROUP BY " + COL_HISTORY_FILE_PATH,
+                null
+            );
+            
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    RestoreItem item = new RestoreItem(cursor.getString(0), cursor.getString(1), cursor.getLong(2));
+                    item.size = cursor.getLong(3);
+                    item.packName = cursor.getString(4);
+                    item.packOffset = cursor.getLong(5);
+                    item.encrypted = cursor.getInt(6) != 0;
+                    items.add(item);
+                } while (cursor.moveToNext());
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting restorable history: " + e.getMessage(), e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        
+        return items;
+    }
+
+    /**
+     * Replace the restore queue with a new set of files in one transaction
+     * @return number of queued files
+     */
+    public int replaceRestoreQueue(@NonNull Collection<RestoreItem> items) {
+        SQLiteDatabase db = null;
+        int queued = 0;
+        
+        try {
+            db = this.getWritableDatabase();
+            db.beginTransaction();
+            db.delete(TABLE_RESTORE_QUEUE, null, null);
+            
+            for (RestoreItem item : items) {
+                ContentValues values = new ContentValues();
+                values.put(COL_RESTORE_PATH, item.path);
+                values.put(COL_RESTORE_FILE_ID, item.fileId);
+                values.put(COL_RESTORE_LAST_MODIFIED, item.modified);
+                values.put(COL_RESTORE_SIZE, item.size);
+                values.put(COL_RESTORE_PACK_NAME, item.packName);
+                values.put(COL_RESTORE_PACK_OFFSET, item.packOffset);
+                values.put(COL_RESTORE_ENCRYPTED, item.encrypted ? 1 : 0);
+                if (db.insertWithOnConflict(TABLE_RESTORE_QUEUE, null, values, SQLiteDatabase.CONFLICT_IGNORE) != -1) {
+                    queued++;
+                }
+            }
+            
+            db.setTransactionSuccessful();
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error building restore queue: " + e.getMessage(), e);
+            queued = 0;
+        } finally {
+            if (db != null && db.inTransaction()) {
+                db.endTransaction();
+            }
+        }
+        
+        return queued;
+    }
+
+    /**
+     * Get the queued files that still need downloading
+     */
+    @NonNull
+    public List<RestoreItem> getPendingRestores() {
+        List<RestoreItem> items = new ArrayList<>();
+        Cursor cursor = null;
+        
+        try {
+            cursor = getReadableDatabase().query(
+                TABLE_RESTORE_QUEUE,
+                new String[]{COL_RESTORE_PATH, COL_RESTORE_FILE_ID, COL_RESTORE_LAST_MODIFIED, COL_RESTORE_MEDIA_URI, COL_RESTORE_ATTEMPTS,
+                    COL_RESTORE_SIZE, COL_RESTORE_PACK_NAME, COL_RESTORE_PACK_OFFSET, COL_RESTORE_ENCRYPTED},
+                COL_RESTORE_STATE + " = ?",
+                new String[]{String.valueOf(RestoreItem.STATE_PENDING)},
+                null, null,
+                COL_RESTORE_LAST_MODIFIED + " DESC"
+            );
+            
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    RestoreItem item = new RestoreItem(cursor.getString(0), cursor.getString(1), cursor.getLong(2));
+                    item.mediaUri = cursor.getString(3);
+                    item.attempts = cursor.getInt(4);
+                    item.size = cursor.getLong(5);
+                    item.packName = cursor.getString(6);
+                    item.packOffset = cursor.getLong(7);
+                    item.encrypted = cursor.getInt(8) != 0;
+                    items.add(item);
+                } while (cursor.moveToNext());
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting pending restores: " + e.getMessage(), e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        
+        return items;
+    }
+
+    /**
+     * Persist the state of a queued file, the checkpoint of a restore
+     */
+    public void updateRestore(@NonNull RestoreItem item) {
+        try {
+            ContentValues values = new ContentValues();
+            values.put(COL_RESTORE_STATE, item.state);
+            values.put(COL_RESTORE_MEDIA_URI, item.mediaUri);
+            values.put(COL_RESTORE_ATTEMPTS, item.attempts);
+            values.put(COL_RESTORE_ERROR, item.error);
+            getWritableDatabase().update(TABLE_RESTORE_QUEUE, values, COL_RESTORE_PATH + " = ?", new String[]{item.path});
+        } catch (Exception e) {
+            Log.e(TAG, "Error updating restore: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Point the history row of a restored file at the restored copy. Only the path and
+     * DATE_MODIFIED change; the upload date, Telegram ids and content hash stay, so the file is
+     * still copied by id and deduplicated by content, and does not count as uploaded today.
+     * @param path Where the file was restored
+     * @param modified DATE_MODIFIED of the restored file
+     * @return true if the row was updated
+     */
+    public boolean markAsRestored(@NonNull RestoreItem item, @NonNull String path, long modified) {
+        try {
+            ContentValues values = new ContentValues();
+            values.put(COL_HISTORY_FILE_PATH, path);
+            values.put(COL_HISTORY_LAST_MODIFIED, modified);
+            // A row already recorded for the restored copy gives way to the original
+            int updated = getWritableDatabase().updateWithOnConflict(TABLE_HISTORY, values,
+                COL_HISTORY_FILE_PATH + " = ? AND " + COL_HISTORY_LAST_MODIFIED + " = ?",
+                new String[]{item.path, String.valueOf(item.modified)}, SQLiteDatabase.CONFLICT_REPLACE);
+            return updated > 0;
+        } catch (Exception e) {
+            Log.e(TAG, "Error recording restored file: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Count queued files in a state
+     * @param state One of the RestoreItem states
+     */
+    public int countRestores(int state) {
+        Cursor cursor = null;
+        
+        try {
+            cursor = getReadableDatabase().query(
+                TABLE_RESTORE_QUEUE,
+                new String[]{"COUNT(*)"},
+                COL_RESTORE_STATE + " = ?",
+                new String[]{String.valueOf(state)},
+                null, null, null
+            );
+            
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getInt(0);
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error counting restores: " + e.getMessage(), e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        
+        return 0;
+    }
+
+    /**
+     * Open the history in DATE_MODIFIED order for a streaming pass. The caller closes the cursor.
+     * @return Cursor with columns file_path, last_modified
+     */
+    @NonNull
+    public Cursor queryHistoryByModified() {
+        return getReadableDatabase().query(
+            TABLE_HISTORY,
+            new String[]{COL_HISTORY_FILE_PATH, COL_HISTORY_LAST_MODIFIED},
+            null, null, null, null,
+            COL_HISTORY_LAST_MODIFIED + " ASC"
+        );
+    }
+
+    /**
+     * Add files to the upload queue in one transaction, replacing older entries of the same path
+     * @return number of queued files
+     */
+    @Override
+    public int enqueueUploads(@NonNull Collection<QueuedUpload> uploads) {
+        SQLiteDatabase db = null;
+        int queued = 0;
+        
+        PerfTrace.Section trace = PerfTrace.section("pg.db.enqueueUploads");
+        try {
+            db = this.getWritableDatabase();
+            db.beginTransaction();
+            long now = System.currentTimeMillis();
+            
+            for (QueuedUpload upload : uploads) {
+                ContentValues values = new ContentValues();
+                values.put(COL_QUEUE_PATH, upload.path);
+                values.put(COL_QUEUE_FOLDER_PATH, upload.folderPath);
+                values.put(COL_QUEUE_LAST_MODIFIED, upload.modified);
+                values.put(COL_QUEUE_SIZE, upload.size);
+                values.put(COL_QUEUE_QUEUED_AT, now);
+                if (db.insertWithOnConflict(TABLE_UPLOAD_QUEUE, null, values, SQLiteDatabase.CONFLICT_REPLACE) != -1) {
+                    queued++;
+                }
+            }
+            
+            db.setTransactionSuccessful();
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error queueing uploads: " + e.getMessage(), e);
+            queued = 0;
+        } finally {
+            if (db != null && db.inTransaction()) {
+                db.endTransaction();
+            }
+            trace.close();
+        }
+        
+        return queued;
+    }
+
+    /**
+     * Get queued uploads
+     * @param folderPaths Only these folders, or null for all
+     */
+    @Override
+    @NonNull
+    public List<QueuedUpload> getQueuedUploads(@Nullable Collection<String> folderPaths) {
+        List<QueuedUpload> uploads = new ArrayList<>();
+        Cursor cursor = null;
+        
+        PerfTrace.Section trace = PerfTrace.section("pg.db.getQueuedUploads");
+        try {
+            cursor = getReadableDatabase().query(
+                TABLE_UPLOAD_QUEUE,
+                new String[]{COL_QUEUE_PATH, COL_QUEUE_FOLDER_PATH, COL_QUEUE_LAST_MODIFIED, COL_QUEUE_SIZE},
+                null, null, null, null, null
+            );
+            
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    String folderPath = cursor.getString(1);
+                    if (folderPaths == null || folderPaths.contains(folderPath)) {
+                        uploads.add(new QueuedUpload(cursor.getString(0), folderPath, cursor.getLong(2), cursor.getLong(3)));
+                    }
+                } while (cursor.moveToNext());
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting queued uploads: " + e.getMessage(), e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            trace.close();
+        }
+        
+        return uploads;
+    }
+
+    /**
+     * Remove a file from the upload queue, once uploaded or no longer relevant
+     */
+    @Override
+    public void removeQueuedUpload(@NonNull String path) {
+        try {
+            getWritableDatabase().delete(TABLE_UPLOAD_QUEUE, COL_QUEUE_PATH + " = ?", new String[]{path});
+        } catch (Exception e) {
+            Log.e(TAG, "Error removing queued upload: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Clear all upload history
+     * @return number of records deleted
+     */
+    public int clearHistory() {
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            int deleted = db.delete(TABLE_HISTORY, null, null);
+            Log.i(TAG, "Cleared " + deleted + " history records");
+            return deleted;
+        } catch (Exception e) {
+            Log.e(TAG, "Error clearing history: " + e.getMessage(), e);
             return 0;
         }
     }
 
+    /**
+     * Perceptual hash of an uploaded file
+     */
+    public static class PerceptualRecord {
+        public final String path;
+        public final long modified;
+        public final long hash;
+        
+        public PerceptualRecord(String path, long modified, long hash) {
+            this.path = path;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * A file in the restore queue
+     */
+    public static class RestoreItem {
+        public static final int STATE_PENDING = 0;
+        public static final int STATE_DONE = 1;
+        public static final int STATE_FAILED = 2;
+        
+        public final String path;
+        public final String fileId;
+        public final long modified;
+        public int state = STATE_PENDING;
+        public String mediaUri;
+        public int attempts = 0;
+        public String error;
+        /** Size in bytes, 0 if unknown */
+        public long size = 0;
+        /** Pack the file was uploaded in, null if it was uploaded on its own */
+        public String packName;
+        /** Offset of the file's data in its pack */
+        public long packOffset = -1;
+        /** Uploaded through {@link ChunkedCipher} */
+        public boolean encrypted;
+        
+        public RestoreItem(String path, String fileId, long modified) {
+            this.path = path;
+            this.fileId = fileId;
+            this.modified = modified;
+        }
+        
+        public boolean isPacked() {
+            return packName != null && packOffset >= 0;
+        }
+    }
+
+    /**
+     * A row of the history, as the history screen lists it
+     */
+    public static class HistoryEntry {
+        public final long id;
+        public final String filePath;
+        public final long uploadDate;
+        /** Pack the file was uploaded in, null if it was uploaded on its own */
+        public final String packName;
+        /** Path of the upload this file was found to duplicate, null if it was uploaded */
+        public final String duplicateOf;
+        
+        public HistoryEntry(long id, String filePath, long uploadDate, String packName, String duplicateOf) {
+            this.id = id;
+            this.filePath = filePath;
+            this.uploadDate = uploadDate;
+            this.packName = packName;
+            this.duplicateOf = duplicateOf;
+        }
+        
+        public String getFileName() {
+            return filePath.substring(filePath.lastIndexOf('/') + 1);
+        }
+        
+        public String getFolderPath() {
+            int slash = filePath.lastIndexOf('/');
+            return slash > 0 ? filePath.substring(0, slash) : "/";
+        }
+    }
+
+    /**
+     * A row of the sync runs table
+     */
+    public static class SyncRun {
+        public final long startedAt;
+        public final String mode;
+        /** 0 while the run is in progress or if it was given up */
+        public final long finishedAt;
+        public final SyncMetrics metrics;
+        
+        public SyncRun(long startedAt, String mode, long finishedAt, SyncMetrics metrics) {
+            this.startedAt = startedAt;
+            this.mode = mode;
+            this.finishedAt = finishedAt;
+            this.metrics = metrics;
+        }
+        
+        public boolean isFinished() {
+            return finishedAt > 0;
+        }
+    }
+
     /**
      * Inner class to hold backup statistics
      */
     public static class BackupStats {
         public int totalFiles = 0;
+        /** Sum of the known sizes, see {@link #sizedFiles} */
+        public long totalBytes = 0;
+        /** Files with a recorded size; older uploads have none */
+        public int sizedFiles = 0;
         public long firstUploadDate = 0;
         public long lastUploadDate = 0;
         
@@ -0,0 +1,210 @@
+package com.photogram.backup;
+
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import okio.ByteString;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keys of {@link ChunkedCipher}, one per key salt. The passphrase itself is never stored, only
+ * the keys derived from it, wrapped by an AES key that never leaves the Android Keystore. Below
+ * API 23 the Keystore has no AES keys and they are stored as they are; the preferences are
+ * excluded from backups either way.
+ *
+ * Files uploaded by an earlier install carry that install's salt. Meeting one records the salt,
+ * and its key is derived the next time the passphrase is entered in Settings.
+ */
+final class EncryptionKeys implements ChunkedCipher.KeySource {
+    private static final String TAG = "EncryptionKeys";
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String WRAPPING_KEY = "photogram_encryption_keys";
+    private static final String WRAPPED = "k1:";
+    private static final String PLAIN = "p1:";
+    private static final int IV_SIZE = 12;
+    private static final int TAG_BITS = 128;
+
+    private final SharedPreferences prefs;
+    /** Keys by hex salt */
+    private final Map<String, byte[]> keys;
+
+    private EncryptionKeys(SharedPreferences prefs, Map<String, byte[]> keys) {
+        this.prefs = prefs;
+        this.keys = keys;
+    }
+
+    /**
+     * Cipher of the stored keys, encrypting new uploads with the current salt. A passphrase
+     * stored by an earlier version is replaced by its key first.
+     * @return null if no passphrase was set
+     */
+    @Nullable
+    @WorkerThread
+    static ChunkedCipher cipher(@NonNull SharedPreferences prefs) {
+        String legacy = prefs.getString(AppConstants.PREF_ENCRYPTION_PASSPHRASE, "");
+        if (!legacy.isEmpty()) {
+            try {
+                setPassphrase(prefs, legacy);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not store the key of the passphrase: " + e.getMessage(), e);
+                return null;
+            }
+        }
+
+        String salt = prefs.getString(AppConstants.PREF_ENCRYPTION_SALT, "");
+        Map<String, byte[]> keys = load(prefs);
+        if (salt.isEmpty() || !keys.containsKey(salt)) {
+            return null;
+        }
+        return new ChunkedCipher(new EncryptionKeys(prefs, keys), ByteString.decodeHex(salt).toByteArray());
+    }
+
+    static boolean hasKeys(@NonNull SharedPreferences prefs) {
+        return !prefs.getString(AppConstants.PREF_ENCRYPTION_KEYS, "").isEmpty()
+            || !prefs.getString(AppConstants.PREF_ENCRYPTION_PASSPHRASE, "").isEmpty();
+    }
+
+    /**
+     * Derive and store the keys of a passphrase: for new uploads, and for the salts of files met
+     * without a key. A changed passphrase gets a new salt, so files encrypted with the old one
+     * keep their key.
+     */
+    @WorkerThread
+    static synchronized void setPassphrase(@NonNull SharedPreferences prefs, @NonNull String passphrase) throws IOException {
+        Map<String, byte[]> keys = load(prefs);
+        String salt = prefs.getString(AppConstants.PREF_ENCRYPTION_SALT, "");
+        if (salt.isEmpty()) {
+            salt = ByteString.of(ChunkedCipher.newSalt()).hex();
+        }
+        byte[] key = ChunkedCipher.deriveKey(passphrase, ByteString.decodeHex(salt).toByteArray());
+        byte[] current = keys.get(salt);
+        if (current != null && !Arrays.equals(current, key)) {
+            salt = ByteString.of(ChunkedCipher.newSalt()).hex();
+            key = ChunkedCipher.deriveKey(passphrase, ByteString.decodeHex(salt).toByteArray());
+        }
+        keys.put(salt, key);
+        // Kept after deriving, the earlier install may have used another passphrase
+        for (String wanted : prefs.getStringSet(AppConstants.PREF_ENCRYPTION_WANTED_SALTS, new HashSet<>())) {
+            if (!wanted.equals(salt)) {
+                keys.put(wanted, ChunkedCipher.deriveKey(passphrase, ByteString.decodeHex(wanted).toByteArray()));
+            }
+        }
+
+        JSONObject stored = new JSONObject();
+        try {
+            for (Map.Entry<String, byte[]> entry : keys.entrySet()) {
+                stored.put(entry.getKey(), wrap(entry.getValue()));
+            }
+        } catch (GeneralSecurityException | JSONException e) {
+            throw new IOException("Could not wrap the encryption keys", e);
+        }
+        prefs.edit()
+            .putString(AppConstants.PREF_ENCRYPTION_KEYS, stored.toString())
+            .putString(AppConstants.PREF_ENCRYPTION_SALT, salt)
+            .remove(AppConstants.PREF_ENCRYPTION_PASSPHRASE)
+            .commit();
+    }
+
+    @Override
+    public byte[] key(byte[] salt) throws IOException {
+        String hex = ByteString.of(salt).hex();
+        byte[] key = keys.get(hex);
+        if (key == null) {
+            synchronized (EncryptionKeys.class) {
+                Set<String> wanted = new HashSet<>(prefs.getStringSet(AppConstants.PREF_ENCRYPTION_WANTED_SALTS, new HashSet<>()));
+                if (wanted.add(hex)) {
+                    prefs.edit().putStringSet(AppConstants.PREF_ENCRYPTION_WANTED_SALTS, wanted).apply();
+                }
+            }
+            throw new IOException("Encrypted by an earlier install, enter its passphrase again in Settings");
+        }
+        return key;
+    }
+
+    /**
+     * @return Stored keys by hex salt, without those that can no longer be unwrapped
+     */
+    private static Map<String, byte[]> load(SharedPreferences prefs) {
+        Map<String, byte[]> keys = new HashMap<>();
+        String stored = prefs.getString(AppConstants.PREF_ENCRYPTION_KEYS, "");
+        if (stored.isEmpty()) {
+            return keys;
+        }
+        try {
+            JSONObject json = new JSONObject(stored);
+            Iterator<String> salts = json.keys();
+            while (salts.hasNext()) {
+                String salt = salts.next();
+                try {
+                    keys.put(salt, unwrap(json.getString(salt)));
+                } catch (GeneralSecurityException | IOException e) {
+                    // Lost with the Keystore entry; it is derived again when it is needed
+                    Log.e(TAG, "Could not unwrap the key of salt " + salt + ": " + e.getMessage());
+                }
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Stored encryption keys are damaged: " + e.getMessage(), e);
+        }
+        return keys;
+    }
+
+    private static String wrap(byte[] key) throws GeneralSecurityException, IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return PLAIN + ByteString.of(key).hex();
+        }
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, wrappingKey());
+        return WRAPPED + ByteString.of(cipher.getIV()).hex() + ByteString.of(cipher.doFinal(key)).hex();
+    }
+
+    private static byte[] unwrap(String stored) throws GeneralSecurityException, IOException {
+        if (stored.startsWith(PLAIN)) {
+            return ByteString.decodeHex(stored.substring(PLAIN.length())).toByteArray();
+        }
+        if (!stored.startsWith(WRAPPED) || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            throw new IOException("Unknown key format");
+        }
+        byte[] sealed = ByteString.decodeHex(stored.substring(WRAPPED.length())).toByteArray();
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, wrappingKey(), new GCMParameterSpec(TAG_BITS, sealed, 0, IV_SIZE));
+        return cipher.doFinal(sealed, IV_SIZE, sealed.length - IV_SIZE);
+    }
+
+    @RequiresApi(Build.VERSION_CODES.M)
+    private static synchronized SecretKey wrappingKey() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+        Key existing = keyStore.getKey(WRAPPING_KEY, null);
+        if (existing instanceof SecretKey) {
+            return (SecretKey) existing;
+        }
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(WRAPPING_KEY, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+            .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+            .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+            .setKeySize(256)
+            .build());
+        return generator.generateKey();
+    }
+}
@@ -0,0 +1,151 @@
+package com.photogram.backup;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide view of which folders are selected for backup, and of their per-folder options:
+ * uploading small photos in packs and holding back near-duplicates.
+ *
+ * The selection lives in the {@code selected} column of the folders table. Reads are served
+ * from an immutable in-memory snapshot, so the folder list and the sync scan can check a path
+ * without touching SQLite. Writes replace the snapshot immediately and are persisted in order
+ * on a single background thread.
+ */
+public final class FolderSelection {
+    private static final String TAG = "FolderSelection";
+    private static volatile FolderSelection instance;
+
+    private final DatabaseHelper dbHelper;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private volatile Set<String> snapshot;
+    private volatile Set<String> packed;
+    private volatile Set<String> deduped;
+
+    private FolderSelection(Context context) {
+        this.dbHelper = DatabaseHelper.getInstance(context);
+        migrateLegacyPrefs(context.getSharedPreferences(AppConstants.PREFS_NAME, Context.MODE_PRIVATE));
+        this.snapshot = Collections.unmodifiableSet(dbHelper.getSelectedFolderPaths());
+        this.packed = Collections.unmodifiableSet(dbHelper.getPackedFolderPaths());
+        this.deduped = Collections.unmodifiableSet(dbHelper.getDedupedFolderPaths());
+    }
+
+    @NonNull
+    public static FolderSelection getInstance(@NonNull Context context) {
+        if (instance == null) {
+            synchronized (FolderSelection.class) {
+                if (instance == null) {
+                    instance = new FolderSelection(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    public boolean isSelected(@NonNull String folderPath) {
+        return snapshot.contains(folderPath);
+    }
+
+    /**
+     * @return Immutable set of selected folder paths at the time of the call
+     */
+    @NonNull
+    public Set<String> snapshot() {
+        return snapshot;
+    }
+
+    public void setSelected(@NonNull String folderPath, boolean selected) {
+        setSelected(Collections.singletonList(folderPath), selected);
+    }
+
+    /**
+     * Bulk update of the selection, persisted in one transaction
+     * @param folderPaths Absolute folder paths
+     * @param selected New selection state
+     */
+    public synchronized void setSelected(@NonNull Collection<String> folderPaths, boolean selected) {
+        Set<String> next = new HashSet<>(snapshot);
+        if (selected) {
+            next.addAll(folderPaths);
+        } else {
+            next.removeAll(folderPaths);
+        }
+        snapshot = Collections.unmodifiableSet(next);
+
+        final List<String> paths = new ArrayList<>(folderPaths);
+        writer.execute(() -> {
+            if (!dbHelper.setFoldersSelected(paths, selected)) {
+                Log.w(TAG, "Failed to persist selection for " + paths.size() + " folders");
+            }
+        });
+    }
+
+    /**
+     * @return true if small photos of the folder are uploaded in packs rather than one by one
+     */
+    public boolean isPacked(@NonNull String folderPath) {
+        return packed.contains(folderPath);
+    }
+
+    public synchronized void setPacked(@NonNull String folderPath, boolean pack) {
+        packed = toggled(packed, folderPath, pack);
+        writer.execute(() -> {
+            if (!dbHelper.setFolderPacked(folderPath, pack)) {
+                Log.w(TAG, "Failed to persist packing for " + folderPath);
+            }
+        });
+    }
+
+    /**
+     * @return true if near-duplicate photos of the folder are held back
+     */
+    public boolean isDeduped(@NonNull String folderPath) {
+        return deduped.contains(folderPath);
+    }
+
+    public synchronized void setDeduped(@NonNull String folderPath, boolean dedupe) {
+        deduped = toggled(deduped, folderPath, dedupe);
+        writer.execute(() -> {
+            if (!dbHelper.setFolderDeduped(folderPath, dedupe)) {
+                Log.w(TAG, "Failed to persist near-duplicate detection for " + folderPath);
+            }
+        });
+    }
+
+    private static Set<String> toggled(Set<String> current, String folderPath, boolean on) {
+        Set<String> next = new HashSet<>(current);
+        if (on) {
+            next.add(folderPath);
+        } else {
+            next.remove(folderPath);
+        }
+        return Collections.unmodifiableSet(next);
+    }
+
+    private void migrateLegacyPrefs(SharedPreferences prefs) {
+        if (prefs.getBoolean(AppConstants.PREF_FOLDER_SELECTION_MIGRATED, false)) {
+            return;
+        }
+
+        List<String> legacyKeys = dbHelper.migrateFolderSelection(prefs.getAll());
+        if (legacyKeys == null) {
+            return;
+        }
+
+        SharedPreferences.Editor editor = prefs.edit();
+        for (String key : legacyKeys) {
+            editor.remove(key);
+        }
+        editor.putBoolean(AppConstants.PREF_FOLDER_SELECTION_MIGRATED, true).apply();
+    }
+}
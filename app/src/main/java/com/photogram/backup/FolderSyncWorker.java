@@ -0,0 +1,324 @@
+package com.photogram.backup;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+import com.google.firebase.auth.FirebaseAuth;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Upload shard of a sync run. Uploads the new photos of the folders assigned by
+ * {@link BackupWorker} into their already resolved topics. Shards of one run execute in
+ * parallel and are retried independently by WorkManager.
+ *
+ * Candidates are uploaded in the order of the run's {@link SyncMode}, see {@link UploadScheduler},
+ * by a {@link ShardUploader}, which reads the next few of them ahead of the upload so disk reads
+ * and hashing overlap with the network instead of taking turns with it.
+ *
+ * In folders with packing turned on, photos up to {@link AppConstants#PACK_FILE_MAX} are not
+ * uploaded one per message but streamed many at a time into a tar document, see {@link TarPackBody}.
+ * In folders with near-duplicate detection, burst shots that look like a photo uploaded moments
+ * apart are held back, see {@link NearDuplicateFilter}; a manual sync uploads everything.
+ * Progress is checkpointed per folder every few files, and a shard stops on its own after
+ * {@link AppConstants#SYNC_SLICE_MS}, reporting that the run needs a continuation. When the
+ * shard is stopped, by the system or by a pause in {@link SyncControl}, the upload in flight is
+ * cancelled at once and the checkpoints are saved; the photo goes up again on the next run.
+ * What the shard measured is added to its run's row in the sync runs table, see {@link SyncMetrics}.
+ */
+public class FolderSyncWorker extends Worker {
+    private static final String TAG = "FolderSyncWorker";
+    private static final int NOTIF_ID_BASE = 100;
+
+    // Configurable constants from AppConstants
+    private static final int MAX_RETRY_ATTEMPTS = AppConstants.MAX_RETRY_ATTEMPTS;
+    private static final long UPLOAD_DELAY_MS = AppConstants.UPLOAD_DELAY_MS;
+
+    static final String KEY_SHARD_INDEX = "shard_index";
+    static final String KEY_FOLDER_PATHS = "folder_paths";
+    static final String KEY_TOPIC_IDS = "topic_ids";
+    static final String KEY_UPLOADED_COUNT = "uploaded_count";
+    static final String KEY_NEEDS_CONTINUATION = "needs_continuation";
+
+    private final SharedPreferences prefs;
+    private final DatabaseHelper dbHelper;
+    private final SyncNotifier notifier;
+    private final Context ctx;
+    private final int shardIndex;
+    private final long sliceDeadline;
+    private boolean needsContinuation = false;
+    private final FolderSelection folderSelection;
+    private volatile Transport transport;
+    private final SyncMetrics metrics = new SyncMetrics();
+    /** 0 for a shard enqueued by an older version, whose metrics are not recorded */
+    private final long runStartedAt;
+
+    public FolderSyncWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+        this.ctx = context;
+        this.prefs = context.getSharedPreferences(AppConstants.PREFS_NAME, Context.MODE_PRIVATE);
+        this.dbHelper = DatabaseHelper.getInstance(context);
+        this.shardIndex = getInputData().getInt(KEY_SHARD_INDEX, 0);
+        this.folderSelection = FolderSelection.getInstance(context);
+        this.notifier = new SyncNotifier(context, NOTIF_ID_BASE + shardIndex).withPauseAction();
+        this.sliceDeadline = System.currentTimeMillis() + AppConstants.SYNC_SLICE_MS;
+        this.runStartedAt = getInputData().getLong(BackupWorker.KEY_SYNC_STARTED_AT, 0);
+    }
+
+    @Override
+    public void onStopped() {
+        // Called on the main thread while the upload blocks the worker thread
+        Transport current = transport;
+        if (current != null) {
+            current.cancelAll();
+        }
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        try {
+            return performShard();
+        } catch (Exception e) {
+            dbHelper.addLog("ERROR", "Unexpected error in shard " + shardIndex + ": " + e.getMessage());
+            return Result.failure();
+        } finally {
+            notifier.cancel();
+            if (runStartedAt > 0) {
+                String mode = SyncMode.fromName(getInputData().getString(BackupWorker.KEY_SYNC_MODE), SyncMode.PERIODIC).name();
+                dbHelper.addSyncRunMetrics(runStartedAt, mode, metrics);
+            }
+        }
+    }
+
+    private Result performShard() {
+        String uid = FirebaseAuth.getInstance().getUid();
+        if (uid == null) {
+            dbHelper.addLog("ERROR", "Sync Failed: User not logged in");
+            return Result.failure();
+        }
+
+        if (getRunAttemptCount() > 0) {
+            metrics.retries++;
+        }
+
+        // The process may have been restarted since the coordinator ran
+        AccountQuota quota = AccountQuota.getInstance();
+        if (!quota.isLoaded()) {
+            long phaseStart = System.nanoTime();
+            boolean approved = quota.refresh(uid, dbHelper);
+            metrics.addPhase(SyncMetrics.Phase.FIREBASE, phaseStart);
+            if (!approved) {
+                dbHelper.addLog("ERROR", "Access Denied: Account not approved in Firebase");
+                return Result.failure();
+            }
+        }
+
+        // Enqueued before a pause took effect; the resumed run picks these folders up again
+        if (SyncControl.isPaused(prefs)) {
+            return Result.success(new Data.Builder()
+                .putInt(KEY_UPLOADED_COUNT, 0)
+                .putBoolean(KEY_NEEDS_CONTINUATION, true)
+                .build());
+        }
+
+        TelegramHelper helper = BackupWorker.createTelegramHelper(prefs);
+        if (helper == null) {
+            dbHelper.addLog("ERROR", "Sync Failed: Chat ID not configured");
+            return Result.failure();
+        }
+        this.transport = helper;
+        if (isStopped()) {
+            helper.cancelAll();
+        }
+
+        String[] folderPaths = getInputData().getStringArray(KEY_FOLDER_PATHS);
+        String[] topicIds = getInputData().getStringArray(KEY_TOPIC_IDS);
+        if (folderPaths == null || topicIds == null || folderPaths.length != topicIds.length) {
+            dbHelper.addLog("ERROR", "Shard " + shardIndex + " has no valid folder plan");
+            return Result.failure();
+        }
+
+        Map<String, String> folderTopics = new HashMap<>();
+        for (int i = 0; i < folderPaths.length; i++) {
+            folderTopics.put(folderPaths[i], topicIds[i]);
+        }
+
+        try {
+            setForegroundAsync(notifier.foregroundInfo("Syncing " + folderPaths.length + " folder(s)..."));
+        } catch (Exception e) {
+            dbHelper.addLog("WARN", "Failed to set foreground: " + e.getMessage());
+        }
+
+        try {
+            long since = getInputData().getLong(BackupWorker.KEY_SINCE, 0);
+            int count = performDeltaSync(since, helper, folderTopics, uid);
+
+            return Result.success(new Data.Builder()
+                .putInt(KEY_UPLOADED_COUNT, count)
+                .putBoolean(KEY_NEEDS_CONTINUATION, needsContinuation)
+                .build());
+
+        } catch (SocketTimeoutException | UnknownHostException e) {
+            dbHelper.addLog("ERROR", "Network error: " + e.getMessage());
+            return handleRetry("Network error");
+        } catch (IOException e) {
+            dbHelper.addLog("ERROR", "IO error: " + e.getMessage());
+            return handleRetry("IO error");
+        } catch (InterruptedException e) {
+            dbHelper.addLog("WARN", "Sync interrupted");
+            Thread.currentThread().interrupt();
+            return Result.retry();
+        } catch (Exception e) {
+            dbHelper.addLog("ERROR", "Sync Failed: " + e.getClass().getSimpleName() + " - " + e.getMessage());
+            return Result.failure();
+        } finally {
+            metrics.network.merge(helper.getNetworkMetrics());
+        }
+    }
+
+    private Result handleRetry(String reason) {
+        if (getRunAttemptCount() < MAX_RETRY_ATTEMPTS) {
+            dbHelper.addLog("INFO", "Retrying shard " + shardIndex + " due to " + reason + " (attempt " + (getRunAttemptCount() + 1) + "/" + MAX_RETRY_ATTEMPTS + ")");
+            return Result.retry();
+        } else {
+            dbHelper.addLog("ERROR", "Max retry attempts reached for shard " + shardIndex + ", giving up");
+            return Result.failure();
+        }
+    }
+
+    private int performDeltaSync(long since, Transport helper, Map<String, String> folderTopics, String uid) throws Exception {
+        SyncProgress progress = new SyncProgress(this::publishProgress);
+        CheckpointTracker checkpoints = new CheckpointTracker(dbHelper.getSyncCheckpoints());
+
+        SyncMode mode = SyncMode.fromName(getInputData().getString(BackupWorker.KEY_SYNC_MODE), SyncMode.PERIODIC);
+        UploadScheduler scheduler = new UploadScheduler(UploadScheduler.policyFor(mode));
+        ShardUploader uploader = new ShardUploader(String.valueOf(shardIndex), helper, dbHelper, scheduler,
+            folderSelection::isPacked, checkpoints, progress, metrics);
+        long phaseStart = System.nanoTime();
+        boolean scanned = scanCandidates(since, folderTopics, checkpoints, uploader);
+        metrics.addPhase(SyncMetrics.Phase.SCAN, phaseStart);
+        if (!scanned) {
+            return 0;
+        }
+
+        int scheduled = scheduler.size();
+        int packed = uploader.packedFiles();
+        progress.addPlanned(scheduled + packed, scheduler.totalBytes() + uploader.packedBytes());
+        dbHelper.addLog("DEBUG", "Shard " + shardIndex + ": " + (scheduled + packed) + " photos to upload from " + folderTopics.size() +
+            " folder(s), order " + scheduler.getPolicy() + (packed > 0 ? ", " + packed + " in packs" : ""));
+
+        if (mode != SyncMode.MANUAL) {
+            uploader.setNearDuplicates(NearDuplicateFilter.create(dbHelper, folderSelection, folderTopics.keySet(), since),
+                prefs.getBoolean(AppConstants.PREF_SKIP_NEAR_DUPLICATES, false));
+        }
+        uploader.setQuota(dailyQuota(uid));
+        uploader.setStopSignal(this::isStopped);
+        uploader.setSliceDeadline(sliceDeadline);
+        uploader.setUploadDelayMs(UPLOAD_DELAY_MS);
+
+        int count = uploader.run();
+        needsContinuation = uploader.needsContinuation();
+
+        progress.publishNow();
+        if (count > 0) {
+            UploadPlanner.recordRate(prefs, progress.snapshot().bytesPerSecond);
+        }
+        dbHelper.addLog("DEBUG", "Shard " + shardIndex + " result: " + count + " new uploaded.");
+
+        return count;
+    }
+
+    /**
+     * Daily limit of the account, shared by the shards of the process
+     */
+    private ShardUploader.Quota dailyQuota(String uid) {
+        AccountQuota quota = AccountQuota.getInstance();
+        return new ShardUploader.Quota() {
+            @Override
+            public boolean tryReserve(int count) {
+                if (quota.tryReserve(count)) {
+                    return true;
+                }
+                dbHelper.addLog("INFO", "Daily limit reached: " + quota.getUsage() + "/" + quota.getDailyLimit());
+                return false;
+            }
+
+            @Override
+            public void commit(int count) {
+                quota.commit(uid, count);
+            }
+
+            @Override
+            public void release(int count) {
+                quota.release(count);
+            }
+        };
+    }
+
+    /**
+     * Collect the photos of this shard's folders that still need uploading into the scheduler
+     * @return false if MediaStore could not be queried
+     */
+    private boolean scanCandidates(long since, Map<String, String> folderTopics, CheckpointTracker checkpoints,
+                                   ShardUploader uploader) {
+        return CandidateScan.run(new MediaStoreSource(ctx), dbHelper, since, folderTopics, checkpoints::isBefore, this::isStopped, new CandidateScan.Sink() {
+            @Override
+            public void pending(UploadScheduler.Candidate candidate) {
+                checkpoints.seen(candidate, true);
+                uploader.add(candidate, false);
+                metrics.scanned++;
+            }
+
+            @Override
+            public void uploaded(UploadScheduler.Candidate candidate) {
+                checkpoints.seen(candidate, false);
+                metrics.scanned++;
+                metrics.skipped++;
+            }
+
+            @Override
+            public void queued(UploadScheduler.Candidate candidate) {
+                uploader.add(candidate, true);
+                metrics.scanned++;
+            }
+
+            @Override
+            public void staleQueued(String path) {
+                dbHelper.removeQueuedUpload(path);
+            }
+
+            @Override
+            public void invalid(String path) {
+                dbHelper.addLog("DEBUG", "Skipping invalid/deleted file: " + path);
+            }
+        });
+    }
+
+    /**
+     * Throttled sink of {@link SyncProgress}, feeds both the WorkInfo observer and the notification
+     */
+    private void publishProgress(SyncProgress.Snapshot snap) {
+        try {
+            setProgressAsync(new Data.Builder()
+                .putString("current_file", snap.currentFile)
+                .putInt("progress_percent", snap.getPercent())
+                .putInt("files_done", snap.filesDone)
+                .putInt("files_total", snap.filesTotal)
+                .putLong("bytes_done", snap.bytesDone)
+                .putLong("bytes_total", snap.bytesTotal)
+                .putLong("bytes_per_sec", snap.bytesPerSecond)
+                .putLong("eta_seconds", snap.etaSeconds)
+                .build());
+        } catch (Exception e) {
+            // Progress update failed, but don't crash the sync
+        }
+        notifier.showProgress(snap);
+    }
+}
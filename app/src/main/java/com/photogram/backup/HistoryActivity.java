@@ -1,133 +1,210 @@
 package com.photogram.backup;
 
 import android.app.Activity;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.util.LruCache;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.ListView;
 import android.widget.TextView;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
+/**
+ * The whole upload history, newest first, read from the database a page at a time as the list
+ * scrolls. Only the pages around the visible rows are kept, so a history of any length takes
+ * the same memory. Search runs against the history's FTS index once typing pauses.
+ */
 public class HistoryActivity extends Activity {
+    private static final int PAGE_SIZE = AppConstants.HISTORY_PAGE_SIZE;
+
     private DatabaseHelper dbHelper;
-    private ListView historyListView;
+    private RecyclerView historyList;
     private EditText searchBox;
-    private BaseAdapter adapter;
-    private List<HistoryItem> allItems = new ArrayList<>();
-    private List<HistoryItem> filteredItems = new ArrayList<>();
+    private TextView subtitle;
+    private HistoryAdapter adapter;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final TaskQueue.Scope tasks = PhotogramApp.getTasks().newScope();
+    private final DateFormat dateFormat = new SimpleDateFormat("MMM dd, yyyy hh:mm a", Locale.US);
+    private final Runnable search = () -> adapter.setQuery(searchBox.getText().toString().trim());
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_history);
 
-        dbHelper = new DatabaseHelper(this);
-        historyListView = findViewById(R.id.historyListView);
+        dbHelper = DatabaseHelper.getInstance(this);
+        historyList = findViewById(R.id.historyListView);
         searchBox = findViewById(R.id.searchHistory);
+        subtitle = findViewById(R.id.historySubtitle);
         Button btnClose = findViewById(R.id.btnCloseHistory);
 
         if (btnClose != null) {
             btnClose.setOnClickListener(v -> finish());
         }
 
-        loadHistory();
-        setupAdapter();
+        adapter = new HistoryAdapter();
+        historyList.setLayoutManager(new LinearLayoutManager(this));
+        historyList.setHasFixedSize(true);
+        historyList.setAdapter(adapter);
+        adapter.setQuery("");
 
         if (searchBox != null) {
             searchBox.addTextChangedListener(new TextWatcher() {
                 public void beforeTextChanged(CharSequence s, int a, int b, int c) {}
-                public void onTextChanged(CharSequence s, int a, int b, int c) { filterHistory(s.toString()); }
-                public void afterTextChanged(Editable s) {}
+                public void onTextChanged(CharSequence s, int a, int b, int c) {}
+                public void afterTextChanged(Editable s) {
+                    handler.removeCallbacks(search);
+                    handler.postDelayed(search, AppConstants.HISTORY_SEARCH_DEBOUNCE_MS);
+                }
             });
         }
     }
 
-    private void loadHistory() {
-        allItems.clear();
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
-        try (Cursor c = db.query("history", 
-            new String[]{"file_path", "upload_date"},
-            null, null, null, null,
-            "upload_date DESC",
-            "100")) {
-            if (c != null && c.moveToFirst()) {
-                do {
-                    String path = c.getString(0);
-                    long uploadDate = c.getLong(1);
-                    allItems.add(new HistoryItem(path, uploadDate));
-                } while (c.moveToNext());
-            }
+    @Override
+    protected void onDestroy() {
+        handler.removeCallbacksAndMessages(null);
+        tasks.cancel();
+        super.onDestroy();
+    }
+
+    private void showCount(@NonNull String query, int count) {
+        if (subtitle == null) {
+            return;
+        }
+        if (query.isEmpty()) {
+            subtitle.setText(String.format(Locale.US, "%,d uploaded photos, newest first", count));
+        } else {
+            subtitle.setText(String.format(Locale.US, "%,d matching \"%s\"", count, query));
         }
-        filteredItems.addAll(allItems);
     }
 
-    private void filterHistory(String query) {
-        filteredItems.clear();
-        for (HistoryItem item : allItems) {
-            if (item.fileName.toLowerCase().contains(query.toLowerCase())) {
-                filteredItems.add(item);
+    /**
+     * Rows of the current search, loaded a page at a time on the task queue. Positions whose
+     * page is not loaded yet show as blank rows until it arrives.
+     */
+    private final class HistoryAdapter extends RecyclerView.Adapter<HistoryHolder> {
+        private final LruCache<Integer, List<DatabaseHelper.HistoryEntry>> pages = new LruCache<>(AppConstants.HISTORY_CACHED_PAGES);
+        private final Set<Integer> loading = new HashSet<>();
+        private String query = "";
+        private int count;
+        /** Bumped by every search, so pages of an earlier one are dropped when they arrive */
+        private int generation;
+
+        void setQuery(@NonNull String newQuery) {
+            int current = ++generation;
+            query = newQuery;
+            pages.evictAll();
+            loading.clear();
+            tasks.run(TaskQueue.Priority.VISIBLE, () -> dbHelper.countHistory(newQuery), total -> {
+                if (current != generation) {
+                    return;
+                }
+                count = total;
+                notifyDataSetChanged();
+                historyList.scrollToPosition(0);
+                showCount(newQuery, total);
+            });
+        }
+
+        @Override
+        public int getItemCount() {
+            return count;
+        }
+
+        @NonNull
+        @Override
+        public HistoryHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+            return new HistoryHolder(getLayoutInflater().inflate(R.layout.history_item, parent, false));
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull HistoryHolder holder, int position) {
+            int page = position / PAGE_SIZE;
+            List<DatabaseHelper.HistoryEntry> entries = pages.get(page);
+            if (entries == null) {
+                load(page);
+                holder.bind(null);
+                return;
             }
+            int index = position % PAGE_SIZE;
+            holder.bind(index < entries.size() ? entries.get(index) : null);
         }
-        adapter.notifyDataSetChanged();
-    }
 
-    private void setupAdapter() {
-        adapter = new BaseAdapter() {
-            public int getCount() { return filteredItems.size(); }
-            public Object getItem(int i) { return filteredItems.get(i); }
-            public long getItemId(int i) { return i; }
-
-            public View getView(int i, View v, ViewGroup p) {
-                if (v == null) v = getLayoutInflater().inflate(R.layout.history_item, null);
-                HistoryItem item = filteredItems.get(i);
-                
-                ((TextView)v.findViewById(R.id.historyFileName)).setText(item.fileName);
-                ((TextView)v.findViewById(R.id.historyFilePath)).setText(item.folderPath);
-                ((TextView)v.findViewById(R.id.historyUploadDate)).setText(item.getFormattedDate());
-                
-                return v;
+        private void load(int page) {
+            if (!loading.add(page)) {
+                return;
             }
-        };
-        historyListView.setAdapter(adapter);
+            // Read on from the end of the page before when it is at hand, instead of by offset
+            List<DatabaseHelper.HistoryEntry> previous = page > 0 ? pages.get(page - 1) : null;
+            DatabaseHelper.HistoryEntry after = previous != null && previous.size() == PAGE_SIZE
+                ? previous.get(PAGE_SIZE - 1) : null;
+            int current = generation;
+            String pageQuery = query;
+            tasks.run(TaskQueue.Priority.VISIBLE, () -> dbHelper.getHistoryPage(pageQuery, after, page * PAGE_SIZE, PAGE_SIZE), entries -> {
+                if (current != generation) {
+                    return;
+                }
+                loading.remove(page);
+                pages.put(page, entries);
+                int first = page * PAGE_SIZE;
+                notifyItemRangeChanged(first, Math.max(0, Math.min(PAGE_SIZE, count - first)));
+            }, error -> {
+                // Read again when the page is next bound
+                if (current == generation) {
+                    loading.remove(page);
+                }
+            });
+        }
     }
 
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        if (dbHelper != null) {
-            dbHelper.close();
+    private final class HistoryHolder extends RecyclerView.ViewHolder {
+        private final TextView fileName;
+        private final TextView location;
+        private final TextView uploadDate;
+
+        HistoryHolder(@NonNull View view) {
+            super(view);
+            fileName = view.findViewById(R.id.historyFileName);
+            location = view.findViewById(R.id.historyFilePath);
+            uploadDate = view.findViewById(R.id.historyUploadDate);
         }
-    }
 
-    static class HistoryItem {
-        String filePath;
-        String fileName;
-        String folderPath;
-        long uploadDate;
-
-        HistoryItem(String path, long date) {
-            this.filePath = path;
-            this.uploadDate = date;
-            
-            java.io.File f = new java.io.File(path);
-            this.fileName = f.getName();
-            this.folderPath = f.getParent();
+        /**
+         * @param entry Null while its page is loading
+         */
+        void bind(@Nullable DatabaseHelper.HistoryEntry entry) {
+            if (entry == null) {
+                fileName.setText("…");
+                location.setText("");
+                uploadDate.setText("");
+                return;
+            }
+            fileName.setText(entry.getFileName());
+            location.setText(getLocation(entry));
+            uploadDate.setText(dateFormat.format(new Date(entry.uploadDate)));
         }
+    }
 
-        String getFormattedDate() {
-            SimpleDateFormat sdf = new SimpleDateFormat("MMM dd, yyyy hh:mm a", Locale.US);
-            return sdf.format(new Date(uploadDate));
+    private static String getLocation(@NonNull DatabaseHelper.HistoryEntry entry) {
+        String folderPath = entry.getFolderPath();
+        if (entry.duplicateOf != null) {
+            return folderPath + " · not uploaded, like " + entry.duplicateOf.substring(entry.duplicateOf.lastIndexOf('/') + 1);
         }
+        return entry.packName != null ? folderPath + " · in " + entry.packName : folderPath;
     }
 }
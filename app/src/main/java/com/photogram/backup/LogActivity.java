@@ -24,6 +24,7 @@ public class LogActivity extends Activity {
     private ListView logListView;
     private ArrayAdapter<LogEntry> adapter;
     private List<LogEntry> logEntries;
+    private final TaskQueue.Scope tasks = PhotogramApp.getTasks().newScope();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -36,7 +37,7 @@ public class LogActivity extends Activity {
             getActionBar().setTitle("Sync Logs");
         }
         
-        db = new DatabaseHelper(this);
+        db = DatabaseHelper.getInstance(this);
         logListView = findViewById(R.id.logListView);
         Button btnClose = findViewById(R.id.btnCloseLogs);
         
@@ -83,9 +84,12 @@ public class LogActivity extends Activity {
     }
 
     private void loadLogs() {
+        tasks.run(TaskQueue.Priority.VISIBLE, () -> db.getRecentLogsWithDetails(LOG_LIMIT), this::showLogs);
+    }
+
+    private void showLogs(List<LogEntry> entries) {
         try {
-            // Get logs from database
-            logEntries = db.getRecentLogsWithDetails(LOG_LIMIT);
+            logEntries = entries;
             
             if (logEntries == null) {
                 logEntries = new ArrayList<>();
@@ -111,14 +115,19 @@ public class LogActivity extends Activity {
     }
 
     private void clearLogs() {
-        try {
+        tasks.run(TaskQueue.Priority.VISIBLE, () -> {
             db.clearLogs();
-            loadLogs();
+            return db.getRecentLogsWithDetails(LOG_LIMIT);
+        }, entries -> {
+            showLogs(entries);
             Toast.makeText(this, "Logs cleared", Toast.LENGTH_SHORT).show();
-        } catch (Exception e) {
-            Toast.makeText(this, "Error clearing logs: " + e.getMessage(), 
-                Toast.LENGTH_SHORT).show();
-        }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        tasks.cancel();
     }
 
     @Override
@@ -130,14 +139,6 @@ public class LogActivity extends Activity {
         }
     }
 
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        if (db != null) {
-            db.close();
-        }
-    }
-
     /**
      * Custom adapter for displaying log entries with color coding
      */
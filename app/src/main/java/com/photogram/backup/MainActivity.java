@@ -1,6 +1,7 @@
 package com.photogram.backup;
 
 import android.Manifest;
+import android.app.AlertDialog;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
@@ -60,12 +61,17 @@ public class MainActivity extends AppCompatActivity {
     private BaseAdapter adapter;
     private SharedPreferences prefs;
     private DatabaseHelper dbHelper;
-    private TextView tvSyncStatus, tvCurrentFile;
-    private Button btnSelectAll, btnDeselectAll;
+    private FolderSelection folderSelection;
+    private TextView tvSyncStatus, tvCurrentFile, tvSyncPlan;
+    private boolean planning;
+    private Button btnSelectAll, btnDeselectAll, btnStartBackup;
+    private boolean syncRunning;
     private ProgressBar pbSync;
     private static final int PERM_CODE = 101;
     private ActivityResultLauncher<String[]> permissionLauncher;
     private Map<String, Integer> folderPhotoCounts = new java.util.HashMap<>();
+    private final TaskQueue.Scope tasks = PhotogramApp.getTasks().newScope();
+    private boolean scanned;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -80,11 +86,12 @@ public class MainActivity extends AppCompatActivity {
 
         setContentView(R.layout.main);
         prefs = getSharedPreferences("BackupPrefs", Context.MODE_PRIVATE);
-        dbHelper = new DatabaseHelper(this);
+        dbHelper = DatabaseHelper.getInstance(this);
         
         listView = findViewById(R.id.folderListView);
         swipeRefresh = findViewById(R.id.swipeRefresh);
         tvSyncStatus = findViewById(R.id.tvSyncStatus);
+        tvSyncPlan = findViewById(R.id.tvSyncPlan);
         tvCurrentFile = findViewById(R.id.tvCurrentFile);
         pbSync = findViewById(R.id.pbSync);
         EditText etSearch = findViewById(R.id.etSearch);
@@ -108,7 +115,8 @@ public class MainActivity extends AppCompatActivity {
 
         swipeRefresh.setOnRefreshListener(() -> startAppLogic());
         findViewById(R.id.btnSettings).setOnClickListener(v -> startActivity(new Intent(this, SettingsActivity.class)));
-        findViewById(R.id.btnStartBackup).setOnClickListener(v -> scheduleBackup(true));
+        btnStartBackup = findViewById(R.id.btnStartBackup);
+        btnStartBackup.setOnClickListener(v -> onSyncButton());
         findViewById(R.id.btnDashboard).setOnClickListener(v -> startActivity(new Intent(this, DashboardActivity.class)));
         findViewById(R.id.btnLogs).setOnClickListener(v -> startActivity(new Intent(this, LogActivity.class)));
         findViewById(R.id.btnHistory).setOnClickListener(v -> startActivity(new Intent(this, HistoryActivity.class)));
@@ -127,27 +135,47 @@ public class MainActivity extends AppCompatActivity {
         setupAdapter();
         refreshDashboard();
         fetchBackupLimitFromFirebase();
-        allFolders.addAll(dbHelper.getSavedFolders());
-        filterFolders("");
+        loadFolderSelection();
+        loadSavedFolders();
         handlePermissions();
         observeSyncProgress();
         checkBatteryOptimization();
     }
 
     private void observeSyncProgress() {
-        WorkManager.getInstance(this).getWorkInfosForUniqueWorkLiveData("PhotogramSync")
+        WorkManager.getInstance(this).getWorkInfosForUniqueWorkLiveData(AppConstants.WORK_SHARDS)
             .observe(this, workInfos -> {
-                if (workInfos == null || workInfos.isEmpty()) return;
-                WorkInfo info = workInfos.get(0);
-                if (info.getState() == WorkInfo.State.RUNNING) {
+                if (workInfos == null) return;
+                
+                // Shards of one run upload in parallel, so their progress is summed
+                boolean running = false;
+                String fileName = null;
+                int filesDone = 0, filesTotal = 0;
+                long bytesDone = 0, bytesTotal = 0, bytesPerSec = 0;
+                for (WorkInfo info : workInfos) {
+                    if (info.getState() != WorkInfo.State.RUNNING) continue;
+                    running = true;
+                    Data progress = info.getProgress();
+                    if (progress.getString("current_file") != null) {
+                        fileName = progress.getString("current_file");
+                    }
+                    filesDone += progress.getInt("files_done", 0);
+                    filesTotal += progress.getInt("files_total", 0);
+                    bytesDone += progress.getLong("bytes_done", 0);
+                    bytesTotal += progress.getLong("bytes_total", 0);
+                    bytesPerSec += progress.getLong("bytes_per_sec", 0);
+                }
+                
+                syncRunning = running;
+                updateSyncButton();
+                if (running) {
                     pbSync.setVisibility(View.VISIBLE);
                     tvCurrentFile.setVisibility(View.VISIBLE);
-                    Data progress = info.getProgress();
-                    String fileName = progress.getString("current_file");
+                    tvSyncPlan.setVisibility(View.GONE);
                     if (fileName != null) {
-                        tvCurrentFile.setText("Syncing: " + fileName);
-                        tvSyncStatus.setText("Backup in progress...");
-                        pbSync.setProgress(progress.getInt("progress_percent", 0));
+                        tvCurrentFile.setText("Syncing: " + fileName + formatTransferRate(bytesPerSec, bytesTotal - bytesDone));
+                        tvSyncStatus.setText("Backup in progress... " + filesDone + "/" + filesTotal);
+                        pbSync.setProgress(bytesTotal > 0 ? (int) (bytesDone * 100 / bytesTotal) : 0);
                     }
                 } else {
                     pbSync.setVisibility(View.GONE);
@@ -157,13 +185,83 @@ public class MainActivity extends AppCompatActivity {
             });
     }
 
+    private String formatTransferRate(long bytesPerSec, long bytesRemaining) {
+        if (bytesPerSec <= 0) return "";
+        
+        String text = " · " + String.format(Locale.US, "%.1f MB/s", bytesPerSec / (1024.0 * 1024.0));
+        long eta = Math.max(0, bytesRemaining) / bytesPerSec;
+        text += eta < 60 ? " · " + eta + "s left" : " · " + (eta / 60) + "m left";
+        return text;
+    }
+
+    /**
+     * Sync Now when idle, Pause while uploading, Resume once paused
+     */
+    private void onSyncButton() {
+        if (!SyncControl.isPaused(prefs) && !syncRunning) {
+            scheduleBackup(true);
+            updateSyncButton();
+            refreshDashboard();
+            return;
+        }
+
+        boolean resume = SyncControl.isPaused(prefs);
+        Context app = getApplicationContext();
+        btnStartBackup.setEnabled(false);
+        tasks.runToCompletion(TaskQueue.Priority.VISIBLE, () -> {
+            if (resume) {
+                SyncControl.resume(app);
+            } else {
+                SyncControl.pause(app);
+            }
+            return null;
+        }, done -> {
+            btnStartBackup.setEnabled(true);
+            updateSyncButton();
+            refreshDashboard();
+        });
+    }
+
+    private void updateSyncButton() {
+        if (SyncControl.isPaused(prefs)) {
+            btnStartBackup.setText("Resume");
+        } else if (syncRunning) {
+            btnStartBackup.setText("Pause");
+        } else {
+            btnStartBackup.setText("Sync Now");
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // Paused or resumed from the notification meanwhile
+        if (btnStartBackup != null) {
+            updateSyncButton();
+        }
+    }
+
     private void refreshDashboard() {
         long last = prefs.getLong("last_sync_timestamp", 0);
-        if (last > 0) {
+        if (SyncControl.isPaused(prefs)) {
+            tvSyncStatus.setText("Backup Paused");
+        } else if (last > 0) {
             tvSyncStatus.setText("Last Sync: " + new SimpleDateFormat("HH:mm", Locale.getDefault()).format(new Date(last)));
         } else {
             tvSyncStatus.setText("Cloud Ready");
         }
+        refreshUploadPlan();
+    }
+
+    private void refreshUploadPlan() {
+        if (planning || FirebaseAuth.getInstance().getCurrentUser() == null) return;
+        planning = true;
+        UploadPlanner.planAsync(this, SyncMode.MANUAL, tasks, (plan, bytesPerSecond) -> {
+            planning = false;
+            if (isFinishing() || isDestroyed() || pbSync.getVisibility() == View.VISIBLE) return;
+            tvSyncPlan.setText("Next sync: " + plan.summary(bytesPerSecond, AppConstants.UPLOAD_DELAY_MS));
+            tvSyncPlan.setVisibility(View.VISIBLE);
+        });
     }
     
     private String getRelativeTime(long timestamp) {
@@ -180,22 +278,47 @@ public class MainActivity extends AppCompatActivity {
     }
     
     private void selectAllFolders(boolean select) {
-        SharedPreferences.Editor editor = prefs.edit();
+        if (folderSelection == null) return;
+        ArrayList<String> paths = new ArrayList<>(filteredFolders.size());
         for (File folder : filteredFolders) {
-            editor.putBoolean(folder.getAbsolutePath(), select);
+            paths.add(folder.getAbsolutePath());
         }
-        editor.apply();
+        folderSelection.setSelected(paths, select);
         adapter.notifyDataSetChanged();
         Toast.makeText(this, select ? "All folders selected" : "All folders deselected", Toast.LENGTH_SHORT).show();
     }
     
     
+    /**
+     * The selection reads the database when it is first built, so the folders are listed once
+     * it is at hand
+     */
+    private void loadFolderSelection() {
+        Context app = getApplicationContext();
+        tasks.run(TaskQueue.Priority.VISIBLE, () -> FolderSelection.getInstance(app), selection -> {
+            folderSelection = selection;
+            adapter.notifyDataSetChanged();
+        });
+    }
+
+    /**
+     * The folders found by the last scan, to show until this one finishes
+     */
+    private void loadSavedFolders() {
+        tasks.run(TaskQueue.Priority.VISIBLE, dbHelper::getSavedFolders, saved -> {
+            if (scanned) return;
+            allFolders.clear(); allFolders.addAll(saved);
+            filterFolders("");
+        });
+    }
+
     private void calculateFolderPhotoCounts() {
-        new Thread(() -> {
-            folderPhotoCounts.clear();
-            ContentResolver cr = getContentResolver();
-            for (File folder : allFolders) {
-                try {
+        List<File> folders = new ArrayList<>(allFolders);
+        ContentResolver cr = getContentResolver();
+        tasks.run(TaskQueue.Priority.BACKGROUND, () -> {
+            Map<String, Integer> counts = new java.util.HashMap<>();
+            for (File folder : folders) {
+                try (PerfTrace.Section trace = PerfTrace.section(PerfTrace.MEDIA_SCAN)) {
                     // Count photos in this folder by querying and counting cursor rows
                     Cursor c = cr.query(
                         MediaStore.Images.Media.EXTERNAL_CONTENT_URI, 
@@ -207,7 +330,7 @@ public class MainActivity extends AppCompatActivity {
                     
                     if (c != null) {
                         int count = c.getCount();
-                        folderPhotoCounts.put(folder.getAbsolutePath(), count);
+                        counts.put(folder.getAbsolutePath(), count);
                         c.close();
                     }
                 } catch (Exception e) {
@@ -215,12 +338,11 @@ public class MainActivity extends AppCompatActivity {
                     android.util.Log.e("MainActivity", "Error counting photos for " + folder.getName(), e);
                 }
             }
-            runOnUiThread(() -> {
-                if (adapter != null) {
-                    adapter.notifyDataSetChanged();
-                }
-            });
-        }).start();
+            return counts;
+        }, counts -> {
+            folderPhotoCounts = counts;
+            adapter.notifyDataSetChanged();
+        });
     }
 
     private void filterFolders(String query) {
@@ -254,18 +376,22 @@ public class MainActivity extends AppCompatActivity {
     private void startAppLogic() {
         swipeRefresh.setRefreshing(true);
         Toast.makeText(this, "Scanning for photos...", Toast.LENGTH_SHORT).show();
-        new Thread(() -> {
+        tasks.run(TaskQueue.Priority.VISIBLE, () -> {
             ArrayList<File> fresh = scanMediaStore();
             dbHelper.saveFolders(fresh);
-            runOnUiThread(() -> {
-                allFolders.clear(); allFolders.addAll(fresh);
-                filterFolders(""); 
-                calculateFolderPhotoCounts();
-                swipeRefresh.setRefreshing(false); 
-                refreshDashboard();
-                Toast.makeText(this, "Scan complete", Toast.LENGTH_SHORT).show();
-            });
-        }).start();
+            return fresh;
+        }, fresh -> {
+            scanned = true;
+            allFolders.clear(); allFolders.addAll(fresh);
+            filterFolders(""); 
+            calculateFolderPhotoCounts();
+            swipeRefresh.setRefreshing(false); 
+            refreshDashboard();
+            Toast.makeText(this, "Scan complete", Toast.LENGTH_SHORT).show();
+        }, error -> {
+            swipeRefresh.setRefreshing(false);
+            Toast.makeText(this, "Scan failed: " + error.getMessage(), Toast.LENGTH_LONG).show();
+        });
         scheduleBackup(false);
     }
 
@@ -273,7 +399,8 @@ public class MainActivity extends AppCompatActivity {
         HashSet<String> paths = new HashSet<>();
         ArrayList<File> list = new ArrayList<>();
         ContentResolver cr = getContentResolver();
-        try (Cursor c = cr.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, new String[]{MediaStore.Images.Media.DATA}, null, null, null)) {
+        try (PerfTrace.Section trace = PerfTrace.section(PerfTrace.MEDIA_SCAN);
+             Cursor c = cr.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, new String[]{MediaStore.Images.Media.DATA}, null, null, null)) {
             if (c != null && c.moveToFirst()) {
                 do {
                     String path = c.getString(0);
@@ -302,12 +429,14 @@ public class MainActivity extends AppCompatActivity {
                 .setConstraints(con)
                 .setInputData(new Data.Builder().putBoolean("is_manual", true).build())
                 .build();
-            WorkManager.getInstance(this).enqueueUniqueWork("PhotogramManualSync", ExistingWorkPolicy.KEEP, req);
+            WorkManager.getInstance(this).enqueueUniqueWork(AppConstants.WORK_MANUAL, ExistingWorkPolicy.KEEP, req);
         }
 
         PeriodicWorkRequest periodic = new PeriodicWorkRequest.Builder(BackupWorker.class, prefs.getInt("sync_interval", 60), TimeUnit.MINUTES)
             .setConstraints(con).build();
-        WorkManager.getInstance(this).enqueueUniquePeriodicWork("PhotogramSync", ExistingPeriodicWorkPolicy.REPLACE, periodic);
+        WorkManager.getInstance(this).enqueueUniquePeriodicWork(AppConstants.WORK_PERIODIC, ExistingPeriodicWorkPolicy.REPLACE, periodic);
+        BackupWorker.scheduleRealtimeSync(this, ExistingWorkPolicy.KEEP);
+        ReconcileWorker.schedule(this);
     }
 
     private void checkBatteryOptimization() {
@@ -323,7 +452,7 @@ public class MainActivity extends AppCompatActivity {
 
     void setupAdapter() {
         adapter = new BaseAdapter() {
-            public int getCount() { return filteredFolders.size(); }
+            public int getCount() { return folderSelection != null ? filteredFolders.size() : 0; }
             public Object getItem(int i) { return filteredFolders.get(i); }
             public long getItemId(int i) { return i; }
             public View getView(int i, View v, ViewGroup p) {
@@ -335,22 +464,47 @@ public class MainActivity extends AppCompatActivity {
                 // Update photo count
                 TextView photoCount = v.findViewById(R.id.folderPhotoCount);
                 Integer count = folderPhotoCounts.get(f.getAbsolutePath());
+                String options = (folderSelection.isPacked(f.getAbsolutePath()) ? " · packed" : "") +
+                    (folderSelection.isDeduped(f.getAbsolutePath()) ? " · no bursts" : "");
                 if (count != null) {
-                    photoCount.setText(count + " photos");
+                    photoCount.setText(count + " photos" + options);
                 } else {
-                    photoCount.setText("...");
+                    photoCount.setText("..." + options);
                 }
+                v.setOnLongClickListener(view -> {
+                    showFolderOptions(f);
+                    return true;
+                });
                 
                 Switch s = v.findViewById(R.id.backupSwitch);
                 s.setOnCheckedChangeListener(null);
-                s.setChecked(prefs.getBoolean(f.getAbsolutePath(), false));
-                s.setOnCheckedChangeListener((b, val) -> prefs.edit().putBoolean(f.getAbsolutePath(), val).apply());
+                s.setChecked(folderSelection.isSelected(f.getAbsolutePath()));
+                s.setOnCheckedChangeListener((b, val) -> folderSelection.setSelected(f.getAbsolutePath(), val));
                 return v;
             }
         };
         listView.setAdapter(adapter);
     }
     
+    private void showFolderOptions(File folder) {
+        String path = folder.getAbsolutePath();
+        boolean[] checked = {folderSelection.isPacked(path), folderSelection.isDeduped(path)};
+        String[] options = {
+            "Pack photos up to " + SyncNotifier.formatFileSize(AppConstants.PACK_FILE_MAX) + " into .tar documents",
+            "Hold back near-duplicate burst shots"
+        };
+        new AlertDialog.Builder(this)
+            .setTitle(folder.getName())
+            .setMultiChoiceItems(options, checked, (d, which, isChecked) -> checked[which] = isChecked)
+            .setPositiveButton("Save", (d, w) -> {
+                folderSelection.setPacked(path, checked[0]);
+                folderSelection.setDeduped(path, checked[1]);
+                adapter.notifyDataSetChanged();
+            })
+            .setNegativeButton("Cancel", null)
+            .show();
+    }
+
     private void fetchBackupLimitFromFirebase() {
         // Logic removed as tvStatsLimit is no longer present in home page
     }
@@ -358,6 +512,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        tasks.cancel();
         active = false;
     }
 }
\ No newline at end of file
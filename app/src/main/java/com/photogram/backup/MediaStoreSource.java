@@ -0,0 +1,48 @@
+package com.photogram.backup;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.MediaStore;
+import androidx.annotation.NonNull;
+
+/**
+ * {@link MediaSource} over the MediaStore images table
+ */
+final class MediaStoreSource implements MediaSource {
+    private static final String[] PROJECTION = {
+        MediaStore.Images.Media.DATA,
+        MediaStore.Images.Media.DATE_MODIFIED,
+        MediaStore.Images.Media.SIZE
+    };
+
+    private final Context context;
+
+    MediaStoreSource(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    @Override
+    public boolean scan(long since, @NonNull Visitor visitor) {
+        String selection = MediaStore.Images.Media.DATE_MODIFIED + " > ?";
+        String[] selectionArgs = {String.valueOf(since)};
+
+        try (PerfTrace.Section trace = PerfTrace.section(PerfTrace.MEDIA_SCAN);
+             Cursor cursor = context.getContentResolver().query(
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                PROJECTION,
+                selection,
+                selectionArgs,
+                null)) {
+
+            if (cursor == null) {
+                return false;
+            }
+            while (cursor.moveToNext()) {
+                if (!visitor.visit(cursor.getString(0), cursor.getLong(1), cursor.getLong(2))) {
+                    break;
+                }
+            }
+            return true;
+        }
+    }
+}
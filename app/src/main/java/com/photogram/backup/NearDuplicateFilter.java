@@ -0,0 +1,152 @@
+package com.photogram.backup;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Spots burst shots and edit copies in folders that opted in. Every photo uploaded from such a
+ * folder keeps its {@link PerceptualHash} in the history; a new photo whose hash is within
+ * {@link AppConstants#NEAR_DUPLICATE_DISTANCE} bits of one taken within
+ * {@link AppConstants#NEAR_DUPLICATE_WINDOW_SECONDS} of it is a near-duplicate.
+ *
+ * Hashes are indexed per folder in a {@link HammingIndex}, loaded once per shard and extended as the
+ * shard uploads. Lookups happen on the upload thread only; {@link #fingerprint} is safe from any thread.
+ */
+final class NearDuplicateFilter implements ShardUploader.NearDuplicates {
+    private static final int THUMB_MIN_SIDE = 64;
+
+    private static final class Shot {
+        final String path;
+        final long modified;
+
+        Shot(String path, long modified) {
+            this.path = path;
+            this.modified = modified;
+        }
+    }
+
+    private final Map<String, HammingIndex<Shot>> byFolder = new HashMap<>();
+
+    private NearDuplicateFilter(Set<String> folders) {
+        for (String folder : folders) {
+            byFolder.put(folder, new HammingIndex<>());
+        }
+    }
+
+    /**
+     * Build the index for the opted-in folders among the given ones
+     * @param since DATE_MODIFIED baseline of the run; older hashes cannot be in a window with new photos
+     * @return The filter, or null if none of the folders opted in
+     */
+    @Nullable
+    static NearDuplicateFilter create(@NonNull DatabaseHelper dbHelper, @NonNull FolderSelection selection,
+                                      @NonNull Collection<String> folders, long since) {
+        Set<String> deduped = new HashSet<>();
+        for (String folder : folders) {
+            if (selection.isDeduped(folder)) {
+                deduped.add(folder);
+            }
+        }
+        if (deduped.isEmpty()) {
+            return null;
+        }
+
+        NearDuplicateFilter filter = new NearDuplicateFilter(deduped);
+        for (DatabaseHelper.PerceptualRecord record :
+                dbHelper.getPerceptualHashes(since - AppConstants.NEAR_DUPLICATE_WINDOW_SECONDS)) {
+            filter.add(new File(record.path).getParent(), record.path, record.modified, record.hash);
+        }
+        return filter;
+    }
+
+    @Override
+    public boolean covers(@NonNull String folderPath) {
+        return byFolder.containsKey(folderPath);
+    }
+
+    /**
+     * @return Path of the photo this one nearly duplicates, or null if there is none
+     */
+    @Nullable
+    @Override
+    public String findNear(@NonNull String folderPath, long hash, long modified) {
+        HammingIndex<Shot> index = byFolder.get(folderPath);
+        if (index == null) {
+            return null;
+        }
+        Shot closest = null;
+        int closestDistance = Integer.MAX_VALUE;
+        for (HammingIndex.Match<Shot> match : index.search(hash, AppConstants.NEAR_DUPLICATE_DISTANCE)) {
+            if (Math.abs(match.value.modified - modified) <= AppConstants.NEAR_DUPLICATE_WINDOW_SECONDS
+                    && match.distance < closestDistance) {
+                closest = match.value;
+                closestDistance = match.distance;
+            }
+        }
+        return closest != null ? closest.path : null;
+    }
+
+    @Override
+    public void add(@Nullable String folderPath, @NonNull String path, long modified, long hash) {
+        HammingIndex<Shot> index = folderPath != null ? byFolder.get(folderPath) : null;
+        if (index != null) {
+            index.add(hash, new Shot(path, modified));
+        }
+    }
+
+    /**
+     * Decode a small version of the photo and hash it
+     * @return The dHash, or null if the photo cannot be decoded
+     */
+    @Nullable
+    @Override
+    public Long fingerprint(@NonNull PreparedUpload upload) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        decode(upload, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inSampleSize = 1;
+        int minSide = Math.min(bounds.outWidth, bounds.outHeight);
+        while (minSide / (options.inSampleSize * 2) >= THUMB_MIN_SIDE) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap decoded = decode(upload, options);
+        if (decoded == null) {
+            return null;
+        }
+
+        Bitmap thumb = Bitmap.createScaledBitmap(decoded, PerceptualHash.WIDTH, PerceptualHash.HEIGHT, true);
+        int[] pixels = new int[PerceptualHash.WIDTH * PerceptualHash.HEIGHT];
+        thumb.getPixels(pixels, 0, PerceptualHash.WIDTH, 0, 0, PerceptualHash.WIDTH, PerceptualHash.HEIGHT);
+        if (thumb != decoded) {
+            thumb.recycle();
+        }
+        decoded.recycle();
+
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = PerceptualHash.luma(pixels[i]);
+        }
+        return PerceptualHash.dHash(pixels);
+    }
+
+    private static Bitmap decode(PreparedUpload upload, BitmapFactory.Options options) {
+        byte[] content = upload.getContent();
+        if (content != null) {
+            return BitmapFactory.decodeByteArray(content, 0, content.length, options);
+        }
+        return BitmapFactory.decodeFile(upload.file.getAbsolutePath(), options);
+    }
+}
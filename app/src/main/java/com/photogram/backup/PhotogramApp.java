@@ -1,14 +1,59 @@
 package com.photogram.backup;
 
 import android.app.Application;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.StrictMode;
+import android.util.Log;
+import androidx.annotation.NonNull;
 import com.google.firebase.database.FirebaseDatabase;
 
 public class PhotogramApp extends Application {
+    private static final String TAG = "PhotogramApp";
+
     @Override
     public void onCreate() {
         super.onCreate();
+        if (BuildConfig.DEBUG) {
+            // Disk and network access on the main thread belongs on the task queue; log each one
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .detectNetwork()
+                .penaltyLog()
+                .build());
+            StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                .detectLeakedSqlLiteObjects()
+                .detectLeakedClosableObjects()
+                .penaltyLog()
+                .build());
+        }
+
+        // Trace sections of the sync, visible in Perfetto; free while no trace is recorded
+        PerfTrace.install(new AndroidTrace());
+
         // This allows the app to remember your "Approved" status even when offline
         FirebaseDatabase.getInstance("https://photogram-dd154-default-rtdb.asia-southeast1.firebasedatabase.app/")
             .setPersistenceEnabled(true);
+
+        // The folder list reads the selection as soon as it opens
+        getTasks().execute(TaskQueue.Priority.VISIBLE, () -> FolderSelection.getInstance(this));
+    }
+
+    /**
+     * Shared queue of the screens' database and MediaStore work, delivering results on the main
+     * thread. Failures of tasks that do not handle them are logged.
+     */
+    @NonNull
+    static TaskQueue getTasks() {
+        return Tasks.QUEUE;
+    }
+
+    private static final class Tasks {
+        static final TaskQueue QUEUE = new TaskQueue(AppConstants.TASK_THREADS, work -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            work.run();
+        }, "pg-tasks"), new Handler(Looper.getMainLooper())::post, e -> Log.e(TAG, "Task failed: " + e.getMessage(), e));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,130 @@
+package com.photogram.backup;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.MediaStore;
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Daily check for photos in selected folders that never made it into the history, e.g. because
+ * an upload failed in a run whose baseline still moved forward. MediaStore and the history are
+ * merge-joined by {@link GapReconciler}; what is missing goes into the upload queue, which the
+ * next sync uploads regardless of its delta window. The dashboard's rollups of the history are
+ * checked against it on the same run, see {@link DatabaseHelper#checkRollups()}.
+ */
+public class ReconcileWorker extends Worker {
+    private static final int QUEUE_BATCH = 200;
+
+    static final String KEY_MISSING_COUNT = "missing_count";
+
+    private final DatabaseHelper dbHelper;
+
+    public ReconcileWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+        this.dbHelper = DatabaseHelper.getInstance(context);
+    }
+
+    /**
+     * Schedule the daily run; it needs no network and waits for charging
+     */
+    public static void schedule(@NonNull Context context) {
+        Constraints constraints = new Constraints.Builder()
+            .setRequiresCharging(true)
+            .setRequiresBatteryNotLow(true)
+            .build();
+        PeriodicWorkRequest req = new PeriodicWorkRequest.Builder(ReconcileWorker.class, 1, TimeUnit.DAYS)
+            .setConstraints(constraints)
+            .build();
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(AppConstants.WORK_RECONCILE, ExistingPeriodicWorkPolicy.KEEP, req);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        if (!dbHelper.checkRollups()) {
+            dbHelper.addLog("WARN", "History rollups did not match the history, rebuilt them");
+        }
+
+        FolderSelection folderSelection = FolderSelection.getInstance(getApplicationContext());
+        if (folderSelection.snapshot().isEmpty()) {
+            return Result.success();
+        }
+
+        List<HistoryStore.QueuedUpload> batch = new ArrayList<>();
+        int[] queued = {0};
+        long start = System.currentTimeMillis();
+
+        String[] projection = {
+            MediaStore.Images.Media.DATA,
+            MediaStore.Images.Media.DATE_MODIFIED,
+            MediaStore.Images.Media.SIZE
+        };
+
+        try (PerfTrace.Section trace = PerfTrace.section(PerfTrace.MEDIA_SCAN);
+             Cursor media = getApplicationContext().getContentResolver().query(
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                projection,
+                null,
+                null,
+                MediaStore.Images.Media.DATE_MODIFIED + " ASC");
+             Cursor history = dbHelper.queryHistoryByModified()) {
+
+            if (media == null) {
+                dbHelper.addLog("ERROR", "Reconciliation failed: MediaStore query returned null cursor");
+                return Result.failure();
+            }
+
+            GapReconciler.Source mediaSource = () -> {
+                while (!isStopped() && media.moveToNext()) {
+                    String path = media.getString(0);
+                    String folderPath = path != null ? new File(path).getParent() : null;
+                    if (folderPath != null && folderSelection.isSelected(folderPath) && media.getLong(2) > 0) {
+                        return new GapReconciler.Entry(path, media.getLong(1), media.getLong(2));
+                    }
+                }
+                return null;
+            };
+            GapReconciler.Source historySource = () ->
+                history.moveToNext() ? new GapReconciler.Entry(history.getString(0), history.getLong(1), 0) : null;
+
+            GapReconciler.Stats stats = GapReconciler.reconcile(mediaSource, historySource, entry -> {
+                File f = new File(entry.path);
+                if (!f.exists()) {
+                    return;
+                }
+                batch.add(new HistoryStore.QueuedUpload(entry.path, f.getParent(), entry.modified, entry.size));
+                if (batch.size() >= QUEUE_BATCH) {
+                    queued[0] += dbHelper.enqueueUploads(batch);
+                    batch.clear();
+                }
+            });
+            queued[0] += dbHelper.enqueueUploads(batch);
+
+            if (isStopped()) {
+                dbHelper.addLog("WARN", "Reconciliation stopped by system");
+                return Result.success();
+            }
+
+            dbHelper.addLog(queued[0] > 0 ? "INFO" : "DEBUG", "Reconciliation: " + stats.scanned + " photos checked, " +
+                queued[0] + " missing from backup queued (" + (System.currentTimeMillis() - start) + " ms)");
+            return Result.success(new Data.Builder()
+                .putInt(KEY_MISSING_COUNT, queued[0])
+                .build());
+
+        } catch (Exception e) {
+            dbHelper.addLog("ERROR", "Reconciliation failed: " + e.getMessage());
+            return Result.failure();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.photogram.backup;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.webkit.MimeTypeMap;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Where a restored file is written while it downloads. On Android 10+ this is a pending
+ * MediaStore item that is appended to and published when complete; before that a ".part" file
+ * next to the original path, renamed and scanned when complete. Either survives a restart, so a
+ * download resumes from {@link #length()}.
+ */
+abstract class RestoreTarget {
+
+    /**
+     * @return Bytes already written
+     */
+    abstract long length();
+
+    /**
+     * @param append Continue after {@link #length()} instead of starting over
+     */
+    abstract OutputStream openOutput(boolean append) throws IOException;
+
+    /**
+     * Make the finished file visible to the gallery
+     * @return Path and DATE_MODIFIED (seconds) of the published file, for the history
+     */
+    abstract Published publish() throws IOException;
+
+    /**
+     * @return Value to keep in the restore queue so the same target is reopened after a restart
+     */
+    @Nullable
+    abstract String getMediaUri();
+
+    static final class Published {
+        final String path;
+        final long modified;
+
+        Published(String path, long modified) {
+            this.path = path;
+            this.modified = modified;
+        }
+    }
+
+    @NonNull
+    static RestoreTarget open(@NonNull Context context, @NonNull DatabaseHelper.RestoreItem item) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return PendingMediaTarget.open(context.getContentResolver(), item);
+        }
+        return new PartFileTarget(context, item);
+    }
+
+    private static String mimeTypeOf(String name) {
+        int dot = name.lastIndexOf('.');
+        String type = dot < 0 ? null : MimeTypeMap.getSingleton().getMimeTypeFromExtension(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return type != null ? type : "image/jpeg";
+    }
+
+    /**
+     * Pending MediaStore item in the original folder when it is under DCIM/ or Pictures/,
+     * otherwise in Pictures/&lt;folder name&gt;/
+     */
+    private static final class PendingMediaTarget extends RestoreTarget {
+        private final ContentResolver resolver;
+        private final Uri uri;
+
+        private PendingMediaTarget(ContentResolver resolver, Uri uri) {
+            this.resolver = resolver;
+            this.uri = uri;
+        }
+
+        static PendingMediaTarget open(ContentResolver resolver, DatabaseHelper.RestoreItem item) throws IOException {
+            if (item.mediaUri != null) {
+                Uri existing = Uri.parse(item.mediaUri);
+                try (ParcelFileDescriptor pfd = resolver.openFileDescriptor(existing, "r")) {
+                    if (pfd != null) {
+                        return new PendingMediaTarget(resolver, existing);
+                    }
+                } catch (FileNotFoundException | SecurityException e) {
+                    // Pending items are purged by the system after a while, start over
+                }
+            }
+
+            File original = new File(item.path);
+            ContentValues values = new ContentValues();
+            values.put(MediaStore.Images.Media.DISPLAY_NAME, original.getName());
+            values.put(MediaStore.Images.Media.MIME_TYPE, mimeTypeOf(original.getName()));
+            values.put(MediaStore.Images.Media.RELATIVE_PATH, relativePathOf(original));
+            values.put(MediaStore.Images.Media.DATE_TAKEN, item.modified * 1000);
+            values.put(MediaStore.Images.Media.IS_PENDING, 1);
+
+            Uri uri = resolver.insert(MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY), values);
+            if (uri == null) {
+                throw new IOException("MediaStore insert failed for " + original.getName());
+            }
+            return new PendingMediaTarget(resolver, uri);
+        }
+
+        private static String relativePathOf(File original) {
+            String root = Environment.getExternalStorageDirectory().getAbsolutePath() + "/";
+            String parent = original.getParent() + "/";
+            if (parent.startsWith(root)) {
+                String relative = parent.substring(root.length());
+                if (relative.startsWith(Environment.DIRECTORY_DCIM + "/") || relative.startsWith(Environment.DIRECTORY_PICTURES + "/")) {
+                    return relative;
+                }
+            }
+            return Environment.DIRECTORY_PICTURES + "/" + original.getParentFile().getName() + "/";
+        }
+
+        @Override
+        long length() {
+            try (ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "r")) {
+                return pfd != null ? pfd.getStatSize() : 0;
+            } catch (IOException | SecurityException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        OutputStream openOutput(boolean append) throws IOException {
+            OutputStream out = resolver.openOutputStream(uri, append ? "wa" : "wt");
+            if (out == null) {
+                throw new IOException("Cannot write " + uri);
+            }
+            return out;
+        }
+
+        @Override
+        Published publish() throws IOException {
+            ContentValues values = new ContentValues();
+            values.put(MediaStore.Images.Media.IS_PENDING, 0);
+            resolver.update(uri, values, null, null);
+
+            try (Cursor cursor = resolver.query(uri,
+                    new String[]{MediaStore.Images.Media.DATA, MediaStore.Images.Media.DATE_MODIFIED},
+                    null, null, null)) {
+                if (cursor != null && cursor.moveToFirst()) {
+                    long modified = cursor.getLong(1);
+                    return new Published(cursor.getString(0), modified > 0 ? modified : System.currentTimeMillis() / 1000);
+                }
+            }
+            throw new IOException("Restored item disappeared: " + uri);
+        }
+
+        @Override
+        String getMediaUri() {
+            return uri.toString();
+        }
+    }
+
+    /**
+     * ".part" file next to the original path. The original modification time is restored on
+     * publish, so the file matches its existing history row.
+     */
+    private static final class PartFileTarget extends RestoreTarget {
+        private final Context context;
+        private final File target;
+        private final File part;
+        private final long modified;
+
+        PartFileTarget(Context context, DatabaseHelper.RestoreItem item) throws IOException {
+            this.context = context;
+            this.target = new File(item.path);
+            this.part = new File(item.path + ".part");
+            this.modified = item.modified;
+            File parent = target.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create " + parent);
+            }
+        }
+
+        @Override
+        long length() {
+            return part.length();
+        }
+
+        @Override
+        OutputStream openOutput(boolean append) throws IOException {
+            return new FileOutputStream(part, append);
+        }
+
+        @Override
+        Published publish() throws IOException {
+            if (!part.renameTo(target)) {
+                throw new IOException("Cannot move restored file to " + target);
+            }
+            target.setLastModified(modified * 1000);
+            MediaScannerConnection.scanFile(context, new String[]{target.getAbsolutePath()}, new String[]{mimeTypeOf(target.getName())}, null);
+            return new Published(target.getAbsolutePath(), target.lastModified() / 1000);
+        }
+
+        @Override
+        String getMediaUri() {
+            return null;
+        }
+    }
+}
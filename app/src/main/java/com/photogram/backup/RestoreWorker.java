@@ -0,0 +1,472 @@
+package com.photogram.backup;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.Response;
+import org.json.JSONObject;
+
+/**
+ * Downloads backed up photos to this device. The queue is built from history rows that have a
+ * Telegram file id, limited to folders known to the {@link TopicRegistry}, skipping files that
+ * still exist.
+ *
+ * Files download in parallel through getFile and the file endpoint, streamed straight into a
+ * {@link RestoreTarget} under a shared {@link BandwidthLimiter}. A partial file is resumed with a
+ * Range request, and every finished file is checkpointed in the queue, so a long restore
+ * survives restarts and continues in time slices like a sync. getFile serves files up to 20 MB
+ * only, so larger uploads are left out of the queue and named in the log.
+ *
+ * A photo uploaded in a pack is fetched with a Range request for just its bytes within the
+ * pack's tar document; the pack's file path is resolved once per run.
+ *
+ * Encrypted uploads are fetched in whole {@link ChunkedCipher} chunks around the wanted bytes and
+ * decrypted on the way into the target, so resuming and pack members work the same way.
+ */
+public class RestoreWorker extends Worker {
+    private static final int NOTIF_ID = 200;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    static final String KEY_FOLDERS = "folders";
+    static final String KEY_REBUILD = "rebuild";
+    static final String KEY_RESTORED_COUNT = "restored_count";
+
+    private final Context ctx;
+    private final SharedPreferences prefs;
+    private final DatabaseHelper dbHelper;
+    private final SyncNotifier notifier;
+    private final long sliceDeadline;
+    private volatile TelegramHelper helper;
+
+    public RestoreWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+        this.ctx = context;
+        this.prefs = context.getSharedPreferences(AppConstants.PREFS_NAME, Context.MODE_PRIVATE);
+        this.dbHelper = DatabaseHelper.getInstance(context);
+        this.notifier = new SyncNotifier(context, NOTIF_ID, "Photogram Restore");
+        this.sliceDeadline = System.currentTimeMillis() + AppConstants.SYNC_SLICE_MS;
+    }
+
+    /**
+     * Start a new restore, replacing any restore in progress
+     * @param folders Folder names to restore, or null for every folder in the registry
+     */
+    public static void start(@NonNull Context context, @Nullable String[] folders) {
+        Data input = new Data.Builder()
+            .putBoolean(KEY_REBUILD, true)
+            .putStringArray(KEY_FOLDERS, folders)
+            .build();
+        enqueue(context, input, ExistingWorkPolicy.REPLACE);
+    }
+
+    private static void enqueue(Context context, Data input, ExistingWorkPolicy policy) {
+        SharedPreferences prefs = context.getSharedPreferences(AppConstants.PREFS_NAME, Context.MODE_PRIVATE);
+        Constraints constraints = new Constraints.Builder()
+            .setRequiredNetworkType(prefs.getBoolean("only_wifi", false) ? NetworkType.UNMETERED : NetworkType.CONNECTED)
+            .setRequiresStorageNotLow(true)
+            .build();
+
+        OneTimeWorkRequest req = new OneTimeWorkRequest.Builder(RestoreWorker.class)
+            .setConstraints(constraints)
+            .setInputData(input)
+            .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(AppConstants.WORK_RESTORE, policy, req);
+    }
+
+    @Override
+    public void onStopped() {
+        TelegramHelper current = helper;
+        if (current != null) {
+            current.cancelAll();
+        }
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        try {
+            return performRestore();
+        } catch (Exception e) {
+            dbHelper.addLog("ERROR", "Restore Failed: " + e.getClass().getSimpleName() + " - " + e.getMessage());
+            return Result.failure();
+        } finally {
+            notifier.cancel();
+        }
+    }
+
+    private Result performRestore() throws Exception {
+        TelegramHelper helper = BackupWorker.createTelegramHelper(prefs);
+        if (helper == null) {
+            dbHelper.addLog("ERROR", "Restore Failed: Chat ID not configured");
+            return Result.failure();
+        }
+        this.helper = helper;
+
+        try {
+            setForegroundAsync(notifier.foregroundInfo("Preparing restore..."));
+        } catch (Exception e) {
+            dbHelper.addLog("WARN", "Failed to set foreground: " + e.getMessage());
+        }
+
+        if (getInputData().getBoolean(KEY_REBUILD, false)) {
+            int queued = buildQueue(helper, getInputData().getStringArray(KEY_FOLDERS));
+            dbHelper.addLog("INFO", "Restore Started: " + queued + " photos to download");
+        }
+
+        List<DatabaseHelper.RestoreItem> pending = dbHelper.getPendingRestores();
+        if (pending.isEmpty()) {
+            dbHelper.addLog("INFO", "Restore Finished: nothing to download");
+            return Result.success();
+        }
+
+        int kbps = prefs.getInt(AppConstants.PREF_RESTORE_BANDWIDTH, AppConstants.DEFAULT_RESTORE_BANDWIDTH_KBPS);
+        BandwidthLimiter limiter = new BandwidthLimiter(kbps * 1024L);
+        AtomicInteger restored = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        Map<String, JSONObject> files = new ConcurrentHashMap<>();
+        Map<String, byte[]> headers = new ConcurrentHashMap<>();
+
+        ExecutorService pool = Executors.newFixedThreadPool(AppConstants.RESTORE_PARALLEL_DOWNLOADS);
+        for (DatabaseHelper.RestoreItem item : pending) {
+            pool.execute(() -> {
+                if (isStopped() || System.currentTimeMillis() > sliceDeadline) {
+                    return;
+                }
+                if (restoreOne(helper, item, files, headers, limiter, bytes)) {
+                    restored.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+            });
+        }
+        pool.shutdown();
+
+        // Report from here rather than from the download threads
+        long startedAt = System.currentTimeMillis();
+        while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+            if (isStopped()) {
+                pool.shutdownNow();
+            }
+            int done = restored.get() + failed.get();
+            long seconds = Math.max(1, (System.currentTimeMillis() - startedAt) / 1000);
+            notifier.showProgress("Restored " + done + "/" + pending.size() + " · " +
+                SyncNotifier.formatFileSize(bytes.get() / seconds) + "/s", done * 100 / pending.size());
+        }
+
+        if (isStopped()) {
+            dbHelper.addLog("WARN", "Restore stopped by system after " + restored.get() + " photos");
+            return Result.success();
+        }
+
+        int remaining = dbHelper.countRestores(DatabaseHelper.RestoreItem.STATE_PENDING);
+        if (remaining > 0 && System.currentTimeMillis() > sliceDeadline) {
+            enqueue(ctx, Data.EMPTY, ExistingWorkPolicy.APPEND_OR_REPLACE);
+            dbHelper.addLog("INFO", "Restore slice finished: " + restored.get() + " photos, " + remaining + " left");
+            return Result.success();
+        }
+        if (remaining > 0 && getRunAttemptCount() < AppConstants.MAX_RETRY_ATTEMPTS) {
+            dbHelper.addLog("INFO", "Restore will retry " + remaining + " photos");
+            return Result.retry();
+        }
+
+        dbHelper.addLog("INFO", "Restore Finished: " + restored.get() + " photos restored, " +
+            dbHelper.countRestores(DatabaseHelper.RestoreItem.STATE_FAILED) + " failed");
+        return Result.success(new Data.Builder()
+            .putInt(KEY_RESTORED_COUNT, restored.get())
+            .build());
+    }
+
+    /**
+     * Queue the history entries of the chosen folders that are missing on this device
+     * @return number of queued files
+     */
+    private int buildQueue(TelegramHelper helper, @Nullable String[] folders) throws Exception {
+        TopicRegistry registry = TopicRegistry.getInstance(ctx);
+        registry.refreshIfStale(helper);
+
+        Set<String> wanted = null;
+        if (folders != null) {
+            wanted = new HashSet<>();
+            for (String folder : folders) {
+                wanted.add(TopicRegistry.normalize(folder));
+            }
+        }
+
+        List<DatabaseHelper.RestoreItem> items = new ArrayList<>();
+        List<String> tooLarge = new ArrayList<>();
+        for (DatabaseHelper.RestoreItem item : dbHelper.getRestorableHistory()) {
+            File file = new File(item.path);
+            File parent = file.getParentFile();
+            if (parent == null || registry.findTopic(parent.getName()) == null) {
+                continue;
+            }
+            if (wanted != null && !wanted.contains(TopicRegistry.normalize(parent.getName()))) {
+                continue;
+            }
+            if (file.exists()) {
+                continue;
+            }
+            if (isTooLarge(item)) {
+                tooLarge.add(file.getName());
+            } else {
+                items.add(item);
+            }
+        }
+        if (!tooLarge.isEmpty()) {
+            logTooLarge(tooLarge);
+        }
+        return dbHelper.replaceRestoreQueue(items);
+    }
+
+    /**
+     * @return true if the upload is known to be larger than bots can download. Packs never are;
+     * files of unknown size are found out by getFile.
+     */
+    private static boolean isTooLarge(DatabaseHelper.RestoreItem item) {
+        if (item.isPacked() || item.size <= 0) {
+            return false;
+        }
+        long uploaded = item.encrypted ? ChunkedCipher.encryptedLength(item.size) : item.size;
+        return uploaded > AppConstants.DOWNLOAD_MAX_BYTES;
+    }
+
+    private void logTooLarge(List<String> names) {
+        StringBuilder message = new StringBuilder("Cannot restore " + names.size() + " photos over " +
+            SyncNotifier.formatFileSize(AppConstants.DOWNLOAD_MAX_BYTES) + ", the most Telegram lets bots download: ");
+        for (int i = 0; i < Math.min(names.size(), AppConstants.RESTORE_NAMES_LOGGED); i++) {
+            message.append(i > 0 ? ", " : "").append(names.get(i));
+        }
+        if (names.size() > AppConstants.RESTORE_NAMES_LOGGED) {
+            message.append(" and ").append(names.size() - AppConstants.RESTORE_NAMES_LOGGED).append(" more");
+        }
+        dbHelper.addLog("WARN", message.toString());
+    }
+
+    /**
+     * Download one file into its target and record it
+     * @param files getFile results of this run by file id, shared by the members of a pack
+     * @param headers Headers of encrypted files of this run by file id, likewise
+     * @return true if the file was restored
+     */
+    private boolean restoreOne(TelegramHelper helper, DatabaseHelper.RestoreItem item, Map<String, JSONObject> files,
+                               Map<String, byte[]> headers, BandwidthLimiter limiter, AtomicLong bytes) {
+        String name = new File(item.path).getName();
+        try {
+            JSONObject info = files.get(item.fileId);
+            if (info == null) {
+                info = helper.getFile(item.fileId);
+                files.put(item.fileId, info);
+            }
+            long remoteSize = info.optLong("file_size", -1);
+            if (remoteSize > AppConstants.DOWNLOAD_MAX_BYTES) {
+                throw new TooLargeException();
+            }
+            ChunkedCipher cipher = null;
+            if (item.encrypted) {
+                cipher = helper.getCipher();
+                if (cipher == null) {
+                    throw new IOException("Encrypted upload, set the encryption passphrase");
+                }
+                if (remoteSize < 0) {
+                    throw new IOException("Size of encrypted upload unknown");
+                }
+                remoteSize = ChunkedCipher.plainLength(remoteSize);
+            }
+            long size = item.isPacked() ? item.size : remoteSize;
+
+            RestoreTarget target = RestoreTarget.open(ctx, item);
+            if (!Objects.equals(target.getMediaUri(), item.mediaUri)) {
+                item.mediaUri = target.getMediaUri();
+                dbHelper.updateRestore(item);
+            }
+
+            long offset = target.length();
+            if (size < 0 || offset < size) {
+                long base = item.isPacked() ? item.packOffset : 0;
+                String filePath = info.getString("file_path");
+                if (cipher != null) {
+                    byte[] header = headers.get(item.fileId);
+                    if (header == null) {
+                        header = downloadHeader(helper, filePath);
+                        headers.put(item.fileId, header);
+                    }
+                    downloadEncrypted(helper, cipher, filePath, header, remoteSize, target, base + offset, base + size, limiter, bytes);
+                } else {
+                    download(helper, filePath, target, base, offset, item.isPacked() ? base + size : -1, limiter, bytes);
+                }
+            }
+            // A body that ended early, or a decrypted range cut at a chunk boundary, keeps its
+            // partial file and is resumed next run
+            if (size >= 0 && target.length() < size) {
+                throw new IOException("Restored file is incomplete");
+            }
+
+            RestoreTarget.Published published = target.publish();
+            dbHelper.markAsRestored(item, published.path, published.modified);
+            item.state = DatabaseHelper.RestoreItem.STATE_DONE;
+            item.error = null;
+            dbHelper.updateRestore(item);
+            return true;
+
+        } catch (InterruptedIOException e) {
+            // Stopped mid-file, the partial file is resumed next run
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            if (isStopped()) {
+                // The download was cancelled, not broken
+                return false;
+            }
+            // No retry gets a file past the download limit
+            boolean tooLarge = e instanceof TooLargeException ||
+                (e.getMessage() != null && e.getMessage().contains(TooLargeException.BOT_API_ERROR));
+            item.attempts++;
+            item.error = tooLarge ? new TooLargeException().getMessage() : e.getMessage();
+            if (tooLarge || item.attempts >= AppConstants.RESTORE_MAX_ATTEMPTS) {
+                item.state = DatabaseHelper.RestoreItem.STATE_FAILED;
+                dbHelper.addLog("ERROR", "Failed to restore: " + name + " - " + item.error);
+            }
+            dbHelper.updateRestore(item);
+            return false;
+        }
+    }
+
+    /**
+     * Stream bytes [base + offset, end) of a remote file into the target, or everything from
+     * base + offset when end is -1. base is where the file starts within a pack, 0 otherwise.
+     */
+    private void download(TelegramHelper helper, String filePath, RestoreTarget target, long base, long offset, long end,
+                          BandwidthLimiter limiter, AtomicLong bytes) throws IOException, InterruptedException {
+        try (Response res = helper.openDownload(filePath, base + offset, end)) {
+            if (!res.isSuccessful()) {
+                throw new IOException("HTTP " + res.code());
+            }
+            boolean ranged = res.code() == 206;
+            boolean append = offset > 0 && ranged;
+            long remaining = end < 0 ? Long.MAX_VALUE : end - base - (append ? offset : 0);
+
+            try (InputStream in = res.body().byteStream(); OutputStream out = target.openOutput(append)) {
+                // Range ignored by the server, seek to the file inside the pack
+                skipFully(in, ranged ? 0 : base);
+                copy(in, out, remaining, limiter, bytes);
+            }
+        }
+    }
+
+    /**
+     * Stream plaintext bytes [from, to) of an encrypted remote file into the target, after what a
+     * previous attempt already wrote there
+     * @param plainLength Plaintext length of the whole remote file
+     */
+    private void downloadEncrypted(TelegramHelper helper, ChunkedCipher cipher, String filePath, byte[] header,
+                                   long plainLength, RestoreTarget target, long from, long to,
+                                   BandwidthLimiter limiter, AtomicLong bytes) throws IOException, InterruptedException {
+        long first = from / ChunkedCipher.CHUNK_SIZE;
+        long last = (to - 1) / ChunkedCipher.CHUNK_SIZE;
+        long start = ChunkedCipher.chunkStart(first);
+        long end = Math.min(ChunkedCipher.chunkStart(last + 1), ChunkedCipher.encryptedLength(plainLength));
+
+        try (Response res = helper.openDownload(filePath, start, end)) {
+            if (!res.isSuccessful()) {
+                throw new IOException("HTTP " + res.code());
+            }
+            InputStream raw = res.body().byteStream();
+            skipFully(raw, res.code() == 206 ? 0 : start);
+            try (InputStream in = cipher.decrypt(header, raw, first, plainLength);
+                 OutputStream out = target.openOutput(target.length() > 0)) {
+                skipFully(in, from - first * ChunkedCipher.CHUNK_SIZE);
+                copy(in, out, to - from, limiter, bytes);
+            }
+        }
+    }
+
+    /**
+     * Fetch the header of an encrypted file, which holds its key salt and nonce prefix
+     */
+    private static byte[] downloadHeader(TelegramHelper helper, String filePath) throws IOException {
+        try (Response res = helper.openDownload(filePath, 0, ChunkedCipher.HEADER_SIZE)) {
+            if (!res.isSuccessful()) {
+                throw new IOException("HTTP " + res.code());
+            }
+            byte[] header = new byte[ChunkedCipher.HEADER_SIZE];
+            try (InputStream in = res.body().byteStream()) {
+                int total = 0;
+                int read;
+                while (total < header.length && (read = in.read(header, total, header.length - total)) != -1) {
+                    total += read;
+                }
+                if (total != header.length || !ChunkedCipher.isEncrypted(header)) {
+                    throw new IOException("Not an encrypted upload");
+                }
+            }
+            return header;
+        }
+    }
+
+    private void copy(InputStream in, OutputStream out, long remaining, BandwidthLimiter limiter, AtomicLong bytes)
+            throws IOException, InterruptedException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+            if (isStopped()) {
+                throw new InterruptedIOException("Restore stopped");
+            }
+            limiter.acquire(read);
+            out.write(buffer, 0, read);
+            bytes.addAndGet(read);
+            remaining -= read;
+        }
+    }
+
+    /**
+     * The file is larger than bots can download
+     */
+    private static final class TooLargeException extends IOException {
+        /** What getFile answers for such a file */
+        static final String BOT_API_ERROR = "file is too big";
+
+        TooLargeException() {
+            super("Larger than the " + SyncNotifier.formatFileSize(AppConstants.DOWNLOAD_MAX_BYTES) +
+                " Telegram lets bots download");
+        }
+    }
+
+    private static void skipFully(InputStream in, long skip) throws IOException {
+        while (skip > 0) {
+            long skipped = in.skip(skip);
+            if (skipped <= 0) {
+                throw new IOException("File is shorter than expected");
+            }
+            skip -= skipped;
+        }
+    }
+}
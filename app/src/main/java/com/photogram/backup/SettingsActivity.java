@@ -8,8 +8,10 @@ import android.widget.*;
 
 public class SettingsActivity extends Activity {
     SharedPreferences prefs;
-    EditText etBotToken, etChatId, etInterval, etApiId, etApiHash;
+    EditText etBotToken, etChatId, etInterval, etApiId, etApiHash, etRestoreBandwidth, etEncryptionPassphrase;
     RadioButton rbWifi, rbAny;
+    Switch swSkipNearDuplicates, swEncryptUploads;
+    private final TaskQueue.Scope tasks = PhotogramApp.getTasks().newScope();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -22,8 +24,12 @@ public class SettingsActivity extends Activity {
         etInterval = findViewById(R.id.etInterval);
         etApiId = findViewById(R.id.etApiId);
         etApiHash = findViewById(R.id.etApiHash);
+        etRestoreBandwidth = findViewById(R.id.etRestoreBandwidth);
         rbWifi = findViewById(R.id.rbWifi);
         rbAny = findViewById(R.id.rbAny);
+        swSkipNearDuplicates = findViewById(R.id.swSkipNearDuplicates);
+        etEncryptionPassphrase = findViewById(R.id.etEncryptionPassphrase);
+        swEncryptUploads = findViewById(R.id.swEncryptUploads);
         Button btnSave = findViewById(R.id.btnSave);
 
         // Load existing values
@@ -32,22 +38,66 @@ public class SettingsActivity extends Activity {
         etInterval.setText(String.valueOf(prefs.getInt("sync_interval", 60)));
         etApiId.setText(prefs.getString("api_id", ""));
         etApiHash.setText(prefs.getString("api_hash", ""));
+        etRestoreBandwidth.setText(String.valueOf(prefs.getInt("restore_bandwidth_kbps", AppConstants.DEFAULT_RESTORE_BANDWIDTH_KBPS)));
+        
+        swSkipNearDuplicates.setChecked(prefs.getBoolean(AppConstants.PREF_SKIP_NEAR_DUPLICATES, false));
+        // Only keys derived from it are stored, so there is nothing to show
+        if (EncryptionKeys.hasKeys(prefs)) {
+            etEncryptionPassphrase.setHint("Saved, type a new one to change it");
+        }
+        swEncryptUploads.setChecked(prefs.getBoolean(AppConstants.PREF_ENCRYPT_UPLOADS, false));
         
         if (prefs.getBoolean("only_wifi", false)) rbWifi.setChecked(true);
         else rbAny.setChecked(true);
 
         btnSave.setOnClickListener(v -> {
-            prefs.edit()
+            int restoreBandwidth;
+            try {
+                restoreBandwidth = Math.max(0, Integer.parseInt(etRestoreBandwidth.getText().toString().trim()));
+            } catch (NumberFormatException e) {
+                restoreBandwidth = AppConstants.DEFAULT_RESTORE_BANDWIDTH_KBPS;
+            }
+            String passphrase = etEncryptionPassphrase.getText().toString();
+            if (swEncryptUploads.isChecked() && passphrase.isEmpty() && !EncryptionKeys.hasKeys(prefs)) {
+                Toast.makeText(this, "Set a passphrase to encrypt uploads", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            SharedPreferences.Editor editor = prefs.edit()
                 .putString("custom_bot_token", etBotToken.getText().toString().trim())
                 .putString("chat_id", etChatId.getText().toString().trim())
                 .putInt("sync_interval", Integer.parseInt(etInterval.getText().toString()))
                 .putString("api_id", etApiId.getText().toString().trim())
                 .putString("api_hash", etApiHash.getText().toString().trim())
-                .putBoolean("only_wifi", rbWifi.isChecked())
-                .apply();
-            
-            Toast.makeText(this, "Settings Saved!", Toast.LENGTH_SHORT).show();
-            finish();
+                .putInt("restore_bandwidth_kbps", restoreBandwidth)
+                .putBoolean(AppConstants.PREF_SKIP_NEAR_DUPLICATES, swSkipNearDuplicates.isChecked())
+                .putBoolean(AppConstants.PREF_ENCRYPT_UPLOADS, swEncryptUploads.isChecked())
+                .putBoolean("only_wifi", rbWifi.isChecked());
+            if (passphrase.isEmpty()) {
+                save(editor);
+                return;
+            }
+
+            // Key derivation takes a while on purpose
+            btnSave.setEnabled(false);
+            tasks.run(TaskQueue.Priority.VISIBLE, () -> {
+                EncryptionKeys.setPassphrase(prefs, passphrase);
+                return null;
+            }, done -> save(editor), error -> {
+                btnSave.setEnabled(true);
+                Toast.makeText(this, "Could not save the passphrase: " + error.getMessage(), Toast.LENGTH_LONG).show();
+            });
         });
     }
+
+    private void save(SharedPreferences.Editor editor) {
+        editor.apply();
+        Toast.makeText(this, "Settings Saved!", Toast.LENGTH_SHORT).show();
+        finish();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        tasks.cancel();
+    }
 }
\ No newline at end of file
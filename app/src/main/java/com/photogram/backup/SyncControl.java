@@ -0,0 +1,124 @@
+package com.photogram.backup;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+import androidx.work.WorkManager;
+
+/**
+ * Pause and resume of backups by the user, e.g. to free the uplink.
+ *
+ * Pausing cancels the running sync chain. Its workers cancel their in-flight Telegram calls when
+ * stopped, so the uplink is free within milliseconds. Every finished photo is already in the
+ * history and the folder checkpoints, so nothing done is lost. While paused, scheduled and
+ * realtime syncs skip. Resuming continues the interrupted run with its own window, like the
+ * continuation after a time slice.
+ */
+public final class SyncControl {
+    static final String ACTION_PAUSE = "com.photogram.backup.action.PAUSE_SYNC";
+    static final String ACTION_RESUME = "com.photogram.backup.action.RESUME_SYNC";
+    private static final int NOTIF_ID_PAUSED = 2;
+
+    private static final String PREF_RUN_STARTED_AT = "run_started_at";
+    private static final String PREF_RUN_SINCE = "run_since";
+    private static final String PREF_RUN_MODE = "run_mode";
+
+    private SyncControl() {
+    }
+
+    public static boolean isPaused(@NonNull SharedPreferences prefs) {
+        return prefs.getBoolean(AppConstants.PREF_SYNC_PAUSED, false);
+    }
+
+    @WorkerThread
+    public static void pause(@NonNull Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(AppConstants.PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putBoolean(AppConstants.PREF_SYNC_PAUSED, true).commit();
+
+        WorkManager wm = WorkManager.getInstance(context);
+        wm.cancelUniqueWork(AppConstants.WORK_MANUAL);
+        wm.cancelUniqueWork(AppConstants.WORK_SHARDS);
+        wm.cancelUniqueWork(AppConstants.WORK_CONTINUATION);
+
+        DatabaseHelper.getInstance(context).addLog("INFO", "Sync paused by user");
+        new SyncNotifier(context, NOTIF_ID_PAUSED).showPaused(pendingIntent(context, ACTION_RESUME));
+    }
+
+    @WorkerThread
+    public static void resume(@NonNull Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(AppConstants.PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putBoolean(AppConstants.PREF_SYNC_PAUSED, false).commit();
+        new SyncNotifier(context, NOTIF_ID_PAUSED).cancel();
+
+        if (prefs.contains(PREF_RUN_STARTED_AT)) {
+            SyncMode mode = SyncMode.fromName(prefs.getString(PREF_RUN_MODE, null), SyncMode.PERIODIC);
+            BackupWorker.enqueueContinuation(context, prefs.getLong(PREF_RUN_STARTED_AT, 0), prefs.getLong(PREF_RUN_SINCE, 0), mode, false);
+            DatabaseHelper.getInstance(context).addLog("INFO", "Sync resumed by user (" + mode + " run)");
+        } else {
+            DatabaseHelper.getInstance(context).addLog("INFO", "Sync resumed by user, nothing was interrupted");
+        }
+    }
+
+    /**
+     * Remember the window of the run in progress, so a pause can resume it
+     */
+    static void recordRun(@NonNull SharedPreferences prefs, long startedAt, long since, @NonNull SyncMode mode) {
+        prefs.edit()
+            .putLong(PREF_RUN_STARTED_AT, startedAt)
+            .putLong(PREF_RUN_SINCE, since)
+            .putString(PREF_RUN_MODE, mode.name())
+            .apply();
+    }
+
+    /**
+     * The run finished, there is nothing to resume
+     */
+    static void clearRun(@NonNull SharedPreferences prefs) {
+        prefs.edit()
+            .remove(PREF_RUN_STARTED_AT)
+            .remove(PREF_RUN_SINCE)
+            .remove(PREF_RUN_MODE)
+            .apply();
+    }
+
+    static PendingIntent pendingIntent(@NonNull Context context, @NonNull String action) {
+        Intent intent = new Intent(context, Receiver.class).setAction(action);
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            flags |= PendingIntent.FLAG_IMMUTABLE;
+        }
+        return PendingIntent.getBroadcast(context, action.hashCode(), intent, flags);
+    }
+
+    /**
+     * Pause and resume actions of the notifications, run on the task queue while the broadcast
+     * is kept alive
+     */
+    public static final class Receiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (!ACTION_PAUSE.equals(action) && !ACTION_RESUME.equals(action)) {
+                return;
+            }
+            Context app = context.getApplicationContext();
+            PendingResult result = goAsync();
+            PhotogramApp.getTasks().execute(TaskQueue.Priority.VISIBLE, () -> {
+                try {
+                    if (ACTION_PAUSE.equals(action)) {
+                        pause(app);
+                    } else {
+                        resume(app);
+                    }
+                } finally {
+                    result.finish();
+                }
+            });
+        }
+    }
+}
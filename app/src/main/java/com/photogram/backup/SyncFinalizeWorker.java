@@ -0,0 +1,155 @@
+package com.photogram.backup;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+import java.io.IOException;
+
+/**
+ * Last step of a sync chain. Runs once all shards have succeeded. If a shard ran out of its time
+ * slice the next slice is enqueued; otherwise the history backup is uploaded when something
+ * changed, the delta-sync baseline moves forward and the run's metrics row is marked finished.
+ */
+public class SyncFinalizeWorker extends Worker {
+    private static final int MAX_RETRY_ATTEMPTS = AppConstants.MAX_RETRY_ATTEMPTS;
+
+    private final SharedPreferences prefs;
+    private final DatabaseHelper dbHelper;
+
+    public SyncFinalizeWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+        this.prefs = context.getSharedPreferences(AppConstants.PREFS_NAME, Context.MODE_PRIVATE);
+        this.dbHelper = DatabaseHelper.getInstance(context);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        // Inputs are merged with ArrayCreatingInputMerger, so every key holds an array
+        Data input = getInputData();
+        int count = sum(input.getIntArray(FolderSyncWorker.KEY_UPLOADED_COUNT));
+        long startedAt = max(input.getLongArray(BackupWorker.KEY_SYNC_STARTED_AT));
+
+        // Cancelled shards never get here; shards that started after a pause report a continuation
+        if (SyncControl.isPaused(prefs)) {
+            dbHelper.addLog("INFO", "Sync paused after " + count + " photos uploaded");
+            return Result.success(new Data.Builder()
+                .putInt(FolderSyncWorker.KEY_UPLOADED_COUNT, count)
+                .build());
+        }
+
+        if (any(input.getBooleanArray(FolderSyncWorker.KEY_NEEDS_CONTINUATION))) {
+            long since = max(input.getLongArray(BackupWorker.KEY_SINCE));
+            SyncMode mode = modeOf(input);
+            boolean bulk = any(input.getBooleanArray(BackupWorker.KEY_BULK));
+            // History export and the baseline wait for the last slice; checkpoints keep the progress
+            BackupWorker.enqueueContinuation(getApplicationContext(), startedAt, since, mode, bulk);
+            dbHelper.addLog("INFO", "Sync slice finished: " + count + " photos uploaded, continuation enqueued" + (bulk ? " (bulk mode)" : ""));
+            return Result.success(new Data.Builder()
+                .putInt(FolderSyncWorker.KEY_UPLOADED_COUNT, count)
+                .build());
+        }
+
+        TelegramHelper helper = BackupWorker.createTelegramHelper(prefs);
+        if (helper == null) {
+            dbHelper.addLog("ERROR", "Sync Failed: Chat ID not configured");
+            return Result.failure();
+        }
+
+        SyncMetrics metrics = new SyncMetrics();
+        if (getRunAttemptCount() > 0) {
+            metrics.retries++;
+        }
+        long exportStart = System.nanoTime();
+        boolean retry = false;
+        try {
+            TopicRegistry registry = TopicRegistry.getInstance(getApplicationContext());
+
+            // Update cloud history if needed
+            if (count > 0 || registry.getCloudHistoryId() == null) {
+                dbHelper.addLog("DEBUG", "Updating cloud history registry...");
+                String exportedJson = dbHelper.exportHistoryToJson();
+                if (exportedJson != null && !exportedJson.isEmpty()) {
+                    String fid = helper.uploadHistoryFile(exportedJson);
+                    if (fid != null && !fid.isEmpty()) {
+                        registry.setCloudHistoryId(fid);
+                    }
+                }
+            }
+            registry.mirror(helper);
+        } catch (IOException e) {
+            dbHelper.addLog("ERROR", "Network error while saving history: " + e.getMessage());
+            retry = getRunAttemptCount() < MAX_RETRY_ATTEMPTS;
+        } catch (Exception e) {
+            dbHelper.addLog("ERROR", "Failed to save cloud history: " + e.getMessage());
+        }
+        metrics.addPhase(SyncMetrics.Phase.EXPORT, exportStart);
+        metrics.network.merge(helper.getNetworkMetrics());
+        recordMetrics(input, startedAt, metrics);
+        if (retry) {
+            return Result.retry();
+        }
+        if (startedAt > 0) {
+            dbHelper.finishSyncRun(startedAt, System.currentTimeMillis());
+        }
+
+        // The backlog is done, a continuation still waiting for charging has nothing left to do
+        WorkManager.getInstance(getApplicationContext()).cancelUniqueWork(AppConstants.WORK_CONTINUATION);
+        dbHelper.clearSyncCheckpoints();
+        SyncControl.clearRun(prefs);
+
+        // Use the plan time, not now, so photos modified during the sync are picked up next run
+        prefs.edit().putLong("last_sync_timestamp", startedAt > 0 ? startedAt : System.currentTimeMillis()).apply();
+
+        AccountQuota quota = AccountQuota.getInstance();
+        String resultMsg = "Sync Finished: " + count + " photos uploaded";
+        if (quota.isLimited()) {
+            resultMsg += " (" + quota.getUsage() + "/" + quota.getDailyLimit() + " daily limit)";
+        }
+        dbHelper.addLog("INFO", resultMsg);
+
+        return Result.success(new Data.Builder()
+            .putInt(FolderSyncWorker.KEY_UPLOADED_COUNT, count)
+            .putInt("usage_count", quota.getUsage())
+            .build());
+    }
+
+    private void recordMetrics(Data input, long startedAt, SyncMetrics metrics) {
+        if (startedAt <= 0) {
+            return;
+        }
+        dbHelper.addSyncRunMetrics(startedAt, modeOf(input).name(), metrics);
+    }
+
+    private static SyncMode modeOf(Data input) {
+        String[] modes = input.getStringArray(BackupWorker.KEY_SYNC_MODE);
+        return SyncMode.fromName(modes != null && modes.length > 0 ? modes[0] : null, SyncMode.PERIODIC);
+    }
+
+    private static int sum(int[] values) {
+        int total = 0;
+        if (values != null) {
+            for (int v : values) total += v;
+        }
+        return total;
+    }
+
+    private static boolean any(boolean[] values) {
+        if (values != null) {
+            for (boolean v : values) if (v) return true;
+        }
+        return false;
+    }
+
+    private static long max(long[] values) {
+        long result = 0;
+        if (values != null) {
+            for (long v : values) result = Math.max(result, v);
+        }
+        return result;
+    }
+}
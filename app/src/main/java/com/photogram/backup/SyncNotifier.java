@@ -0,0 +1,138 @@
+package com.photogram.backup;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.os.Build;
+import androidx.core.app.NotificationCompat;
+import androidx.work.ForegroundInfo;
+
+/**
+ * Foreground notification of one sync worker. The builder is created once and only its
+ * text and progress bar change on updates.
+ */
+public class SyncNotifier {
+    private static final String CHANNEL_ID = "sync_channel";
+
+    private final Context ctx;
+    private final NotificationManager nm;
+    private final int notificationId;
+    private final String title;
+    private NotificationCompat.Builder builder;
+    private boolean pausable;
+
+    public SyncNotifier(Context context, int notificationId) {
+        this(context, notificationId, "Photogram Sync");
+    }
+
+    public SyncNotifier(Context context, int notificationId, String title) {
+        this.ctx = context;
+        this.title = title;
+        this.nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        this.notificationId = notificationId;
+        createChannel();
+    }
+
+    /**
+     * Offer a Pause action, see {@link SyncControl}
+     */
+    public SyncNotifier withPauseAction() {
+        pausable = true;
+        return this;
+    }
+
+    public ForegroundInfo foregroundInfo(String message) {
+        return new ForegroundInfo(notificationId, getBuilder()
+            .setContentText(message)
+            .setProgress(0, 0, false)
+            .build());
+    }
+
+    public void showProgress(SyncProgress.Snapshot snap) {
+        if (nm == null || snap.currentFile == null) {
+            return;
+        }
+        
+        String text = "Uploading " + snap.currentFile + " (" + Math.min(snap.filesDone + 1, snap.filesTotal) + "/" + snap.filesTotal + ")";
+        if (snap.bytesPerSecond > 0) {
+            text += " · " + formatFileSize(snap.bytesPerSecond) + "/s";
+        }
+        showProgress(text, snap.getPercent());
+    }
+
+    /**
+     * Show any progress line, e.g. of a restore
+     * @param percent 0-100
+     */
+    public void showProgress(String text, int percent) {
+        if (nm == null) {
+            return;
+        }
+        try {
+            nm.notify(notificationId, getBuilder()
+                .setContentText(text)
+                .setProgress(100, percent, false)
+                .build());
+        } catch (Exception e) {
+            // Notification update failed, but don't crash the sync
+        }
+    }
+
+    /**
+     * Dismissable notice that backups are paused, with a Resume action
+     */
+    public void showPaused(PendingIntent resume) {
+        if (nm == null) {
+            return;
+        }
+        nm.notify(notificationId, new NotificationCompat.Builder(ctx, CHANNEL_ID)
+            .setSmallIcon(android.R.drawable.ic_media_pause)
+            .setContentTitle(title)
+            .setContentText("Backup paused")
+            .setPriority(NotificationCompat.PRIORITY_LOW)
+            .addAction(android.R.drawable.ic_media_play, "Resume", resume)
+            .build());
+    }
+
+    public void cancel() {
+        if (nm != null) {
+            nm.cancel(notificationId);
+        }
+    }
+
+    private NotificationCompat.Builder getBuilder() {
+        if (builder == null) {
+            builder = new NotificationCompat.Builder(ctx, CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.stat_notify_sync)
+                .setContentTitle(title)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW);
+            if (pausable) {
+                builder.addAction(android.R.drawable.ic_media_pause, "Pause", SyncControl.pendingIntent(ctx, SyncControl.ACTION_PAUSE));
+            }
+        }
+        return builder;
+    }
+
+    private void createChannel() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(
+                CHANNEL_ID,
+                "Photo Backup Sync",
+                NotificationManager.IMPORTANCE_LOW
+            );
+            channel.setDescription("Background photo backup synchronization");
+            channel.setShowBadge(false);
+            
+            if (nm != null) {
+                nm.createNotificationChannel(channel);
+            }
+        }
+    }
+
+    static String formatFileSize(long bytes) {
+        return SyncProgress.formatFileSize(bytes);
+    }
+}
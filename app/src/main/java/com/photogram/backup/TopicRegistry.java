@@ -0,0 +1,286 @@
+package com.photogram.backup;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import org.json.JSONObject;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Folder name to forum topic registry. The local SQLite copy is the source of truth and carries
+ * a version that is bumped on every change.
+ *
+ * Telegram keeps a mirror so a reinstall with the same bot and chat finds its topics again: the
+ * registry is a JSON document, encrypted like the history when uploads are, whose message is
+ * replaced in place with editMessageMedia, and a small pinned pointer message is updated with
+ * editMessageText. The pinned message is only read with getChat when the local copy is stale. Any document but the one this install mirrored
+ * last is merged in, whatever its version, as another install sharing the chat may have added
+ * topics of its own. The old format, the whole map as the pinned text, is still read and turned
+ * into a pointer on the next mirror.
+ */
+public class TopicRegistry {
+    private static final String TAG = "TopicRegistry";
+
+    private static final String DOCUMENT_NAME = "registry.json";
+
+    // registry_meta keys
+    private static final String META_VERSION = "version";
+    private static final String META_MIRRORED_VERSION = "mirrored_version";
+    private static final String META_MIRRORED_FILE = "mirrored_file_id";
+    private static final String META_MIRRORED_ENCRYPTED = "mirrored_encrypted";
+    private static final String META_CHECKED_AT = "checked_at";
+    private static final String META_HISTORY_ID = "cloud_history_id";
+    private static final String META_POINTER_MESSAGE = "pointer_message_id";
+    private static final String META_DOCUMENT_MESSAGE = "document_message_id";
+
+    private static volatile TopicRegistry instance;
+
+    private final DatabaseHelper dbHelper;
+    private final Map<String, String> topics;
+    private final Map<String, String> byNormalizedName = new HashMap<>();
+    private final Map<String, String> meta;
+
+    private TopicRegistry(@NonNull DatabaseHelper dbHelper) {
+        this.dbHelper = dbHelper;
+        this.topics = dbHelper.getTopics();
+        this.meta = dbHelper.getRegistryMeta();
+        for (Map.Entry<String, String> entry : topics.entrySet()) {
+            indexName(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @NonNull
+    public static TopicRegistry getInstance(@NonNull Context context) {
+        if (instance == null) {
+            synchronized (TopicRegistry.class) {
+                if (instance == null) {
+                    instance = new TopicRegistry(DatabaseHelper.getInstance(context));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Key of the name index; matches names regardless of case and surrounding whitespace
+     */
+    @NonNull
+    static String normalize(@NonNull String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return Topic id of a folder name, exact match first, or null if unknown
+     */
+    @Nullable
+    public synchronized String findTopic(@NonNull String folderName) {
+        String topicId = topics.get(folderName);
+        return topicId != null ? topicId : byNormalizedName.get(normalize(folderName));
+    }
+
+    /**
+     * Gets or creates the topic of a folder. New topics are stored locally right away, so a
+     * failure later in the sync never leads to a duplicate topic.
+     */
+    public synchronized String getOrCreateTopic(@NonNull String folderName, @NonNull TelegramHelper helper) throws Exception {
+        String existingId = findTopic(folderName);
+        if (existingId != null && !existingId.isEmpty()) {
+            return existingId;
+        }
+
+        String topicId = helper.createTopic(folderName);
+        if (topicId != null && !topicId.isEmpty()) {
+            topics.put(folderName, topicId);
+            indexName(folderName, topicId);
+            persist(Collections.singletonMap(folderName, topicId), bumpVersion());
+        }
+        return topicId;
+    }
+
+    @Nullable
+    public synchronized String getCloudHistoryId() {
+        return meta.get(META_HISTORY_ID);
+    }
+
+    public synchronized void setCloudHistoryId(@NonNull String fileId) {
+        if (fileId.equals(meta.get(META_HISTORY_ID))) {
+            return;
+        }
+        Map<String, String> changed = bumpVersion();
+        changed.put(META_HISTORY_ID, fileId);
+        persist(Collections.emptyMap(), changed);
+    }
+
+    public synchronized int size() {
+        return topics.size();
+    }
+
+    /**
+     * @return true if the mirror has not been read recently, or never
+     */
+    public synchronized boolean isStale() {
+        long checkedAt = metaLong(META_CHECKED_AT);
+        return checkedAt <= 0 || System.currentTimeMillis() - checkedAt > AppConstants.REGISTRY_REFRESH_MS;
+    }
+
+    /**
+     * Merge the Telegram mirror into the local registry if the local copy is stale. Without any
+     * local state a failure is thrown, since creating topics blind would duplicate them; otherwise
+     * the local copy is used and the check is repeated next sync.
+     * @return true if the mirror was read
+     */
+    public synchronized boolean refreshIfStale(@NonNull TelegramHelper helper) throws Exception {
+        if (!isStale()) {
+            return false;
+        }
+
+        try {
+            JSONObject pinned = helper.getPinnedMessage();
+            Map<String, String> changed = new HashMap<>();
+            if (pinned != null && RegistryCodec.isPointer(pinned.optString("text", ""))) {
+                merge(helper, pinned, changed);
+            }
+            changed.put(META_CHECKED_AT, String.valueOf(System.currentTimeMillis()));
+            persist(Collections.emptyMap(), changed);
+            return true;
+        } catch (Exception e) {
+            if (meta.get(META_CHECKED_AT) == null) {
+                throw e;
+            }
+            Log.w(TAG, "Using local topic registry, mirror check failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void merge(TelegramHelper helper, JSONObject pinned, Map<String, String> changed) throws Exception {
+        long localVersion = metaLong(META_VERSION);
+        RegistryCodec.Pointer pointer = RegistryCodec.decodePointer(pinned.getString("text"));
+        // Our pointer, or a legacy registry message we replace in place
+        changed.put(META_POINTER_MESSAGE, String.valueOf(pinned.optInt("message_id")));
+
+        Map<String, String> remoteTopics;
+        String remoteHistory;
+        long remoteVersion;
+        if (!pointer.isLegacy()) {
+            remoteVersion = pointer.version;
+            changed.put(META_DOCUMENT_MESSAGE, String.valueOf(pointer.documentMessage));
+            // Only our own last mirror can be skipped: another install sharing the chat may have
+            // written different topics under a version no higher than ours
+            if (pointer.documentFileId.equals(meta.get(META_MIRRORED_FILE))) {
+                return;
+            }
+            RegistryCodec.Document doc = RegistryCodec.decodeDocument(helper.downloadFile(pointer.documentFileId));
+            remoteTopics = doc.topics;
+            remoteHistory = doc.historyId;
+        } else {
+            remoteVersion = 0;
+            remoteTopics = pointer.legacyTopics;
+            remoteHistory = pointer.historyId;
+        }
+
+        Map<String, String> added = new HashMap<>();
+        for (Map.Entry<String, String> entry : remoteTopics.entrySet()) {
+            if (!topics.containsKey(entry.getKey())) {
+                topics.put(entry.getKey(), entry.getValue());
+                indexName(entry.getKey(), entry.getValue());
+                added.put(entry.getKey(), entry.getValue());
+            }
+        }
+        String history = meta.get(META_HISTORY_ID);
+        if (remoteHistory != null && (remoteVersion > localVersion || history == null)) {
+            history = remoteHistory;
+            changed.put(META_HISTORY_ID, remoteHistory);
+        }
+
+        // Anything the mirror lacks, local-only topics or a local history id, or a legacy mirror,
+        // means the mirror needs rewriting
+        boolean localAhead = remoteVersion == 0 || !remoteTopics.entrySet().containsAll(topics.entrySet()) ||
+            !Objects.equals(history, remoteHistory);
+        long version = Math.max(localVersion, remoteVersion) + (localAhead ? 1 : 0);
+        changed.put(META_VERSION, String.valueOf(version));
+        if (!localAhead) {
+            changed.put(META_MIRRORED_VERSION, String.valueOf(version));
+            if (!pointer.isLegacy()) {
+                changed.put(META_MIRRORED_FILE, pointer.documentFileId);
+            }
+        }
+        dbHelper.saveRegistry(added, Collections.emptyMap());
+    }
+
+    /**
+     * Write the current registry to Telegram if it changed since the last mirror, or if
+     * encryption was turned on or off since
+     * @return true if the mirror was updated
+     */
+    public synchronized boolean mirror(@NonNull TelegramHelper helper) throws Exception {
+        long version = metaLong(META_VERSION);
+        boolean encrypted = helper.isEncryptingUploads();
+        if (metaLong(META_MIRRORED_VERSION) >= version && encrypted == (metaLong(META_MIRRORED_ENCRYPTED) == 1)) {
+            return false;
+        }
+
+        String historyId = meta.get(META_HISTORY_ID);
+        String doc = RegistryCodec.encodeDocument(version, topics, historyId);
+
+        int documentMessage = (int) metaLong(META_DOCUMENT_MESSAGE);
+        JSONObject sent = documentMessage > 0 ? helper.editTextDocument(documentMessage, DOCUMENT_NAME, doc) : null;
+        if (sent == null) {
+            sent = helper.sendTextDocument(DOCUMENT_NAME, doc);
+            documentMessage = sent.getInt("message_id");
+        }
+
+        String fileId = sent.getJSONObject("document").getString("file_id");
+        String text = RegistryCodec.encodePointer(version, fileId, documentMessage, historyId);
+
+        int pointerMessage = (int) metaLong(META_POINTER_MESSAGE);
+        if (pointerMessage <= 0 || !helper.editMessageText(pointerMessage, text)) {
+            pointerMessage = helper.sendPinnedMessage(text);
+        }
+
+        Map<String, String> changed = new HashMap<>();
+        changed.put(META_MIRRORED_VERSION, String.valueOf(version));
+        changed.put(META_MIRRORED_FILE, fileId);
+        changed.put(META_MIRRORED_ENCRYPTED, encrypted ? "1" : "0");
+        changed.put(META_DOCUMENT_MESSAGE, String.valueOf(documentMessage));
+        changed.put(META_POINTER_MESSAGE, String.valueOf(pointerMessage));
+        persist(Collections.emptyMap(), changed);
+        return true;
+    }
+
+    private void indexName(String name, String topicId) {
+        String key = normalize(name);
+        if (!byNormalizedName.containsKey(key)) {
+            byNormalizedName.put(key, topicId);
+        }
+    }
+
+    private Map<String, String> bumpVersion() {
+        Map<String, String> changed = new HashMap<>();
+        changed.put(META_VERSION, String.valueOf(metaLong(META_VERSION) + 1));
+        return changed;
+    }
+
+    private void persist(Map<String, String> changedTopics, Map<String, String> changedMeta) {
+        meta.putAll(changedMeta);
+        if (!dbHelper.saveRegistry(changedTopics, changedMeta)) {
+            Log.e(TAG, "Topic registry changes were not saved");
+        }
+    }
+
+    private long metaLong(String key) {
+        String value = meta.get(key);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.photogram.backup;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+import com.google.firebase.auth.FirebaseAuth;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dry run of a sync: the same {@link CandidateScan} and packing as the upload shards, without
+ * uploading, hashing or writing anything. The ETA uses the upload rate measured by earlier syncs.
+ */
+final class UploadPlanner {
+    private static final double RATE_SMOOTHING = 0.5;
+
+    interface Callback {
+        void onPlan(@NonNull UploadPlan plan, long bytesPerSecond);
+    }
+
+    private UploadPlanner() {
+    }
+
+    /**
+     * Plan in the background and deliver the result on the main thread. A plan scans every
+     * photo, so it waits behind the screen's quicker reads.
+     * @param scope Tasks of the screen showing the plan
+     */
+    @MainThread
+    static void planAsync(@NonNull Context context, @NonNull SyncMode mode, @NonNull TaskQueue.Scope scope,
+                          @NonNull Callback callback) {
+        Context app = context.getApplicationContext();
+        SharedPreferences prefs = app.getSharedPreferences(AppConstants.PREFS_NAME, Context.MODE_PRIVATE);
+        scope.run(TaskQueue.Priority.BACKGROUND, () -> plan(app, mode), plan -> callback.onPlan(plan, getMeasuredRate(prefs)));
+    }
+
+    /**
+     * @param mode A manual sync looks at every photo, the others only at those after the last sync
+     */
+    @WorkerThread
+    @NonNull
+    static UploadPlan plan(@NonNull Context context, @NonNull SyncMode mode) {
+        SharedPreferences prefs = context.getSharedPreferences(AppConstants.PREFS_NAME, Context.MODE_PRIVATE);
+        DatabaseHelper dbHelper = DatabaseHelper.getInstance(context);
+        FolderSelection folderSelection = FolderSelection.getInstance(context);
+
+        long since = mode == SyncMode.MANUAL ? 0 : prefs.getLong("last_sync_timestamp", 0) / 1000;
+        Map<String, String> folders = new HashMap<>();
+        for (String folderPath : folderSelection.snapshot()) {
+            // Topics are not needed to count
+            folders.put(folderPath, "");
+        }
+        Map<String, Long> checkpoints = dbHelper.getSyncCheckpoints();
+
+        UploadPlan plan = new UploadPlan();
+        List<UploadScheduler.Candidate> packable = new ArrayList<>();
+        CandidateScan.Sink sink = new CandidateScan.Sink() {
+            @Override
+            public void pending(UploadScheduler.Candidate candidate) {
+                if (CandidateScan.isPackable(folderSelection::isPacked, candidate)) {
+                    packable.add(candidate);
+                } else {
+                    plan.add(candidate.folderPath, candidate.size);
+                }
+            }
+
+            @Override
+            public void uploaded(UploadScheduler.Candidate candidate) {
+            }
+
+            @Override
+            public void queued(UploadScheduler.Candidate candidate) {
+                pending(candidate);
+            }
+        };
+        CandidateScan.run(new MediaStoreSource(context), dbHelper, since, folders, (folderPath, modified) -> {
+            Long checkpoint = checkpoints.get(folderPath);
+            return checkpoint != null && modified < checkpoint;
+        }, () -> false, sink);
+
+        Collections.sort(packable, UploadScheduler.OLDEST);
+        for (UploadScheduler.Candidate candidate : packable) {
+            plan.addPacked(candidate.folderPath, candidate.path, candidate.size, candidate.modified);
+        }
+
+        AccountQuota quota = AccountQuota.getInstance();
+        String uid = FirebaseAuth.getInstance().getUid();
+        if (!quota.isLoaded() && uid != null) {
+            quota.refresh(uid, dbHelper);
+        }
+        if (quota.isLoaded() && quota.isLimited()) {
+            plan.setQuotaRemaining(Math.max(0, quota.getDailyLimit() - quota.getUsage()));
+        }
+        return plan;
+    }
+
+    /**
+     * @return Smoothed upload rate of earlier syncs in bytes per second, 0 before the first one
+     */
+    static long getMeasuredRate(@NonNull SharedPreferences prefs) {
+        return prefs.getLong(AppConstants.PREF_UPLOAD_RATE, 0);
+    }
+
+    /**
+     * Fold the rate a shard measured into the stored one
+     */
+    static void recordRate(@NonNull SharedPreferences prefs, long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long previous = getMeasuredRate(prefs);
+        long next = previous <= 0 ? bytesPerSecond : Math.round(previous + RATE_SMOOTHING * (bytesPerSecond - previous));
+        prefs.edit().putLong(AppConstants.PREF_UPLOAD_RATE, next).apply();
+    }
+}
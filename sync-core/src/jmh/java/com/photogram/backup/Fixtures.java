@@ -0,0 +1,85 @@
+package com.photogram.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Seeded test data shaped like a real library, so runs are comparable
+ */
+final class Fixtures {
+    private static final String CAMERA = "/storage/emulated/0/DCIM/Camera";
+
+    private Fixtures() {
+    }
+
+    /**
+     * History of a phone: mostly hashed single uploads, some packed screenshots, a few
+     * near-duplicates held back
+     */
+    static List<HistoryCodec.Record> history(int count) {
+        Random random = new Random(count);
+        List<HistoryCodec.Record> records = new ArrayList<>(count);
+        long uploadedAt = 1_700_000_000_000L;
+        for (int i = 0; i < count; i++) {
+            uploadedAt += random.nextInt(60_000);
+            int kind = random.nextInt(20);
+            String folder = kind < 5 ? "/storage/emulated/0/Pictures/Screenshots" : CAMERA;
+            HistoryCodec.Record record = new HistoryCodec.Record(
+                String.format(Locale.US, "%s/IMG_%08d.jpg", folder, i), uploadedAt / 1000 - random.nextInt(86_400), uploadedAt);
+            record.size = 200_000 + random.nextInt(6_000_000);
+            if (kind < 5) {
+                record.packName = "pack_" + (i / 40) + ".tar";
+                record.packOffset = (i % 40) * 512L * 400;
+                record.fileId = "BQACAgQAAxkDAAI" + Long.toHexString(random.nextLong()) + "_" + (i / 40);
+                record.messageId = 1000 + i / 40;
+            } else if (kind == 5) {
+                record.duplicateOf = String.format(Locale.US, "%s/IMG_%08d.jpg", CAMERA, Math.max(0, i - 1));
+            } else {
+                record.contentHash = sha256Like(random);
+                record.fileId = "BQACAgQAAxkDAAI" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+                record.messageId = 1000 + i;
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Folder name to topic id of a library with many albums
+     */
+    static Map<String, String> topics(int count) {
+        Random random = new Random(count);
+        Map<String, String> topics = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            topics.put("Album " + i + " " + Long.toString(random.nextLong() & Long.MAX_VALUE, 36), String.valueOf(2 + i * 3));
+        }
+        return topics;
+    }
+
+    /**
+     * A file of random bytes that is deleted on exit
+     */
+    static File randomFile(File dir, String name, int size, Random random) throws IOException {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        File file = new File(dir, name);
+        Files.write(file.toPath(), bytes);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static String sha256Like(Random random) {
+        StringBuilder hex = new StringBuilder(64);
+        for (int i = 0; i < 4; i++) {
+            hex.append(String.format(Locale.US, "%016x", random.nextLong()));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,44 @@
+package com.photogram.backup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Export and import of the cloud history, which runs after every sync and on a reinstall
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HistoryCodecBenchmark {
+
+    @Param({"1000", "20000"})
+    public int records;
+
+    private List<HistoryCodec.Record> history;
+    private String json;
+
+    @Setup
+    public void setUp() throws JSONException {
+        history = Fixtures.history(records);
+        json = HistoryCodec.encode(history);
+    }
+
+    @Benchmark
+    public String export() throws JSONException {
+        return HistoryCodec.encode(history);
+    }
+
+    @Benchmark
+    public List<HistoryCodec.Record> decode() throws JSONException {
+        return HistoryCodec.decode(json, 0);
+    }
+}
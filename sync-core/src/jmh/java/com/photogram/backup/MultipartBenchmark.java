@@ -0,0 +1,104 @@
+package com.photogram.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import okhttp3.MultipartBody;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building and writing the multipart body of an upload, the CPU side of every request: the
+ * read-ahead, hashing, encryption and progress layers the photo goes through before the socket.
+ * The body is written into a blackhole, so the network is not measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MultipartBenchmark {
+    private static final int PACK_MEMBERS = 40;
+    private static final int PACK_MEMBER_SIZE = 200 * 1024;
+
+    @Param({"262144", "4194304"})
+    public int photoSize;
+
+    @Param({"false", "true"})
+    public boolean encrypted;
+
+    private TelegramHelper helper;
+    private PreparedUpload buffered;
+    private PreparedUpload streamed;
+    private File packDir;
+
+    @Setup
+    public void setUp() throws IOException {
+        helper = new TelegramHelper("0:benchmark", "-1001");
+        if (encrypted) {
+            helper.setEncryption(new ChunkedCipher("benchmark", ChunkedCipher.newSalt()), true);
+        }
+        Random random = new Random(photoSize);
+        File dir = Files.createTempDirectory("multipart").toFile();
+        dir.deleteOnExit();
+        File photo = Fixtures.randomFile(dir, "IMG_0001.jpg", photoSize, random);
+        buffered = PreparedUpload.prepare(photo, Long.MAX_VALUE);
+        streamed = PreparedUpload.unbuffered(photo);
+
+        packDir = Files.createTempDirectory("pack").toFile();
+        packDir.deleteOnExit();
+        for (int i = 0; i < PACK_MEMBERS; i++) {
+            Fixtures.randomFile(packDir, "Screenshot_" + i + ".png", PACK_MEMBER_SIZE, random);
+        }
+    }
+
+    /**
+     * A photo read ahead by the prepare pipeline, hashed already
+     */
+    @Benchmark
+    public long bufferedPhoto() throws IOException {
+        return write(photoBody(buffered.body(), "IMG_0001.jpg"));
+    }
+
+    /**
+     * A large photo streamed from disk and hashed on the way
+     */
+    @Benchmark
+    public long streamedPhoto() throws IOException {
+        return write(photoBody(new HashingRequestBody(streamed.body()), "IMG_0001.jpg"));
+    }
+
+    @Benchmark
+    public long pack() throws IOException {
+        TarPackBody pack = new TarPackBody();
+        for (int i = 0; i < PACK_MEMBERS; i++) {
+            pack.add(new File(packDir, "Screenshot_" + i + ".png"), PACK_MEMBER_SIZE, 1_700_000_000L + i);
+        }
+        return write(photoBody(pack, "pack_1.tar"));
+    }
+
+    private MultipartBody photoBody(RequestBody fileBody, String name) throws IOException {
+        if (encrypted) {
+            fileBody = helper.getCipher().encrypt(fileBody);
+            name += TelegramHelper.ENCRYPTED_SUFFIX;
+        }
+        fileBody = new ProgressRequestBody(fileBody, (written, length) -> { });
+        return helper.fileMessage("42", "document", name, fileBody, null);
+    }
+
+    private static long write(RequestBody body) throws IOException {
+        try (BufferedSink sink = Okio.buffer(Okio.blackhole())) {
+            body.writeTo(sink);
+        }
+        return body.contentLength();
+    }
+}
@@ -0,0 +1,52 @@
+package com.photogram.backup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Serialisation of the topic registry mirror and its pinned pointer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RegistryCodecBenchmark {
+    private static final String HISTORY_ID = "BQACAgQAAxkDAAIBQ2Vh3k5sZ8c1";
+
+    @Param({"50", "2000"})
+    public int topics;
+
+    private Map<String, String> registry;
+    private String document;
+    private String pointer;
+
+    @Setup
+    public void setUp() throws JSONException {
+        registry = Fixtures.topics(topics);
+        document = RegistryCodec.encodeDocument(topics, registry, HISTORY_ID);
+        pointer = RegistryCodec.encodePointer(topics, "BQACAgQAAxkDAAIBRGVh3k6", 812, HISTORY_ID);
+    }
+
+    @Benchmark
+    public String encodeDocument() throws JSONException {
+        return RegistryCodec.encodeDocument(topics, registry, HISTORY_ID);
+    }
+
+    @Benchmark
+    public RegistryCodec.Document decodeDocument() throws JSONException {
+        return RegistryCodec.decodeDocument(document);
+    }
+
+    @Benchmark
+    public RegistryCodec.Pointer decodePointer() throws JSONException {
+        return RegistryCodec.decodePointer(pointer);
+    }
+}
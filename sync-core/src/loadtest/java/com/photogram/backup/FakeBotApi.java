@@ -0,0 +1,133 @@
+package com.photogram.backup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+/**
+ * Scripted Bot API for MockWebServer. Every call waits the configured latency before its
+ * headers; request bodies are read at the configured uplink rate. Sends beyond the rate limit
+ * get a 429 with retry_after like Telegram's flood control, and a share of sends fail with a
+ * 500 or a dropped connection.
+ */
+final class FakeBotApi extends Dispatcher {
+    private static final long THROTTLE_PERIOD_MS = 10;
+
+    private final long latencyMs;
+    private final long uplinkBytesPerSecond;
+    private final double sendsPerSecond;
+    private final double failureRate;
+    private final Random random;
+
+    private final AtomicInteger messageIds = new AtomicInteger(1000);
+    final AtomicInteger sends = new AtomicInteger();
+    final AtomicInteger floodWaits = new AtomicInteger();
+    final AtomicInteger failures = new AtomicInteger();
+    final AtomicLong bytesReceived = new AtomicLong();
+
+    // Token bucket of the flood control
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * @param uplinkBytesPerSecond 0 for no cap
+     * @param sendsPerSecond Sends allowed per second before a 429, 0 for no limit
+     */
+    FakeBotApi(long latencyMs, long uplinkBytesPerSecond, double sendsPerSecond, double failureRate, long seed) {
+        this.latencyMs = latencyMs;
+        this.uplinkBytesPerSecond = uplinkBytesPerSecond;
+        this.sendsPerSecond = sendsPerSecond;
+        this.failureRate = failureRate;
+        this.random = new Random(seed);
+        this.tokens = Math.max(1, sendsPerSecond);
+    }
+
+    /**
+     * Read before the request body, so its throttle caps the upload
+     */
+    @Override
+    public MockResponse peek() {
+        MockResponse peek = new MockResponse();
+        if (uplinkBytesPerSecond > 0) {
+            peek.throttleBody(Math.max(1, uplinkBytesPerSecond * THROTTLE_PERIOD_MS / 1000), THROTTLE_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+        return peek;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+        String path = request.getPath() != null ? request.getPath() : "";
+        String method = path.substring(path.lastIndexOf('/') + 1);
+        int query = method.indexOf('?');
+        if (query >= 0) {
+            method = method.substring(0, query);
+        }
+        bytesReceived.addAndGet(request.getBodySize());
+
+        switch (method) {
+            case "sendPhoto":
+            case "sendDocument":
+            case "copyMessage":
+                return send(method);
+            default:
+                return json("{\"ok\":true,\"result\":{}}");
+        }
+    }
+
+    private MockResponse send(String method) {
+        sends.incrementAndGet();
+        int retryAfter = takeToken();
+        if (retryAfter > 0) {
+            floodWaits.incrementAndGet();
+            return json("{\"ok\":false,\"error_code\":429,\"description\":\"Too Many Requests: retry after " + retryAfter
+                + "\",\"parameters\":{\"retry_after\":" + retryAfter + "}}").setResponseCode(429);
+        }
+        if (failureRate > 0 && nextDouble() < failureRate) {
+            failures.incrementAndGet();
+            if (nextDouble() < 0.5) {
+                return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+            }
+            return json("{\"ok\":false,\"error_code\":500,\"description\":\"Internal Server Error\"}").setResponseCode(500);
+        }
+
+        int messageId = messageIds.incrementAndGet();
+        String fileId = "BQACAgQAAxkDAAI" + Integer.toHexString(messageId) + "fake";
+        String media = "sendPhoto".equals(method)
+            ? "\"photo\":[{\"file_id\":\"" + fileId + "s\"},{\"file_id\":\"" + fileId + "\"}]"
+            : "\"document\":{\"file_id\":\"" + fileId + "\"}";
+        return json("{\"ok\":true,\"result\":{\"message_id\":" + messageId + "," + media + "}}");
+    }
+
+    /**
+     * @return 0 if the send may go through, otherwise the seconds to wait
+     */
+    private synchronized int takeToken() {
+        if (sendsPerSecond <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(Math.max(1, sendsPerSecond), tokens + (now - refilledAt) / 1e9 * sendsPerSecond);
+        refilledAt = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return (int) Math.ceil((1 - tokens) / sendsPerSecond);
+    }
+
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    private MockResponse json(String body) {
+        return new MockResponse()
+            .setHeader("Content-Type", "application/json")
+            .setHeadersDelay(latencyMs, TimeUnit.MILLISECONDS)
+            .setBody(body);
+    }
+}
@@ -0,0 +1,306 @@
+package com.photogram.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ServerSocketFactory;
+import okhttp3.mockwebserver.MockWebServer;
+import org.json.JSONObject;
+
+/**
+ * End-to-end sync of a synthetic library against a fake Bot API, on a plain JVM. It runs the
+ * candidate scan and the {@link ShardUploader} that FolderSyncWorker runs, with its read-ahead,
+ * packs, copies and checkpoints, as a manual sync: no near-duplicate filter and no daily limit.
+ * History is held in memory, so SQLite, MediaStore and WorkManager are not part of the numbers.
+ *
+ * Run with {@code ./gradlew :sync-core:loadTest -PloadArgs="--files 100000 --folders 300"}.
+ * Options, with their defaults:
+ * <pre>
+ *   --files 10000         photos in the library
+ *   --folders 200         folders they are spread over
+ *   --size-scale 1.0      factor on photo sizes (a photo is ~2.5 MB at 1.0)
+ *   --screenshots 0.15    share of small screenshots
+ *   --packed              pack small photos, in every folder
+ *   --latency-ms 50       delay before every response
+ *   --uplink-kbps 0       upload bandwidth cap, 0 for none
+ *   --rate-limit 0        sends per second before a 429, 0 for none
+ *   --failure-rate 0      share of sends that fail with a 500 or a dropped connection
+ *   --delay-ms 0          pause after every upload; the app pauses AppConstants.UPLOAD_DELAY_MS
+ *   --network PROFILE     client-side network, e.g. 3g or edge,reset=0.05, see NetworkShaper.Profile
+ *   --seed 1
+ *   --dir DIR             where the library is seeded, a temporary directory by default
+ *   --report FILE         also write the results as JSON
+ * </pre>
+ */
+public final class LoadTest {
+    private final Map<String, String> options = new HashMap<>();
+    private final Set<String> flags = new HashSet<>();
+
+    private LoadTest(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(arg.substring(2), args[++i]);
+            } else {
+                flags.add(arg.substring(2));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest(args).run();
+    }
+
+    private void run() throws Exception {
+        int files = intOption("files", 10_000);
+        int folderCount = intOption("folders", 200);
+        long seed = intOption("seed", 1);
+        boolean packed = flags.contains("packed");
+        long delayMs = intOption("delay-ms", 0);
+        File dir = options.containsKey("dir") ? new File(options.get("dir")) : Files.createTempDirectory("photogram-load").toFile();
+
+        long seedStart = System.nanoTime();
+        SyntheticLibrary library = SyntheticLibrary.seed(dir, files, folderCount,
+            doubleOption("size-scale", 1.0), doubleOption("screenshots", 0.15), seed);
+        System.out.printf(Locale.US, "Seeded %d photos (%s) in %d folders under %s in %.1f s%n",
+            library.size(), formatBytes(library.totalBytes()), folderCount, dir, seconds(System.nanoTime() - seedStart));
+
+        FakeBotApi api = new FakeBotApi(intOption("latency-ms", 50), intOption("uplink-kbps", 0) * 1000L / 8,
+            doubleOption("rate-limit", 0), doubleOption("failure-rate", 0), seed);
+        Logger.getLogger(MockWebServer.class.getName()).setLevel(Level.WARNING);
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(api);
+        // Count request bodies without keeping them
+        server.setBodyLimit(0);
+        server.setServerSocketFactory(new NoDelayServerSocketFactory());
+        server.start();
+        Thread drain = new Thread(() -> {
+            try {
+                while (true) {
+                    server.takeRequest();
+                }
+            } catch (InterruptedException e) {
+                // Shut down
+            }
+        }, "drain-recorded-requests");
+        drain.setDaemon(true);
+        drain.start();
+
+        NetworkShaper shaper = options.containsKey("network")
+            ? new NetworkShaper(NetworkShaper.Profile.parse(options.get("network"))) : null;
+        Result result = new Result();
+        try {
+            TelegramHelper helper = new TelegramHelper("0:load", "-1001", server.url("/").toString(), shaper);
+            Map<String, String> folderTopics = new HashMap<>();
+            for (int i = 0; i < library.getFolders().size(); i++) {
+                folderTopics.put(library.getFolders().get(i), String.valueOf(2 + i));
+            }
+            Set<String> packedFolders = packed ? folderTopics.keySet() : new HashSet<>();
+
+            resetPeakHeap();
+            long start = System.nanoTime();
+            MemoryHistoryStore store = new MemoryHistoryStore();
+            UploadScheduler scheduler = new UploadScheduler(UploadScheduler.policyFor(SyncMode.MANUAL));
+            CheckpointTracker checkpoints = new CheckpointTracker(new HashMap<>());
+            // As in a manual sync: no near-duplicate filter, and the quota is not limited
+            ShardUploader uploader = new ShardUploader("load", helper, store, scheduler, packedFolders::contains,
+                checkpoints, new SyncProgress(snapshot -> { }), result.metrics);
+            uploader.setUploadDelayMs(delayMs);
+            CandidateScan.run(library, store, 0, folderTopics, checkpoints::isBefore, () -> false, new CandidateScan.Sink() {
+                @Override
+                public void pending(UploadScheduler.Candidate candidate) {
+                    checkpoints.seen(candidate, true);
+                    uploader.add(candidate, false);
+                }
+
+                @Override
+                public void uploaded(UploadScheduler.Candidate candidate) {
+                    checkpoints.seen(candidate, false);
+                }
+
+                @Override
+                public void queued(UploadScheduler.Candidate candidate) {
+                    uploader.add(candidate, true);
+                }
+            });
+            result.scanNanos = System.nanoTime() - start;
+
+            uploader.run();
+            result.copied = uploader.getCopied();
+            result.packed = uploader.getPacked();
+            result.packs = uploader.getPacks();
+
+            result.wallNanos = System.nanoTime() - start;
+            result.storeNanos = store.getNanos();
+            result.storeCalls = store.getCalls();
+            result.peakHeap = peakHeap();
+            result.network = helper.getNetworkMetrics();
+            for (String error : store.getErrors()) {
+                System.out.println("  " + error);
+            }
+        } finally {
+            server.shutdown();
+        }
+
+        report(result, api, shaper);
+        if (!options.containsKey("dir")) {
+            deleteTree(dir);
+        }
+    }
+
+    private void report(Result result, FakeBotApi api, NetworkShaper shaper) throws IOException {
+        double wall = seconds(result.wallNanos);
+        SyncMetrics metrics = result.metrics;
+        int done = metrics.uploaded;
+        if (shaper != null) {
+            System.out.printf(Locale.US, "Shaped by   %s%n", shaper.getProfile());
+        }
+        System.out.printf(Locale.US, "Photos      %d done (%d uploaded, %d copied, %d in %d packs), %d uploads failed (%d flood waits)%n",
+            done, done - result.packed - result.copied, result.copied, result.packed, result.packs, metrics.failed, metrics.rateLimited);
+        System.out.printf(Locale.US, "Wall        %.1f s, of which scan %.2f s%n", wall, seconds(result.scanNanos));
+        System.out.printf(Locale.US, "Throughput  %.1f files/s, %s/s%n", done / wall, formatBytes((long) (metrics.bytesSent / wall)));
+        System.out.printf(Locale.US, "History     %.3f s in %d calls%n", seconds(result.storeNanos), result.storeCalls);
+        System.out.printf(Locale.US, "Peak heap   %s%n", formatBytes(result.peakHeap));
+        System.out.printf(Locale.US, "Fake API    %d sends, %d answered 429, %d failed, %s received%n",
+            api.sends.get(), api.floodWaits.get(), api.failures.get(), formatBytes(api.bytesReceived.get()));
+        for (Map.Entry<String, NetworkMetrics.Method> entry : result.network.snapshot().entrySet()) {
+            NetworkMetrics.Method method = entry.getValue();
+            System.out.printf(Locale.US, "Network     %s: %d calls on %d connections, write p50/p95 %d/%d ms, response p50/p95 %d/%d ms%n",
+                entry.getKey(), method.calls, method.connections, method.write.percentile(50), method.write.percentile(95),
+                method.firstByte.percentile(50), method.firstByte.percentile(95));
+        }
+
+        if (options.containsKey("report")) {
+            JSONObject json = new JSONObject();
+            json.put("files", done);
+            if (shaper != null) {
+                json.put("network_profile", shaper.getProfile().toString());
+            }
+            json.put("failed", metrics.failed);
+            json.put("flood_waits", metrics.rateLimited);
+            json.put("seconds", wall);
+            json.put("files_per_second", done / wall);
+            json.put("bytes_per_second", metrics.bytesSent / wall);
+            json.put("history_seconds", seconds(result.storeNanos));
+            json.put("peak_heap_bytes", result.peakHeap);
+            json.put("network", new JSONObject(result.network.encode()));
+            Files.write(new File(options.get("report")).toPath(), json.toString(2).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static final class Result {
+        /** Filled by the shard like a worker's, see {@link SyncMetrics} */
+        final SyncMetrics metrics = new SyncMetrics();
+        int copied;
+        int packed;
+        int packs;
+        long scanNanos;
+        long wallNanos;
+        long storeNanos;
+        long storeCalls;
+        long peakHeap;
+        NetworkMetrics network = new NetworkMetrics();
+    }
+
+    /**
+     * MockWebServer writes headers and body separately; without TCP_NODELAY every response
+     * would wait out the client's delayed ACK, some 40 ms that a real server does not add.
+     */
+    private static final class NoDelayServerSocketFactory extends ServerSocketFactory {
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return new ServerSocket() {
+                @Override
+                public Socket accept() throws IOException {
+                    Socket socket = super.accept();
+                    socket.setTcpNoDelay(true);
+                    return socket;
+                }
+            };
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress address) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private int intOption(String name, int fallback) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : fallback;
+    }
+
+    private double doubleOption(String name, double fallback) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : fallback;
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Sum of the per-pool peaks, an upper bound of the peak heap in use
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        int exp = (int) (Math.log(bytes) / Math.log(1024));
+        return String.format(Locale.US, "%.1f %sB", bytes / Math.pow(1024, exp), "KMGT".charAt(exp - 1));
+    }
+
+    private static void deleteTree(File dir) {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,130 @@
+package com.photogram.backup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * History held in maps, with the time spent in every call added up, so the report can show
+ * what the sync spends on history lookups and writes.
+ */
+final class MemoryHistoryStore implements HistoryStore {
+    private final Map<String, Long> uploaded = new HashMap<>();
+    private final Map<String, UploadedCopy> byContent = new HashMap<>();
+    private final Map<Long, Integer> hashedSizes = new HashMap<>();
+    private final Map<String, Long> checkpoints = new HashMap<>();
+    private final List<String> errors = new ArrayList<>();
+    private long nanos;
+    private long calls;
+
+    long getNanos() {
+        return nanos;
+    }
+
+    long getCalls() {
+        return calls;
+    }
+
+    int size() {
+        return uploaded.size();
+    }
+
+    List<String> getErrors() {
+        return errors;
+    }
+
+    @Override
+    public synchronized boolean isFileUploaded(String path, long modified) {
+        long start = System.nanoTime();
+        Long known = uploaded.get(path);
+        timed(start);
+        return known != null && known == modified;
+    }
+
+    @Override
+    public synchronized boolean markAsUploaded(String path, long modified, long size, String fileId,
+                                               int messageId, String contentHash, boolean encrypted) {
+        long start = System.nanoTime();
+        uploaded.put(path, modified);
+        if (contentHash != null) {
+            byContent.put(size + ":" + contentHash, new UploadedCopy(messageId, fileId, encrypted));
+            hashedSizes.merge(size, 1, Integer::sum);
+        }
+        timed(start);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean markAsPacked(String packName, String fileId, int messageId,
+                                             Collection<PackedFile> members, boolean encrypted) {
+        long start = System.nanoTime();
+        for (PackedFile member : members) {
+            uploaded.put(member.path, member.modified);
+        }
+        timed(start);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean markAsNearDuplicate(String path, long modified, long size, String duplicateOf) {
+        long start = System.nanoTime();
+        uploaded.put(path, modified);
+        timed(start);
+        return true;
+    }
+
+    @Override
+    public void savePerceptualHash(String path, long modified, long hash) {
+    }
+
+    @Override
+    public synchronized void saveSyncCheckpoints(Map<String, Long> checkpoints) {
+        long start = System.nanoTime();
+        this.checkpoints.putAll(checkpoints);
+        timed(start);
+    }
+
+    @Override
+    public synchronized boolean hasHashedUploadOfSize(long size) {
+        long start = System.nanoTime();
+        boolean found = hashedSizes.containsKey(size);
+        timed(start);
+        return found;
+    }
+
+    @Override
+    public synchronized UploadedCopy findUploadByContent(long size, String contentHash) {
+        long start = System.nanoTime();
+        UploadedCopy copy = byContent.get(size + ":" + contentHash);
+        timed(start);
+        return copy;
+    }
+
+    @Override
+    public List<QueuedUpload> getQueuedUploads(Collection<String> folderPaths) {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public int enqueueUploads(Collection<QueuedUpload> uploads) {
+        return 0;
+    }
+
+    @Override
+    public void removeQueuedUpload(String path) {
+    }
+
+    @Override
+    public synchronized void addLog(String type, String message) {
+        if ("ERROR".equals(type) && errors.size() < 20) {
+            errors.add(message);
+        }
+    }
+
+    private void timed(long start) {
+        nanos += System.nanoTime() - start;
+        calls++;
+    }
+}
@@ -0,0 +1,128 @@
+package com.photogram.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * A seeded photo library on disk, served as MediaStore would serve it. Folder sizes follow a
+ * power law, a big camera folder and a long tail of small albums, and a share of every folder
+ * is small screenshots. Each file starts with a unique JPEG header and is sparse beyond it, so
+ * hundreds of thousands of multi-megabyte photos fit on a laptop disk and still hash apart.
+ */
+final class SyntheticLibrary implements MediaSource {
+    private static final int HEADER = 512;
+    private static final long SCREENSHOT_MIN = 80 * 1024;
+    private static final long SCREENSHOT_MAX = 600 * 1024;
+    private static final double PHOTO_MEDIAN = 2.5 * 1024 * 1024;
+
+    static final class Row {
+        final String path;
+        final long modified;
+        final long size;
+
+        Row(String path, long modified, long size) {
+            this.path = path;
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+
+    private final List<Row> rows;
+    private final List<String> folders;
+
+    private SyntheticLibrary(List<Row> rows, List<String> folders) {
+        this.rows = rows;
+        this.folders = folders;
+    }
+
+    /**
+     * @param sizeScale Factor on every file size, to fit a run to the uplink being modelled
+     * @param screenshotShare Fraction of files that are small screenshots
+     */
+    static SyntheticLibrary seed(File root, int files, int folderCount, double sizeScale,
+                                 double screenshotShare, long seed) throws IOException {
+        Random random = new Random(seed);
+        List<String> folders = new ArrayList<>(folderCount);
+        double[] weights = new double[folderCount];
+        double total = 0;
+        for (int i = 0; i < folderCount; i++) {
+            File dir = new File(root, i == 0 ? "Camera" : String.format(Locale.US, "Album_%03d", i));
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            folders.add(dir.getPath());
+            weights[i] = 1 / Math.pow(i + 1, 0.8);
+            total += weights[i];
+        }
+
+        List<Row> rows = new ArrayList<>(files);
+        byte[] header = new byte[HEADER];
+        long modified = 1_600_000_000L;
+        for (int n = 0; n < files; n++) {
+            int folder = pick(weights, total, random);
+            boolean screenshot = random.nextDouble() < screenshotShare;
+            long size = screenshot
+                ? SCREENSHOT_MIN + (long) (random.nextDouble() * (SCREENSHOT_MAX - SCREENSHOT_MIN))
+                : (long) Math.min(12 * 1024 * 1024, Math.max(400 * 1024, PHOTO_MEDIAN * Math.exp(0.6 * random.nextGaussian())));
+            size = Math.max(HEADER, (long) (size * sizeScale));
+            modified += 1 + random.nextInt(600);
+
+            File file = new File(folders.get(folder), String.format(Locale.US, "%s_%07d.jpg", screenshot ? "Screenshot" : "IMG", n));
+            random.nextBytes(header);
+            header[0] = (byte) 0xFF;
+            header[1] = (byte) 0xD8;
+            header[2] = (byte) 0xFF;
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.write(header);
+                out.setLength(size);
+            }
+            rows.add(new Row(file.getPath(), modified, size));
+        }
+        // MediaStore returns rows in no useful order
+        Collections.shuffle(rows, random);
+        return new SyntheticLibrary(rows, folders);
+    }
+
+    List<String> getFolders() {
+        return folders;
+    }
+
+    int size() {
+        return rows.size();
+    }
+
+    long totalBytes() {
+        long bytes = 0;
+        for (Row row : rows) {
+            bytes += row.size;
+        }
+        return bytes;
+    }
+
+    @Override
+    public boolean scan(long since, Visitor visitor) {
+        for (Row row : rows) {
+            if (row.modified > since && !visitor.visit(row.path, row.modified, row.size)) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    private static int pick(double[] weights, double total, Random random) {
+        double r = random.nextDouble() * total;
+        for (int i = 0; i < weights.length; i++) {
+            r -= weights[i];
+            if (r <= 0) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+}
@@ -0,0 +1,85 @@
+package com.photogram.backup;
+
+/**
+ * Centralized constants for the Photogram Backup app.
+ * All configuration values should be defined here.
+ */
+public final class AppConstants {
+    
+    // Firebase Configuration
+    public static final String FIREBASE_DB_URL = "https://photogram-dd154-default-rtdb.asia-southeast1.firebasedatabase.app/";
+    
+    // Telegram Configuration
+    public static final String TELEGRAM_API_BASE = "https://api.telegram.org/bot";
+    public static final String TELEGRAM_FILE_BASE = "https://api.telegram.org/file/bot";
+    
+    // SharedPreferences
+    public static final String PREFS_NAME = "BackupPrefs";
+    public static final String PREF_BOT_TOKEN = "custom_bot_token";
+    public static final String PREF_CHAT_ID = "chat_id";
+    public static final String PREF_API_ID = "api_id";
+    public static final String PREF_API_HASH = "api_hash";
+    public static final String PREF_SYNC_INTERVAL = "sync_interval";
+    public static final String PREF_ONLY_WIFI = "only_wifi";
+    public static final String PREF_LAST_SYNC = "last_sync_timestamp";
+    public static final String PREF_FOLDER_SELECTION_MIGRATED = "folder_selection_migrated";
+    public static final String PREF_RESTORE_BANDWIDTH = "restore_bandwidth_kbps";
+    public static final String PREF_SYNC_PAUSED = "sync_paused";
+    public static final String PREF_ENCRYPT_UPLOADS = "encrypt_uploads";
+    public static final String PREF_ENCRYPTION_PASSPHRASE = "encryption_passphrase"; // of older versions, replaced by its keys
+    public static final String PREF_ENCRYPTION_SALT = "encryption_salt"; // hex, key salt of new uploads
+    public static final String PREF_ENCRYPTION_KEYS = "encryption_keys"; // derived keys by salt, wrapped by the Keystore
+    public static final String PREF_ENCRYPTION_WANTED_SALTS = "encryption_wanted_salts"; // of files met without their key
+    
+    // Worker Configuration
+    public static final int MAX_RETRY_ATTEMPTS = 3;
+    public static final long UPLOAD_DELAY_MS = 1000;
+    public static final int FIREBASE_TIMEOUT_SECONDS = 10;
+    public static final int DEFAULT_SYNC_INTERVAL_MINUTES = 60;
+    public static final int MAX_SYNC_SHARDS = 3;
+    public static final int SHARD_PAYLOAD_BUDGET = 8 * 1024; // bytes of folder plan per shard input
+    public static final int BULK_SYNC_SHARDS = 6; // while charging on an unmetered network
+    public static final long SYNC_SLICE_MS = 8 * 60 * 1000; // stay below WorkManager's 10 minute limit
+    public static final int CHECKPOINT_EVERY_FILES = 25;
+    public static final int PIPELINE_DEPTH = 2; // photos read ahead of the current upload per shard
+    public static final long PREPARE_BUFFER_MAX = 4 * 1024 * 1024; // larger photos are streamed from disk
+    public static final long PREPARE_BUFFER_TOTAL = 16 * 1024 * 1024; // read ahead by all shards together, the rest are streamed
+    public static final long PACK_FILE_MAX = 1024 * 1024; // photos up to this size go into packs in packed folders
+    public static final long PACK_MAX_BYTES = 19 * 1024 * 1024; // below DOWNLOAD_MAX_BYTES, so packs can be restored
+    public static final int NEAR_DUPLICATE_DISTANCE = 8; // of 64 dHash bits
+    public static final long NEAR_DUPLICATE_WINDOW_SECONDS = 120; // bursts and quick edits
+    public static final String PREF_UPLOAD_RATE = "upload_bytes_per_sec"; // measured by syncs, for plan ETAs
+    public static final String PREF_SKIP_NEAR_DUPLICATES = "skip_near_duplicates"; // otherwise deferred to a manual sync
+    public static final long REGISTRY_REFRESH_MS = 24 * 60 * 60 * 1000; // re-read the Telegram mirror at most daily
+    public static final long REALTIME_TRIGGER_DELAY_SECONDS = 30; // let a burst of new photos settle
+    public static final int RESTORE_PARALLEL_DOWNLOADS = 4;
+    public static final int DEFAULT_RESTORE_BANDWIDTH_KBPS = 0; // unlimited
+    public static final int RESTORE_MAX_ATTEMPTS = 3; // per file, across runs
+    public static final long DOWNLOAD_MAX_BYTES = 20 * 1024 * 1024; // getFile only serves files up to this size
+    public static final int RESTORE_NAMES_LOGGED = 10; // of the files too large to restore
+    
+    // WorkManager unique work names and tags
+    public static final String WORK_PERIODIC = "PhotogramSync";
+    public static final String WORK_MANUAL = "PhotogramManualSync";
+    public static final String WORK_SHARDS = "PhotogramShards";
+    public static final String WORK_CONTINUATION = "PhotogramContinuation";
+    public static final String WORK_REALTIME = "PhotogramRealtimeSync";
+    public static final String WORK_RESTORE = "PhotogramRestore";
+    public static final String WORK_RECONCILE = "PhotogramReconcile";
+    public static final String WORK_TAG_SHARD = "photogram_shard";
+    
+    // Database Configuration
+    public static final int MAX_LOGS = 100;
+    public static final int HISTORY_PAGE_SIZE = 100;
+    public static final int HISTORY_CACHED_PAGES = 8; // what the history screen holds, whatever the history's length
+    public static final long HISTORY_SEARCH_DEBOUNCE_MS = 300;
+    public static final int TASK_THREADS = 2; // database and MediaStore work of the screens, see TaskQueue
+    
+    // UI Configuration
+    public static final int ANIMATION_DURATION_MS = 300;
+    
+    // Private constructor to prevent instantiation
+    private AppConstants() {
+        throw new UnsupportedOperationException("Cannot instantiate constants class");
+    }
+}
@@ -0,0 +1,63 @@
+package com.photogram.backup;
+
+/**
+ * Token bucket shared by parallel transfers. Tokens refill at the configured rate up to one
+ * second's worth; a transfer that takes more than is available sleeps off the debt, so the
+ * combined throughput stays at the rate.
+ */
+public class BandwidthLimiter {
+
+    public interface Sleeper {
+        void sleep(long ms) throws InterruptedException;
+    }
+
+    public interface Clock {
+        long nowMs();
+    }
+
+    private final long bytesPerSecond;
+    private final Clock clock;
+    private final Sleeper sleeper;
+    private double tokens;
+    private long lastRefillMs;
+
+    /**
+     * @param bytesPerSecond Rate limit, 0 or less for unlimited
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        this(bytesPerSecond, System::currentTimeMillis, Thread::sleep);
+    }
+
+    public BandwidthLimiter(long bytesPerSecond, Clock clock, Sleeper sleeper) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.clock = clock;
+        this.sleeper = sleeper;
+        this.tokens = bytesPerSecond;
+        this.lastRefillMs = clock.nowMs();
+    }
+
+    public boolean isUnlimited() {
+        return bytesPerSecond <= 0;
+    }
+
+    /**
+     * Take bytes from the bucket, sleeping the calling thread if they are not available yet
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        if (isUnlimited()) {
+            return;
+        }
+
+        long waitMs;
+        synchronized (this) {
+            long now = clock.nowMs();
+            tokens = Math.min(bytesPerSecond, tokens + (now - lastRefillMs) * bytesPerSecond / 1000.0);
+            lastRefillMs = now;
+            tokens -= bytes;
+            waitMs = tokens < 0 ? (long) Math.ceil(-tokens * 1000 / bytesPerSecond) : 0;
+        }
+        if (waitMs > 0) {
+            sleeper.sleep(waitMs);
+        }
+    }
+}
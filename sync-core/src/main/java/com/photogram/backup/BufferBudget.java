@@ -0,0 +1,34 @@
+package com.photogram.backup;
+
+/**
+ * Bytes of photo content that may be held in memory at once, shared by every shard of the
+ * process. A photo that does not fit is not waited for but streamed from disk, so the read-ahead
+ * never stalls and the total stays capped however many shards run in parallel.
+ */
+public class BufferBudget {
+    private final long maxBytes;
+    private long reserved;
+
+    public BufferBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return false if the bytes would take the total over the budget
+     */
+    public synchronized boolean tryReserve(long bytes) {
+        if (reserved + bytes > maxBytes) {
+            return false;
+        }
+        reserved += bytes;
+        return true;
+    }
+
+    public synchronized void release(long bytes) {
+        reserved = Math.max(0, reserved - bytes);
+    }
+
+    public synchronized long getReserved() {
+        return reserved;
+    }
+}
@@ -0,0 +1,133 @@
+package com.photogram.backup;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Selection of the photos a sync uploads: MediaStore rows modified after the baseline in the
+ * given folders, minus rows below a folder's checkpoint and rows already in the history, plus
+ * the upload queue. Shared by {@code FolderSyncWorker}, which uploads the result, and
+ * {@code UploadPlanner}, which only counts it, so a plan sees exactly what a sync would.
+ */
+final class CandidateScan {
+
+    interface Sink {
+        /**
+         * A MediaStore row that still needs uploading
+         */
+        void pending(UploadScheduler.Candidate candidate);
+
+        /**
+         * A MediaStore row that is already in the history
+         */
+        void uploaded(UploadScheduler.Candidate candidate);
+
+        /**
+         * A queued file that still needs uploading
+         */
+        void queued(UploadScheduler.Candidate candidate);
+
+        /**
+         * A queued file that is gone, uploaded or also seen in MediaStore
+         */
+        default void staleQueued(String path) {
+        }
+
+        default void invalid(String path) {
+        }
+    }
+
+    interface Checkpoints {
+        /**
+         * @return true if an earlier slice of the run handled the folder up to past this DATE_MODIFIED
+         */
+        boolean isBefore(String folderPath, long modified);
+    }
+
+    interface PackedFolders {
+        boolean isPacked(String folderPath);
+    }
+
+    interface StopSignal {
+        boolean isStopped();
+    }
+
+    private CandidateScan() {
+    }
+
+    /**
+     * Does the candidate go into a pack of its folder rather than a message of its own?
+     */
+    static boolean isPackable(PackedFolders packedFolders, UploadScheduler.Candidate candidate) {
+        return candidate.size <= AppConstants.PACK_FILE_MAX && packedFolders.isPacked(candidate.folderPath)
+            && TarPackBody.fits(new File(candidate.path).getName());
+    }
+
+    /**
+     * @param since DATE_MODIFIED baseline in seconds
+     * @param folderTopics Topic id of every folder to scan
+     * @param stopped Checked between rows
+     * @return false if the media could not be queried
+     */
+    static boolean run(MediaSource media, HistoryStore history, long since,
+                       Map<String, String> folderTopics, Checkpoints checkpoints,
+                       StopSignal stopped, Sink sink) {
+        Set<String> processedThisScan = new HashSet<>();
+
+        boolean scanned = media.scan(since, (path, mod, size) -> {
+            if (stopped.isStopped()) {
+                return false;
+            }
+
+            // Skip duplicates in this scan
+            if (path == null || !processedThisScan.add(path)) {
+                return true;
+            }
+
+            File f = new File(path);
+            String folderPath = f.getParent();
+            String tid = folderTopics.get(folderPath);
+            if (tid == null) {
+                // Not one of the scanned folders
+                return true;
+            }
+
+            // Handled by an earlier slice of this run
+            if (checkpoints.isBefore(folderPath, mod)) {
+                return true;
+            }
+
+            // Validate file exists and has size
+            if (!f.exists() || size <= 0) {
+                sink.invalid(path);
+                return true;
+            }
+
+            UploadScheduler.Candidate candidate = new UploadScheduler.Candidate(path, folderPath, tid, mod, size);
+            if (history.isFileUploaded(path, mod)) {
+                sink.uploaded(candidate);
+            } else {
+                sink.pending(candidate);
+            }
+            return true;
+        });
+        if (!scanned) {
+            history.addLog("ERROR", "MediaStore query returned null cursor");
+            return false;
+        }
+
+        // Reconciliation gaps; they sit below the delta window, so checkpoints don't apply
+        for (HistoryStore.QueuedUpload upload : history.getQueuedUploads(folderTopics.keySet())) {
+            if (processedThisScan.contains(upload.path) || !new File(upload.path).exists()
+                    || history.isFileUploaded(upload.path, upload.modified)) {
+                sink.staleQueued(upload.path);
+                continue;
+            }
+            sink.queued(new UploadScheduler.Candidate(upload.path, upload.folderPath,
+                folderTopics.get(upload.folderPath), upload.modified, upload.size));
+        }
+        return true;
+    }
+}
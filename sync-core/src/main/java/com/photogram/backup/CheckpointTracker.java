@@ -0,0 +1,63 @@
+package com.photogram.backup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per-folder checkpoint that works with any upload order: the oldest DATE_MODIFIED that is
+ * still pending, or the newest one seen once the folder has nothing pending. Rows with the
+ * checkpoint's own DATE_MODIFIED are looked at again; the history check skips those already
+ * uploaded.
+ */
+final class CheckpointTracker {
+    private final Map<String, Long> stored;
+    private final Map<String, TreeMap<Long, Integer>> pending = new HashMap<>();
+    private final Map<String, Long> newestSeen = new HashMap<>();
+
+    CheckpointTracker(Map<String, Long> stored) {
+        this.stored = stored;
+    }
+
+    boolean isBefore(String folderPath, long mod) {
+        Long checkpoint = stored.get(folderPath);
+        return checkpoint != null && mod < checkpoint;
+    }
+
+    void seen(UploadScheduler.Candidate c, boolean isPending) {
+        Long newest = newestSeen.get(c.folderPath);
+        if (newest == null || c.modified > newest) {
+            newestSeen.put(c.folderPath, c.modified);
+        }
+        if (isPending) {
+            TreeMap<Long, Integer> mods = pending.get(c.folderPath);
+            if (mods == null) {
+                mods = new TreeMap<>();
+                pending.put(c.folderPath, mods);
+            }
+            Integer count = mods.get(c.modified);
+            mods.put(c.modified, count == null ? 1 : count + 1);
+        }
+    }
+
+    void done(UploadScheduler.Candidate c) {
+        TreeMap<Long, Integer> mods = pending.get(c.folderPath);
+        if (mods == null) return;
+        Integer left = mods.get(c.modified);
+        if (left == null) return;
+        if (left <= 1) {
+            mods.remove(c.modified);
+        } else {
+            mods.put(c.modified, left - 1);
+        }
+    }
+
+    Map<String, Long> current() {
+        Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, Long> entry : newestSeen.entrySet()) {
+            TreeMap<Long, Integer> mods = pending.get(entry.getKey());
+            result.put(entry.getKey(), mods != null && !mods.isEmpty() ? mods.firstKey() : entry.getValue());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,393 @@
+package com.photogram.backup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.Okio;
+import okio.Sink;
+import okio.Timeout;
+
+/**
+ * Client-side encryption of uploads, streamed through the request body so no encrypted copy is
+ * written to disk. A file is a header (magic, key salt, nonce prefix) followed by AES-GCM chunks
+ * of 64 KiB plaintext, each with its own tag. The nonce of a chunk is the prefix and the chunk's
+ * index, and the last chunk is authenticated as such, so chunks can't be reordered or cut off.
+ *
+ * Any plaintext range maps to whole chunks: a resumed download or a photo inside a pack is
+ * decrypted from its first chunk on, without fetching the file from the start.
+ *
+ * Keys come from a {@link KeySource} by the salt in the file's header. The app keeps only keys
+ * derived from the passphrase, never the passphrase itself.
+ */
+public final class ChunkedCipher {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    static final int TAG_SIZE = 16;
+    private static final int SALT_SIZE = 16;
+    private static final int PREFIX_SIZE = 8;
+    private static final byte[] MAGIC = {'P', 'G', 'E', '1'};
+    public static final int HEADER_SIZE = MAGIC.length + SALT_SIZE + PREFIX_SIZE;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    // PBKDF2WithHmacSHA256 needs API 26, SHA1 is available from minSdk on
+    private static final String KEY_ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final int KEY_ITERATIONS = 100_000;
+    private static final MediaType ENCRYPTED = MediaType.parse("application/octet-stream");
+
+    private static final SecureRandom random = new SecureRandom();
+    /** Derived keys by passphrase and salt; derivation is slow on purpose */
+    private static final Map<String, byte[]> derived = new ConcurrentHashMap<>();
+
+    public interface KeySource {
+        /**
+         * @return The 256-bit key of files encrypted with this salt
+         * @throws IOException if there is no key for it, e.g. for files of an earlier install
+         */
+        byte[] key(byte[] salt) throws IOException;
+    }
+
+    private final KeySource keys;
+    private final byte[] salt;
+
+    /**
+     * @param salt Salt of the key new uploads are encrypted with; files carry their own salt
+     */
+    public ChunkedCipher(String passphrase, byte[] salt) {
+        this(fileSalt -> deriveKey(passphrase, fileSalt), salt);
+    }
+
+    public ChunkedCipher(KeySource keys, byte[] salt) {
+        this.keys = keys;
+        this.salt = salt.clone();
+    }
+
+    public static byte[] newSalt() {
+        byte[] salt = new byte[SALT_SIZE];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Does the data start like an encrypted file?
+     */
+    public static boolean isEncrypted(byte[] start) {
+        return start.length >= HEADER_SIZE && Arrays.equals(Arrays.copyOf(start, MAGIC.length), MAGIC);
+    }
+
+    static long chunkCount(long plainLength) {
+        return Math.max(1, (plainLength + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    public static long encryptedLength(long plainLength) {
+        return HEADER_SIZE + plainLength + chunkCount(plainLength) * TAG_SIZE;
+    }
+
+    /**
+     * @return Plaintext length of an encrypted file of the given length
+     */
+    public static long plainLength(long encryptedLength) {
+        long body = encryptedLength - HEADER_SIZE;
+        long chunks = Math.max(1, (body + CHUNK_SIZE + TAG_SIZE - 1) / (CHUNK_SIZE + TAG_SIZE));
+        return body - chunks * TAG_SIZE;
+    }
+
+    /**
+     * Offset of a chunk within the encrypted file
+     */
+    public static long chunkStart(long index) {
+        return HEADER_SIZE + index * (CHUNK_SIZE + TAG_SIZE);
+    }
+
+    /**
+     * Wrap a body of known length so it is encrypted as it is written
+     */
+    public RequestBody encrypt(RequestBody plain) throws IOException {
+        long length = plain.contentLength();
+        if (length < 0) {
+            throw new IOException("Cannot encrypt a body of unknown length");
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        System.arraycopy(salt, 0, header, MAGIC.length, SALT_SIZE);
+        byte[] prefix = new byte[PREFIX_SIZE];
+        random.nextBytes(prefix);
+        System.arraycopy(prefix, 0, header, MAGIC.length + SALT_SIZE, PREFIX_SIZE);
+        return new EncryptedBody(plain, length, key(salt), header);
+    }
+
+    /**
+     * Decrypt chunks of an encrypted file as they are read
+     * @param header The first HEADER_SIZE bytes of the file
+     * @param chunks Stream positioned at the start of chunk firstChunk
+     * @param plainLength Plaintext length of the whole file, to know which chunk is the last
+     * @return Plaintext from the start of firstChunk; ends where the chunks stream ends
+     */
+    public InputStream decrypt(byte[] header, InputStream chunks, long firstChunk, long plainLength) throws IOException {
+        if (!isEncrypted(header)) {
+            throw new IOException("Not an encrypted file");
+        }
+        byte[] fileSalt = Arrays.copyOfRange(header, MAGIC.length, MAGIC.length + SALT_SIZE);
+        return new DecryptingStream(chunks, key(fileSalt), header, firstChunk, plainLength);
+    }
+
+    /**
+     * Decrypt a whole encrypted file
+     */
+    public InputStream decrypt(InputStream file, long encryptedLength) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        if (readFully(file, header, header.length) != header.length) {
+            throw new IOException("Encrypted file is truncated");
+        }
+        return decrypt(header, file, 0, plainLength(encryptedLength));
+    }
+
+    /**
+     * Derive the key of a passphrase and salt with PBKDF2, which takes a while on purpose
+     */
+    public static byte[] deriveKey(String passphrase, byte[] keySalt) throws IOException {
+        String id = ByteString.encodeUtf8(passphrase).sha256().hex() + ByteString.of(keySalt).hex();
+        byte[] key = derived.get(id);
+        if (key == null) {
+            try {
+                PBEKeySpec spec = new PBEKeySpec(passphrase.toCharArray(), keySalt, KEY_ITERATIONS, 256);
+                key = SecretKeyFactory.getInstance(KEY_ALGORITHM).generateSecret(spec).getEncoded();
+                spec.clearPassword();
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Key derivation failed", e);
+            }
+            derived.put(id, key);
+        }
+        return key;
+    }
+
+    private SecretKey key(byte[] keySalt) throws IOException {
+        return new SecretKeySpec(keys.key(keySalt), "AES");
+    }
+
+    private static Cipher init(Cipher cipher, int mode, SecretKey key, byte[] header, long index, boolean last)
+            throws GeneralSecurityException {
+        byte[] nonce = new byte[PREFIX_SIZE + 4];
+        System.arraycopy(header, MAGIC.length + SALT_SIZE, nonce, 0, PREFIX_SIZE);
+        nonce[8] = (byte) (index >>> 24);
+        nonce[9] = (byte) (index >>> 16);
+        nonce[10] = (byte) (index >>> 8);
+        nonce[11] = (byte) index;
+        cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        cipher.updateAAD(new byte[]{(byte) (last ? 1 : 0)});
+        return cipher;
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        int read;
+        while (total < length && (read = in.read(buffer, total, length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    private static final class EncryptedBody extends RequestBody {
+        private final RequestBody plain;
+        private final long plainLength;
+        private final SecretKey key;
+        private final byte[] header;
+
+        EncryptedBody(RequestBody plain, long plainLength, SecretKey key, byte[] header) {
+            this.plain = plain;
+            this.plainLength = plainLength;
+            this.key = key;
+            this.header = header;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return ENCRYPTED;
+        }
+
+        @Override
+        public long contentLength() {
+            return encryptedLength(plainLength);
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            sink.write(header);
+            EncryptingSink encrypting;
+            try {
+                encrypting = new EncryptingSink(sink, Cipher.getInstance(TRANSFORMATION));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("AES-GCM unavailable", e);
+            }
+            BufferedSink buffered = Okio.buffer(encrypting);
+            plain.writeTo(buffered);
+            buffered.flush();
+            encrypting.finish();
+        }
+
+        /**
+         * Collects plaintext into chunks and writes each one encrypted once it is full
+         */
+        private final class EncryptingSink implements Sink {
+            private final BufferedSink out;
+            private final Cipher cipher;
+            private final long chunks = chunkCount(plainLength);
+            private final byte[] chunk = new byte[CHUNK_SIZE];
+            private final byte[] sealed = new byte[CHUNK_SIZE + TAG_SIZE];
+            private int filled;
+            private long index;
+            private long written;
+
+            EncryptingSink(BufferedSink out, Cipher cipher) {
+                this.out = out;
+                this.cipher = cipher;
+            }
+
+            @Override
+            public void write(Buffer source, long byteCount) throws IOException {
+                if (written + byteCount > plainLength) {
+                    throw new IOException("Body is longer than declared");
+                }
+                while (byteCount > 0) {
+                    int n = source.read(chunk, filled, (int) Math.min(byteCount, CHUNK_SIZE - filled));
+                    filled += n;
+                    written += n;
+                    byteCount -= n;
+                    if (filled == CHUNK_SIZE) {
+                        seal();
+                    }
+                }
+            }
+
+            void finish() throws IOException {
+                if (written != plainLength) {
+                    throw new IOException("Body is shorter than declared");
+                }
+                // A partial last chunk, or the empty one of an empty body
+                if (index < chunks) {
+                    seal();
+                }
+            }
+
+            private void seal() throws IOException {
+                try {
+                    int n = init(cipher, Cipher.ENCRYPT_MODE, key, header, index, index == chunks - 1)
+                        .doFinal(chunk, 0, filled, sealed, 0);
+                    out.write(sealed, 0, n);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Encryption failed", e);
+                }
+                index++;
+                filled = 0;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public Timeout timeout() {
+                return out.timeout();
+            }
+
+            @Override
+            public void close() {
+            }
+        }
+    }
+
+    private static final class DecryptingStream extends InputStream {
+        private final InputStream in;
+        private final SecretKey key;
+        private final byte[] header;
+        private final long plainLength;
+        private final long chunks;
+        private final Cipher cipher;
+        private final byte[] sealed = new byte[CHUNK_SIZE + TAG_SIZE];
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private long index;
+        private int position;
+        private int limit;
+
+        DecryptingStream(InputStream in, SecretKey key, byte[] header, long firstChunk, long plainLength) throws IOException {
+            this.in = in;
+            this.key = key;
+            this.header = header.clone();
+            this.plainLength = plainLength;
+            this.chunks = chunkCount(plainLength);
+            this.index = firstChunk;
+            try {
+                this.cipher = Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("AES-GCM unavailable", e);
+            }
+        }
+
+        /**
+         * @return false at the end of the file or of the fetched range
+         */
+        private boolean fill() throws IOException {
+            if (index >= chunks) {
+                return false;
+            }
+            int plain = (int) Math.min(CHUNK_SIZE, plainLength - index * CHUNK_SIZE);
+            int read = readFully(in, sealed, plain + TAG_SIZE);
+            if (read == 0) {
+                return false;
+            }
+            if (read != plain + TAG_SIZE) {
+                throw new IOException("Encrypted chunk " + index + " is truncated");
+            }
+            try {
+                limit = init(cipher, Cipher.DECRYPT_MODE, key, header, index, index == chunks - 1)
+                    .doFinal(sealed, 0, read, chunk, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot decrypt chunk " + index + ", wrong passphrase or damaged file", e);
+            }
+            position = 0;
+            index++;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.photogram.backup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds photos that are on the device but not in the history with a single merge-join.
+ *
+ * Both inputs are streamed in ascending DATE_MODIFIED order. The key is numeric, so the order
+ * does not depend on how MediaStore and our database collate paths. Rows sharing one
+ * DATE_MODIFIED second form a group and are matched by path within it, so memory stays bounded
+ * by the largest group rather than the library.
+ */
+public final class GapReconciler {
+
+    public static final class Entry {
+        public final String path;
+        public final long modified;
+        public final long size;
+
+        public Entry(String path, long modified, long size) {
+            this.path = path;
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Sorted input; returns null when exhausted
+     */
+    public interface Source {
+        Entry next() throws Exception;
+    }
+
+    public interface Sink {
+        void missing(Entry entry) throws Exception;
+    }
+
+    public static final class Stats {
+        public int scanned;
+        public int backedUp;
+        public int missing;
+    }
+
+    private GapReconciler() {
+    }
+
+    /**
+     * Report every media entry without a history row of the same path and DATE_MODIFIED
+     * @throws IllegalStateException if an input is not sorted
+     */
+    public static Stats reconcile(Source media, Source history, Sink sink) throws Exception {
+        Stats stats = new Stats();
+        Group mediaGroup = new Group(media, "media");
+        Group historyGroup = new Group(history, "history");
+        mediaGroup.advance();
+        historyGroup.advance();
+
+        while (mediaGroup.hasRows()) {
+            int c = historyGroup.hasRows() ? Long.compare(mediaGroup.modified, historyGroup.modified) : -1;
+            if (c > 0) {
+                historyGroup.advance();
+                continue;
+            }
+
+            Set<String> uploaded = c == 0 ? historyGroup.paths() : null;
+            for (Entry entry : mediaGroup.rows) {
+                stats.scanned++;
+                if (uploaded != null && uploaded.contains(entry.path)) {
+                    stats.backedUp++;
+                } else {
+                    stats.missing++;
+                    sink.missing(entry);
+                }
+            }
+            mediaGroup.advance();
+            if (c == 0) {
+                historyGroup.advance();
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Rows of one source that share a DATE_MODIFIED
+     */
+    private static final class Group {
+        private final Source source;
+        private final String name;
+        final List<Entry> rows = new ArrayList<>();
+        long modified = Long.MIN_VALUE;
+        private Entry lookahead;
+        private boolean started;
+
+        Group(Source source, String name) {
+            this.source = source;
+            this.name = name;
+        }
+
+        boolean hasRows() {
+            return !rows.isEmpty();
+        }
+
+        Set<String> paths() {
+            Set<String> paths = new HashSet<>();
+            for (Entry entry : rows) {
+                paths.add(entry.path);
+            }
+            return paths;
+        }
+
+        void advance() throws Exception {
+            rows.clear();
+            if (!started) {
+                lookahead = source.next();
+                started = true;
+            }
+            if (lookahead == null) {
+                return;
+            }
+            if (lookahead.modified < modified) {
+                throw new IllegalStateException(name + " is not sorted by DATE_MODIFIED");
+            }
+            modified = lookahead.modified;
+            while (lookahead != null && lookahead.modified == modified) {
+                rows.add(lookahead);
+                lookahead = source.next();
+            }
+            if (lookahead != null && lookahead.modified < modified) {
+                throw new IllegalStateException(name + " is not sorted by DATE_MODIFIED");
+            }
+        }
+    }
+}
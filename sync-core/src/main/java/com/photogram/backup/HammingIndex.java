@@ -0,0 +1,57 @@
+package com.photogram.backup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 64-bit perceptual hashes with their values, searched by Hamming distance. A lookup scans the
+ * hashes as a flat {@code long[]} with one {@link Long#bitCount} each: at the distance of
+ * near-duplicates a tree over 64-bit hashes visits most of its nodes anyway, and a folder holds
+ * thousands of hashes, which a scan gets through in microseconds.
+ *
+ * Not thread-safe.
+ */
+public final class HammingIndex<T> {
+
+    public static final class Match<T> {
+        public final T value;
+        public final int distance;
+
+        Match(T value, int distance) {
+            this.value = value;
+            this.distance = distance;
+        }
+    }
+
+    private long[] hashes = new long[16];
+    private final List<T> values = new ArrayList<>();
+
+    public void add(long hash, T value) {
+        int size = values.size();
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        hashes[size] = hash;
+        values.add(value);
+    }
+
+    /**
+     * All values whose hash is within maxDistance of the given one, in the order they were added
+     */
+    public List<Match<T>> search(long hash, int maxDistance) {
+        List<Match<T>> matches = new ArrayList<>();
+        int size = values.size();
+        for (int i = 0; i < size; i++) {
+            int d = Long.bitCount(hashes[i] ^ hash);
+            if (d <= maxDistance) {
+                matches.add(new Match<>(values.get(i), d));
+            }
+        }
+        return matches;
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
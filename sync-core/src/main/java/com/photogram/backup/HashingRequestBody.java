@@ -0,0 +1,66 @@
+package com.photogram.backup;
+
+import java.io.File;
+import java.io.IOException;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.HashingSink;
+import okio.Okio;
+
+/**
+ * RequestBody wrapper that computes the SHA-256 of the delegate while it is written, so an
+ * upload fingerprints its file without reading it a second time.
+ */
+public class HashingRequestBody extends RequestBody {
+
+    private final RequestBody delegate;
+    private volatile String sha256;
+
+    public HashingRequestBody(RequestBody delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return delegate.contentType();
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return delegate.contentLength();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        sha256 = null;
+        HashingSink hashing = HashingSink.sha256(sink);
+        BufferedSink buffered = Okio.buffer(hashing);
+        delegate.writeTo(buffered);
+        buffered.flush();
+        sha256 = hashing.hash().hex();
+    }
+
+    /**
+     * @return Hex SHA-256 of the last complete write, or null if the body was not fully written
+     */
+    public String getSha256() {
+        return sha256;
+    }
+
+    /**
+     * Hex SHA-256 of a file, the same value an upload of it records
+     */
+    public static String sha256Of(File file) throws IOException {
+        try (BufferedSource source = Okio.buffer(Okio.source(file));
+             HashingSink hashing = HashingSink.sha256(Okio.blackhole())) {
+            Buffer buffer = new Buffer();
+            while (source.read(buffer, 64 * 1024) != -1) {
+                hashing.write(buffer, buffer.size());
+            }
+            return hashing.hash().hex();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.photogram.backup;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JSON form of the upload history, as uploaded to Telegram and read back after a reinstall.
+ * Keys are single letters and optional fields are left out, to keep the file small.
+ */
+final class HistoryCodec {
+    private static final String KEY_PATH = "p";
+    private static final String KEY_MODIFIED = "m";
+    private static final String KEY_UPLOADED_AT = "u";
+    private static final String KEY_FILE_ID = "f";
+    private static final String KEY_MESSAGE_ID = "i";
+    private static final String KEY_SIZE = "s";
+    private static final String KEY_CONTENT_HASH = "h";
+    private static final String KEY_PACK_NAME = "k";
+    private static final String KEY_PACK_OFFSET = "o";
+    private static final String KEY_DUPLICATE_OF = "d";
+    private static final String KEY_ENCRYPTED = "e";
+
+    private HistoryCodec() {
+    }
+
+    /**
+     * A history row. The size is only kept with a content hash or a pack, where it is needed.
+     */
+    static final class Record {
+        final String path;
+        final long modified;
+        final long uploadedAt;
+        String fileId;
+        /** 0 if unknown */
+        int messageId;
+        long size;
+        String contentHash;
+        String packName;
+        long packOffset;
+        String duplicateOf;
+        boolean encrypted;
+
+        Record(String path, long modified, long uploadedAt) {
+            this.path = path;
+            this.modified = modified;
+            this.uploadedAt = uploadedAt;
+        }
+    }
+
+    static JSONObject toJson(Record record) throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put(KEY_PATH, record.path);
+        obj.put(KEY_MODIFIED, record.modified);
+        obj.put(KEY_UPLOADED_AT, record.uploadedAt);
+        if (record.fileId != null) {
+            obj.put(KEY_FILE_ID, record.fileId);
+        }
+        if (record.messageId > 0) {
+            obj.put(KEY_MESSAGE_ID, record.messageId);
+        }
+        if (record.contentHash != null) {
+            obj.put(KEY_SIZE, record.size);
+            obj.put(KEY_CONTENT_HASH, record.contentHash);
+        }
+        if (record.packName != null) {
+            obj.put(KEY_SIZE, record.size);
+            obj.put(KEY_PACK_NAME, record.packName);
+            obj.put(KEY_PACK_OFFSET, record.packOffset);
+        }
+        if (record.duplicateOf != null) {
+            obj.put(KEY_DUPLICATE_OF, record.duplicateOf);
+        }
+        if (record.encrypted) {
+            obj.put(KEY_ENCRYPTED, 1);
+        }
+        return obj;
+    }
+
+    /**
+     * @param now Upload time of records that don't carry one
+     */
+    static Record fromJson(JSONObject obj, long now) throws JSONException {
+        Record record = new Record(obj.getString(KEY_PATH), obj.getLong(KEY_MODIFIED), obj.optLong(KEY_UPLOADED_AT, now));
+        record.fileId = obj.optString(KEY_FILE_ID, null);
+        record.messageId = obj.optInt(KEY_MESSAGE_ID);
+        if (obj.has(KEY_CONTENT_HASH)) {
+            record.size = obj.getLong(KEY_SIZE);
+            record.contentHash = obj.getString(KEY_CONTENT_HASH);
+        }
+        if (obj.has(KEY_PACK_NAME)) {
+            record.size = obj.getLong(KEY_SIZE);
+            record.packName = obj.getString(KEY_PACK_NAME);
+            record.packOffset = obj.getLong(KEY_PACK_OFFSET);
+        }
+        record.duplicateOf = obj.optString(KEY_DUPLICATE_OF, null);
+        record.encrypted = obj.optInt(KEY_ENCRYPTED) != 0;
+        return record;
+    }
+
+    static String encode(Iterable<Record> records) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (Record record : records) {
+            array.put(toJson(record));
+        }
+        return array.toString();
+    }
+
+    static List<Record> decode(String json, long now) throws JSONException {
+        JSONArray array = new JSONArray(json);
+        List<Record> records = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            records.add(fromJson(array.getJSONObject(i), now));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,100 @@
+package com.photogram.backup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns what is typed into the history search into FTS4 MATCH expressions for the history
+ * index, whose columns are the file name, the folder path and the upload date as
+ * {@code yyyy mm dd}.
+ *
+ * Queries are split into tokens the way the index's {@code simple} tokenizer splits text:
+ * runs of ASCII letters and digits and of any non-ASCII characters, with ASCII folded to
+ * lower case. Every word must match, the last token of a word as a prefix; a word of several
+ * tokens, like {@code IMG_2024} or {@code 2024-05}, must match them in a row. Nothing typed can
+ * reach the MATCH syntax, as quotes, stars, colons and dashes never end up in a token.
+ */
+final class HistorySearch {
+    /** Name of the index column of file names */
+    static final String NAME_COLUMN = "name";
+
+    private HistorySearch() {
+    }
+
+    /**
+     * @return MATCH expression of rows matching every word in any column, null if the query has
+     * no tokens
+     */
+    static String match(String query) {
+        StringBuilder match = new StringBuilder();
+        for (List<String> word : words(query)) {
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            if (word.size() == 1) {
+                match.append(word.get(0)).append('*');
+            } else {
+                match.append('"');
+                for (int i = 0; i < word.size(); i++) {
+                    if (i > 0) {
+                        match.append(' ');
+                    }
+                    match.append(word.get(i));
+                }
+                match.append("*\"");
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * Rows whose file name holds every token, the first rank of a search. FTS4 cannot limit a
+     * phrase to one column, so the tokens are matched in the name one by one, on top of
+     * {@link #match(String)}.
+     * @return MATCH expression, null if the query has no tokens
+     */
+    static String nameMatch(String query) {
+        String match = match(query);
+        if (match == null) {
+            return null;
+        }
+        StringBuilder nameMatch = new StringBuilder(match);
+        for (List<String> word : words(query)) {
+            for (int i = 0; i < word.size(); i++) {
+                nameMatch.append(' ').append(NAME_COLUMN).append(':').append(word.get(i));
+                if (i == word.size() - 1) {
+                    nameMatch.append('*');
+                }
+            }
+        }
+        return nameMatch.toString();
+    }
+
+    /**
+     * @return Tokens of each whitespace-separated word that has any
+     */
+    private static List<List<String>> words(String query) {
+        List<List<String>> words = new ArrayList<>();
+        for (String text : query.trim().split("\\s+")) {
+            List<String> tokens = new ArrayList<>();
+            StringBuilder token = new StringBuilder();
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80 || Character.isLetterOrDigit(c)) {
+                    // The tokenizer folds ASCII only
+                    token.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+                } else if (token.length() > 0) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                }
+            }
+            if (token.length() > 0) {
+                tokens.add(token.toString());
+            }
+            if (!tokens.isEmpty()) {
+                words.add(tokens);
+            }
+        }
+        return words;
+    }
+}
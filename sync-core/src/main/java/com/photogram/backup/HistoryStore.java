@@ -0,0 +1,143 @@
+package com.photogram.backup;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What the sync needs to know about earlier uploads, implemented by the SQLite
+ * {@code DatabaseHelper} on the device.
+ */
+public interface HistoryStore {
+
+    /**
+     * @return true if this version of the file was uploaded already
+     */
+    boolean isFileUploaded(String path, long modified);
+
+    /**
+     * Mark a file as uploaded
+     * @param size File size in bytes, 0 if unknown
+     * @param fileId Telegram file id of the upload, if known
+     * @param messageId Telegram message id of the upload, 0 if unknown
+     * @param contentHash Hex SHA-256 of the file, if known
+     * @param encrypted Whether the upload was encrypted with {@link ChunkedCipher}
+     * @return true if marked successfully
+     */
+    boolean markAsUploaded(String path, long modified, long size, String fileId,
+                           int messageId, String contentHash, boolean encrypted);
+
+    /**
+     * Mark the members of an uploaded pack as uploaded, in one transaction
+     * @param packName File name of the pack document
+     * @param fileId Telegram file id of the pack
+     * @param messageId Telegram message id of the pack
+     * @param members Path, DATE_MODIFIED, size and data offset of every member
+     * @param encrypted Whether the pack was encrypted with {@link ChunkedCipher}
+     * @return true if all members were recorded
+     */
+    boolean markAsPacked(String packName, String fileId, int messageId,
+                         Collection<PackedFile> members, boolean encrypted);
+
+    /**
+     * Record a photo that was left out as a near-duplicate of an uploaded one
+     * @param duplicateOf Path of the uploaded photo it resembles
+     * @return true if recorded
+     */
+    boolean markAsNearDuplicate(String path, long modified, long size, String duplicateOf);
+
+    /**
+     * Attach the perceptual hash to an uploaded file
+     */
+    void savePerceptualHash(String path, long modified, long hash);
+
+    /**
+     * Persist the sync checkpoints of several folders in one transaction
+     * @param checkpoints Map of folder path to DATE_MODIFIED checkpoint in seconds
+     */
+    void saveSyncCheckpoints(Map<String, Long> checkpoints);
+
+    /**
+     * Cheap pre-check before hashing a file: is there any fingerprinted upload of this size?
+     */
+    boolean hasHashedUploadOfSize(long size);
+
+    /**
+     * Find an earlier upload with the same content, the most recent first
+     * @return The upload, or null if there is none with a message or file id
+     */
+    UploadedCopy findUploadByContent(long size, String contentHash);
+
+    /**
+     * Get queued uploads
+     * @param folderPaths Only these folders, or null for all
+     */
+    List<QueuedUpload> getQueuedUploads(Collection<String> folderPaths);
+
+    /**
+     * Add files to the upload queue in one transaction, replacing older entries of the same path
+     * @return number of queued files
+     */
+    int enqueueUploads(Collection<QueuedUpload> uploads);
+
+    /**
+     * Remove a file from the upload queue, once uploaded or no longer relevant
+     */
+    void removeQueuedUpload(String path);
+
+    /**
+     * Add a log entry
+     * @param type Log type (ERROR, WARN, INFO, DEBUG)
+     */
+    void addLog(String type, String message);
+
+    /**
+     * Telegram ids of an earlier upload that a new file can be copied from
+     */
+    class UploadedCopy {
+        public final int messageId;
+        public final String fileId;
+        /** The earlier upload was encrypted, and so is a copy of it */
+        public final boolean encrypted;
+
+        public UploadedCopy(int messageId, String fileId, boolean encrypted) {
+            this.messageId = messageId;
+            this.fileId = fileId;
+            this.encrypted = encrypted;
+        }
+    }
+
+    /**
+     * A member of a pack, for the history
+     */
+    class PackedFile {
+        public final String path;
+        public final long modified;
+        public final long size;
+        public final long offset;
+
+        public PackedFile(String path, long modified, long size, long offset) {
+            this.path = path;
+            this.modified = modified;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * A file waiting in the upload queue
+     */
+    class QueuedUpload {
+        public final String path;
+        public final String folderPath;
+        public final long modified;
+        public final long size;
+
+        public QueuedUpload(String path, String folderPath, long modified, long size) {
+            this.path = path;
+            this.folderPath = folderPath;
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.photogram.backup;
+
+import java.util.Arrays;
+
+/**
+ * Upload latencies in log-scaled buckets, four per doubling, so percentiles are within about 19%
+ * at any scale and a histogram stays a few dozen counts however many uploads it holds. Shards of
+ * a run each keep one; they are merged in the run's row, which is why the percentiles are not
+ * computed from samples.
+ */
+final class LatencyHistogram {
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    /** 2^20 ms is over 17 minutes, longer than any upload call may take */
+    private static final int BUCKETS = 20 * BUCKETS_PER_DOUBLING + 1;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+
+    void add(long millis) {
+        counts[bucketOf(millis)]++;
+        total++;
+    }
+
+    void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+    }
+
+    long count() {
+        return total;
+    }
+
+    /**
+     * @param p Percentile, 0 to 100
+     * @return Upper bound of the bucket holding the percentile in ms, 0 if empty
+     */
+    long percentile(double p) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * p / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * Compact text form for a database column: the counts up to the last non-empty bucket
+     */
+    String encode() {
+        int last = BUCKETS - 1;
+        while (last >= 0 && counts[last] == 0) {
+            last--;
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i <= last; i++) {
+            if (i > 0) text.append(',');
+            if (counts[i] > 0) text.append(counts[i]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * @param text See {@link #encode()}; null, empty or malformed text gives an empty histogram
+     */
+    static LatencyHistogram decode(String text) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        if (text == null || text.isEmpty()) {
+            return histogram;
+        }
+        String[] parts = text.split(",", -1);
+        try {
+            for (int i = 0; i < Math.min(parts.length, BUCKETS); i++) {
+                if (!parts[i].isEmpty()) {
+                    histogram.counts[i] = Long.parseLong(parts[i]);
+                    histogram.total += histogram.counts[i];
+                }
+            }
+        } catch (NumberFormatException e) {
+            Arrays.fill(histogram.counts, 0);
+            histogram.total = 0;
+        }
+        return histogram;
+    }
+
+    private static int bucketOf(long millis) {
+        if (millis <= 1) {
+            return 0;
+        }
+        int bucket = (int) Math.ceil(Math.log(millis) / Math.log(2) * BUCKETS_PER_DOUBLING);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        return Math.round(Math.pow(2, (double) bucket / BUCKETS_PER_DOUBLING));
+    }
+}
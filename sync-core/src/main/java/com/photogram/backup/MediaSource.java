@@ -0,0 +1,22 @@
+package com.photogram.backup;
+
+/**
+ * The photos on the device, implemented over MediaStore by {@code MediaStoreSource}.
+ */
+public interface MediaSource {
+
+    interface Visitor {
+        /**
+         * @param modified DATE_MODIFIED in seconds
+         * @return false to end the scan
+         */
+        boolean visit(String path, long modified, long size);
+    }
+
+    /**
+     * Visit every photo modified after the baseline, in no particular order
+     * @param since DATE_MODIFIED baseline in seconds
+     * @return false if the photos could not be queried
+     */
+    boolean scan(long since, Visitor visitor);
+}
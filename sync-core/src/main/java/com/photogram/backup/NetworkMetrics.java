@@ -0,0 +1,305 @@
+package com.photogram.backup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Network timings of the Telegram calls of one client, per Bot API method. Installed as the
+ * client's {@link EventListener.Factory}, so every call reports how long DNS, connecting, TLS,
+ * writing the request and waiting for the response took, and whether it reused a pooled
+ * connection. That tells connection churn apart from a slow uplink (long writes) and slow
+ * processing at Telegram (long waits for the first byte).
+ *
+ * Workers add their client's metrics to {@link SyncMetrics}, where they are kept with the run.
+ */
+final class NetworkMetrics implements EventListener.Factory {
+    /** Method name of file downloads, whose path holds the file, not a Bot API method */
+    static final String DOWNLOAD = "download";
+
+    private static final String KEY_CALLS = "calls";
+    private static final String KEY_FAILED = "failed";
+    private static final String KEY_CONNECTIONS = "connections";
+    private static final String KEY_BYTES_OUT = "out";
+    private static final String KEY_BYTES_IN = "in";
+    private static final String KEY_DNS = "dns";
+    private static final String KEY_CONNECT = "connect";
+    private static final String KEY_TLS = "tls";
+    private static final String KEY_WRITE = "write";
+    private static final String KEY_WAIT = "ttfb";
+    private static final String KEY_TOTAL = "total";
+
+    private final Map<String, Method> methods = new TreeMap<>();
+
+    /**
+     * Totals and timing histograms of one Bot API method
+     */
+    static final class Method {
+        long calls;
+        long failed;
+        /** Connections opened; the other calls reused a pooled one */
+        long connections;
+        long bytesOut;
+        long bytesIn;
+        final LatencyHistogram dns = new LatencyHistogram();
+        /** TCP and TLS, of new connections */
+        final LatencyHistogram connect = new LatencyHistogram();
+        final LatencyHistogram tls = new LatencyHistogram();
+        /** Sending the request headers and body */
+        final LatencyHistogram write = new LatencyHistogram();
+        /** From the end of the request to the response headers */
+        final LatencyHistogram firstByte = new LatencyHistogram();
+        final LatencyHistogram total = new LatencyHistogram();
+
+        long reused() {
+            return Math.max(0, calls - connections);
+        }
+
+        void merge(Method other) {
+            calls += other.calls;
+            failed += other.failed;
+            connections += other.connections;
+            bytesOut += other.bytesOut;
+            bytesIn += other.bytesIn;
+            dns.merge(other.dns);
+            connect.merge(other.connect);
+            tls.merge(other.tls);
+            write.merge(other.write);
+            firstByte.merge(other.firstByte);
+            total.merge(other.total);
+        }
+    }
+
+    @Override
+    public EventListener create(Call call) {
+        return new CallListener(methodOf(call.request().url().pathSegments()));
+    }
+
+    /**
+     * Bot API method of a request path; the bot token in the path is never part of the name
+     */
+    static String methodOf(List<String> pathSegments) {
+        if (pathSegments.size() >= 2 && pathSegments.get(0).startsWith("bot")) {
+            return pathSegments.get(pathSegments.size() - 1);
+        }
+        return DOWNLOAD;
+    }
+
+    /**
+     * @return Copy of the metrics of every method called so far, by name
+     */
+    synchronized Map<String, Method> snapshot() {
+        Map<String, Method> copy = new TreeMap<>();
+        for (Map.Entry<String, Method> entry : methods.entrySet()) {
+            Method method = new Method();
+            method.merge(entry.getValue());
+            copy.put(entry.getKey(), method);
+        }
+        return copy;
+    }
+
+    synchronized boolean isEmpty() {
+        return methods.isEmpty();
+    }
+
+    void merge(NetworkMetrics other) {
+        // Copied first, so two metrics are never locked at once
+        Map<String, Method> added = other.snapshot();
+        synchronized (this) {
+            for (Map.Entry<String, Method> entry : added.entrySet()) {
+                method(entry.getKey()).merge(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return JSON object of the methods, for a database column or a report
+     */
+    synchronized String encode() throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, Method> entry : methods.entrySet()) {
+            Method method = entry.getValue();
+            JSONObject obj = new JSONObject();
+            obj.put(KEY_CALLS, method.calls);
+            obj.put(KEY_FAILED, method.failed);
+            obj.put(KEY_CONNECTIONS, method.connections);
+            obj.put(KEY_BYTES_OUT, method.bytesOut);
+            obj.put(KEY_BYTES_IN, method.bytesIn);
+            obj.put(KEY_DNS, method.dns.encode());
+            obj.put(KEY_CONNECT, method.connect.encode());
+            obj.put(KEY_TLS, method.tls.encode());
+            obj.put(KEY_WRITE, method.write.encode());
+            obj.put(KEY_WAIT, method.firstByte.encode());
+            obj.put(KEY_TOTAL, method.total.encode());
+            json.put(entry.getKey(), obj);
+        }
+        return json.toString();
+    }
+
+    /**
+     * @param text See {@link #encode()}; null or empty text gives empty metrics
+     */
+    static NetworkMetrics decode(String text) throws JSONException {
+        NetworkMetrics metrics = new NetworkMetrics();
+        if (text == null || text.isEmpty()) {
+            return metrics;
+        }
+        JSONObject json = new JSONObject(text);
+        Iterator<String> names = json.keys();
+        while (names.hasNext()) {
+            String name = names.next();
+            JSONObject obj = json.getJSONObject(name);
+            Method method = metrics.method(name);
+            method.calls = obj.optLong(KEY_CALLS);
+            method.failed = obj.optLong(KEY_FAILED);
+            method.connections = obj.optLong(KEY_CONNECTIONS);
+            method.bytesOut = obj.optLong(KEY_BYTES_OUT);
+            method.bytesIn = obj.optLong(KEY_BYTES_IN);
+            method.dns.merge(LatencyHistogram.decode(obj.optString(KEY_DNS)));
+            method.connect.merge(LatencyHistogram.decode(obj.optString(KEY_CONNECT)));
+            method.tls.merge(LatencyHistogram.decode(obj.optString(KEY_TLS)));
+            method.write.merge(LatencyHistogram.decode(obj.optString(KEY_WRITE)));
+            method.firstByte.merge(LatencyHistogram.decode(obj.optString(KEY_WAIT)));
+            method.total.merge(LatencyHistogram.decode(obj.optString(KEY_TOTAL)));
+        }
+        return metrics;
+    }
+
+    private Method method(String name) {
+        Method method = methods.get(name);
+        if (method == null) {
+            method = new Method();
+            methods.put(name, method);
+        }
+        return method;
+    }
+
+    private synchronized void record(String name, Method call) {
+        method(name).merge(call);
+    }
+
+    /**
+     * Times one call, then adds it to its method. A call's events arrive one after another, so
+     * it needs no locking until then.
+     */
+    private final class CallListener extends EventListener {
+        private final String name;
+        private final Method call = new Method();
+        private long callStart;
+        private long dnsStart;
+        private long connectStart;
+        private long tlsStart;
+        private long writeStart = -1;
+        private long writeEnd;
+
+        CallListener(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void callStart(Call c) {
+            callStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsStart(Call c, String domainName) {
+            dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call c, String domainName, List<InetAddress> addresses) {
+            call.dns.add(millisSince(dnsStart));
+        }
+
+        @Override
+        public void connectStart(Call c, InetSocketAddress address, Proxy proxy) {
+            connectStart = System.nanoTime();
+            call.connections++;
+        }
+
+        @Override
+        public void secureConnectStart(Call c) {
+            tlsStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call c, Handshake handshake) {
+            call.tls.add(millisSince(tlsStart));
+        }
+
+        @Override
+        public void connectEnd(Call c, InetSocketAddress address, Proxy proxy, Protocol protocol) {
+            call.connect.add(millisSince(connectStart));
+        }
+
+        @Override
+        public void connectFailed(Call c, InetSocketAddress address, Proxy proxy, Protocol protocol, IOException e) {
+            call.connect.add(millisSince(connectStart));
+        }
+
+        @Override
+        public void requestHeadersStart(Call c) {
+            if (writeStart < 0) {
+                writeStart = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void requestHeadersEnd(Call c, Request request) {
+            writeEnd = System.nanoTime();
+        }
+
+        @Override
+        public void requestBodyEnd(Call c, long byteCount) {
+            writeEnd = System.nanoTime();
+            call.bytesOut += byteCount;
+        }
+
+        @Override
+        public void responseHeadersStart(Call c) {
+            if (writeStart >= 0) {
+                call.write.add((writeEnd - writeStart) / 1_000_000);
+                call.firstByte.add(millisSince(writeEnd));
+                writeStart = -1;
+            }
+        }
+
+        @Override
+        public void responseBodyEnd(Call c, long byteCount) {
+            call.bytesIn += byteCount;
+        }
+
+        @Override
+        public void callEnd(Call c) {
+            finish(false);
+        }
+
+        @Override
+        public void callFailed(Call c, IOException e) {
+            finish(true);
+        }
+
+        private void finish(boolean failed) {
+            call.calls = 1;
+            call.failed = failed ? 1 : 0;
+            call.total.add(millisSince(callStart));
+            record(name, call);
+        }
+
+        private long millisSince(long start) {
+            return (System.nanoTime() - start) / 1_000_000;
+        }
+    }
+}
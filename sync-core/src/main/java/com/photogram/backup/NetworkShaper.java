@@ -0,0 +1,429 @@
+package com.photogram.backup;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ForwardingSink;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Sink;
+import okio.Source;
+
+/**
+ * Client-side bad network for tests, the load test and debug builds: an interceptor that delays
+ * every call, caps the uplink and downlink, stalls in the middle of a body and resets
+ * connections, as described by a {@link Profile}.
+ *
+ * Every call draws its fate from a random seeded with the profile's seed and the call's number,
+ * so a run of the same calls in the same order meets the same network. Parallel shards number
+ * their calls in the order they happen to start, so only the mix of fates is repeatable there.
+ * The caps are shared by all calls of the shaper, like one radio link.
+ *
+ * A reset in the middle of a request body fails the attempt like a real one; OkHttp may retry
+ * it on a new connection, just as it would a real reset.
+ */
+final class NetworkShaper implements Interceptor {
+    /** Bodies are written and read in slices of this size, so caps, stalls and resets land inside them */
+    private static final int SLICE_BYTES = 8 * 1024;
+
+    private final Profile profile;
+    private final BandwidthLimiter.Sleeper sleeper;
+    private final BandwidthLimiter uplink;
+    private final BandwidthLimiter downlink;
+    private final AtomicLong calls = new AtomicLong();
+
+    /**
+     * Network conditions; parse one with {@link #parse(String)}
+     */
+    static final class Profile {
+        final String name;
+        /** Added before every call, the round trip and the server's time together */
+        final long latencyMs;
+        /** Latency varies evenly by up to this much either way */
+        final long jitterMs;
+        /** 0 for no cap */
+        final long uplinkBytesPerSecond;
+        /** 0 for no cap */
+        final long downlinkBytesPerSecond;
+        /** Share of calls that stall once in the middle of their body */
+        final double stallRate;
+        final long stallMs;
+        /** Share of calls whose connection is reset, before or in the middle of their body */
+        final double resetRate;
+        final long seed;
+
+        Profile(String name, long latencyMs, long jitterMs, long uplinkBytesPerSecond, long downlinkBytesPerSecond,
+                double stallRate, long stallMs, double resetRate, long seed) {
+            this.name = name;
+            this.latencyMs = latencyMs;
+            this.jitterMs = jitterMs;
+            this.uplinkBytesPerSecond = uplinkBytesPerSecond;
+            this.downlinkBytesPerSecond = downlinkBytesPerSecond;
+            this.stallRate = stallRate;
+            this.stallMs = stallMs;
+            this.resetRate = resetRate;
+            this.seed = seed;
+        }
+
+        /**
+         * A preset, key=value pairs, or a preset followed by pairs that override it, separated by
+         * commas, e.g. {@code 3g}, {@code 3g,reset=0.05,seed=7} or {@code latency=200,up=1000}.
+         *
+         * Presets: {@code lte}, {@code 3g}, {@code edge}, {@code flaky-wifi}. Keys: latency and
+         * jitter in ms, up and down in kbit/s, stall (share of calls), stall-ms, reset (share of
+         * calls) and seed.
+         * @throws IllegalArgumentException For an unknown preset or key, or a malformed value
+         */
+        static Profile parse(String spec) {
+            String[] parts = spec.trim().split("\\s*,\\s*");
+            int first = 0;
+            Profile base = new Profile("custom", 0, 0, 0, 0, 0, 0, 0, 1);
+            if (!parts[0].contains("=")) {
+                base = preset(parts[0].toLowerCase(Locale.US));
+                first = 1;
+            }
+
+            long latencyMs = base.latencyMs;
+            long jitterMs = base.jitterMs;
+            long uplink = base.uplinkBytesPerSecond;
+            long downlink = base.downlinkBytesPerSecond;
+            double stallRate = base.stallRate;
+            long stallMs = base.stallMs;
+            double resetRate = base.resetRate;
+            long seed = base.seed;
+            for (int i = first; i < parts.length; i++) {
+                int eq = parts[i].indexOf('=');
+                if (eq <= 0) {
+                    throw new IllegalArgumentException("Expected key=value in network profile: " + parts[i]);
+                }
+                String key = parts[i].substring(0, eq);
+                String value = parts[i].substring(eq + 1);
+                try {
+                    switch (key) {
+                        case "latency": latencyMs = Long.parseLong(value); break;
+                        case "jitter": jitterMs = Long.parseLong(value); break;
+                        case "up": uplink = Long.parseLong(value) * 1000 / 8; break;
+                        case "down": downlink = Long.parseLong(value) * 1000 / 8; break;
+                        case "stall": stallRate = Double.parseDouble(value); break;
+                        case "stall-ms": stallMs = Long.parseLong(value); break;
+                        case "reset": resetRate = Double.parseDouble(value); break;
+                        case "seed": seed = Long.parseLong(value); break;
+                        default: throw new IllegalArgumentException("Unknown network profile key: " + key);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad value for " + key + " in network profile: " + value, e);
+                }
+            }
+            return new Profile(spec.trim(), latencyMs, jitterMs, uplink, downlink, stallRate, stallMs, resetRate, seed);
+        }
+
+        private static Profile preset(String name) {
+            switch (name) {
+                case "lte":
+                    return new Profile(name, 70, 20, 5_000_000 / 8, 12_000_000 / 8, 0.005, 1000, 0.001, 1);
+                case "3g":
+                    return new Profile(name, 300, 100, 750_000 / 8, 1_600_000 / 8, 0.02, 3000, 0.005, 1);
+                case "edge":
+                    return new Profile(name, 650, 200, 200_000 / 8, 240_000 / 8, 0.05, 5000, 0.02, 1);
+                case "flaky-wifi":
+                    return new Profile(name, 40, 60, 10_000_000 / 8, 20_000_000 / 8, 0.05, 4000, 0.03, 1);
+                default:
+                    throw new IllegalArgumentException("Unknown network profile: " + name);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * What happens to one call, drawn up front from the seed
+     */
+    static final class Fate {
+        final long latencyMs;
+        /** Fraction of the body after which the call stalls, -1 for no stall */
+        final double stallAt;
+        /** Fraction of the body after which the connection is reset, -1 for no reset */
+        final double resetAt;
+
+        Fate(long latencyMs, double stallAt, double resetAt) {
+            this.latencyMs = latencyMs;
+            this.stallAt = stallAt;
+            this.resetAt = resetAt;
+        }
+    }
+
+    NetworkShaper(Profile profile) {
+        this(profile, System::currentTimeMillis, Thread::sleep);
+    }
+
+    NetworkShaper(Profile profile, BandwidthLimiter.Clock clock, BandwidthLimiter.Sleeper sleeper) {
+        this.profile = profile;
+        this.sleeper = sleeper;
+        this.uplink = new BandwidthLimiter(profile.uplinkBytesPerSecond, clock, sleeper);
+        this.downlink = new BandwidthLimiter(profile.downlinkBytesPerSecond, clock, sleeper);
+    }
+
+    Profile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @param call Number of the call, from 0 in the order calls reach the shaper
+     */
+    Fate fate(long call) {
+        Random random = new Random(profile.seed * 0x9E3779B97F4A7C15L + call);
+        long latency = profile.latencyMs;
+        if (profile.jitterMs > 0) {
+            latency += Math.round((random.nextDouble() * 2 - 1) * profile.jitterMs);
+        }
+        double stallAt = random.nextDouble() < profile.stallRate ? random.nextDouble() : -1;
+        double resetAt = random.nextDouble() < profile.resetRate ? random.nextDouble() : -1;
+        return new Fate(Math.max(0, latency), stallAt, resetAt);
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Fate fate = fate(calls.getAndIncrement());
+        pause(fate.latencyMs);
+        if (chain.call().isCanceled()) {
+            throw new IOException("Canceled");
+        }
+
+        Request request = chain.request();
+        RequestBody body = request.body();
+        boolean shapeRequest = body != null && body.contentLength() != 0;
+        if (fate.resetAt >= 0 && !shapeRequest) {
+            throw reset();
+        }
+        if (shapeRequest) {
+            long length = body.contentLength();
+            request = request.newBuilder()
+                .method(request.method(), new ShapedRequestBody(body, offsetOf(fate.stallAt, length), offsetOf(fate.resetAt, length)))
+                .build();
+        }
+
+        Response response = chain.proceed(request);
+        ResponseBody responseBody = response.body();
+        if (responseBody == null) {
+            return response;
+        }
+        long stallAt = shapeRequest ? -1 : offsetOf(fate.stallAt, responseBody.contentLength());
+        if (stallAt < 0 && profile.downlinkBytesPerSecond <= 0) {
+            return response;
+        }
+        return response.newBuilder().body(new ShapedResponseBody(responseBody, stallAt)).build();
+    }
+
+    /**
+     * A sink shaped like a request body's
+     * @param stallAt Byte offset of a stall, -1 for none
+     * @param resetAt Byte offset of a reset, -1 for none
+     */
+    Sink shape(Sink sink, long stallAt, long resetAt) {
+        return new ShapedSink(sink, new Events(stallAt, resetAt));
+    }
+
+    /**
+     * @param length Of the body, -1 if unknown, in which case the event comes at the first slice
+     * @return Byte offset of an event at a fraction of the body, -1 for none
+     */
+    private static long offsetOf(double fraction, long length) {
+        if (fraction < 0) {
+            return -1;
+        }
+        return length > 0 ? (long) (fraction * length) : 0;
+    }
+
+    private void pause(long ms) throws IOException {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            sleeper.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while shaping the network");
+        }
+    }
+
+    private void acquire(BandwidthLimiter link, long bytes) throws IOException {
+        try {
+            link.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while shaping the network");
+        }
+    }
+
+    private static SocketException reset() {
+        return new SocketException("Connection reset (network profile)");
+    }
+
+    /**
+     * Stalls and resets at byte offsets of one body; a rewritten body starts over but meets each
+     * event only once
+     */
+    private final class Events {
+        private long stallAt;
+        private long resetAt;
+
+        Events(long stallAt, long resetAt) {
+            this.stallAt = stallAt;
+            this.resetAt = resetAt;
+        }
+
+        /**
+         * @return Bytes of the next slice, up to the next event
+         */
+        long slice(long position, long byteCount) {
+            long slice = Math.min(byteCount, SLICE_BYTES);
+            for (long at : new long[] {stallAt, resetAt}) {
+                if (at > position) {
+                    slice = Math.min(slice, at - position);
+                }
+            }
+            return slice;
+        }
+
+        /**
+         * Meet the events due at a position
+         */
+        void at(long position) throws IOException {
+            if (stallAt >= 0 && position >= stallAt) {
+                stallAt = -1;
+                pause(profile.stallMs);
+            }
+            if (resetAt >= 0 && position >= resetAt) {
+                resetAt = -1;
+                throw reset();
+            }
+        }
+    }
+
+    private final class ShapedRequestBody extends RequestBody {
+        private final RequestBody delegate;
+        private final Events events;
+
+        ShapedRequestBody(RequestBody delegate, long stallAt, long resetAt) {
+            this.delegate = delegate;
+            this.events = new Events(stallAt, resetAt);
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public boolean isOneShot() {
+            return delegate.isOneShot();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            BufferedSink shaped = Okio.buffer(new ShapedSink(sink, events));
+            delegate.writeTo(shaped);
+            shaped.flush();
+        }
+    }
+
+    /**
+     * Paces writes through the uplink and meets the body's events on the way
+     */
+    private final class ShapedSink extends ForwardingSink {
+        private final Events events;
+        private long written;
+
+        ShapedSink(Sink delegate, Events events) {
+            super(delegate);
+            this.events = events;
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            while (byteCount > 0) {
+                events.at(written);
+                long slice = events.slice(written, byteCount);
+                acquire(uplink, slice);
+                super.write(source, slice);
+                written += slice;
+                byteCount -= slice;
+            }
+            events.at(written);
+        }
+    }
+
+    private final class ShapedResponseBody extends ResponseBody {
+        private final ResponseBody delegate;
+        private final BufferedSource source;
+
+        ShapedResponseBody(ResponseBody delegate, long stallAt) {
+            this.delegate = delegate;
+            this.source = Okio.buffer(new ShapedSource(delegate.source(), new Events(stallAt, -1)));
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            return source;
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+
+    /**
+     * Paces reads through the downlink and meets the body's events on the way
+     */
+    private final class ShapedSource extends ForwardingSource {
+        private final Events events;
+        private long read;
+
+        ShapedSource(Source delegate, Events events) {
+            super(delegate);
+            this.events = events;
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            events.at(read);
+            long count = super.read(sink, events.slice(read, byteCount));
+            if (count > 0) {
+                read += count;
+                acquire(downlink, count);
+            }
+            return count;
+        }
+    }
+}
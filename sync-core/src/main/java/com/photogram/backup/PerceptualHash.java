@@ -0,0 +1,47 @@
+package com.photogram.backup;
+
+/**
+ * 64-bit difference hash (dHash) of an image: each bit says whether a pixel of a 9x8 grayscale
+ * thumbnail is brighter than its right neighbour. Resizing, recompression and small edits move
+ * few bits, so near-identical photos such as burst shots are a small Hamming distance apart.
+ */
+public final class PerceptualHash {
+    public static final int WIDTH = 9;
+    public static final int HEIGHT = 8;
+
+    private PerceptualHash() {
+    }
+
+    /**
+     * @param luma Row-major brightness of a {@link #WIDTH} x {@link #HEIGHT} thumbnail
+     */
+    public static long dHash(int[] luma) {
+        if (luma.length != WIDTH * HEIGHT) {
+            throw new IllegalArgumentException("Expected " + WIDTH * HEIGHT + " pixels, got " + luma.length);
+        }
+        long hash = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH - 1; x++) {
+                hash <<= 1;
+                if (luma[y * WIDTH + x] > luma[y * WIDTH + x + 1]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Brightness of an ARGB pixel, ITU-R BT.601 weights
+     */
+    public static int luma(int argb) {
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+        return (r * 299 + g * 587 + b * 114) / 1000;
+    }
+
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+}
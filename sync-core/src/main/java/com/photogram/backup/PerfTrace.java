@@ -0,0 +1,143 @@
+package com.photogram.backup;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trace sections and counters for system traces (Perfetto, systrace), without an Android
+ * dependency: the app installs a {@link Backend} over {@code androidx.tracing.Trace}, and with
+ * none installed, e.g. in tests and the load test, every call returns at once.
+ *
+ * Names follow {@code pg.<area>.<operation>}, e.g. {@code pg.db.isFileUploaded}, and are
+ * constants, so nothing is built or allocated for a trace that is not being recorded. Use
+ * sections with try-with-resources; a section begun while tracing was off closes as a no-op.
+ * The counters are kept up to date either way, at one atomic add per upload, so they are right
+ * when a trace starts in the middle of a sync.
+ */
+final class PerfTrace {
+    /** One photo of a shard, from the upload queue to the history */
+    static final String SYNC_FILE = "pg.sync.file";
+    /** Reading a photo ahead of its upload */
+    static final String SYNC_PREPARE = "pg.sync.prepare";
+    /** Iterating a MediaStore cursor */
+    static final String MEDIA_SCAN = "pg.media.scan";
+    /** A Telegram call, up to its response headers */
+    static final String TELEGRAM_CALL = "pg.telegram.call";
+    /** Async slice of an upload in flight, overlapping with those of other shards */
+    static final String UPLOAD_ASYNC = "pg.upload";
+
+    /** Counter: prepared photos waiting for their upload, per process */
+    static final String COUNTER_QUEUE_DEPTH = "pg.sync.queueDepth";
+    /** Counter: KiB of uploads in flight, per process */
+    static final String COUNTER_INFLIGHT_KIB = "pg.upload.inflightKiB";
+
+    /**
+     * What the platform offers; implementations need not check {@link #isEnabled()} themselves
+     */
+    interface Backend {
+        boolean isEnabled();
+
+        void beginSection(String name);
+
+        void endSection();
+
+        void beginAsyncSection(String name, int cookie);
+
+        void endAsyncSection(String name, int cookie);
+
+        void setCounter(String name, long value);
+    }
+
+    /**
+     * An open section, closed on the thread that began it
+     */
+    interface Section extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static volatile Backend backend;
+
+    private static final Section NONE = () -> {
+    };
+    private static final Section END = () -> {
+        Backend current = backend;
+        if (current != null) {
+            current.endSection();
+        }
+    };
+
+    private static final AtomicInteger nextCookie = new AtomicInteger();
+    private static final AtomicInteger queueDepth = new AtomicInteger();
+    private static final AtomicLong inFlightBytes = new AtomicLong();
+
+    private PerfTrace() {
+    }
+
+    /**
+     * @param tracer The platform's trace API, null to turn tracing off
+     */
+    static void install(Backend tracer) {
+        backend = tracer;
+    }
+
+    static boolean isEnabled() {
+        Backend current = backend;
+        return current != null && current.isEnabled();
+    }
+
+    /**
+     * @param name A constant, see the class comment
+     */
+    static Section section(String name) {
+        Backend current = backend;
+        if (current == null || !current.isEnabled()) {
+            return NONE;
+        }
+        current.beginSection(name);
+        return END;
+    }
+
+    /**
+     * Begin an upload's async slice and count its bytes as in flight
+     * @return Cookie for {@link #endUpload(int, long)}
+     */
+    static int beginUpload(long bytes) {
+        long inFlight = inFlightBytes.addAndGet(bytes);
+        Backend current = backend;
+        if (current == null || !current.isEnabled()) {
+            return 0;
+        }
+        int cookie = nextCookie.incrementAndGet();
+        current.beginAsyncSection(UPLOAD_ASYNC, cookie);
+        current.setCounter(COUNTER_INFLIGHT_KIB, inFlight / 1024);
+        return cookie;
+    }
+
+    /**
+     * @param cookie Of {@link #beginUpload(long)}, 0 if tracing was off then
+     * @param bytes As passed to {@link #beginUpload(long)}
+     */
+    static void endUpload(int cookie, long bytes) {
+        long inFlight = inFlightBytes.addAndGet(-bytes);
+        Backend current = backend;
+        if (current == null || !current.isEnabled()) {
+            return;
+        }
+        if (cookie != 0) {
+            current.endAsyncSection(UPLOAD_ASYNC, cookie);
+        }
+        current.setCounter(COUNTER_INFLIGHT_KIB, inFlight / 1024);
+    }
+
+    /**
+     * Track prepared photos entering (+1) and leaving (-1) a shard's upload queue
+     */
+    static void queueDepth(int delta) {
+        int depth = queueDepth.addAndGet(delta);
+        Backend current = backend;
+        if (current != null && current.isEnabled()) {
+            current.setCounter(COUNTER_QUEUE_DEPTH, depth);
+        }
+    }
+}
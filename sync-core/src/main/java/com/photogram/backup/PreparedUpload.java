@@ -0,0 +1,189 @@
+package com.photogram.backup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.ByteString;
+
+/**
+ * A photo made ready for upload by the prepare stage of a shard: stat'ed, its type sniffed from
+ * the header and, when small enough, read into memory with its SHA-256 computed on the way. The
+ * upload stage then only spends time on the network.
+ */
+public final class PreparedUpload {
+    private static final int HEADER_SIZE = 16;
+
+    public final File file;
+    public final long size;
+    public final String mimeType;
+    /** Hex SHA-256, or null if it is computed during the upload instead */
+    public final String contentHash;
+    private final byte[] content;
+    /** Where the content's bytes are reserved, null if they are not counted */
+    private final BufferBudget budget;
+    private final AtomicBoolean released;
+
+    private PreparedUpload(File file, long size, String mimeType, String contentHash, byte[] content,
+                           BufferBudget budget, AtomicBoolean released) {
+        this.file = file;
+        this.size = size;
+        this.mimeType = mimeType;
+        this.contentHash = contentHash;
+        this.content = content;
+        this.budget = budget;
+        this.released = released;
+    }
+
+    /**
+     * Describe a file that is streamed from disk during the upload, typed by its extension
+     */
+    public static PreparedUpload unbuffered(File file) {
+        return new PreparedUpload(file, file.length(), mimeTypeOfName(file.getName()), null, null, null, null);
+    }
+
+    /**
+     * Read a file's header and, if it is at most maxBuffered bytes, its content and hash
+     * @return null if the file no longer exists
+     */
+    public static PreparedUpload prepare(File file, long maxBuffered) throws IOException {
+        return prepare(file, maxBuffered, null);
+    }
+
+    /**
+     * Same, with the content only read if its bytes fit in the budget as well. They stay
+     * reserved until {@link #release()}.
+     * @param budget Shared cap on buffered bytes, or null for none
+     */
+    public static PreparedUpload prepare(File file, long maxBuffered, BufferBudget budget) throws IOException {
+        long size = file.length();
+        if (!file.isFile() || size <= 0) {
+            return null;
+        }
+
+        boolean buffer = size <= maxBuffered && (budget == null || budget.tryReserve(size));
+        byte[] header = new byte[HEADER_SIZE];
+        byte[] content = null;
+        String hash = null;
+        try (InputStream in = new FileInputStream(file)) {
+            if (buffer) {
+                content = new byte[(int) size];
+                int read = readFully(in, content);
+                if (read != size) {
+                    // Still being written, upload whatever is on disk then
+                    if (budget != null) {
+                        budget.release(size);
+                    }
+                    return unbuffered(file);
+                }
+                System.arraycopy(content, 0, header, 0, Math.min(HEADER_SIZE, content.length));
+                hash = ByteString.of(content).sha256().hex();
+            } else {
+                readFully(in, header);
+            }
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            if (buffer && budget != null) {
+                budget.release(size);
+            }
+            throw e;
+        }
+
+        String sniffed = sniffMimeType(header);
+        return new PreparedUpload(file, size, sniffed != null ? sniffed : mimeTypeOfName(file.getName()), hash, content,
+            content != null ? budget : null, new AtomicBoolean());
+    }
+
+    /**
+     * Same description with a hash computed separately, e.g. for a large file that may be a copy
+     */
+    public PreparedUpload withContentHash(String hash) {
+        return new PreparedUpload(file, size, mimeType, hash, content, budget, released);
+    }
+
+    /**
+     * Give the content's bytes back to the budget, once the upload stage is done with the photo.
+     * Copies made by {@link #withContentHash} share the reservation, it is released once.
+     */
+    public void release() {
+        if (budget != null && released.compareAndSet(false, true)) {
+            budget.release(content.length);
+        }
+    }
+
+    /**
+     * @return The content read ahead, or null if the file is streamed from disk
+     */
+    byte[] getContent() {
+        return content;
+    }
+
+    public boolean isBuffered() {
+        return content != null;
+    }
+
+    public boolean isHeif() {
+        return "image/heic".equals(mimeType);
+    }
+
+    /**
+     * Body of the upload, from memory if buffered, otherwise streamed from disk
+     */
+    public RequestBody body() {
+        MediaType type = MediaType.parse(mimeType);
+        return content != null ? RequestBody.create(content, type) : RequestBody.create(file, type);
+    }
+
+    /**
+     * MIME type from the magic bytes, so a HEIC saved as .jpg is still sent as a document
+     */
+    static String sniffMimeType(byte[] h) {
+        if (h.length >= 3 && (h[0] & 0xFF) == 0xFF && (h[1] & 0xFF) == 0xD8 && (h[2] & 0xFF) == 0xFF) {
+            return "image/jpeg";
+        }
+        if (h.length >= 4 && (h[0] & 0xFF) == 0x89 && h[1] == 'P' && h[2] == 'N' && h[3] == 'G') {
+            return "image/png";
+        }
+        if (h.length >= 4 && h[0] == 'G' && h[1] == 'I' && h[2] == 'F' && h[3] == '8') {
+            return "image/gif";
+        }
+        if (h.length >= 12 && h[0] == 'R' && h[1] == 'I' && h[2] == 'F' && h[3] == 'F'
+                && h[8] == 'W' && h[9] == 'E' && h[10] == 'B' && h[11] == 'P') {
+            return "image/webp";
+        }
+        if (h.length >= 12 && h[4] == 'f' && h[5] == 't' && h[6] == 'y' && h[7] == 'p') {
+            String brand = new String(h, 8, 4, StandardCharsets.US_ASCII);
+            if (brand.startsWith("hei") || brand.startsWith("hev") || brand.equals("mif1") || brand.equals("msf1")) {
+                return "image/heic";
+            }
+        }
+        return null;
+    }
+
+    static String mimeTypeOfName(String name) {
+        int dot = name.lastIndexOf('.');
+        String ext = dot == -1 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        switch (ext) {
+            case "jpg":
+            case "jpeg": return "image/jpeg";
+            case "png": return "image/png";
+            case "gif": return "image/gif";
+            case "webp": return "image/webp";
+            case "heic": return "image/heic";
+            default: return "application/octet-stream";
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,69 @@
+package com.photogram.backup;
+
+import java.io.IOException;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+import okio.Sink;
+
+/**
+ * RequestBody wrapper that reports how many bytes of the delegate have been written to the socket.
+ */
+public class ProgressRequestBody extends RequestBody {
+
+    public interface Listener {
+        /**
+         * Called from the OkHttp writer thread after every chunk.
+         * @param bytesWritten Bytes written so far for this body, restarts at 0 if the body is rewritten
+         * @param contentLength Total length of the body, or -1 if unknown
+         */
+        void onProgress(long bytesWritten, long contentLength);
+    }
+
+    private final RequestBody delegate;
+    private final Listener listener;
+
+    public ProgressRequestBody(RequestBody delegate, Listener listener) {
+        this.delegate = delegate;
+        this.listener = listener;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return delegate.contentType();
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return delegate.contentLength();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        final long total = contentLength();
+        CountingSink counting = new CountingSink(sink, total);
+        BufferedSink buffered = Okio.buffer(counting);
+        delegate.writeTo(buffered);
+        buffered.flush();
+    }
+
+    private final class CountingSink extends ForwardingSink {
+        private final long total;
+        private long written = 0;
+
+        CountingSink(Sink delegate, long total) {
+            super(delegate);
+            this.total = total;
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            super.write(source, byteCount);
+            written += byteCount;
+            listener.onProgress(written, total);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.photogram.backup;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Wire format of the topic registry mirror: a JSON document with the topics, and the pinned
+ * pointer text that names the document. A legacy pinned message holds the whole map instead of
+ * a pointer; it decodes as a pointer without a document.
+ */
+final class RegistryCodec {
+    static final String REGISTRY_PREFIX = "PHOTOGRAM_REGISTRY:";
+    static final String LEGACY_HISTORY_KEY = "CLOUD_HISTORY_ID";
+
+    // Pinned pointer keys; CLOUD_HISTORY_ID is kept there too for older app versions
+    private static final String POINTER_VERSION = "_v";
+    private static final String POINTER_DOCUMENT = "_doc";
+    private static final String POINTER_DOCUMENT_MESSAGE = "_m";
+
+    // Document keys
+    private static final String DOC_VERSION = "v";
+    private static final String DOC_TOPICS = "topics";
+    private static final String DOC_HISTORY = "history";
+
+    private RegistryCodec() {
+    }
+
+    /**
+     * The registry document
+     */
+    static final class Document {
+        final long version;
+        final Map<String, String> topics;
+        /** File id of the cloud history, null if none */
+        final String historyId;
+
+        Document(long version, Map<String, String> topics, String historyId) {
+            this.version = version;
+            this.topics = topics;
+            this.historyId = historyId;
+        }
+    }
+
+    /**
+     * The pinned pointer to the registry document
+     */
+    static final class Pointer {
+        /** 0 for a legacy registry */
+        final long version;
+        /** File id of the document, null for a legacy registry */
+        final String documentFileId;
+        final int documentMessage;
+        /** File id of the cloud history, null if none */
+        final String historyId;
+        /** The topics of a legacy registry, empty otherwise */
+        final Map<String, String> legacyTopics;
+
+        Pointer(long version, String documentFileId, int documentMessage, String historyId, Map<String, String> legacyTopics) {
+            this.version = version;
+            this.documentFileId = documentFileId;
+            this.documentMessage = documentMessage;
+            this.historyId = historyId;
+            this.legacyTopics = legacyTopics;
+        }
+
+        boolean isLegacy() {
+            return documentFileId == null;
+        }
+    }
+
+    /**
+     * Is the pinned text ours, pointer or legacy registry?
+     */
+    static boolean isPointer(String text) {
+        return text != null && text.startsWith(REGISTRY_PREFIX);
+    }
+
+    static String encodeDocument(long version, Map<String, String> topics, String historyId) throws JSONException {
+        JSONObject doc = new JSONObject();
+        doc.put(DOC_VERSION, version);
+        doc.put(DOC_TOPICS, new JSONObject(topics));
+        if (historyId != null) {
+            doc.put(DOC_HISTORY, historyId);
+        }
+        return doc.toString();
+    }
+
+    static Document decodeDocument(String json) throws JSONException {
+        JSONObject doc = new JSONObject(json);
+        Map<String, String> topics = new HashMap<>();
+        readStrings(doc.optJSONObject(DOC_TOPICS), topics);
+        return new Document(doc.optLong(DOC_VERSION), topics, doc.optString(DOC_HISTORY, null));
+    }
+
+    static String encodePointer(long version, String documentFileId, int documentMessage, String historyId) throws JSONException {
+        JSONObject pointer = new JSONObject();
+        pointer.put(POINTER_VERSION, version);
+        pointer.put(POINTER_DOCUMENT, documentFileId);
+        pointer.put(POINTER_DOCUMENT_MESSAGE, documentMessage);
+        if (historyId != null) {
+            pointer.put(LEGACY_HISTORY_KEY, historyId);
+        }
+        return REGISTRY_PREFIX + pointer;
+    }
+
+    /**
+     * @param text Pinned text, see {@link #isPointer(String)}
+     */
+    static Pointer decodePointer(String text) throws JSONException {
+        JSONObject pointer = new JSONObject(text.substring(REGISTRY_PREFIX.length()));
+        if (pointer.has(POINTER_DOCUMENT)) {
+            return new Pointer(pointer.optLong(POINTER_VERSION), pointer.getString(POINTER_DOCUMENT),
+                pointer.optInt(POINTER_DOCUMENT_MESSAGE), pointer.optString(LEGACY_HISTORY_KEY, null), new HashMap<>());
+        }
+        Map<String, String> topics = new HashMap<>();
+        readStrings(pointer, topics);
+        String historyId = topics.remove(LEGACY_HISTORY_KEY);
+        return new Pointer(0, null, 0, historyId, topics);
+    }
+
+    private static void readStrings(JSONObject json, Map<String, String> out) {
+        if (json == null) {
+            return;
+        }
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            out.put(key, json.optString(key));
+        }
+    }
+}
@@ -0,0 +1,661 @@
+package com.photogram.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Upload stage of a sync shard, run by {@code FolderSyncWorker} on the device and by
+ * {@code LoadTest} on a plain JVM.
+ *
+ * Candidates are uploaded in the order of the {@link UploadScheduler}. A prepare thread reads the
+ * next few of them ahead of the upload, see {@link Preparer}, so disk reads and hashing overlap
+ * with the network instead of taking turns with it. In packed folders, photos up to
+ * {@link AppConstants#PACK_FILE_MAX} are not uploaded one per message but streamed many at a time
+ * into a tar document, see {@link TarPackBody}; packs go first.
+ *
+ * Each photo reserves a unit of the daily {@link Quota}, whether it goes up on its own or in a
+ * pack, and a pack is cut short where the quota runs out. With {@link NearDuplicates} set, burst
+ * shots that look like a photo uploaded moments apart are held back. Progress is checkpointed
+ * per folder every few files, and the shard stops at its slice deadline, reporting that it
+ * needs a continuation.
+ */
+final class ShardUploader {
+    /** Shared by the shards running in this process */
+    private static final BufferBudget READ_AHEAD = new BufferBudget(AppConstants.PREPARE_BUFFER_TOTAL);
+
+    interface Quota {
+        /**
+         * Reserve photos before they are uploaded
+         * @return false if the daily limit would be exceeded
+         */
+        boolean tryReserve(int count);
+
+        /**
+         * Count reservations as used, after a successful upload
+         */
+        void commit(int count);
+
+        /**
+         * Give back the reservations of a failed upload
+         */
+        void release(int count);
+    }
+
+    interface NearDuplicates {
+        boolean covers(String folderPath);
+
+        /**
+         * Called on the prepare thread
+         * @return The perceptual hash of the photo, or null if it cannot be decoded
+         */
+        Long fingerprint(PreparedUpload upload);
+
+        /**
+         * @return Path of the photo this one nearly duplicates, or null if there is none
+         */
+        String findNear(String folderPath, long hash, long modified);
+
+        void add(String folderPath, String path, long modified, long hash);
+    }
+
+    interface StopSignal {
+        boolean isStopped();
+    }
+
+    private static final Quota UNLIMITED = new Quota() {
+        @Override
+        public boolean tryReserve(int count) {
+            return true;
+        }
+
+        @Override
+        public void commit(int count) {
+        }
+
+        @Override
+        public void release(int count) {
+        }
+    };
+
+    private final String name;
+    private final Transport transport;
+    private final HistoryStore history;
+    private final UploadScheduler scheduler;
+    private final CheckpointTracker checkpoints;
+    private final SyncProgress progress;
+    private final SyncMetrics metrics;
+    private final CandidateScan.PackedFolders packedFolders;
+    private final Map<String, List<UploadScheduler.Candidate>> packable = new HashMap<>();
+    /** Candidates that came from the upload queue, to be removed from it once done */
+    private final Set<String> queuedPaths = new HashSet<>();
+    private Quota quota = UNLIMITED;
+    private NearDuplicates nearDuplicates;
+    private boolean skipNearDuplicates;
+    private StopSignal stopped = () -> false;
+    private long sliceDeadline = Long.MAX_VALUE;
+    private long uploadDelayMs;
+    private boolean needsContinuation;
+    private int copied;
+    private int packs;
+    private int packed;
+
+    /**
+     * @param name Of the shard, for logs and thread names
+     */
+    ShardUploader(String name, Transport transport, HistoryStore history, UploadScheduler scheduler,
+                  CandidateScan.PackedFolders packedFolders, CheckpointTracker checkpoints,
+                  SyncProgress progress, SyncMetrics metrics) {
+        this.name = name;
+        this.transport = transport;
+        this.history = history;
+        this.scheduler = scheduler;
+        this.packedFolders = packedFolders;
+        this.checkpoints = checkpoints;
+        this.progress = progress;
+        this.metrics = metrics;
+    }
+
+    void setQuota(Quota quota) {
+        this.quota = quota;
+    }
+
+    /**
+     * @param skip Record near-duplicates as such; otherwise they are deferred to the upload queue,
+     *             which a manual sync uploads without the filter
+     */
+    void setNearDuplicates(NearDuplicates nearDuplicates, boolean skip) {
+        this.nearDuplicates = nearDuplicates;
+        this.skipNearDuplicates = skip;
+    }
+
+    /**
+     * @param stopped Checked between uploads, e.g. the system stopping the worker
+     */
+    void setStopSignal(StopSignal stopped) {
+        this.stopped = stopped;
+    }
+
+    /**
+     * @param deadline Wall-clock time after which no new upload starts
+     */
+    void setSliceDeadline(long deadline) {
+        this.sliceDeadline = deadline;
+    }
+
+    /**
+     * @param delayMs Pause after every upload, to stay clear of rate limits
+     */
+    void setUploadDelayMs(long delayMs) {
+        this.uploadDelayMs = delayMs;
+    }
+
+    /**
+     * Route a scanned candidate into a pack of its folder or into the scheduler
+     * @param queued It came from the upload queue
+     */
+    void add(UploadScheduler.Candidate candidate, boolean queued) {
+        if (queued) {
+            queuedPaths.add(candidate.path);
+        }
+        if (CandidateScan.isPackable(packedFolders, candidate)) {
+            List<UploadScheduler.Candidate> files = packable.get(candidate.folderPath);
+            if (files == null) {
+                files = new ArrayList<>();
+                packable.put(candidate.folderPath, files);
+            }
+            files.add(candidate);
+        } else {
+            scheduler.add(candidate);
+        }
+    }
+
+    int packedFiles() {
+        int count = 0;
+        for (List<UploadScheduler.Candidate> files : packable.values()) {
+            count += files.size();
+        }
+        return count;
+    }
+
+    long packedBytes() {
+        long bytes = 0;
+        for (List<UploadScheduler.Candidate> files : packable.values()) {
+            for (UploadScheduler.Candidate file : files) {
+                bytes += file.size;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The slice deadline ended the shard before everything was uploaded
+     */
+    boolean needsContinuation() {
+        return needsContinuation;
+    }
+
+    /**
+     * @return Photos copied from an earlier upload of the same content rather than uploaded
+     */
+    int getCopied() {
+        return copied;
+    }
+
+    /**
+     * @return Pack documents uploaded
+     */
+    int getPacks() {
+        return packs;
+    }
+
+    /**
+     * @return Photos uploaded inside packs
+     */
+    int getPacked() {
+        return packed;
+    }
+
+    /**
+     * Upload the packs, then the scheduled photos, and save the checkpoints
+     * @return number of photos uploaded, packed or copied
+     */
+    int run() throws InterruptedException {
+        // Packs first, each one is many photos for a single message
+        int count = uploadPacks();
+        if (!needsContinuation && !stopped.isStopped()) {
+            count += uploadPhotos();
+        }
+        history.saveSyncCheckpoints(checkpoints.current());
+        return count;
+    }
+
+    private int uploadPhotos() throws InterruptedException {
+        int count = 0;
+        Preparer preparer = new Preparer();
+        preparer.start();
+        try {
+            int sinceCheckpoint = 0;
+            Prepared prepared;
+            while ((prepared = preparer.take()) != Prepared.END) {
+                try (PerfTrace.Section trace = PerfTrace.section(PerfTrace.SYNC_FILE)) {
+                    UploadScheduler.Candidate candidate = prepared.candidate;
+                    if (stopped.isStopped()) {
+                        history.addLog("WARN", "Sync stopped by system");
+                        break;
+                    }
+
+                    if (System.currentTimeMillis() > sliceDeadline) {
+                        history.addLog("INFO", "Shard " + name + " reached its time slice, continuing later");
+                        needsContinuation = true;
+                        break;
+                    }
+
+                    if (sinceCheckpoint >= AppConstants.CHECKPOINT_EVERY_FILES) {
+                        history.saveSyncCheckpoints(checkpoints.current());
+                        sinceCheckpoint = 0;
+                    }
+                    sinceCheckpoint++;
+
+                    // Another chain may have uploaded it since the scan
+                    long dedupStart = System.nanoTime();
+                    boolean alreadyUploaded = history.isFileUploaded(candidate.path, candidate.modified);
+                    metrics.addPhase(SyncMetrics.Phase.DEDUP, dedupStart);
+                    if (alreadyUploaded) {
+                        checkpoints.done(candidate);
+                        if (queuedPaths.remove(candidate.path)) {
+                            history.removeQueuedUpload(candidate.path);
+                        }
+                        progress.skipFile(candidate.size);
+                        metrics.skipped++;
+                        continue;
+                    }
+
+                    // Deleted since the scan; the checkpoint must not wait for it
+                    if (prepared.upload == null) {
+                        history.addLog("DEBUG", "Skipping invalid/deleted file: " + candidate.path);
+                        checkpoints.done(candidate);
+                        progress.skipFile(candidate.size);
+                        metrics.skipped++;
+                        continue;
+                    }
+
+                    if (prepared.perceptualHash != null) {
+                        dedupStart = System.nanoTime();
+                        String original = nearDuplicates.findNear(candidate.folderPath, prepared.perceptualHash, candidate.modified);
+                        metrics.addPhase(SyncMetrics.Phase.DEDUP, dedupStart);
+                        if (original != null) {
+                            holdBackNearDuplicate(candidate, original);
+                            checkpoints.done(candidate);
+                            progress.skipFile(candidate.size);
+                            metrics.skipped++;
+                            continue;
+                        }
+                    }
+
+                    // Check daily limit for limited accounts
+                    if (!quota.tryReserve(1)) {
+                        break;
+                    }
+
+                    File f = prepared.upload.file;
+                    progress.startFile(f.getName());
+                    String contentHash = prepared.upload.contentHash;
+                    Transport.UploadResult result = null;
+                    if (contentHash != null && history.hasHashedUploadOfSize(candidate.size)) {
+                        result = copyExisting(candidate, contentHash);
+                    }
+                    boolean isCopy = result != null;
+                    if (!isCopy) {
+                        long uploadStart = System.nanoTime();
+                        result = transport.uploadPhoto(prepared.upload, candidate.topicId, (written, length) -> progress.onFileBytes(written));
+                        metrics.addUpload(uploadStart, result.error);
+                        contentHash = result.contentHash;
+                    }
+                    progress.finishFile(candidate.size);
+
+                    if (result.isSuccess()) {
+                        history.markAsUploaded(candidate.path, candidate.modified, candidate.size, result.fileId, result.messageId, contentHash, result.encrypted);
+                        if (prepared.perceptualHash != null) {
+                            nearDuplicates.add(candidate.folderPath, candidate.path, candidate.modified, prepared.perceptualHash);
+                            history.savePerceptualHash(candidate.path, candidate.modified, prepared.perceptualHash);
+                        }
+                        if (queuedPaths.remove(candidate.path)) {
+                            history.removeQueuedUpload(candidate.path);
+                        }
+                        checkpoints.done(candidate);
+                        quota.commit(1);
+                        count++;
+                        metrics.uploaded++;
+                        if (isCopy) {
+                            copied++;
+                        } else {
+                            metrics.bytesSent += candidate.size;
+                        }
+
+                        history.addLog("DEBUG", (isCopy ? "Copied: " : "Uploaded: ") + f.getName() + " (" + SyncProgress.formatFileSize(candidate.size) + ")");
+
+                        // Delay between uploads to avoid rate limiting
+                        pause();
+                    } else {
+                        quota.release(1);
+                        if (stopped.isStopped()) {
+                            history.addLog("INFO", "Upload of " + f.getName() + " cancelled, it goes up next run");
+                            break;
+                        }
+                        history.addLog("ERROR", "Failed to upload: " + f.getName() + " - " + result.error);
+                        metrics.failed++;
+                    }
+                } finally {
+                    prepared.release();
+                }
+            }
+        } finally {
+            preparer.shutdown();
+        }
+        return count;
+    }
+
+    /**
+     * Leave out a near-duplicate: record it as such if the user chose to skip them, otherwise keep
+     * it in the upload queue, which a manual sync uploads without the filter
+     */
+    private void holdBackNearDuplicate(UploadScheduler.Candidate candidate, String original) {
+        String fileName = new File(candidate.path).getName();
+        String like = " (like " + new File(original).getName() + ")";
+        if (skipNearDuplicates) {
+            history.markAsNearDuplicate(candidate.path, candidate.modified, candidate.size, original);
+            if (queuedPaths.remove(candidate.path)) {
+                history.removeQueuedUpload(candidate.path);
+            }
+            history.addLog("DEBUG", "Skipped near-duplicate: " + fileName + like);
+        } else {
+            if (!queuedPaths.contains(candidate.path)) {
+                history.enqueueUploads(Collections.singletonList(new HistoryStore.QueuedUpload(
+                    candidate.path, candidate.folderPath, candidate.modified, candidate.size)));
+            }
+            history.addLog("DEBUG", "Deferred near-duplicate: " + fileName + like);
+        }
+    }
+
+    /**
+     * Upload the packable photos of each folder, oldest first, as tar documents of up to
+     * {@link AppConstants#PACK_MAX_BYTES}
+     * @return number of photos uploaded
+     */
+    private int uploadPacks() throws InterruptedException {
+        int count = 0;
+        for (List<UploadScheduler.Candidate> files : packable.values()) {
+            Collections.sort(files, UploadScheduler.OLDEST);
+            int next = 0;
+            while (next < files.size()) {
+                if (stopped.isStopped()) {
+                    return count;
+                }
+                if (System.currentTimeMillis() > sliceDeadline) {
+                    needsContinuation = true;
+                    return count;
+                }
+
+                TarPackBody pack = new TarPackBody();
+                List<UploadScheduler.Candidate> members = new ArrayList<>();
+                boolean limitReached = false;
+                while (next < files.size() && (pack.isEmpty() || pack.lengthWith(files.get(next).size) <= AppConstants.PACK_MAX_BYTES)) {
+                    UploadScheduler.Candidate candidate = files.get(next);
+                    File f = new File(candidate.path);
+                    long size = f.length();
+                    if (history.isFileUploaded(candidate.path, candidate.modified) || !f.isFile() || size <= 0) {
+                        next++;
+                        checkpoints.done(candidate);
+                        if (queuedPaths.remove(candidate.path)) {
+                            history.removeQueuedUpload(candidate.path);
+                        }
+                        progress.skipFile(candidate.size);
+                        metrics.skipped++;
+                        continue;
+                    }
+                    // Every photo of a pack counts against the daily limit, as if uploaded alone
+                    if (!quota.tryReserve(1)) {
+                        limitReached = true;
+                        break;
+                    }
+                    next++;
+                    pack.add(f, size, candidate.modified);
+                    members.add(candidate);
+                }
+                if (pack.isEmpty()) {
+                    if (limitReached) {
+                        return count;
+                    }
+                    continue;
+                }
+
+                UploadScheduler.Candidate first = members.get(0);
+                String packName = packName(first);
+                progress.startFile(packName);
+                long uploadStart = System.nanoTime();
+                Transport.UploadResult result = transport.uploadPack(packName, pack, first.topicId, (written, length) -> progress.onFileBytes(written));
+                metrics.addUpload(uploadStart, result.error);
+                for (UploadScheduler.Candidate member : members) {
+                    progress.finishFile(member.size);
+                }
+
+                if (!result.isSuccess()) {
+                    quota.release(members.size());
+                    if (stopped.isStopped()) {
+                        history.addLog("INFO", "Upload of pack " + packName + " cancelled, it goes up next run");
+                        return count;
+                    }
+                    history.addLog("ERROR", "Failed to upload pack: " + packName + " - " + result.error);
+                    metrics.failed += members.size();
+                    continue;
+                }
+
+                List<HistoryStore.PackedFile> packedFiles = new ArrayList<>(members.size());
+                List<TarPackBody.Entry> entries = pack.getEntries();
+                for (int i = 0; i < members.size(); i++) {
+                    TarPackBody.Entry entry = entries.get(i);
+                    packedFiles.add(new HistoryStore.PackedFile(members.get(i).path, entry.modified, entry.size, entry.dataOffset));
+                }
+                history.markAsPacked(packName, result.fileId, result.messageId, packedFiles, result.encrypted);
+                for (UploadScheduler.Candidate member : members) {
+                    if (queuedPaths.remove(member.path)) {
+                        history.removeQueuedUpload(member.path);
+                    }
+                    checkpoints.done(member);
+                }
+                quota.commit(members.size());
+                count += members.size();
+                packs++;
+                packed += members.size();
+                metrics.uploaded += members.size();
+                metrics.bytesSent += pack.contentLength();
+
+                history.addLog("DEBUG", "Packed: " + members.size() + " photos into " + packName + " (" +
+                    SyncProgress.formatFileSize(pack.contentLength()) + ")");
+
+                // Delay between uploads to avoid rate limiting
+                pause();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Document name of a pack, from its folder and its oldest photo
+     */
+    private static String packName(UploadScheduler.Candidate first) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+        return new File(first.folderPath).getName() + "_" + format.format(new Date(first.modified * 1000)) + ".tar";
+    }
+
+    /**
+     * Copy an earlier upload of the same content into the candidate's topic, e.g. after the photo
+     * moved to another album
+     * @return The copy, or null if there is nothing to copy or copying failed
+     */
+    private Transport.UploadResult copyExisting(UploadScheduler.Candidate candidate, String contentHash) {
+        long dedupStart = System.nanoTime();
+        HistoryStore.UploadedCopy copy = history.findUploadByContent(candidate.size, contentHash);
+        metrics.addPhase(SyncMetrics.Phase.DEDUP, dedupStart);
+        if (copy == null) {
+            return null;
+        }
+        long uploadStart = System.nanoTime();
+        Transport.UploadResult result = transport.copyToTopic(copy.messageId, copy.fileId, candidate.topicId, copy.encrypted);
+        metrics.addUpload(uploadStart, result.error);
+        if (!result.isSuccess()) {
+            history.addLog("DEBUG", "Copy failed, uploading instead: " + result.error);
+            return null;
+        }
+        return result;
+    }
+
+    private void pause() throws InterruptedException {
+        if (uploadDelayMs > 0) {
+            Thread.sleep(uploadDelayMs);
+            metrics.throttleMs += uploadDelayMs;
+        }
+    }
+
+    /**
+     * A scheduled candidate after the prepare stage; upload is null if the file is gone, and
+     * perceptualHash is only set in folders with near-duplicate detection
+     */
+    private static final class Prepared {
+        static final Prepared END = new Prepared(null, null, null);
+
+        final UploadScheduler.Candidate candidate;
+        final PreparedUpload upload;
+        final Long perceptualHash;
+
+        Prepared(UploadScheduler.Candidate candidate, PreparedUpload upload, Long perceptualHash) {
+            this.candidate = candidate;
+            this.upload = upload;
+            this.perceptualHash = perceptualHash;
+        }
+
+        void release() {
+            if (upload != null) {
+                upload.release();
+            }
+        }
+    }
+
+    /**
+     * Prepare stage of the shard: takes candidates from the scheduler in its order, stats them,
+     * sniffs their type and reads small ones into memory with their hash. The queue holds
+     * {@link AppConstants#PIPELINE_DEPTH} results, so the thread blocks once it is that far ahead.
+     * Photos are only read into memory while all shards together hold less than
+     * {@link AppConstants#PREPARE_BUFFER_TOTAL}, otherwise they are streamed from disk.
+     */
+    private final class Preparer extends Thread {
+        private final BlockingQueue<Prepared> queue = new ArrayBlockingQueue<>(AppConstants.PIPELINE_DEPTH);
+        private volatile boolean done = false;
+
+        Preparer() {
+            super("shard-" + name + "-prepare");
+        }
+
+        @Override
+        public void run() {
+            try {
+                UploadScheduler.Candidate candidate;
+                while (!done && (candidate = scheduler.next()) != null) {
+                    Prepared prepared;
+                    try (PerfTrace.Section trace = PerfTrace.section(PerfTrace.SYNC_PREPARE)) {
+                        PreparedUpload upload = prepare(candidate);
+                        prepared = new Prepared(candidate, upload, perceptualHash(candidate, upload));
+                    }
+                    try {
+                        queue.put(prepared);
+                    } catch (InterruptedException e) {
+                        prepared.release();
+                        throw e;
+                    }
+                    PerfTrace.queueDepth(1);
+                }
+            } catch (InterruptedException e) {
+                // Upload stage is done with us
+            } finally {
+                // Also when the thread fails, or the upload stage would wait for it forever
+                if (!done) {
+                    try {
+                        queue.put(Prepared.END);
+                    } catch (InterruptedException e) {
+                        // Upload stage is done with us
+                    }
+                }
+            }
+        }
+
+        /**
+         * A photo that cannot be read ahead, for whatever reason, is streamed from disk instead
+         */
+        private PreparedUpload prepare(UploadScheduler.Candidate candidate) {
+            File f = new File(candidate.path);
+            PreparedUpload upload = null;
+            try {
+                upload = PreparedUpload.prepare(f, AppConstants.PREPARE_BUFFER_MAX, READ_AHEAD);
+                if (upload != null && upload.contentHash == null && history.hasHashedUploadOfSize(candidate.size)) {
+                    // Too big to buffer, but it may be a copy of an earlier upload
+                    upload = upload.withContentHash(HashingRequestBody.sha256Of(f));
+                }
+                return upload;
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                if (upload != null) {
+                    upload.release();
+                }
+                history.addLog("WARN", "Could not read ahead " + f.getName() + ": " + e.getMessage());
+                return f.exists() ? PreparedUpload.unbuffered(f) : null;
+            }
+        }
+
+        /**
+         * Decoding a thumbnail is the costliest part of preparing, so it too runs ahead
+         */
+        private Long perceptualHash(UploadScheduler.Candidate candidate, PreparedUpload upload) {
+            if (upload == null || nearDuplicates == null || !nearDuplicates.covers(candidate.folderPath)) {
+                return null;
+            }
+            try {
+                return nearDuplicates.fingerprint(upload);
+            } catch (RuntimeException | OutOfMemoryError e) {
+                history.addLog("WARN", "Could not fingerprint " + upload.file.getName() + ": " + e.getMessage());
+                return null;
+            }
+        }
+
+        Prepared take() throws InterruptedException {
+            Prepared prepared = queue.take();
+            if (prepared != Prepared.END) {
+                PerfTrace.queueDepth(-1);
+            }
+            return prepared;
+        }
+
+        void shutdown() throws InterruptedException {
+            done = true;
+            interrupt();
+            join();
+            for (Prepared left : queue) {
+                if (left != Prepared.END) {
+                    PerfTrace.queueDepth(-1);
+                    left.release();
+                }
+            }
+            queue.clear();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.photogram.backup;
+
+/**
+ * What one worker of a sync run spent its time on and got done. Every worker of the run, the
+ * coordinator, each shard and each slice, fills one and adds it to the run's row, so a row is
+ * the sum over the whole run. Not thread-safe; a worker only touches it from its own thread.
+ */
+final class SyncMetrics {
+
+    /**
+     * Phases of a run, each timed where it happens
+     */
+    enum Phase {
+        /** Account check against Firebase */
+        FIREBASE,
+        /** Topic registry refresh, topic creation and mirroring */
+        REGISTRY,
+        /** MediaStore queries, including the history lookup of every row */
+        SCAN,
+        /** Checks before an upload: already uploaded since the scan, copies, near-duplicates */
+        DEDUP,
+        /** Upload, pack and copy calls to Telegram */
+        UPLOAD,
+        /** Export and upload of the history backup */
+        EXPORT
+    }
+
+    private static final String SPARK_BARS = "▁▂▃▄▅▆▇█";
+
+    final long[] phaseMs = new long[Phase.values().length];
+    final LatencyHistogram latency = new LatencyHistogram();
+    /** Telegram calls by Bot API method, see {@link NetworkMetrics} */
+    final NetworkMetrics network = new NetworkMetrics();
+    int scanned;
+    int skipped;
+    int uploaded;
+    int failed;
+    long bytesSent;
+    /** Workers of the run that were a retry by WorkManager */
+    int retries;
+    /** Uploads refused with 429 Too Many Requests */
+    int rateLimited;
+    /** Time spent in the delay between uploads */
+    long throttleMs;
+
+    /**
+     * @param startNanos {@link System#nanoTime()} at the start of the phase
+     */
+    void addPhase(Phase phase, long startNanos) {
+        phaseMs[phase.ordinal()] += (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    long phase(Phase phase) {
+        return phaseMs[phase.ordinal()];
+    }
+
+    /**
+     * Record an upload, pack or copy call
+     * @param startNanos {@link System#nanoTime()} before the call
+     * @param error Error of the call, null on success
+     */
+    void addUpload(long startNanos, String error) {
+        long millis = (System.nanoTime() - startNanos) / 1_000_000;
+        phaseMs[Phase.UPLOAD.ordinal()] += millis;
+        latency.add(millis);
+        if (error != null && error.startsWith("Too Many Requests")) {
+            rateLimited++;
+        }
+    }
+
+    /**
+     * Throughput of the upload phase, the uplink rate actually achieved
+     * @return bytes per second, 0 if nothing was sent
+     */
+    long bytesPerSecond() {
+        long uploadMs = phase(Phase.UPLOAD);
+        return uploadMs > 0 ? bytesSent * 1000 / uploadMs : 0;
+    }
+
+    /**
+     * One bar per value, scaled to the largest, for a trend in a line of text
+     */
+    static String sparkline(long[] values) {
+        long max = 0;
+        for (long value : values) {
+            max = Math.max(max, value);
+        }
+        StringBuilder line = new StringBuilder(values.length);
+        int top = SPARK_BARS.length() - 1;
+        for (long value : values) {
+            int bar = max > 0 ? (int) Math.round((double) Math.max(0, value) * top / max) : 0;
+            line.append(SPARK_BARS.charAt(bar));
+        }
+        return line.toString();
+    }
+}
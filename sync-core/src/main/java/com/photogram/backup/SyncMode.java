@@ -0,0 +1,24 @@
+package com.photogram.backup;
+
+/**
+ * What triggered a sync run. Decides the upload order, see {@link UploadScheduler#policyFor(SyncMode)}.
+ */
+public enum SyncMode {
+    /** "Sync Now" button, the user is watching the progress */
+    MANUAL,
+    /** Periodic background run */
+    PERIODIC,
+    /** MediaStore content change, usually a photo that was just taken */
+    REALTIME;
+
+    public static SyncMode fromName(String name, SyncMode fallback) {
+        if (name == null) {
+            return fallback;
+        }
+        try {
+            return valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.photogram.backup;
+
+import java.util.Locale;
+
+/**
+ * Aggregates per-file and per-byte upload progress for one sync and publishes throttled snapshots.
+ *
+ * Producers call the mutators as often as they like (every socket write is fine); the
+ * {@link Publisher} is invoked at most once per {@code minIntervalMs}, except for
+ * {@link #publishNow()}. Throughput is an exponentially weighted moving average over the
+ * intervals between publications.
+ */
+public class SyncProgress {
+    public static final long DEFAULT_MIN_INTERVAL_MS = 250;
+    private static final double RATE_SMOOTHING = 0.3;
+
+    public interface Publisher {
+        void publish(Snapshot snapshot);
+    }
+
+    public interface Clock {
+        long nowMs();
+    }
+
+    /**
+     * Immutable view of the progress at one point in time
+     */
+    public static final class Snapshot {
+        public final String currentFile;
+        public final int filesDone;
+        public final int filesTotal;
+        public final long bytesDone;
+        public final long bytesTotal;
+        public final long bytesPerSecond;
+        /** Estimated seconds remaining, or -1 while the rate is unknown */
+        public final long etaSeconds;
+
+        Snapshot(String currentFile, int filesDone, int filesTotal, long bytesDone, long bytesTotal,
+                 long bytesPerSecond, long etaSeconds) {
+            this.currentFile = currentFile;
+            this.filesDone = filesDone;
+            this.filesTotal = filesTotal;
+            this.bytesDone = bytesDone;
+            this.bytesTotal = bytesTotal;
+            this.bytesPerSecond = bytesPerSecond;
+            this.etaSeconds = etaSeconds;
+        }
+
+        public int getPercent() {
+            if (bytesTotal > 0) {
+                return (int) Math.min(100, bytesDone * 100 / bytesTotal);
+            }
+            return filesTotal > 0 ? Math.min(100, filesDone * 100 / filesTotal) : 0;
+        }
+    }
+
+    private final Publisher publisher;
+    private final Clock clock;
+    private final long minIntervalMs;
+
+    private String currentFile;
+    private int filesDone;
+    private int filesTotal;
+    private long bytesTotal;
+    private long bytesCompleted;  // bytes of finished or skipped files
+    private long currentFileBytes;
+    private long bytesSent;       // monotonic wire bytes, including rewrites, for the rate
+    private long lastPublishMs = Long.MIN_VALUE;
+    private long lastRateSampleMs = -1;
+    private long lastRateSampleBytes;
+    private double bytesPerSecond = -1;
+
+    public SyncProgress(Publisher publisher) {
+        this(publisher, System::currentTimeMillis, DEFAULT_MIN_INTERVAL_MS);
+    }
+
+    public SyncProgress(Publisher publisher, Clock clock, long minIntervalMs) {
+        this.publisher = publisher;
+        this.clock = clock;
+        this.minIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * Add planned work, e.g. the candidates of one folder
+     */
+    public synchronized void addPlanned(int files, long bytes) {
+        filesTotal += files;
+        bytesTotal += bytes;
+    }
+
+    public synchronized void startFile(String name) {
+        currentFile = name;
+        currentFileBytes = 0;
+        maybePublish();
+    }
+
+    /**
+     * Byte-level callback for the file currently on the wire.
+     * @param bytesWritten Cumulative bytes of the current request body
+     */
+    public synchronized void onFileBytes(long bytesWritten) {
+        if (bytesWritten >= currentFileBytes) {
+            bytesSent += bytesWritten - currentFileBytes;
+        } else {
+            // The body is being written again (fallback or retry)
+            bytesSent += bytesWritten;
+        }
+        currentFileBytes = bytesWritten;
+        maybePublish();
+    }
+
+    /**
+     * The current file is done, whether it was uploaded or failed
+     * @param size Planned size of the file
+     */
+    public synchronized void finishFile(long size) {
+        filesDone++;
+        bytesCompleted += size;
+        currentFileBytes = 0;
+        maybePublish();
+    }
+
+    /**
+     * A planned file turned out not to need uploading; removes it from the totals
+     */
+    public synchronized void skipFile(long size) {
+        filesTotal = Math.max(filesDone, filesTotal - 1);
+        bytesTotal = Math.max(0, bytesTotal - size);
+        maybePublish();
+    }
+
+    /**
+     * Publish regardless of the rate limit, e.g. on phase changes
+     */
+    public synchronized void publishNow() {
+        publish(clock.nowMs());
+    }
+
+    public synchronized Snapshot snapshot() {
+        long done = Math.min(bytesTotal, bytesCompleted + currentFileBytes);
+        long rate = bytesPerSecond < 0 ? 0 : Math.round(bytesPerSecond);
+        long eta = -1;
+        if (rate > 0) {
+            eta = Math.max(0, bytesTotal - done) / rate;
+        }
+        return new Snapshot(currentFile, filesDone, filesTotal, done, bytesTotal, rate, eta);
+    }
+
+    private void maybePublish() {
+        long now = clock.nowMs();
+        if (lastPublishMs != Long.MIN_VALUE && now - lastPublishMs < minIntervalMs) {
+            return;
+        }
+        publish(now);
+    }
+
+    private void publish(long now) {
+        updateRate(now);
+        lastPublishMs = now;
+        publisher.publish(snapshot());
+    }
+
+    private void updateRate(long now) {
+        if (lastRateSampleMs < 0) {
+            lastRateSampleMs = now;
+            lastRateSampleBytes = bytesSent;
+            return;
+        }
+        long elapsed = now - lastRateSampleMs;
+        if (elapsed <= 0) {
+            return;
+        }
+        double sample = (bytesSent - lastRateSampleBytes) * 1000.0 / elapsed;
+        bytesPerSecond = bytesPerSecond < 0 ? sample : bytesPerSecond + RATE_SMOOTHING * (sample - bytesPerSecond);
+        lastRateSampleMs = now;
+        lastRateSampleBytes = bytesSent;
+    }
+
+    static String formatFileSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format(Locale.US, "%.1f KB", bytes / 1024.0);
+        return String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+}
@@ -0,0 +1,158 @@
+package com.photogram.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Uncompressed ustar archive of many small photos, streamed from disk straight into the request,
+ * so a pack needs no temp file. The layout is fixed before anything is written: the length is
+ * known up front and the offset of every member's data is recorded in the history, which lets a
+ * restore fetch one photo out of a pack with a Range request.
+ */
+public class TarPackBody extends RequestBody {
+    private static final int BLOCK = 512;
+    private static final int NAME_LENGTH = 100;
+    private static final MediaType TAR = MediaType.parse("application/x-tar");
+
+    public static final class Entry {
+        public final File file;
+        public final String name;
+        public final long size;
+        /** DATE_MODIFIED in seconds */
+        public final long modified;
+        /** Offset of the member's data within the archive */
+        public final long dataOffset;
+
+        Entry(File file, String name, long size, long modified, long dataOffset) {
+            this.file = file;
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.dataOffset = dataOffset;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private long length = 2 * BLOCK; // end of archive marker
+
+    /**
+     * Can a member of this name be stored without a long-name extension?
+     */
+    public static boolean fits(String name) {
+        return name.getBytes(StandardCharsets.UTF_8).length <= NAME_LENGTH;
+    }
+
+    /**
+     * Archive size with an additional member of the given size
+     */
+    public long lengthWith(long size) {
+        return length + BLOCK + padded(size);
+    }
+
+    /**
+     * Append a member; its content is read when the body is written
+     * @param modified DATE_MODIFIED in seconds
+     */
+    public Entry add(File file, long size, long modified) {
+        if (!fits(file.getName())) {
+            throw new IllegalArgumentException("Name too long for a tar member: " + file.getName());
+        }
+        long headerOffset = length - 2 * BLOCK;
+        Entry entry = new Entry(file, file.getName(), size, modified, headerOffset + BLOCK);
+        entries.add(entry);
+        length = lengthWith(size);
+        return entry;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    @Override
+    public MediaType contentType() {
+        return TAR;
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    /**
+     * @throws IOException also if a member changed size since it was added, as the layout would no
+     *                     longer match the recorded offsets
+     */
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        for (Entry entry : entries) {
+            sink.write(header(entry));
+            long copied = 0;
+            try (BufferedSource source = Okio.buffer(Okio.source(entry.file))) {
+                long read;
+                while (copied < entry.size && (read = source.read(sink.getBuffer(), Math.min(64 * 1024, entry.size - copied))) != -1) {
+                    copied += read;
+                    sink.emitCompleteSegments();
+                }
+                if (copied != entry.size || !source.exhausted()) {
+                    throw new IOException(entry.name + " changed while packing");
+                }
+            }
+            sink.write(new byte[(int) (padded(entry.size) - entry.size)]);
+        }
+        sink.write(new byte[2 * BLOCK]);
+    }
+
+    static byte[] header(Entry entry) {
+        byte[] h = new byte[BLOCK];
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(name, 0, h, 0, name.length);
+        octal(h, 100, 8, 0644);                 // mode
+        octal(h, 108, 8, 0);                    // uid
+        octal(h, 116, 8, 0);                    // gid
+        octal(h, 124, 12, entry.size);
+        octal(h, 136, 12, entry.modified);
+        h[156] = '0';                           // regular file
+        ascii(h, 257, "ustar");
+        ascii(h, 263, "00");
+
+        // Checksum is computed with its own field set to spaces
+        for (int i = 148; i < 156; i++) {
+            h[i] = ' ';
+        }
+        long sum = 0;
+        for (byte b : h) {
+            sum += b & 0xFF;
+        }
+        ascii(h, 148, String.format(Locale.ROOT, "%06o", sum));
+        h[154] = 0;
+        h[155] = ' ';
+        return h;
+    }
+
+    private static void octal(byte[] h, int offset, int width, long value) {
+        ascii(h, offset, String.format(Locale.ROOT, "%0" + (width - 1) + "o", value));
+    }
+
+    private static void ascii(byte[] h, int offset, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, h, offset, bytes.length);
+    }
+
+    private static long padded(long size) {
+        return (size + BLOCK - 1) / BLOCK * BLOCK;
+    }
+}
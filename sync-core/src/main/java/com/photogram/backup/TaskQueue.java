@@ -0,0 +1,199 @@
+package com.photogram.backup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pool for the database and MediaStore work of the screens, so none of it runs on the
+ * main thread. Tasks run by priority, then in the order they were queued: what a screen is
+ * about to show goes ahead of maintenance queued earlier.
+ *
+ * Screens queue their tasks in a {@link Scope} and cancel it when they are destroyed. Queued
+ * tasks of a cancelled scope never run, and results of those already running are dropped, as
+ * they are delivered on the delivery executor, the main thread in the app, where the scope is
+ * cancelled. A task that throws has its failure delivered the same way instead of a result, so
+ * a screen waiting on it can recover and the pool thread lives on.
+ */
+public final class TaskQueue {
+    private static final long IDLE_THREAD_SECONDS = 30;
+
+    public enum Priority {
+        /** Reads a screen is waiting on */
+        VISIBLE,
+        /** Anything that can wait behind those */
+        BACKGROUND
+    }
+
+    public interface Work<T> {
+        T run() throws Exception;
+    }
+
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final Executor delivery;
+    private final Callback<Exception> failures;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param threads Tasks running at once; SQLite serializes writers anyway, so a few suffice
+     * @param delivery Where results are delivered, the main thread in the app
+     * @param failures Where failures of tasks without a handler of their own are delivered
+     */
+    public TaskQueue(int threads, ThreadFactory threadFactory, Executor delivery, Callback<Exception> failures) {
+        // A priority queue is unbounded, so the pool never grows past its core threads
+        this.pool = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_SECONDS, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<>(), threadFactory);
+        this.pool.allowCoreThreadTimeOut(true);
+        this.delivery = delivery;
+        this.failures = failures;
+    }
+
+    /**
+     * Queue work that belongs to no screen, like warming a cache at start
+     */
+    public void execute(Priority priority, Runnable work) {
+        pool.execute(new Task(priority, null, work));
+    }
+
+    public Scope newScope() {
+        return new Scope();
+    }
+
+    /**
+     * @return Tasks waiting for a thread
+     */
+    int queued() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * Tasks of one screen, cancelled together when it goes away
+     */
+    public final class Scope {
+        private final Set<Task> pending = new HashSet<>();
+        private volatile boolean cancelled;
+
+        private Scope() {
+        }
+
+        /**
+         * Compute in the background and deliver the result, unless the scope is cancelled first
+         */
+        public <T> void run(Priority priority, Work<T> work, Callback<T> callback) {
+            run(priority, work, callback, failures);
+        }
+
+        /**
+         * Same, with failures delivered to the screen, e.g. to stop a spinner
+         */
+        public <T> void run(Priority priority, Work<T> work, Callback<T> callback, Callback<Exception> onFailure) {
+            run(priority, () -> compute(work, callback, onFailure));
+        }
+
+        /**
+         * Same, but the work runs even if the scope is cancelled before it starts; only its
+         * result is dropped. For writes the user asked for, which must not be lost when the
+         * screen is closed right away.
+         */
+        public <T> void runToCompletion(Priority priority, Work<T> work, Callback<T> callback) {
+            pool.execute(new Task(priority, null, () -> compute(work, callback, failures)));
+        }
+
+        public void run(Priority priority, Runnable work) {
+            Task task = new Task(priority, this, work);
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                pending.add(task);
+            }
+            pool.execute(task);
+        }
+
+        /**
+         * Drop the queued tasks and any result still to be delivered. Tasks already running
+         * finish, since SQLite and MediaStore queries cannot be stopped halfway.
+         */
+        public void cancel() {
+            Set<Task> dropped;
+            synchronized (this) {
+                cancelled = true;
+                dropped = new HashSet<>(pending);
+                pending.clear();
+            }
+            for (Task task : dropped) {
+                pool.remove(task);
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private synchronized void done(Task task) {
+            pending.remove(task);
+        }
+
+        private <T> void compute(Work<T> work, Callback<T> callback, Callback<Exception> onFailure) {
+            T result;
+            try {
+                result = work.run();
+            } catch (Exception e) {
+                deliver(() -> onFailure.onResult(e));
+                return;
+            }
+            deliver(() -> callback.onResult(result));
+        }
+
+        private void deliver(Runnable delivered) {
+            delivery.execute(() -> {
+                if (!cancelled) {
+                    delivered.run();
+                }
+            });
+        }
+    }
+
+    private final class Task implements Runnable, Comparable<Task> {
+        private final Priority priority;
+        private final long order = sequence.getAndIncrement();
+        private final Scope scope;
+        private final Runnable work;
+
+        Task(Priority priority, Scope scope, Runnable work) {
+            this.priority = priority;
+            this.scope = scope;
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (scope == null || !scope.cancelled) {
+                    work.run();
+                }
+            } catch (RuntimeException e) {
+                delivery.execute(() -> failures.onResult(e));
+            } finally {
+                if (scope != null) {
+                    scope.done(this);
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(order, other.order);
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package com.photogram.backup;
+
+import okhttp3.*;
+import org.json.JSONObject;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import okio.Okio;
+
+/**
+ * Telegram Bot API client: uploads into forum topics, the pinned registry pointer, and downloads.
+ */
+public class TelegramHelper implements Transport {
+    /** Appended to the document name of encrypted uploads */
+    public static final String ENCRYPTED_SUFFIX = ".pge";
+    /** Root of the public Bot API server */
+    static final String API_SERVER = "https://api.telegram.org/";
+
+    private final OkHttpClient client;
+    private final String chatId;
+    private final String API_URL;
+    private final String FILE_URL;
+    private ChunkedCipher cipher;
+    private boolean encryptUploads;
+    private final Set<Call> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final NetworkMetrics networkMetrics = new NetworkMetrics();
+    private volatile boolean cancelled;
+
+    public TelegramHelper(String botToken, String chatId) {
+        this(botToken, chatId, API_SERVER, null);
+    }
+
+    /**
+     * @param server Root of the Bot API server with a trailing slash, e.g. a local fake for load tests
+     * @param shaper Simulated network for tests and debug builds, null for the real one
+     */
+    TelegramHelper(String botToken, String chatId, String server, NetworkShaper shaper) {
+        this.chatId = chatId;
+        this.API_URL = server + "bot" + botToken + "/";
+        this.FILE_URL = server + "file/bot" + botToken + "/";
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectTimeout(60, TimeUnit.SECONDS)
+                .writeTimeout(60, TimeUnit.SECONDS)
+                .readTimeout(60, TimeUnit.SECONDS)
+                .eventListenerFactory(networkMetrics);
+        if (shaper != null) {
+            builder.addInterceptor(shaper);
+        }
+        this.client = builder.build();
+    }
+
+    /**
+     * @return Network timings of every call made by this client so far
+     */
+    NetworkMetrics getNetworkMetrics() {
+        return networkMetrics;
+    }
+
+    /**
+     * Cancel every call in flight and fail any later one at once, e.g. when the worker using this
+     * client is stopped. A cancelled upload fails with an IOException; its file was not recorded
+     * as uploaded and goes up again on the next run.
+     */
+    @Override
+    public void cancelAll() {
+        cancelled = true;
+        for (Call call : inFlight) {
+            call.cancel();
+        }
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Run a call while tracking it for {@link #cancelAll()}
+     */
+    private Response execute(Request request) throws IOException {
+        Call call = client.newCall(request);
+        inFlight.add(call);
+        try (PerfTrace.Section trace = PerfTrace.section(PerfTrace.TELEGRAM_CALL)) {
+            if (cancelled) {
+                call.cancel();
+            }
+            return call.execute();
+        } finally {
+            inFlight.remove(call);
+        }
+    }
+
+    /**
+     * @param cipher Decrypts downloads of encrypted files
+     * @param encryptUploads Whether photos, packs, the history and the topic registry are
+     *                       encrypted before upload
+     */
+    public void setEncryption(ChunkedCipher cipher, boolean encryptUploads) {
+        this.cipher = cipher;
+        this.encryptUploads = encryptUploads && cipher != null;
+    }
+
+    /**
+     * @return The cipher of downloads, null if no passphrase is set
+     */
+    public ChunkedCipher getCipher() {
+        return cipher;
+    }
+
+    public boolean isEncryptingUploads() {
+        return encryptUploads;
+    }
+
+    public String uploadHistoryFile(String jsonContent) throws Exception {
+        // From memory, so no plaintext copy of the history is left on disk
+        RequestBody body = new MultipartBody.Builder().setType(MultipartBody.FORM).addFormDataPart("chat_id", chatId)
+                .addFormDataPart("document", textDocumentName("history.json"), textDocumentBody(jsonContent)).build();
+        try (Response response = execute(new Request.Builder().url(API_URL + "sendDocument").post(body).build())) {
+            JSONObject res = new JSONObject(response.body().string());
+            return res.getBoolean("ok") ? res.getJSONObject("result").getJSONObject("document").getString("file_id") : null;
+        }
+    }
+
+    public String downloadHistoryFile(String fileId) throws Exception {
+        return downloadFile(fileId);
+    }
+
+    /**
+     * Downloads a file sent to the chat as text, decrypting it if it was encrypted
+     */
+    public String downloadFile(String fileId) throws Exception {
+        String path = getFile(fileId).getString("file_path");
+        try (Response res = openDownload(path, 0)) {
+            byte[] content = res.body().bytes();
+            if (!ChunkedCipher.isEncrypted(content)) {
+                return new String(content, StandardCharsets.UTF_8);
+            }
+            if (cipher == null) {
+                throw new IOException("File is encrypted, set the encryption passphrase");
+            }
+            try (InputStream in = cipher.decrypt(new ByteArrayInputStream(content), content.length)) {
+                return Okio.buffer(Okio.source(in)).readUtf8();
+            }
+        }
+    }
+
+    /**
+     * Resolves a file id to its download path. The Bot API only serves files up to 20 MB this way.
+     * @return The File object, holding file_path and file_size
+     */
+    public JSONObject getFile(String fileId) throws Exception {
+        Request req = new Request.Builder().url(API_URL + "getFile?file_id=" + fileId).build();
+        try (Response res = execute(req)) {
+            JSONObject json = new JSONObject(res.body().string());
+            if (!json.getBoolean("ok")) {
+                throw new IOException("getFile failed: " + json.optString("description"));
+            }
+            return json.getJSONObject("result");
+        }
+    }
+
+    /**
+     * Starts the download of a file from the file endpoint, from offset on with a Range request.
+     * The caller streams and closes the response; 206 means the range was honoured, 200 that the
+     * whole file is sent again.
+     */
+    public Response openDownload(String filePath, long offset) throws IOException {
+        return openDownload(filePath, offset, -1);
+    }
+
+    /**
+     * Opens a byte range of a file, e.g. one member of a pack
+     * @param end Exclusive end of the range, or -1 for the rest of the file
+     */
+    public Response openDownload(String filePath, long offset, long end) throws IOException {
+        Request.Builder req = new Request.Builder().url(FILE_URL + filePath);
+        if (end > 0) {
+            req.header("Range", "bytes=" + offset + "-" + (end - 1));
+        } else if (offset > 0) {
+            req.header("Range", "bytes=" + offset + "-");
+        }
+        return execute(req.build());
+    }
+
+    /**
+     * Reads the pinned message of the chat
+     * @return The pinned message, or null if nothing is pinned
+     */
+    public JSONObject getPinnedMessage() throws Exception {
+        try (Response response = execute(new Request.Builder().url(API_URL + "getChat?chat_id=" + chatId).build())) {
+            JSONObject json = new JSONObject(response.body().string());
+            if (!json.getBoolean("ok")) {
+                throw new IOException("getChat failed: " + json.optString("description"));
+            }
+            return json.getJSONObject("result").optJSONObject("pinned_message");
+        }
+    }
+
+    /**
+     * Sends a text message and pins it
+     * @return Message id of the pinned message
+     */
+    public int sendPinnedMessage(String text) throws Exception {
+        FormBody body = new FormBody.Builder().add("chat_id", chatId).add("text", text).build();
+        int mid;
+        try (Response res = execute(new Request.Builder().url(API_URL + "sendMessage").post(body).build())) {
+            JSONObject json = new JSONObject(res.body().string());
+            if (!json.getBoolean("ok")) {
+                throw new IOException("sendMessage failed: " + json.optString("description"));
+            }
+            mid = json.getJSONObject("result").getInt("message_id");
+        }
+        execute(new Request.Builder().url(API_URL + "pinChatMessage?chat_id=" + chatId + "&message_id=" + mid).build()).close();
+        return mid;
+    }
+
+    /**
+     * Replaces the text of a message sent by the bot
+     * @return false if the message is gone or cannot be edited
+     */
+    public boolean editMessageText(int messageId, String text) throws Exception {
+        FormBody body = new FormBody.Builder().add("chat_id", chatId).add("message_id", String.valueOf(messageId)).add("text", text).build();
+        try (Response res = execute(new Request.Builder().url(API_URL + "editMessageText").post(body).build())) {
+            return new JSONObject(res.body().string()).getBoolean("ok");
+        }
+    }
+
+    /**
+     * Sends text content as a document, encrypted if uploads are; {@link #downloadFile} reads it
+     * back either way
+     * @return The sent message, holding message_id and document.file_id
+     */
+    public JSONObject sendTextDocument(String fileName, String content) throws Exception {
+        RequestBody body = new MultipartBody.Builder().setType(MultipartBody.FORM)
+                .addFormDataPart("chat_id", chatId)
+                .addFormDataPart("document", textDocumentName(fileName), textDocumentBody(content))
+                .build();
+        try (Response res = execute(new Request.Builder().url(API_URL + "sendDocument").post(body).build())) {
+            JSONObject json = new JSONObject(res.body().string());
+            if (!json.getBoolean("ok")) {
+                throw new IOException("sendDocument failed: " + json.optString("description"));
+            }
+            return json.getJSONObject("result");
+        }
+    }
+
+    /**
+     * Replaces the document of an existing message, keeping its message id; encrypted like
+     * {@link #sendTextDocument}
+     * @return The edited message, or null if the message is gone or cannot be edited
+     */
+    public JSONObject editTextDocument(int messageId, String fileName, String content) throws Exception {
+        RequestBody body = new MultipartBody.Builder().setType(MultipartBody.FORM)
+                .addFormDataPart("chat_id", chatId)
+                .addFormDataPart("message_id", String.valueOf(messageId))
+                .addFormDataPart("media", new JSONObject().put("type", "document").put("media", "attach://file").toString())
+                .addFormDataPart("file", textDocumentName(fileName), textDocumentBody(content))
+                .build();
+        try (Response res = execute(new Request.Builder().url(API_URL + "editMessageMedia").post(body).build())) {
+            JSONObject json = new JSONObject(res.body().string());
+            return json.getBoolean("ok") ? json.optJSONObject("result") : null;
+        }
+    }
+
+    private String textDocumentName(String fileName) {
+        return encryptUploads ? fileName + ENCRYPTED_SUFFIX : fileName;
+    }
+
+    private RequestBody textDocumentBody(String content) throws IOException {
+        RequestBody body = RequestBody.create(content.getBytes(StandardCharsets.UTF_8), MediaType.parse("application/json"));
+        return encryptUploads ? cipher.encrypt(body) : body;
+    }
+
+    public String createTopic(String name) throws Exception {
+        FormBody body = new FormBody.Builder().add("chat_id", chatId).add("name", "📁 " + name).build();
+        try (Response res = execute(new Request.Builder().url(API_URL + "createForumTopic").post(body).build())) {
+            return new JSONObject(res.body().string()).getJSONObject("result").getString("message_thread_id");
+        }
+    }
+
+    /**
+     * Fetches all existing forum topics from the Telegram group.
+     * Returns a map of topic name -> topic ID
+     */
+    public Map<String, String> getExistingTopics() {
+        Map<String, String> topics = new HashMap<>();
+        try {
+            Request req = new Request.Builder().url(API_URL + "getForumTopicInfo?chat_id=" + chatId).build();
+            // Note: getForumTopicInfo requires topic_id, so we use a workaround
+            // We'll rely on registry + validation approach instead
+        } catch (Exception e) {
+            // Silently fail, will use registry
+        }
+        return topics;
+    }
+
+    public String uploadPhoto(File photo, String tid) {
+        return uploadPhoto(photo, tid, null).error;
+    }
+
+    /**
+     * Uploads a photo into a topic, reporting byte progress of the request body.
+     * @param listener Optional progress listener, invoked again from 0 if the fallback upload runs
+     * @return The outcome, with the file id of the upload on success
+     */
+    public UploadResult uploadPhoto(File photo, String tid, ProgressRequestBody.Listener listener) {
+        return uploadPhoto(PreparedUpload.unbuffered(photo), tid, listener);
+    }
+
+    /**
+     * Uploads a photo whose header, and possibly content, was read ahead of time.
+     * @param listener Optional progress listener, invoked again from 0 if the fallback upload runs
+     * @return The outcome, with the file id of the upload on success
+     */
+    @Override
+    public UploadResult uploadPhoto(PreparedUpload upload, String tid, ProgressRequestBody.Listener listener) {
+        // Telegram sendPhoto often fails with HEIC or files with complex metadata
+        // We force sendDocument for HEIC or files larger than 10MB
+        // Encrypted bytes are no image to Telegram either
+        boolean forceDocument = upload.isHeif() || upload.size >= 10 * 1024 * 1024 || encryptUploads;
+        
+        int trace = PerfTrace.beginUpload(upload.size);
+        try {
+            UploadResult result = executeUpload(upload, tid, forceDocument, listener);
+
+            // Automatic fallback: If sendPhoto failed, try sendDocument as it's more robust
+            if (!result.isSuccess() && !forceDocument) {
+                UploadResult fallback = executeUpload(upload, tid, true, listener);
+                if (fallback.isSuccess()) return fallback;
+                return UploadResult.failed(result.error + " (Fallback failed: " + fallback.error + ")");
+            }
+
+            return result;
+        } finally {
+            PerfTrace.endUpload(trace, upload.size);
+        }
+    }
+
+    private UploadResult executeUpload(PreparedUpload upload, String tid, boolean asDocument, ProgressRequestBody.Listener listener) {
+        String method = asDocument ? "sendDocument" : "sendPhoto";
+        String partName = asDocument ? "document" : "photo";
+
+        // Content read ahead is already hashed, a streamed file is hashed as it is sent
+        HashingRequestBody hashedBody = upload.contentHash == null ? new HashingRequestBody(upload.body()) : null;
+        RequestBody fileBody = hashedBody != null ? hashedBody : upload.body();
+        String name = upload.file.getName();
+
+        try {
+            // Hashed before encryption, so copies are still found by their content
+            if (encryptUploads) {
+                fileBody = cipher.encrypt(fileBody);
+                name += ENCRYPTED_SUFFIX;
+            }
+            if (listener != null) {
+                fileBody = new ProgressRequestBody(fileBody, listener);
+            }
+        } catch (IOException e) {
+            return UploadResult.failed(e.getMessage());
+        }
+
+        RequestBody body = fileMessage(tid, partName, name, fileBody, null);
+        try (Response res = execute(new Request.Builder().url(API_URL + method).post(body).build())) {
+            String responseBody = res.body().string();
+            JSONObject json = new JSONObject(responseBody);
+            if (json.getBoolean("ok")) return UploadResult.sent(json.getJSONObject("result"), hashedBody != null ? hashedBody.getSha256() : upload.contentHash, encryptUploads);
+            return UploadResult.failed(json.optString("description", "Unknown error"));
+        } catch (Exception e) {
+            return UploadResult.failed(e.getMessage());
+        }
+    }
+
+    /**
+     * Uploads a pack of small photos into a topic as one document
+     * @param listener Optional progress listener
+     * @return The outcome, with the file and message id of the pack on success
+     */
+    @Override
+    public UploadResult uploadPack(String fileName, TarPackBody pack, String tid, ProgressRequestBody.Listener listener) {
+        RequestBody fileBody = pack;
+        try {
+            if (encryptUploads) {
+                fileBody = cipher.encrypt(pack);
+                fileName += ENCRYPTED_SUFFIX;
+            }
+        } catch (IOException e) {
+            return UploadResult.failed(e.getMessage());
+        }
+        if (listener != null) {
+            fileBody = new ProgressRequestBody(fileBody, listener);
+        }
+        RequestBody body = fileMessage(tid, "document", fileName, fileBody, "📦 " + pack.getEntries().size() + " photos");
+        long length = pack.contentLength();
+        int trace = PerfTrace.beginUpload(length);
+        try (Response res = execute(new Request.Builder().url(API_URL + "sendDocument").post(body).build())) {
+            JSONObject json = new JSONObject(res.body().string());
+            if (json.getBoolean("ok")) return UploadResult.sent(json.getJSONObject("result"), null, encryptUploads);
+            return UploadResult.failed(json.optString("description", "Unknown error"));
+        } catch (Exception e) {
+            return UploadResult.failed(e.getMessage());
+        } finally {
+            PerfTrace.endUpload(trace, length);
+        }
+    }
+
+    /**
+     * Multipart body of a sendPhoto or sendDocument call into a topic
+     * @param partName "photo" or "document"
+     * @param caption Optional caption
+     */
+    MultipartBody fileMessage(String tid, String partName, String fileName, RequestBody fileBody, String caption) {
+        MultipartBody.Builder builder = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("chat_id", chatId)
+                .addFormDataPart("message_thread_id", tid);
+        if (caption != null) {
+            builder.addFormDataPart("caption", caption);
+        }
+        return builder.addFormDataPart(partName, fileName, fileBody).build();
+    }
+
+    /**
+     * Puts an earlier upload into a topic without uploading its bytes again: copyMessage of the
+     * original message, or a resend by file id if that message is gone.
+     * @param messageId Message of the earlier upload, 0 if unknown
+     * @param fileId File id of the earlier upload, may be null
+     * @param encrypted Whether the earlier upload was encrypted, and so the copy is
+     * @return The outcome; the file id is the one that was copied
+     */
+    @Override
+    public UploadResult copyToTopic(int messageId, String fileId, String tid, boolean encrypted) {
+        String error = "No message or file id";
+        if (messageId > 0) {
+            FormBody body = new FormBody.Builder()
+                    .add("chat_id", chatId)
+                    .add("from_chat_id", chatId)
+                    .add("message_id", String.valueOf(messageId))
+                    .add("message_thread_id", tid)
+                    .build();
+            try (Response res = execute(new Request.Builder().url(API_URL + "copyMessage").post(body).build())) {
+                JSONObject json = new JSONObject(res.body().string());
+                if (json.getBoolean("ok")) {
+                    return new UploadResult(null, fileId, json.getJSONObject("result").optInt("message_id"), null, encrypted);
+                }
+                error = json.optString("description", "Unknown error");
+            } catch (Exception e) {
+                error = e.getMessage();
+            }
+        }
+
+        if (fileId != null) {
+            // A file id is only accepted by the method matching how the file was sent
+            for (String[] method : new String[][]{{"sendDocument", "document"}, {"sendPhoto", "photo"}}) {
+                FormBody body = new FormBody.Builder()
+                        .add("chat_id", chatId)
+                        .add("message_thread_id", tid)
+                        .add(method[1], fileId)
+                        .build();
+                try (Response res = execute(new Request.Builder().url(API_URL + method[0]).post(body).build())) {
+                    JSONObject json = new JSONObject(res.body().string());
+                    if (json.getBoolean("ok")) {
+                        return UploadResult.sent(json.getJSONObject("result"), null, encrypted);
+                    }
+                    error = json.optString("description", "Unknown error");
+                } catch (Exception e) {
+                    error = e.getMessage();
+                }
+            }
+        }
+        return UploadResult.failed(error);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,83 @@
+package com.photogram.backup;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Where photos go: the upload side of a sync, implemented by {@link TelegramHelper}. Kept small
+ * so sync logic and benchmarks can run against an in-memory or mock transport.
+ */
+public interface Transport {
+
+    /**
+     * Uploads a photo whose header, and possibly content, was read ahead of time.
+     * @param listener Optional progress listener
+     * @return The outcome, with the file id of the upload on success
+     */
+    UploadResult uploadPhoto(PreparedUpload upload, String tid, ProgressRequestBody.Listener listener);
+
+    /**
+     * Uploads a pack of small photos into a topic as one document
+     * @param listener Optional progress listener
+     * @return The outcome, with the file and message id of the pack on success
+     */
+    UploadResult uploadPack(String fileName, TarPackBody pack, String tid, ProgressRequestBody.Listener listener);
+
+    /**
+     * Puts an earlier upload into a topic without uploading its bytes again
+     * @param messageId Message of the earlier upload, 0 if unknown
+     * @param fileId File id of the earlier upload, may be null
+     * @param encrypted Whether the earlier upload was encrypted, and so the copy is
+     */
+    UploadResult copyToTopic(int messageId, String fileId, String tid, boolean encrypted);
+
+    /**
+     * Cancel every call in flight and fail any later one at once
+     */
+    void cancelAll();
+
+    boolean isCancelled();
+
+    /**
+     * Outcome of a photo upload
+     */
+    final class UploadResult {
+        /** null on success */
+        public final String error;
+        /** File id to download the upload again; for sendPhoto the largest, recompressed size */
+        public final String fileId;
+        public final int messageId;
+        /** Hex SHA-256 of the uploaded file before encryption, null if nothing was uploaded */
+        public final String contentHash;
+        /** The uploaded or copied file is encrypted */
+        public final boolean encrypted;
+
+        UploadResult(String error, String fileId, int messageId, String contentHash, boolean encrypted) {
+            this.error = error;
+            this.fileId = fileId;
+            this.messageId = messageId;
+            this.contentHash = contentHash;
+            this.encrypted = encrypted;
+        }
+
+        static UploadResult failed(String error) {
+            return new UploadResult(error != null ? error : "Unknown error", null, 0, null, false);
+        }
+
+        static UploadResult sent(JSONObject message, String contentHash, boolean encrypted) {
+            String fileId = null;
+            JSONObject document = message.optJSONObject("document");
+            JSONArray sizes = message.optJSONArray("photo");
+            if (document != null) {
+                fileId = document.optString("file_id", null);
+            } else if (sizes != null && sizes.length() > 0) {
+                fileId = sizes.optJSONObject(sizes.length() - 1).optString("file_id", null);
+            }
+            return new UploadResult(null, fileId, message.optInt("message_id"), contentHash, encrypted);
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+}
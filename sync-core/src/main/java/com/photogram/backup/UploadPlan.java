@@ -0,0 +1,190 @@
+package com.photogram.backup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Result of a dry run: what a sync would upload, per folder, and how many Telegram messages that
+ * takes. Photos of packed folders are laid out into packs exactly like the sync does, so a pack
+ * counts as one message. The daily limit of a limited account counts photos, packed or not.
+ */
+public final class UploadPlan {
+
+    public static final class Folder {
+        public final String path;
+        public int files;
+        public long bytes;
+        public int messages;
+        private TarPackBody openPack;
+
+        Folder(String path) {
+            this.path = path;
+        }
+
+        public String getName() {
+            return new File(path).getName();
+        }
+    }
+
+    private final Map<String, Folder> folders = new LinkedHashMap<>();
+    private int quotaRemaining = -1;
+
+    /**
+     * Count a photo that would be uploaded on its own
+     */
+    public void add(String folderPath, long size) {
+        Folder folder = folder(folderPath);
+        folder.files++;
+        folder.bytes += size;
+        folder.messages++;
+    }
+
+    /**
+     * Count a photo that would go into a pack; photos must be added oldest first, like the sync
+     * fills its packs
+     */
+    public void addPacked(String folderPath, String path, long size, long modified) {
+        Folder folder = folder(folderPath);
+        folder.files++;
+        folder.bytes += size;
+        if (folder.openPack == null || folder.openPack.lengthWith(size) > AppConstants.PACK_MAX_BYTES) {
+            folder.openPack = new TarPackBody();
+            folder.messages++;
+        }
+        folder.openPack.add(new File(path), size, modified);
+    }
+
+    /**
+     * @param remaining Uploads left today on a limited account, -1 if unlimited
+     */
+    public void setQuotaRemaining(int remaining) {
+        quotaRemaining = remaining;
+    }
+
+    public List<Folder> getFolders() {
+        List<Folder> list = new ArrayList<>(folders.values());
+        Collections.sort(list, (a, b) -> Long.compare(b.bytes, a.bytes));
+        return list;
+    }
+
+    public int getFiles() {
+        int files = 0;
+        for (Folder folder : folders.values()) {
+            files += folder.files;
+        }
+        return files;
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for (Folder folder : folders.values()) {
+            bytes += folder.bytes;
+        }
+        return bytes;
+    }
+
+    public int getMessages() {
+        int messages = 0;
+        for (Folder folder : folders.values()) {
+            messages += folder.messages;
+        }
+        return messages;
+    }
+
+    public boolean isEmpty() {
+        return folders.isEmpty();
+    }
+
+    /**
+     * @return true if a limited account runs out of daily uploads before the plan is done
+     */
+    public boolean exceedsQuota() {
+        return quotaRemaining >= 0 && getFiles() > quotaRemaining;
+    }
+
+    /**
+     * @return Photos the plan can upload today, all of them on an unlimited account
+     */
+    public int getFilesToday() {
+        return quotaRemaining < 0 ? getFiles() : Math.min(getFiles(), quotaRemaining);
+    }
+
+    /**
+     * @return Messages the photos of today take, in proportion where the limit cuts the plan
+     */
+    public int getMessagesToday() {
+        int files = getFiles();
+        if (files == 0) {
+            return 0;
+        }
+        return (int) (((long) getMessages() * getFilesToday() + files - 1) / files);
+    }
+
+    /**
+     * Time the messages sendable today take: bytes at the given rate plus the fixed pause after
+     * every message
+     * @param bytesPerSecond Measured upload rate, 0 if unknown
+     * @return Seconds, or -1 if the rate is unknown
+     */
+    public long estimateSeconds(long bytesPerSecond, long perMessageMs) {
+        if (bytesPerSecond <= 0) {
+            return -1;
+        }
+        int files = getFiles();
+        long bytes = files == 0 ? 0 : getBytes() * getFilesToday() / files;
+        return bytes / bytesPerSecond + getMessagesToday() * perMessageMs / 1000;
+    }
+
+    /**
+     * One line such as "1,234 photos · 2.1 GB · ~40 min", for the sync card and the dashboard
+     */
+    public String summary(long bytesPerSecond, long perMessageMs) {
+        if (isEmpty()) {
+            return "Nothing new to back up";
+        }
+        StringBuilder text = new StringBuilder(String.format(Locale.US, "%,d photos · %s",
+            getFiles(), formatBytes(getBytes())));
+        if (getMessages() < getFiles()) {
+            text.append(String.format(Locale.US, " in %,d messages", getMessages()));
+        }
+        long eta = estimateSeconds(bytesPerSecond, perMessageMs);
+        if (eta >= 0) {
+            text.append(" · ~").append(formatDuration(eta));
+        }
+        if (exceedsQuota()) {
+            text.append(String.format(Locale.US, " · only %,d today (daily limit)", getFilesToday()));
+        }
+        return text.toString();
+    }
+
+    static String formatDuration(long seconds) {
+        if (seconds < 60) {
+            return seconds + " s";
+        }
+        long minutes = (seconds + 59) / 60;
+        if (minutes < 60) {
+            return minutes + " min";
+        }
+        return String.format(Locale.US, "%d h %02d min", minutes / 60, minutes % 60);
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024 * 1024) return String.format(Locale.US, "%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024.0));
+        return String.format(Locale.US, "%.2f GB", bytes / (1024.0 * 1024.0 * 1024.0));
+    }
+
+    private Folder folder(String folderPath) {
+        Folder folder = folders.get(folderPath);
+        if (folder == null) {
+            folder = new Folder(folderPath);
+            folders.put(folderPath, folder);
+        }
+        return folder;
+    }
+}
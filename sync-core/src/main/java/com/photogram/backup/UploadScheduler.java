@@ -0,0 +1,161 @@
+package com.photogram.backup;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+/**
+ * Orders the upload candidates of a shard according to a {@link Policy}.
+ *
+ * Candidates are added during the scan and handed out one at a time with {@link #next()}.
+ * The scheduler only decides the order; completion is tracked in the history table.
+ */
+public class UploadScheduler {
+
+    public enum Policy {
+        /** DATE_MODIFIED ascending, the historical order */
+        OLDEST_FIRST,
+        /** Most recent photos first, so a new photo never waits behind a backlog */
+        NEWEST_FIRST,
+        /** Smallest files first for the best files-per-second */
+        SMALLEST_FIRST,
+        /** One file per topic in turn, newest first within a topic, so no folder starves the others */
+        ROUND_ROBIN
+    }
+
+    /**
+     * A file that needs uploading
+     */
+    public static final class Candidate {
+        public final String path;
+        public final String folderPath;
+        public final String topicId;
+        public final long modified;
+        public final long size;
+
+        public Candidate(String path, String folderPath, String topicId, long modified, long size) {
+            this.path = path;
+            this.folderPath = folderPath;
+            this.topicId = topicId;
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+
+    /**
+     * DATE_MODIFIED ascending, then path. Spelled out rather than built with
+     * Comparator.comparingLong, which needs API 24.
+     */
+    public static final Comparator<Candidate> OLDEST = (a, b) -> {
+        int byModified = Long.compare(a.modified, b.modified);
+        return byModified != 0 ? byModified : a.path.compareTo(b.path);
+    };
+    private static final Comparator<Candidate> NEWEST = (a, b) -> OLDEST.compare(b, a);
+    private static final Comparator<Candidate> SMALLEST = (a, b) -> {
+        int bySize = Long.compare(a.size, b.size);
+        return bySize != 0 ? bySize : NEWEST.compare(a, b);
+    };
+
+    private final Policy policy;
+    private final PriorityQueue<Candidate> queue;
+    private final Map<String, PriorityQueue<Candidate>> byTopic = new LinkedHashMap<>();
+    private final Queue<String> topicTurns = new ArrayDeque<>();
+    private int size = 0;
+    private long totalBytes = 0;
+
+    public UploadScheduler(Policy policy) {
+        this.policy = policy;
+        switch (policy) {
+            case NEWEST_FIRST:
+                queue = new PriorityQueue<>(NEWEST);
+                break;
+            case SMALLEST_FIRST:
+                queue = new PriorityQueue<>(SMALLEST);
+                break;
+            case ROUND_ROBIN:
+                queue = null;
+                break;
+            case OLDEST_FIRST:
+            default:
+                queue = new PriorityQueue<>(OLDEST);
+                break;
+        }
+    }
+
+    /**
+     * Default policy of each sync mode
+     */
+    public static Policy policyFor(SyncMode mode) {
+        switch (mode) {
+            case MANUAL:
+                return Policy.SMALLEST_FIRST;
+            case REALTIME:
+                return Policy.NEWEST_FIRST;
+            case PERIODIC:
+            default:
+                return Policy.ROUND_ROBIN;
+        }
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public void add(Candidate candidate) {
+        size++;
+        totalBytes += candidate.size;
+        if (queue != null) {
+            queue.add(candidate);
+            return;
+        }
+
+        PriorityQueue<Candidate> topicQueue = byTopic.get(candidate.topicId);
+        if (topicQueue == null) {
+            topicQueue = new PriorityQueue<>(NEWEST);
+            byTopic.put(candidate.topicId, topicQueue);
+            topicTurns.add(candidate.topicId);
+        }
+        topicQueue.add(candidate);
+    }
+
+    /**
+     * @return The next file to upload, or null when the schedule is empty
+     */
+    public Candidate next() {
+        if (size == 0) {
+            return null;
+        }
+        size--;
+        if (queue != null) {
+            return queue.poll();
+        }
+
+        String topic = topicTurns.poll();
+        PriorityQueue<Candidate> topicQueue = byTopic.get(topic);
+        Candidate next = topicQueue.poll();
+        if (topicQueue.isEmpty()) {
+            byTopic.remove(topic);
+        } else {
+            topicTurns.add(topic);
+        }
+        return next;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Size of everything ever added, for progress totals
+     */
+    public long totalBytes() {
+        return totalBytes;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,43 @@
+package com.photogram.backup;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BandwidthLimiterTest {
+
+    private long now = 0;
+    private final List<Long> sleeps = new ArrayList<>();
+
+    private BandwidthLimiter limiter(long bytesPerSecond) {
+        return new BandwidthLimiter(bytesPerSecond, () -> now, ms -> {
+            sleeps.add(ms);
+            now += ms;
+        });
+    }
+
+    @Test
+    public void testBurstWithinOneSecondDoesNotWait() throws Exception {
+        BandwidthLimiter limiter = limiter(1000);
+        limiter.acquire(600);
+        limiter.acquire(400);
+        assertEquals(0, sleeps.size());
+    }
+
+    @Test
+    public void testOverdraftSleepsForTheDebt() throws Exception {
+        BandwidthLimiter limiter = limiter(1000);
+        limiter.acquire(1000);
+        limiter.acquire(500);
+        assertEquals(1, sleeps.size());
+        assertEquals(500L, (long) sleeps.get(0));
+    }
+
+    @Test
+    public void testUnlimitedNeverWaits() throws Exception {
+        BandwidthLimiter limiter = limiter(0);
+        limiter.acquire(Long.MAX_VALUE / 2);
+        assertEquals(0, sleeps.size());
+    }
+}
@@ -0,0 +1,101 @@
+package com.photogram.backup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.Okio;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ChunkedCipherTest {
+    private final ChunkedCipher cipher = new ChunkedCipher("correct horse", new byte[16]);
+
+    private static byte[] plain(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 7 + i / 251);
+        }
+        return data;
+    }
+
+    private byte[] encrypt(byte[] data) throws IOException {
+        RequestBody body = cipher.encrypt(RequestBody.create(data, null));
+        Buffer out = new Buffer();
+        body.writeTo(out);
+        assertEquals(body.contentLength(), out.size());
+        return out.readByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        return Okio.buffer(Okio.source(in)).readByteArray();
+    }
+
+    @Test
+    public void testRoundTripAcrossChunkBoundaries() throws Exception {
+        for (int size : new int[]{0, 1, ChunkedCipher.CHUNK_SIZE, 3 * ChunkedCipher.CHUNK_SIZE + 17}) {
+            byte[] data = plain(size);
+            byte[] sealed = encrypt(data);
+
+            assertTrue(ChunkedCipher.isEncrypted(sealed));
+            assertEquals(size, ChunkedCipher.plainLength(sealed.length));
+            assertArrayEquals(data, readAll(cipher.decrypt(new ByteArrayInputStream(sealed), sealed.length)));
+        }
+    }
+
+    @Test
+    public void testRangeDecryptsFromItsFirstChunk() throws Exception {
+        byte[] data = plain(5 * ChunkedCipher.CHUNK_SIZE + 100);
+        byte[] sealed = encrypt(data);
+        long from = 2 * ChunkedCipher.CHUNK_SIZE + 5;
+        long to = 3 * ChunkedCipher.CHUNK_SIZE + 9;
+
+        long first = from / ChunkedCipher.CHUNK_SIZE;
+        long last = (to - 1) / ChunkedCipher.CHUNK_SIZE;
+        byte[] fetched = Arrays.copyOfRange(sealed, (int) ChunkedCipher.chunkStart(first), (int) ChunkedCipher.chunkStart(last + 1));
+        byte[] header = Arrays.copyOf(sealed, ChunkedCipher.HEADER_SIZE);
+
+        byte[] chunks = readAll(cipher.decrypt(header, new ByteArrayInputStream(fetched), first, data.length));
+        int lead = (int) (from - first * ChunkedCipher.CHUNK_SIZE);
+        assertArrayEquals(Arrays.copyOfRange(data, (int) from, (int) to), Arrays.copyOfRange(chunks, lead, lead + (int) (to - from)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedFileFailsToDecrypt() throws Exception {
+        byte[] sealed = encrypt(plain(2 * ChunkedCipher.CHUNK_SIZE));
+        // Drop the last chunk: the one before it was not sealed as the last
+        int cut = (int) ChunkedCipher.chunkStart(1);
+        readAll(cipher.decrypt(new ByteArrayInputStream(sealed, 0, cut), ChunkedCipher.encryptedLength(ChunkedCipher.CHUNK_SIZE)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongPassphraseFailsToDecrypt() throws Exception {
+        byte[] sealed = encrypt(plain(100));
+        readAll(new ChunkedCipher("wrong", new byte[16]).decrypt(new ByteArrayInputStream(sealed), sealed.length));
+    }
+
+    @Test
+    public void testKeysAreLookedUpByTheFileSalt() throws Exception {
+        byte[] data = plain(100);
+        byte[] sealed = encrypt(data);
+        byte[] newSalt = ChunkedCipher.newSalt();
+        ChunkedCipher.KeySource stored = salt -> {
+            if (!Arrays.equals(new byte[16], salt)) {
+                throw new IOException("No key");
+            }
+            return ChunkedCipher.deriveKey("correct horse", salt);
+        };
+        assertArrayEquals(data, readAll(new ChunkedCipher(stored, newSalt).decrypt(new ByteArrayInputStream(sealed), sealed.length)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingKeyFailsToDecrypt() throws Exception {
+        byte[] sealed = encrypt(plain(100));
+        ChunkedCipher.KeySource none = salt -> {
+            throw new IOException("No key");
+        };
+        new ChunkedCipher(none, new byte[16]).decrypt(new ByteArrayInputStream(sealed), sealed.length);
+    }
+}
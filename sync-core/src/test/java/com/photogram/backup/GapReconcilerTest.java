@@ -0,0 +1,46 @@
+package com.photogram.backup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GapReconcilerTest {
+
+    private static GapReconciler.Source source(GapReconciler.Entry... entries) {
+        Iterator<GapReconciler.Entry> it = Arrays.asList(entries).iterator();
+        return () -> it.hasNext() ? it.next() : null;
+    }
+
+    private static GapReconciler.Entry e(String path, long modified) {
+        return new GapReconciler.Entry(path, modified, 1);
+    }
+
+    @Test
+    public void testReportsOnlyFilesWithoutHistory() throws Exception {
+        List<String> missing = new ArrayList<>();
+        GapReconciler.Stats stats = GapReconciler.reconcile(
+            source(e("/a/1.jpg", 10), e("/a/2.jpg", 20), e("/b/3.jpg", 20), e("/a/4.jpg", 30)),
+            source(e("/a/1.jpg", 10), e("/x/old.jpg", 15), e("/b/3.jpg", 20), e("/a/4.jpg", 25)),
+            entry -> missing.add(entry.path));
+
+        assertEquals(Arrays.asList("/a/2.jpg", "/a/4.jpg"), missing);
+        assertEquals(4, stats.scanned);
+        assertEquals(2, stats.backedUp);
+        assertEquals(2, stats.missing);
+    }
+
+    @Test
+    public void testEmptyHistoryEverythingMissing() throws Exception {
+        List<String> missing = new ArrayList<>();
+        GapReconciler.reconcile(source(e("/a/1.jpg", 1), e("/a/2.jpg", 2)), source(), entry -> missing.add(entry.path));
+        assertEquals(2, missing.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnsortedInputIsRejected() throws Exception {
+        GapReconciler.reconcile(source(e("/a/1.jpg", 5), e("/a/2.jpg", 3)), source(), entry -> { });
+    }
+}
@@ -0,0 +1,48 @@
+package com.photogram.backup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HammingIndexTest {
+
+    @Test
+    public void testSearchMatchesBruteForce() {
+        Random random = new Random(42);
+        HammingIndex<Integer> index = new HammingIndex<>();
+        List<Long> hashes = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            long hash = random.nextLong();
+            hashes.add(hash);
+            index.add(hash, i);
+        }
+        for (int q = 0; q < 50; q++) {
+            long query = hashes.get(q) ^ (1L << q) ^ (1L << (q + 7));
+            Set<Integer> expected = new HashSet<>();
+            for (int i = 0; i < hashes.size(); i++) {
+                if (PerceptualHash.distance(query, hashes.get(i)) <= 12) {
+                    expected.add(i);
+                }
+            }
+            Set<Integer> found = new HashSet<>();
+            for (HammingIndex.Match<Integer> match : index.search(query, 12)) {
+                found.add(match.value);
+            }
+            assertEquals(expected, found);
+            assertTrue(found.contains(q));
+        }
+        assertEquals(2000, index.size());
+    }
+
+    @Test
+    public void testEqualHashesKeepAllValues() {
+        HammingIndex<String> index = new HammingIndex<>();
+        index.add(7L, "a");
+        index.add(7L, "b");
+        assertEquals(2, index.search(7L, 0).size());
+    }
+}
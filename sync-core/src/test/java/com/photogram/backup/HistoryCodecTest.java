@@ -0,0 +1,58 @@
+package com.photogram.backup;
+
+import java.util.Arrays;
+import java.util.List;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HistoryCodecTest {
+
+    @Test
+    public void testRoundTripKeepsEveryKind() throws Exception {
+        HistoryCodec.Record single = new HistoryCodec.Record("/DCIM/a.jpg", 100, 1000);
+        single.fileId = "f1";
+        single.messageId = 7;
+        single.size = 2048;
+        single.contentHash = "ab";
+        single.encrypted = true;
+        HistoryCodec.Record packed = new HistoryCodec.Record("/Shots/b.png", 200, 2000);
+        packed.size = 512;
+        packed.packName = "pack.tar";
+        packed.packOffset = 1024;
+        HistoryCodec.Record duplicate = new HistoryCodec.Record("/DCIM/c.jpg", 300, 3000);
+        duplicate.duplicateOf = "/DCIM/a.jpg";
+
+        List<HistoryCodec.Record> decoded = HistoryCodec.decode(HistoryCodec.encode(Arrays.asList(single, packed, duplicate)), 0);
+
+        assertEquals(3, decoded.size());
+        HistoryCodec.Record a = decoded.get(0);
+        assertEquals("/DCIM/a.jpg", a.path);
+        assertEquals(100, a.modified);
+        assertEquals(1000, a.uploadedAt);
+        assertEquals("f1", a.fileId);
+        assertEquals(7, a.messageId);
+        assertEquals(2048, a.size);
+        assertEquals("ab", a.contentHash);
+        assertTrue(a.encrypted);
+        HistoryCodec.Record b = decoded.get(1);
+        assertEquals("pack.tar", b.packName);
+        assertEquals(1024, b.packOffset);
+        assertEquals(512, b.size);
+        assertNull(b.contentHash);
+        assertFalse(b.encrypted);
+        assertEquals("/DCIM/a.jpg", decoded.get(2).duplicateOf);
+        assertNull(decoded.get(2).fileId);
+    }
+
+    @Test
+    public void testToJsonLeavesOutSizeWithoutHashOrPack() throws Exception {
+        HistoryCodec.Record record = new HistoryCodec.Record("/DCIM/a.jpg", 100, 1000);
+        record.size = 2048;
+
+        JSONObject json = HistoryCodec.toJson(record);
+
+        assertEquals(3, json.length());
+        assertEquals(5000, HistoryCodec.fromJson(new JSONObject("{\"p\":\"x\",\"m\":1}"), 5000).uploadedAt);
+    }
+}
@@ -0,0 +1,21 @@
+package com.photogram.backup;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HistorySearchTest {
+
+    @Test
+    public void testWordsOfSeveralTokensBecomePhrasePrefixes() {
+        assertEquals("\"img 2024*\" trip*", HistorySearch.match("IMG_2024  Trip"));
+        assertEquals("\"img 2024*\" trip* name:img name:2024* name:trip*", HistorySearch.nameMatch("IMG_2024  Trip"));
+        assertEquals("\"2021 03*\"", HistorySearch.match("2021-03"));
+    }
+
+    @Test
+    public void testSyntaxNeverReachesTheMatch() {
+        assertEquals("or* \"x y*\"", HistorySearch.match(" \"OR\" -x:y* "));
+        assertNull(HistorySearch.match(" -*: "));
+        assertNull(HistorySearch.nameMatch(""));
+    }
+}
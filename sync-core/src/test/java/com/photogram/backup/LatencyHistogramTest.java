@@ -0,0 +1,57 @@
+package com.photogram.backup;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentilesAreWithinOneBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.add(i * 100L);
+        }
+
+        long p50 = histogram.percentile(50);
+        long p95 = histogram.percentile(95);
+        assertTrue("p50 " + p50, p50 >= 5000 && p50 <= 5000 * 1.19 + 1);
+        assertTrue("p95 " + p95, p95 >= 9500 && p95 <= 9500 * 1.19 + 1);
+        assertEquals(0, new LatencyHistogram().percentile(50));
+    }
+
+    @Test
+    public void testMergeOfDecodedEqualsOneHistogramOfAll() {
+        LatencyHistogram shardA = new LatencyHistogram();
+        LatencyHistogram shardB = new LatencyHistogram();
+        LatencyHistogram all = new LatencyHistogram();
+        for (long millis : new long[]{0, 3, 40, 900, 15_000}) {
+            shardA.add(millis);
+            all.add(millis);
+        }
+        for (long millis : new long[]{7, 7, 250, 60_000, Long.MAX_VALUE}) {
+            shardB.add(millis);
+            all.add(millis);
+        }
+
+        LatencyHistogram row = LatencyHistogram.decode(shardA.encode());
+        row.merge(LatencyHistogram.decode(shardB.encode()));
+
+        assertEquals(all.encode(), row.encode());
+        assertEquals(10, row.count());
+        assertEquals(all.percentile(50), row.percentile(50));
+        assertEquals(all.percentile(95), row.percentile(95));
+    }
+
+    @Test
+    public void testDecodeOfMalformedTextIsEmpty() {
+        assertEquals(0, LatencyHistogram.decode(null).count());
+        assertEquals(0, LatencyHistogram.decode("1,x,3").count());
+        assertEquals("", new LatencyHistogram().encode());
+    }
+
+    @Test
+    public void testSparklineScalesToLargest() {
+        assertEquals("▁▄█", SyncMetrics.sparkline(new long[]{0, 40, 100}));
+        assertEquals("▁▁", SyncMetrics.sparkline(new long[]{0, 0}));
+    }
+}
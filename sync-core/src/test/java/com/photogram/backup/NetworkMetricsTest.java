@@ -0,0 +1,40 @@
+package com.photogram.backup;
+
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class NetworkMetricsTest {
+
+    @Test
+    public void testMethodOfNeverIncludesTheToken() {
+        assertEquals("sendPhoto", NetworkMetrics.methodOf(Arrays.asList("bot123:secret", "sendPhoto")));
+        assertEquals(NetworkMetrics.DOWNLOAD, NetworkMetrics.methodOf(Arrays.asList("file", "bot123:secret", "photos", "a.jpg")));
+        assertEquals(NetworkMetrics.DOWNLOAD, NetworkMetrics.methodOf(Arrays.asList("")));
+    }
+
+    @Test
+    public void testMergeOfDecodedAddsUpPerMethod() throws Exception {
+        NetworkMetrics shardA = NetworkMetrics.decode(
+            "{\"sendPhoto\":{\"calls\":3,\"connections\":1,\"out\":3000,\"write\":\"\",\"ttfb\":\"0,0,0,1\"}}");
+        NetworkMetrics shardB = NetworkMetrics.decode(
+            "{\"sendPhoto\":{\"calls\":2,\"failed\":1,\"connections\":2,\"out\":500},\"getChat\":{\"calls\":1,\"in\":90}}");
+
+        NetworkMetrics row = NetworkMetrics.decode(null);
+        row.merge(shardA);
+        row.merge(shardB);
+        Map<String, NetworkMetrics.Method> methods = NetworkMetrics.decode(row.encode()).snapshot();
+
+        assertEquals(2, methods.size());
+        NetworkMetrics.Method photo = methods.get("sendPhoto");
+        assertEquals(5, photo.calls);
+        assertEquals(1, photo.failed);
+        assertEquals(3, photo.connections);
+        assertEquals(2, photo.reused());
+        assertEquals(3500, photo.bytesOut);
+        assertEquals(1, photo.firstByte.count());
+        assertEquals(90, methods.get("getChat").bytesIn);
+        assertTrue(NetworkMetrics.decode("").isEmpty());
+    }
+}
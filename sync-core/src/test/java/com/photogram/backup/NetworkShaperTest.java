@@ -0,0 +1,85 @@
+package com.photogram.backup;
+
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class NetworkShaperTest {
+
+    private long now = 0;
+    private final List<Long> sleeps = new ArrayList<>();
+
+    private NetworkShaper shaper(String profile) {
+        return new NetworkShaper(NetworkShaper.Profile.parse(profile), () -> now, ms -> {
+            sleeps.add(ms);
+            now += ms;
+        });
+    }
+
+    @Test
+    public void testParseOverridesPresetAndConvertsKbps() {
+        NetworkShaper.Profile profile = NetworkShaper.Profile.parse("3g, up=400, reset=0.5, seed=7");
+        assertEquals(300, profile.latencyMs);
+        assertEquals(50_000, profile.uplinkBytesPerSecond);
+        assertEquals(0.5, profile.resetRate, 0);
+        assertEquals(7, profile.seed);
+        try {
+            NetworkShaper.Profile.parse("3g,loss=0.1");
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // Unknown key
+        }
+    }
+
+    @Test
+    public void testFatesRepeatForTheSameSeed() {
+        NetworkShaper first = shaper("latency=100,jitter=50,stall=0.3,reset=0.3,seed=42");
+        NetworkShaper second = shaper("latency=100,jitter=50,stall=0.3,reset=0.3,seed=42");
+        int resets = 0;
+        for (int call = 0; call < 1000; call++) {
+            NetworkShaper.Fate a = first.fate(call);
+            NetworkShaper.Fate b = second.fate(call);
+            assertEquals(a.latencyMs, b.latencyMs);
+            assertEquals(a.stallAt, b.stallAt, 0);
+            assertEquals(a.resetAt, b.resetAt, 0);
+            if (a.resetAt >= 0) {
+                resets++;
+            }
+        }
+        assertTrue("resets " + resets, resets > 240 && resets < 360);
+    }
+
+    @Test
+    public void testShapedSinkStallsThenResetsAtTheirOffsets() throws Exception {
+        Buffer socket = new Buffer();
+        BufferedSink sink = Okio.buffer(shaper("stall-ms=2000").shape(socket, 3000, 5000));
+        try {
+            sink.write(new byte[20_000]);
+            sink.flush();
+            fail();
+        } catch (SocketException expected) {
+            // Reset
+        }
+
+        assertEquals(5000, socket.size());
+        assertEquals(List.of(2000L), sleeps);
+    }
+
+    @Test
+    public void testShapedSinkPacesToTheUplink() throws Exception {
+        Buffer socket = new Buffer();
+        BufferedSink sink = Okio.buffer(shaper("up=80").shape(socket, -1, -1));
+        sink.write(new byte[30_000]);
+        sink.flush();
+
+        // 10 kB/s: the first second's worth at once, then two seconds for the rest
+        long total = sleeps.stream().mapToLong(Long::longValue).sum();
+        assertEquals(30_000, socket.size());
+        assertTrue("slept " + total, Math.abs(total - 2000) <= 10);
+    }
+}
@@ -0,0 +1,28 @@
+package com.photogram.backup;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PerceptualHashTest {
+
+    @Test
+    public void testDHashIgnoresBrightnessShift() {
+        int[] luma = new int[PerceptualHash.WIDTH * PerceptualHash.HEIGHT];
+        int[] brighter = new int[luma.length];
+        Random random = new Random(1);
+        for (int i = 0; i < luma.length; i++) {
+            luma[i] = random.nextInt(200);
+            brighter[i] = luma[i] + 40;
+        }
+        assertEquals(PerceptualHash.dHash(luma), PerceptualHash.dHash(brighter));
+
+        int[] mirrored = new int[luma.length];
+        for (int y = 0; y < PerceptualHash.HEIGHT; y++) {
+            for (int x = 0; x < PerceptualHash.WIDTH; x++) {
+                mirrored[y * PerceptualHash.WIDTH + x] = luma[y * PerceptualHash.WIDTH + PerceptualHash.WIDTH - 1 - x];
+            }
+        }
+        assertNotEquals(PerceptualHash.dHash(luma), PerceptualHash.dHash(mirrored));
+    }
+}
@@ -0,0 +1,85 @@
+package com.photogram.backup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PerfTraceTest {
+
+    private static final class Recorder implements PerfTrace.Backend {
+        final List<String> events = new ArrayList<>();
+        boolean enabled = true;
+
+        @Override
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        @Override
+        public void beginSection(String name) {
+            events.add("B " + name);
+        }
+
+        @Override
+        public void endSection() {
+            events.add("E");
+        }
+
+        @Override
+        public void beginAsyncSection(String name, int cookie) {
+            events.add("b " + name);
+        }
+
+        @Override
+        public void endAsyncSection(String name, int cookie) {
+            events.add("e " + name);
+        }
+
+        @Override
+        public void setCounter(String name, long value) {
+            events.add("C " + name + "=" + value);
+        }
+    }
+
+    @After
+    public void uninstall() {
+        PerfTrace.install(null);
+    }
+
+    @Test
+    public void testSectionBegunWhileOffClosesWithoutEnding() {
+        Recorder recorder = new Recorder();
+        recorder.enabled = false;
+        PerfTrace.install(recorder);
+
+        PerfTrace.Section off = PerfTrace.section(PerfTrace.SYNC_FILE);
+        recorder.enabled = true;
+        off.close();
+        try (PerfTrace.Section on = PerfTrace.section(PerfTrace.MEDIA_SCAN)) {
+            recorder.enabled = false;
+        }
+
+        assertEquals(Arrays.asList("B " + PerfTrace.MEDIA_SCAN, "E"), recorder.events);
+    }
+
+    @Test
+    public void testUploadsCountBytesInFlightEvenWhileOff() {
+        Recorder recorder = new Recorder();
+        recorder.enabled = false;
+        PerfTrace.install(recorder);
+        int first = PerfTrace.beginUpload(4096);
+
+        recorder.enabled = true;
+        int second = PerfTrace.beginUpload(2048);
+        PerfTrace.endUpload(first, 4096);
+        PerfTrace.endUpload(second, 2048);
+
+        assertEquals(Arrays.asList(
+            "b " + PerfTrace.UPLOAD_ASYNC, "C " + PerfTrace.COUNTER_INFLIGHT_KIB + "=6",
+            "C " + PerfTrace.COUNTER_INFLIGHT_KIB + "=2",
+            "e " + PerfTrace.UPLOAD_ASYNC, "C " + PerfTrace.COUNTER_INFLIGHT_KIB + "=0"), recorder.events);
+    }
+}
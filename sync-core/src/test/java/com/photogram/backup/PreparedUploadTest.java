@@ -0,0 +1,75 @@
+package com.photogram.backup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PreparedUploadTest {
+
+    private static File write(String name, byte[] content) throws Exception {
+        File f = File.createTempFile("prep", name);
+        f.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(content);
+        }
+        return f;
+    }
+
+    private static byte[] heicHeader() {
+        byte[] h = new byte[32];
+        System.arraycopy("\0\0\0\u0018ftypheic".getBytes(StandardCharsets.US_ASCII), 0, h, 0, 12);
+        return h;
+    }
+
+    @Test
+    public void testHeicNamedJpgIsSniffedAsHeif() throws Exception {
+        PreparedUpload upload = PreparedUpload.prepare(write(".jpg", heicHeader()), 1024);
+        assertTrue(upload.isHeif());
+        assertTrue(upload.isBuffered());
+    }
+
+    @Test
+    public void testBufferedHashMatchesStreamedHash() throws Exception {
+        File f = write(".jpg", new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 1, 2, 3});
+        PreparedUpload upload = PreparedUpload.prepare(f, 1024);
+        assertEquals("image/jpeg", upload.mimeType);
+        assertEquals(HashingRequestBody.sha256Of(f), upload.contentHash);
+    }
+
+    @Test
+    public void testLargeFileIsStreamedWithoutHash() throws Exception {
+        PreparedUpload upload = PreparedUpload.prepare(write(".heic", heicHeader()), 16);
+        assertFalse(upload.isBuffered());
+        assertNull(upload.contentHash);
+        assertTrue(upload.isHeif());
+    }
+
+    @Test
+    public void testMissingFileIsNull() throws Exception {
+        assertNull(PreparedUpload.prepare(new File("/nonexistent/photo.jpg"), 1024));
+    }
+
+    @Test
+    public void testBudgetFullStreamsFromDisk() throws Exception {
+        BufferBudget budget = new BufferBudget(40);
+        PreparedUpload first = PreparedUpload.prepare(write(".heic", heicHeader()), 1024, budget);
+        PreparedUpload second = PreparedUpload.prepare(write(".heic", heicHeader()), 1024, budget);
+        assertTrue(first.isBuffered());
+        assertFalse(second.isBuffered());
+        assertTrue(second.isHeif());
+        assertEquals(32, budget.getReserved());
+    }
+
+    @Test
+    public void testReleaseReturnsBytesOnce() throws Exception {
+        BufferBudget budget = new BufferBudget(64);
+        PreparedUpload upload = PreparedUpload.prepare(write(".heic", heicHeader()), 1024, budget);
+        PreparedUpload.prepare(write(".heic", heicHeader()), 1024, budget);
+        upload.withContentHash("abc").release();
+        upload.release();
+        assertEquals(32, budget.getReserved());
+        assertTrue(PreparedUpload.prepare(write(".heic", heicHeader()), 1024, budget).isBuffered());
+    }
+}
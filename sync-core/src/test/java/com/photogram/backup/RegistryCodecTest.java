@@ -0,0 +1,42 @@
+package com.photogram.backup;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RegistryCodecTest {
+
+    @Test
+    public void testDocumentAndPointerRoundTrip() throws Exception {
+        Map<String, String> topics = new HashMap<>();
+        topics.put("Camera", "12");
+        topics.put("Screenshots", "15");
+
+        RegistryCodec.Document doc = RegistryCodec.decodeDocument(RegistryCodec.encodeDocument(4, topics, "hist"));
+        assertEquals(4, doc.version);
+        assertEquals(topics, doc.topics);
+        assertEquals("hist", doc.historyId);
+
+        String text = RegistryCodec.encodePointer(4, "doc-file", 99, null);
+        assertTrue(RegistryCodec.isPointer(text));
+        RegistryCodec.Pointer pointer = RegistryCodec.decodePointer(text);
+        assertFalse(pointer.isLegacy());
+        assertEquals(4, pointer.version);
+        assertEquals("doc-file", pointer.documentFileId);
+        assertEquals(99, pointer.documentMessage);
+        assertNull(pointer.historyId);
+    }
+
+    @Test
+    public void testLegacyPinnedMapDecodesAsPointerWithoutDocument() throws Exception {
+        RegistryCodec.Pointer pointer = RegistryCodec.decodePointer(
+            RegistryCodec.REGISTRY_PREFIX + "{\"Camera\":\"12\",\"CLOUD_HISTORY_ID\":\"hist\"}");
+
+        assertTrue(pointer.isLegacy());
+        assertEquals(0, pointer.version);
+        assertEquals("hist", pointer.historyId);
+        assertEquals(1, pointer.legacyTopics.size());
+        assertEquals("12", pointer.legacyTopics.get("Camera"));
+    }
+}
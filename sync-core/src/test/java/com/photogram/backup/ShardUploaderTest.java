@@ -0,0 +1,301 @@
+package com.photogram.backup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ShardUploaderTest {
+
+    /** Records the calls; every upload succeeds */
+    private static final class FakeTransport implements Transport {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public synchronized UploadResult uploadPhoto(PreparedUpload upload, String tid, ProgressRequestBody.Listener listener) {
+            calls.add("photo " + upload.file.getName());
+            return new UploadResult(null, "f" + calls.size(), calls.size(), upload.contentHash, false);
+        }
+
+        @Override
+        public synchronized UploadResult uploadPack(String fileName, TarPackBody pack, String tid, ProgressRequestBody.Listener listener) {
+            calls.add("pack " + pack.getEntries().size());
+            return new UploadResult(null, "f" + calls.size(), calls.size(), null, false);
+        }
+
+        @Override
+        public synchronized UploadResult copyToTopic(int messageId, String fileId, String tid, boolean encrypted) {
+            calls.add("copy " + fileId);
+            return new UploadResult(null, fileId, messageId, null, encrypted);
+        }
+
+        @Override
+        public void cancelAll() {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    private static final class FakeHistory implements HistoryStore {
+        final Map<String, Long> uploaded = new HashMap<>();
+        final List<String> nearDuplicates = new ArrayList<>();
+        final List<QueuedUpload> queued = new ArrayList<>();
+        Map<String, Long> checkpoints = new HashMap<>();
+        /** Size whose lookup fails, as the database can on a device */
+        long failingLookup = -1;
+
+        @Override
+        public synchronized boolean isFileUploaded(String path, long modified) {
+            Long known = uploaded.get(path);
+            return known != null && known == modified;
+        }
+
+        @Override
+        public synchronized boolean markAsUploaded(String path, long modified, long size, String fileId,
+                                                   int messageId, String contentHash, boolean encrypted) {
+            uploaded.put(path, modified);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean markAsPacked(String packName, String fileId, int messageId,
+                                                 Collection<PackedFile> members, boolean encrypted) {
+            for (PackedFile member : members) {
+                uploaded.put(member.path, member.modified);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean markAsNearDuplicate(String path, long modified, long size, String duplicateOf) {
+            nearDuplicates.add(path);
+            return true;
+        }
+
+        @Override
+        public void savePerceptualHash(String path, long modified, long hash) {
+        }
+
+        @Override
+        public void saveSyncCheckpoints(Map<String, Long> checkpoints) {
+            this.checkpoints = checkpoints;
+        }
+
+        @Override
+        public boolean hasHashedUploadOfSize(long size) {
+            if (size == failingLookup) {
+                throw new SecurityException("permission revoked");
+            }
+            return false;
+        }
+
+        @Override
+        public UploadedCopy findUploadByContent(long size, String contentHash) {
+            return null;
+        }
+
+        @Override
+        public List<QueuedUpload> getQueuedUploads(Collection<String> folderPaths) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public int enqueueUploads(Collection<QueuedUpload> uploads) {
+            queued.addAll(uploads);
+            return uploads.size();
+        }
+
+        @Override
+        public void removeQueuedUpload(String path) {
+        }
+
+        @Override
+        public void addLog(String type, String message) {
+        }
+    }
+
+    private final FakeTransport transport = new FakeTransport();
+    private final FakeHistory history = new FakeHistory();
+    private final CheckpointTracker checkpoints = new CheckpointTracker(new HashMap<>());
+
+    private static File folder() throws Exception {
+        File dir = Files.createTempDirectory("shard").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private UploadScheduler.Candidate photo(File dir, String name, long modified) throws Exception {
+        File f = new File(dir, name);
+        f.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) modified});
+        }
+        UploadScheduler.Candidate candidate = new UploadScheduler.Candidate(f.getPath(), dir.getPath(), "2", modified, f.length());
+        checkpoints.seen(candidate, true);
+        return candidate;
+    }
+
+    private ShardUploader uploader(String packedFolder) {
+        return new ShardUploader("0", transport, history, new UploadScheduler(UploadScheduler.Policy.OLDEST_FIRST),
+            packedFolder::equals, checkpoints, new SyncProgress(snapshot -> { }), new SyncMetrics());
+    }
+
+    @Test
+    public void testPacksGoFirstThenPhotos() throws Exception {
+        File packed = folder();
+        File single = folder();
+        ShardUploader uploader = uploader(packed.getPath());
+        uploader.add(photo(single, "c.jpg", 300), false);
+        uploader.add(photo(packed, "a.jpg", 100), false);
+        uploader.add(photo(packed, "b.jpg", 200), false);
+        assertEquals(2, uploader.packedFiles());
+
+        assertEquals(3, uploader.run());
+        assertEquals("pack 2", transport.calls.get(0));
+        assertEquals("photo c.jpg", transport.calls.get(1));
+        assertEquals(1, uploader.getPacks());
+        assertEquals(2, uploader.getPacked());
+        assertEquals(3, history.uploaded.size());
+        assertEquals(Long.valueOf(200), history.checkpoints.get(packed.getPath()));
+        assertEquals(Long.valueOf(300), history.checkpoints.get(single.getPath()));
+        assertFalse(uploader.needsContinuation());
+    }
+
+    @Test
+    public void testDailyLimitKeepsCheckpointBeforeThePhoto() throws Exception {
+        File dir = folder();
+        ShardUploader uploader = uploader("");
+        uploader.add(photo(dir, "a.jpg", 100), false);
+        uploader.add(photo(dir, "b.jpg", 200), false);
+        int[] reserved = {0};
+        uploader.setQuota(new ShardUploader.Quota() {
+            @Override
+            public boolean tryReserve(int count) {
+                return reserved[0]++ < 1;
+            }
+
+            @Override
+            public void commit(int count) {
+            }
+
+            @Override
+            public void release(int count) {
+            }
+        });
+
+        assertEquals(1, uploader.run());
+        assertEquals(1, transport.calls.size());
+        assertEquals(Long.valueOf(200), history.checkpoints.get(dir.getPath()));
+    }
+
+    @Test
+    public void testPackIsCutWhereTheDailyLimitRunsOut() throws Exception {
+        File packed = folder();
+        ShardUploader uploader = uploader(packed.getPath());
+        for (int i = 1; i <= 5; i++) {
+            uploader.add(photo(packed, i + ".jpg", i * 100), false);
+        }
+        int[] used = {0, 0};
+        uploader.setQuota(new ShardUploader.Quota() {
+            @Override
+            public boolean tryReserve(int count) {
+                if (used[0] + used[1] + count > 3) {
+                    return false;
+                }
+                used[1] += count;
+                return true;
+            }
+
+            @Override
+            public void commit(int count) {
+                used[1] -= count;
+                used[0] += count;
+            }
+
+            @Override
+            public void release(int count) {
+                used[1] -= count;
+            }
+        });
+
+        assertEquals(3, uploader.run());
+        assertEquals("pack 3", transport.calls.get(0));
+        assertEquals(1, transport.calls.size());
+        assertEquals(3, used[0]);
+        assertEquals(0, used[1]);
+        assertEquals(Long.valueOf(400), history.checkpoints.get(packed.getPath()));
+    }
+
+    @Test(timeout = 10000)
+    public void testFailedPrepareStreamsThePhotoInstead() throws Exception {
+        File dir = folder();
+        File big = new File(dir, "a.jpg");
+        big.deleteOnExit();
+        try (RandomAccessFile out = new RandomAccessFile(big, "rw")) {
+            // Too big to read ahead, so its hash is looked up on the prepare thread
+            out.setLength(AppConstants.PREPARE_BUFFER_MAX + 1);
+        }
+        UploadScheduler.Candidate candidate = new UploadScheduler.Candidate(big.getPath(), dir.getPath(), "2", 100, big.length());
+        checkpoints.seen(candidate, true);
+        ShardUploader uploader = uploader("");
+        uploader.add(candidate, false);
+        uploader.add(photo(dir, "b.jpg", 200), false);
+        history.failingLookup = big.length();
+
+        assertEquals(2, uploader.run());
+        assertEquals("photo a.jpg", transport.calls.get(0));
+        assertEquals("photo b.jpg", transport.calls.get(1));
+    }
+
+    @Test
+    public void testNearDuplicateIsDeferredOrSkipped() throws Exception {
+        for (boolean skip : new boolean[]{false, true}) {
+            File dir = folder();
+            ShardUploader uploader = uploader("");
+            UploadScheduler.Candidate first = photo(dir, "a.jpg", 100);
+            UploadScheduler.Candidate burst = photo(dir, "b.jpg", 101);
+            uploader.add(first, false);
+            uploader.add(burst, false);
+            uploader.setNearDuplicates(new ShardUploader.NearDuplicates() {
+                private String original;
+
+                @Override
+                public boolean covers(String folderPath) {
+                    return true;
+                }
+
+                @Override
+                public Long fingerprint(PreparedUpload upload) {
+                    return 7L;
+                }
+
+                @Override
+                public String findNear(String folderPath, long hash, long modified) {
+                    return original;
+                }
+
+                @Override
+                public void add(String folderPath, String path, long modified, long hash) {
+                    original = path;
+                }
+            }, skip);
+
+            assertEquals(1, uploader.run());
+            assertEquals(skip ? 0 : 1, history.queued.size());
+            assertEquals(skip ? 1 : 0, history.nearDuplicates.size());
+            history.queued.clear();
+            history.nearDuplicates.clear();
+        }
+        assertEquals(2, transport.calls.size());
+    }
+}
@@ -0,0 +1,59 @@
+package com.photogram.backup;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SyncProgressTest {
+
+    private long now = 0;
+    private final List<SyncProgress.Snapshot> published = new ArrayList<>();
+
+    @Test
+    public void testPublishingIsRateLimited() {
+        SyncProgress progress = new SyncProgress(published::add, () -> now, 250);
+        progress.addPlanned(1, 10_000);
+        progress.startFile("a.jpg");
+
+        // 100 socket writes within 100 ms collapse into the first publication
+        for (int i = 1; i <= 100; i++) {
+            now = i;
+            progress.onFileBytes(i * 50);
+        }
+        assertEquals(1, published.size());
+
+        now = 300;
+        progress.onFileBytes(6_000);
+        assertEquals(2, published.size());
+    }
+
+    @Test
+    public void testRateAndEta() {
+        SyncProgress progress = new SyncProgress(published::add, () -> now, 250);
+        progress.addPlanned(2, 2_000_000);
+        progress.startFile("a.jpg");
+
+        now = 1000;
+        progress.onFileBytes(500_000);
+
+        SyncProgress.Snapshot snap = published.get(published.size() - 1);
+        assertEquals(500_000, snap.bytesPerSecond);
+        assertEquals(500_000, snap.bytesDone);
+        assertEquals(3, snap.etaSeconds);
+        assertEquals(25, snap.getPercent());
+    }
+
+    @Test
+    public void testSkippedFilesLeaveTotals() {
+        SyncProgress progress = new SyncProgress(published::add, () -> now, 250);
+        progress.addPlanned(3, 300);
+        progress.skipFile(100);
+        progress.finishFile(100);
+
+        SyncProgress.Snapshot snap = progress.snapshot();
+        assertEquals(2, snap.filesTotal);
+        assertEquals(200, snap.bytesTotal);
+        assertEquals(50, snap.getPercent());
+    }
+}
@@ -0,0 +1,80 @@
+package com.photogram.backup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import okio.Buffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TarPackBodyTest {
+
+    private static File write(String name, int size) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "tarpack");
+        dir.mkdirs();
+        File f = new File(dir, name);
+        f.deleteOnExit();
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31 + name.length());
+        }
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(content);
+        }
+        return f;
+    }
+
+    @Test
+    public void testOffsetsPointAtMemberData() throws Exception {
+        File a = write("a.jpg", 700);
+        File b = write("b.png", 1024);
+        TarPackBody pack = new TarPackBody();
+        TarPackBody.Entry ea = pack.add(a, a.length(), 1000);
+        TarPackBody.Entry eb = pack.add(b, b.length(), 2000);
+
+        Buffer out = new Buffer();
+        pack.writeTo(out);
+        byte[] tar = out.readByteArray();
+
+        assertEquals(pack.contentLength(), tar.length);
+        assertEquals(512, ea.dataOffset);
+        assertEquals(512 + 1024 + 512, eb.dataOffset);
+        assertEquals(0, tar.length % 512);
+
+        byte[] member = new byte[1024];
+        System.arraycopy(tar, (int) eb.dataOffset, member, 0, member.length);
+        assertArrayEquals(java.nio.file.Files.readAllBytes(b.toPath()), member);
+    }
+
+    @Test
+    public void testHeaderHasValidChecksum() throws Exception {
+        File a = write("c.jpg", 10);
+        TarPackBody pack = new TarPackBody();
+        byte[] h = TarPackBody.header(pack.add(a, 10, 1234));
+
+        long sum = 0;
+        for (int i = 0; i < h.length; i++) {
+            sum += (i >= 148 && i < 156) ? ' ' : h[i] & 0xFF;
+        }
+        assertEquals(sum, Long.parseLong(new String(h, 148, 6, "US-ASCII"), 8));
+        assertEquals(10, Long.parseLong(new String(h, 124, 11, "US-ASCII"), 8));
+    }
+
+    @Test(expected = IOException.class)
+    public void testChangedFileFailsTheUpload() throws Exception {
+        File a = write("d.jpg", 100);
+        TarPackBody pack = new TarPackBody();
+        pack.add(a, 200, 1);
+        pack.writeTo(new Buffer());
+    }
+
+    @Test
+    public void testLongNamesDoNotFit() {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 101; i++) {
+            name.append('x');
+        }
+        assertFalse(TarPackBody.fits(name.toString()));
+        assertTrue(TarPackBody.fits("Screenshot_20261019-101500.png"));
+    }
+}
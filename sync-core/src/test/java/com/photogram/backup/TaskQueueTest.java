@@ -0,0 +1,125 @@
+package com.photogram.backup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TaskQueueTest {
+
+    private final LinkedBlockingQueue<Runnable> delivered = new LinkedBlockingQueue<>();
+    private final List<Exception> failures = new ArrayList<>();
+    private final TaskQueue queue = new TaskQueue(1, Thread::new, delivered::add, failures::add);
+
+    @Test
+    public void testVisibleTasksRunBeforeBackgroundOnesQueuedEarlier() throws Exception {
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(4);
+        TaskQueue.Scope scope = queue.newScope();
+        // Holds the only thread while the rest queue up
+        scope.run(TaskQueue.Priority.BACKGROUND, () -> await(release));
+        for (String name : Arrays.asList("maintenance", "first", "second")) {
+            TaskQueue.Priority priority = name.equals("maintenance") ? TaskQueue.Priority.BACKGROUND : TaskQueue.Priority.VISIBLE;
+            scope.run(priority, () -> {
+                ran.add(name);
+                finished.countDown();
+            });
+        }
+        queue.execute(TaskQueue.Priority.BACKGROUND, finished::countDown);
+        release.countDown();
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("first", "second", "maintenance"), ran);
+    }
+
+    @Test
+    public void testCancelDropsQueuedTasksAndUndeliveredResults() throws Exception {
+        List<String> results = new ArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        TaskQueue.Scope screen = queue.newScope();
+        screen.run(TaskQueue.Priority.VISIBLE, () -> {
+            await(release);
+            return "running";
+        }, results::add);
+        screen.run(TaskQueue.Priority.VISIBLE, () -> "queued", results::add);
+        CountDownLatch drained = new CountDownLatch(1);
+        queue.execute(TaskQueue.Priority.BACKGROUND, drained::countDown);
+
+        screen.cancel();
+        release.countDown();
+        assertTrue(drained.await(5, TimeUnit.SECONDS));
+        screen.run(TaskQueue.Priority.VISIBLE, () -> "late", results::add);
+        Runnable delivery;
+        while ((delivery = delivered.poll()) != null) {
+            delivery.run();
+        }
+
+        assertTrue(results.isEmpty());
+        assertEquals(0, queue.queued());
+    }
+
+    @Test
+    public void testFailingWorkDeliversItsFailureAndKeepsTheThread() throws Exception {
+        List<String> results = new ArrayList<>();
+        List<Exception> screenFailures = new ArrayList<>();
+        TaskQueue.Scope screen = queue.newScope();
+        screen.<String>run(TaskQueue.Priority.VISIBLE, () -> {
+            throw new IllegalStateException("database closed");
+        }, results::add, screenFailures::add);
+        screen.<String>run(TaskQueue.Priority.VISIBLE, () -> {
+            throw new IOException("disk full");
+        }, results::add);
+        screen.run(TaskQueue.Priority.VISIBLE, () -> "after", results::add);
+        deliver(3);
+
+        assertEquals(Collections.singletonList("after"), results);
+        assertEquals("database closed", screenFailures.get(0).getMessage());
+        assertEquals("disk full", failures.get(0).getMessage());
+    }
+
+    @Test
+    public void testRunToCompletionRunsTheWorkOfACancelledScope() throws Exception {
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        List<String> results = new ArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        TaskQueue.Scope screen = queue.newScope();
+        screen.run(TaskQueue.Priority.VISIBLE, () -> await(release));
+        screen.runToCompletion(TaskQueue.Priority.VISIBLE, () -> {
+            ran.add("pause");
+            return "paused";
+        }, results::add);
+
+        screen.cancel();
+        release.countDown();
+        deliver(1);
+
+        assertEquals(Collections.singletonList("pause"), ran);
+        assertTrue(results.isEmpty());
+    }
+
+    /**
+     * Run the deliveries on this thread, as the main thread would
+     */
+    private void deliver(int expected) throws InterruptedException {
+        for (int i = 0; i < expected; i++) {
+            Runnable delivery = delivered.poll(5, TimeUnit.SECONDS);
+            assertNotNull(delivery);
+            delivery.run();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
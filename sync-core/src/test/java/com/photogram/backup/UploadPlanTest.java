@@ -0,0 +1,72 @@
+package com.photogram.backup;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class UploadPlanTest {
+
+    @Test
+    public void testPackedPhotosShareMessages() {
+        UploadPlan plan = new UploadPlan();
+        plan.add("/DCIM/Camera", 5_000_000);
+        for (int i = 0; i < 30; i++) {
+            plan.addPacked("/Pictures/Screenshots", "/Pictures/Screenshots/s" + i + ".png", 1024 * 1024, i);
+        }
+
+        assertEquals(31, plan.getFiles());
+        // 19 MB packs hold 18 one-megabyte photos with their headers
+        assertEquals(1 + 2, plan.getMessages());
+        assertEquals("Screenshots", plan.getFolders().get(0).getName());
+    }
+
+    @Test
+    public void testLimitedAccountOnlyCountsTodaysMessages() {
+        UploadPlan plan = new UploadPlan();
+        for (int i = 0; i < 10; i++) {
+            plan.add("/DCIM/Camera", 1000);
+        }
+        plan.setQuotaRemaining(4);
+
+        assertTrue(plan.exceedsQuota());
+        assertEquals(4, plan.getFilesToday());
+        assertEquals(4, plan.getMessagesToday());
+        // 4000 bytes at 1000 B/s plus a one second pause per message
+        assertEquals(4 + 4, plan.estimateSeconds(1000, 1000));
+    }
+
+    @Test
+    public void testPackedPhotosEachCountAgainstTheLimit() {
+        UploadPlan plan = new UploadPlan();
+        for (int i = 0; i < 30; i++) {
+            plan.addPacked("/Pictures/Screenshots", "/Pictures/Screenshots/s" + i + ".png", 1000, i);
+        }
+        plan.setQuotaRemaining(6);
+
+        // One message, but 30 photos against a limit of 6
+        assertEquals(1, plan.getMessages());
+        assertTrue(plan.exceedsQuota());
+        assertEquals(6, plan.getFilesToday());
+        assertEquals(1, plan.getMessagesToday());
+        // 6000 bytes at 1000 B/s plus a one second pause for the pack
+        assertEquals(6 + 1, plan.estimateSeconds(1000, 1000));
+        assertTrue(plan.summary(0, 1000).endsWith(" · only 6 today (daily limit)"));
+    }
+
+    @Test
+    public void testUnknownRateHasNoEta() {
+        UploadPlan plan = new UploadPlan();
+        plan.add("/DCIM/Camera", 1000);
+
+        assertFalse(plan.exceedsQuota());
+        assertEquals(-1, plan.estimateSeconds(0, 1000));
+        assertEquals("1 photos · 1.0 KB", plan.summary(0, 1000));
+        assertEquals("Nothing new to back up", new UploadPlan().summary(1000, 1000));
+    }
+
+    @Test
+    public void testDurationsRoundUpToMinutes() {
+        assertEquals("59 s", UploadPlan.formatDuration(59));
+        assertEquals("2 min", UploadPlan.formatDuration(61));
+        assertEquals("1 h 05 min", UploadPlan.formatDuration(3900));
+    }
+}
@@ -0,0 +1,51 @@
+package com.photogram.backup;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class UploadSchedulerTest {
+
+    private static UploadScheduler.Candidate candidate(String topic, long modified, long size) {
+        return new UploadScheduler.Candidate("/dcim/" + topic + "/" + modified + ".jpg", "/dcim/" + topic, topic, modified, size);
+    }
+
+    @Test
+    public void testNewestFirstReturnsMostRecentPhotoFirst() {
+        UploadScheduler scheduler = new UploadScheduler(UploadScheduler.Policy.NEWEST_FIRST);
+        scheduler.add(candidate("a", 10, 1));
+        scheduler.add(candidate("a", 30, 1));
+        scheduler.add(candidate("a", 20, 1));
+
+        assertEquals(30, scheduler.next().modified);
+        assertEquals(20, scheduler.next().modified);
+        assertEquals(10, scheduler.next().modified);
+        assertNull(scheduler.next());
+    }
+
+    @Test
+    public void testSmallestFirstOrdersBySize() {
+        UploadScheduler scheduler = new UploadScheduler(UploadScheduler.Policy.SMALLEST_FIRST);
+        scheduler.add(candidate("a", 1, 300));
+        scheduler.add(candidate("a", 2, 100));
+        scheduler.add(candidate("a", 3, 200));
+
+        assertEquals(100, scheduler.next().size);
+        assertEquals(200, scheduler.next().size);
+        assertEquals(300, scheduler.next().size);
+        assertEquals(600, scheduler.totalBytes());
+    }
+
+    @Test
+    public void testRoundRobinAlternatesTopics() {
+        UploadScheduler scheduler = new UploadScheduler(UploadScheduler.Policy.ROUND_ROBIN);
+        for (int i = 0; i < 5; i++) {
+            scheduler.add(candidate("big", i, 1));
+        }
+        scheduler.add(candidate("small", 1, 1));
+
+        assertEquals("big", scheduler.next().topicId);
+        assertEquals("small", scheduler.next().topicId);
+        assertEquals("big", scheduler.next().topicId);
+        assertEquals(3, scheduler.size());
+    }
+}